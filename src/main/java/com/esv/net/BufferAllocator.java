@@ -0,0 +1,52 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Provides the I/O buffers of the server connections: their read and write
+ * buffers, the TLS records and the chunks of the large writes. The default
+ * allocator pools direct buffers by size class; another one is named by the
+ * buffers.allocator property, built with its public no argument constructor.
+ * </p>
+ * <p>
+ * The implementations must be thread safe: a buffer may be released by
+ * another thread than the one that allocated it.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+public interface BufferAllocator {
+
+    /**
+     * @param capacity the min capacity
+     * @param direct true for a direct buffer, which the allocator may still
+     *        refuse, such as beyond a memory cap, with a heap one
+     * @return a cleared buffer, in big endian order, with at least the given capacity
+     */
+    ByteBuffer allocate(int capacity, boolean direct);
+
+    /**
+     * @param buffer a buffer allocated by this allocator, no longer used by the caller
+     */
+    void release(ByteBuffer buffer);
+
+    /**
+     * <p>
+     * Tells of a buffer that will never be released, such as one still held
+     * when its connection closes, left to its holder and then to the garbage
+     * collector, so that it is no longer counted against the allocator caps.
+     * Nothing by default.
+     * </p>
+     *
+     * @param buffer a buffer allocated by this allocator, not released
+     */
+    default void forget(final ByteBuffer buffer) {
+        // nothing counted by default
+    }
+}
\ No newline at end of file
@@ -0,0 +1,58 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Declares which requests a {@link HttpRequestHandler} is interested in. The
+ * handlers chain is compiled once at startup into a dispatch table, so a
+ * handler is only called for the requests it matches. Handlers without this
+ * annotation match every GET request. A handler declaring the
+ * {@link #ANY_METHOD} joins every method handled by the other handlers,
+ * without allowing any method by itself.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 15/10/2017
+ */
+@Documented
+@Retention(RUNTIME)
+@Target(TYPE)
+public @interface Handles {
+    
+    /**
+     * Wildcard of {@link #methods()}: every method handled by the other handlers
+     */
+    String ANY_METHOD = "*";
+    
+    /**
+     * @return the HTTP methods handled
+     */
+    String[] methods() default { "GET" };
+    
+    /**
+     * @return the path prefix of the handled requests
+     */
+    String pathPrefix() default "/";
+    
+    /**
+     * <p>The Accept header must start with one of these media types, empty matches any</p>
+     * @return
+     */
+    String[] accept() default {};
+    
+    /**
+     * <p>Lower values run first, handlers with the same order keep the request.handlers order</p>
+     * @return
+     */
+    int order() default 0;
+}
@@ -3,22 +3,37 @@
  */
 package com.esv.net;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
-import java.util.StringTokenizer;
-import java.util.UUID;
-
-import com.esv.utile.utils.IOUtils;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * <p>
+ * The request being handled. Each worker thread parses its requests into the
+ * same instance, reset between requests along with its line buffer and
+ * streams, so a steady stream of requests allocates little more than the
+ * strings of the request line and header values. A request must not be kept
+ * after {@link #recycle()}; a request created while the worker's instance is
+ * in use (a nested request) is not pooled.
+ * </p>
+ * 
  * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
  * @version 1.0
  * @since 18/09/2017
@@ -26,69 +41,242 @@ import com.esv.utile.utils.IOUtils;
 public final class HttpRequest {
     
     private static final ThreadLocal<HttpRequest> currentRequest = new ThreadLocal<>();
+    private static final ThreadLocal<HttpRequest> pooled = ThreadLocal.withInitial(HttpRequest::new);
+    
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADERS = 100;
+    
+    // request ids: a random prefix per process and a sequence
+    private static final String ID_PREFIX = Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 16) + "-";
+    private static final AtomicLong sequence = new AtomicLong();
+    
+    private static final String[] KNOWN_METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "PRI" };
+    private static final String[] KNOWN_HEADERS = { "Host", "Accept", "Accept-Encoding", "Accept-Language", "User-Agent",
+            "Connection", "Content-Length", "Content-Type", "Cookie", "Cache-Control", "Pragma", "Referer", "Origin",
+            "Authorization", "Range", "If-Range", "If-None-Match", "If-Modified-Since", "Upgrade", "HTTP2-Settings",
+            "Sec-WebSocket-Key", "Sec-WebSocket-Version", "Last-Event-ID", "X-Forwarded-For" };
+    
+    private long requestSequence;
+    private String requestId;
+    private transient Socket socket;
+    private String requestMethod;
+    private String requestLine;
+    private String requestURI;
+    private String pathInfo;
+    private int pathLevel;
+    private String[] headerNames = new String[16];
+    private String[] headerValues = new String[16];
+    private int headerCount;
+    private Map<String, String> headers;
+    private String accept;
+    private long contentLength;
+    private transient final BodyInputStream inputStream = new BodyInputStream();
+    private transient final ResponseOutputStream outputStream = new ResponseOutputStream();
+    private boolean restRequest;
+    private long startNanos;
+    private boolean complete;
+    // pooling state
+    private transient byte[] line = new byte[256];
+    private transient HttpRequest previous;
+    private transient boolean inUse;
+    private final boolean recyclable;
+    
+    /**
+     * @param recyclable true for the worker's pooled instance
+     */
+    private HttpRequest(final boolean recyclable) {
+        this.recyclable = recyclable;
+    }
     
-    private final String requestId;
-    private transient final Socket socket;
-    private final String requestMethod;
-    private final String requestLine;
-    private final String requestURI;
-    private final String pathInfo;
-    private final int pathLevel;
-    private final Map<String, String> headers;
-    private final String accept;
-    private transient final OutputStream outputStream;
-    private final boolean restRequest;
+    /**
+     * Creates the worker's pooled instance
+     */
+    private HttpRequest() {
+        this(true);
+    }
 
     /**
+     * <p>Parses the next request, replacing the state of the previous one</p>
      * 
      * @param socket
-     * @throws RuntimeException
+     * @param inputStream the buffered connection input, positioned at the request line
+     * @param outputStream the connection output
+     * @throws IOException
      */
-    private HttpRequest(final Socket socket) throws RuntimeException  {
-        this.requestId = UUID.randomUUID().toString();
+    private void parse(final Socket socket, final InputStream inputStream, final OutputStream outputStream) throws IOException {
+        this.requestSequence = sequence.incrementAndGet();
+        this.requestId = null;
         this.socket = socket;
-        try {
-            final BufferedReader reader = IOUtils.toBufferedReader(socket.getInputStream());
-            this.requestLine = reader.readLine();
-            if (null != requestLine) {
+        this.complete = false;
+        this.headers = null;
+        this.headerCount = 0;
+        int length = this.readLine(inputStream);
+        if (length < 0) {
+            throw new EOFException("Connection closed before the request line");
+        }
+        this.startNanos = System.nanoTime();
+        this.requestLine = new String(line, 0, length, StandardCharsets.ISO_8859_1);
+        final int methodEnd = requestLine.indexOf(' ');
+        int uriStart = methodEnd + 1;
+        while (methodEnd > 0 && uriStart < length && line[uriStart] == ' ') {
+            uriStart++;
+        }
+        int uriEnd = uriStart;
+        while (uriEnd < length && line[uriEnd] != ' ') {
+            uriEnd++;
+        }
+        if (methodEnd <= 0 || uriStart == uriEnd) {
+            throw new IOException("Malformed request line: " + requestLine);
+        }
+        this.requestMethod = HttpRequest.known(KNOWN_METHODS, line, 0, methodEnd, false);
+        if (null == requestMethod) {
+            this.requestMethod = requestLine.substring(0, methodEnd);
+        }
+        this.requestURI = requestLine.substring(uriStart, uriEnd);
+        final int idx = requestURI.indexOf('?');
+        this.pathInfo = idx == -1 ? requestURI : requestURI.substring(0, idx);
+        int slashes = 0;
+        for (int i = 0; i < pathInfo.length(); i++) {
+            if (pathInfo.charAt(i) == '/') {
+                slashes++;
             }
-            final StringTokenizer tokenizedLine = new StringTokenizer(requestLine);
-            this.requestMethod = tokenizedLine.nextToken();
-            this.requestURI = tokenizedLine.nextToken();
-            final int idx = requestURI.indexOf('?');
-            this.pathInfo = idx == -1 ? requestURI : requestURI.substring(0, idx);
-            this.pathLevel = (int) this.pathInfo.chars().filter(c -> c == '/').count();
-            this.headers = HttpRequest.getHeaders(reader);
-            this.accept = headers.get("Accept");
-            this.restRequest = null != accept && accept.startsWith("application/json");
-            this.outputStream = socket.getOutputStream();
-            // set this new request object as thread local
-            HttpRequest.currentRequest.set(this);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
+        this.pathLevel = slashes;
+        while ((length = this.readLine(inputStream)) > 0) {
+            if (!this.addHeader(length)) {
+                break;
+            }
+        }
+        this.accept = this.getHeader("Accept");
+        this.restRequest = null != accept && accept.startsWith("application/json");
+        this.contentLength = HttpRequest.getContentLength(this.getHeader("Content-Length"));
+        this.inputStream.reset(inputStream, contentLength);
+        this.outputStream.reset(outputStream);
+        // set this request object as thread local, restored on recycle
+        this.previous = HttpRequest.currentRequest.get();
+        HttpRequest.currentRequest.set(this);
     }
     
+    /**
+     * @param length the header line length in the line buffer
+     * @return false if the line is not a header
+     * @throws IOException
+     */
+    private boolean addHeader(final int length) throws IOException {
+        int colon = 0;
+        while (colon < length && line[colon] != ':') {
+            colon++;
+        }
+        if (colon == length) {
+            return false;
+        }
+        if (headerCount == MAX_HEADERS) {
+            throw new IOException("Too many request headers");
+        }
+        int nameStart = 0;
+        int nameEnd = colon;
+        while (nameStart < nameEnd && line[nameStart] <= ' ') {
+            nameStart++;
+        }
+        while (nameEnd > nameStart && line[nameEnd - 1] <= ' ') {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        int valueEnd = length;
+        while (valueStart < valueEnd && line[valueStart] <= ' ') {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && line[valueEnd - 1] <= ' ') {
+            valueEnd--;
+        }
+        String name = HttpRequest.known(KNOWN_HEADERS, line, nameStart, nameEnd, true);
+        if (null == name) {
+            name = new String(line, nameStart, nameEnd - nameStart, StandardCharsets.ISO_8859_1);
+        }
+        if (headerCount == headerNames.length) {
+            headerNames = Arrays.copyOf(headerNames, headerCount * 2);
+            headerValues = Arrays.copyOf(headerValues, headerCount * 2);
+        }
+        headerNames[headerCount] = name;
+        headerValues[headerCount] = new String(line, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+        headerCount++;
+        return true;
+    }
     
     /**
-     * @param reader
-     * @return
+     * @param candidates
+     * @param source
+     * @param start
+     * @param end
+     * @param ignoreCase
+     * @return the candidate equal to the source bytes, or null, avoiding a new string for the common tokens
+     */
+    private static String known(final String[] candidates, final byte[] source, final int start, final int end, final boolean ignoreCase) {
+        final int length = end - start;
+        candidates:
+        for (final String candidate : candidates) {
+            if (candidate.length() != length) {
+                continue;
+            }
+            for (int i = 0; i < length; i++) {
+                final char c = candidate.charAt(i);
+                final char b = (char) (source[start + i] & 0xff);
+                if (c != b && !(ignoreCase && Character.toLowerCase(c) == Character.toLowerCase(b))) {
+                    continue candidates;
+                }
+            }
+            return candidate;
+        }
+        return null;
+    }
+    
+    /**
+     * @param value the Content-Length header
+     * @return the declared body length, 0 if absent
      * @throws IOException
      */
-    private static Map<String, String> getHeaders(final BufferedReader reader) throws IOException {
-        final Map<String, String> headers = new HashMap<>();
-        String header = reader.readLine();
-        while (null != header && header.length() > 0) {
-            final int idx = header.indexOf(":");
-            if (idx == -1) {
-                break;
+    private static long getContentLength(final String value) throws IOException {
+        if (null == value) {
+            return 0L;
+        }
+        try {
+            final long contentLength = Long.parseLong(value);
+            if (contentLength < 0L) {
+                throw new IOException("Invalid Content-Length: " + value);
             }
-            final String key = header.substring(0, idx).trim();
-            final String value = header.substring(idx + 1, header.length()).trim();
-            headers.put(key, value);
-            header = reader.readLine();
+            return contentLength;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + value, e);
         }
-        return headers;
+    }
+    
+    /**
+     * <p>
+     * Reads an ISO-8859-1 line terminated by LF or CRLF into the line buffer,
+     * without reading ahead, so the request body remains available in the
+     * given stream
+     * </p>
+     * 
+     * @param inputStream
+     * @return the line length without the terminator, or -1 at the end of the stream
+     * @throws IOException
+     */
+    private int readLine(final InputStream inputStream) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = inputStream.read()) != -1) {
+            if (b == '\n') {
+                return length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+            }
+            if (length == MAX_LINE_LENGTH) {
+                throw new IOException("Request line or header exceeds " + MAX_LINE_LENGTH + " bytes");
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, Math.min(MAX_LINE_LENGTH, length * 2));
+            }
+            line[length++] = (byte) b;
+        }
+        return length == 0 ? -1 : length;
     }
 
     
@@ -98,9 +286,76 @@ public final class HttpRequest {
      * @return
      */
     public static HttpRequest newInstance(final Socket socket) {
-        return new HttpRequest(socket);
+        try {
+            return HttpRequest.newInstance(socket, new BufferedInputStream(socket.getInputStream()), socket.getOutputStream());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * <p>
+     * Parses a request into the worker's pooled instance, or into a new one if
+     * the pooled instance is in use
+     * </p>
+     * 
+     * @param socket
+     * @param inputStream the buffered socket input, positioned at the request line
+     * @param outputStream the socket output
+     * @return
+     */
+    public static HttpRequest newInstance(final Socket socket, final InputStream inputStream, final OutputStream outputStream) {
+        final HttpRequest worker = HttpRequest.pooled.get();
+        final HttpRequest httpRequest = worker.inUse ? new HttpRequest(false) : worker;
+        httpRequest.inUse = true;
+        try {
+            httpRequest.parse(socket, inputStream, outputStream);
+            return httpRequest;
+        } catch (Exception e) {
+            httpRequest.inUse = false;
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * <p>
+     * Releases the request once its exchange is over, making the previous
+     * request of the thread current again. The request must not be used
+     * afterwards.
+     * </p>
+     */
+    public void recycle() {
+        if (!inUse) {
+            return;
+        }
+        if (HttpRequest.currentRequest.get() == this) {
+            if (null == previous) {
+                HttpRequest.currentRequest.remove();
+            } else {
+                HttpRequest.currentRequest.set(previous);
+            }
+        }
+        this.previous = null;
+        this.socket = null;
+        this.inputStream.reset(null, 0L);
+        this.outputStream.reset(null);
+        Arrays.fill(headerNames, 0, headerCount, null);
+        Arrays.fill(headerValues, 0, headerCount, null);
+        this.headerCount = 0;
+        this.headers = null;
+        this.inUse = false;
+        if (!recyclable) {
+            this.line = null;
+        }
     }
     
+    /**
+     * @param requestSequence
+     * @return the request id of the given sequence, see {@link #getRequestSequence()}
+     */
+    public static String requestId(final long requestSequence) {
+        return ID_PREFIX + Long.toHexString(requestSequence);
+    }
     
     /**
      * @return the currentrequest
@@ -124,10 +379,10 @@ public final class HttpRequest {
     }
 
     /**
-     * {@link Socket#getInputStream()}
+     * @return the request body, limited to the declared Content-Length
      */
     public InputStream getInputStream() throws IOException {
-        return socket.getInputStream();
+        return inputStream;
     }
 
     /**
@@ -180,11 +435,21 @@ public final class HttpRequest {
     }
     
     /**
-     * @return
+     * @return the request id, created on first use
      */
     public String getRequestId() {
+        if (null == requestId) {
+            requestId = HttpRequest.requestId(requestSequence);
+        }
         return requestId;
     }
+    
+    /**
+     * @return the sequence the request id is made of, without creating the id
+     */
+    public long getRequestSequence() {
+        return requestSequence;
+    }
 
     /**
      * {@link Socket#isClosed()}
@@ -229,9 +494,16 @@ public final class HttpRequest {
     }
 
     /**
-     * @return
+     * @return the headers as a case insensitive and immutable map, created on first use
      */
     public Map<String, String> getHeaders() {
+        if (null == headers) {
+            final Map<String, String> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (int i = 0; i < headerCount; i++) {
+                map.put(headerNames[i], headerValues[i]);
+            }
+            headers = Collections.unmodifiableMap(map);
+        }
         return headers;
     }
 
@@ -242,6 +514,27 @@ public final class HttpRequest {
         return accept;
     }
     
+    /**
+     * @param name the header name, case insensitive
+     * @return the header value or null
+     */
+    public String getHeader(final String name) {
+        // the last occurrence wins
+        for (int i = headerCount - 1; i >= 0; i--) {
+            if (headerNames[i].equalsIgnoreCase(name)) {
+                return headerValues[i];
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @return the declared request body length, 0 if absent
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+    
     /**
      * @return
      */
@@ -249,12 +542,47 @@ public final class HttpRequest {
         return restRequest;
     }
 
+    /**
+     * <p>Marks the exchange as complete, no further handler is called</p>
+     */
+    public void complete() {
+        this.complete = true;
+    }
+    
+    /**
+     * @return true if a handler completed the exchange
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
     /**
      * @return
      */
     public OutputStream getOutputStream() {
         return outputStream;
     }
+    
+    /**
+     * @return the {@link System#nanoTime()} when the request line was read
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+    
+    /**
+     * @return the status code written to the output stream, 0 if none
+     */
+    public int getResponseStatus() {
+        return outputStream.status;
+    }
+    
+    /**
+     * @return the bytes written to the output stream, head included
+     */
+    public long getResponseBytes() {
+        return outputStream.count;
+    }
 
     /* (non-Javadoc)
      * @see java.lang.Object#hashCode()
@@ -264,10 +592,10 @@ public final class HttpRequest {
         final int prime = 31;
         int result = 1;
         result = prime * result + ((accept == null) ? 0 : accept.hashCode());
-        result = prime * result + ((headers == null) ? 0 : headers.hashCode());
+        result = prime * result + getHeaders().hashCode();
         result = prime * result + ((pathInfo == null) ? 0 : pathInfo.hashCode());
         result = prime * result + pathLevel;
-        result = prime * result + ((requestId == null) ? 0 : requestId.hashCode());
+        result = prime * result + (int) (requestSequence ^ (requestSequence >>> 32));
         result = prime * result + ((requestLine == null) ? 0 : requestLine.hashCode());
         result = prime * result + ((requestMethod == null) ? 0 : requestMethod.hashCode());
         result = prime * result + ((requestURI == null) ? 0 : requestURI.hashCode());
@@ -292,10 +620,7 @@ public final class HttpRequest {
                 return false;
         } else if (!accept.equals(other.accept))
             return false;
-        if (headers == null) {
-            if (other.headers != null)
-                return false;
-        } else if (!headers.equals(other.headers))
+        if (!getHeaders().equals(other.getHeaders()))
             return false;
         if (pathInfo == null) {
             if (other.pathInfo != null)
@@ -304,10 +629,7 @@ public final class HttpRequest {
             return false;
         if (pathLevel != other.pathLevel)
             return false;
-        if (requestId == null) {
-            if (other.requestId != null)
-                return false;
-        } else if (!requestId.equals(other.requestId))
+        if (requestSequence != other.requestSequence)
             return false;
         if (requestLine == null) {
             if (other.requestLine != null)
@@ -335,8 +657,167 @@ public final class HttpRequest {
      */
     @Override
     public String toString() {
-        return "HttpRequest [requestId=" + requestId + ", requestMethod=" + requestMethod + ", requestLine="
+        return "HttpRequest [requestId=" + getRequestId() + ", requestMethod=" + requestMethod + ", requestLine="
                 + requestLine + ", requestURI=" + requestURI + ", pathInfo=" + pathInfo + ", pathLevel=" + pathLevel
-                + ", headers=" + headers + ", accept=" + accept + ", restRequest=" + restRequest + "]";
+                + ", headers=" + getHeaders() + ", accept=" + accept + ", restRequest=" + restRequest + "]";
+    }
+
+    /**
+     * <p>
+     * Counts the response bytes, picking up the status code from the status
+     * line as it is written. It is a {@link WritableByteChannel} as well, so
+     * the buffers written to it, such as the memory-mapped resources, reach
+     * the connection channel without being copied to the heap first.
+     * </p>
+     */
+    private static final class ResponseOutputStream extends FilterOutputStream implements WritableByteChannel {
+
+        // the chunks copying a buffer without array into a stream that is not a channel
+        private static final int COPY_CHUNK = 8192;
+
+        // the status code digits in "HTTP/1.1 200"
+        private static final int STATUS_OFFSET = 9;
+        private static final int STATUS_END = 12;
+
+        private long count;
+        private int status;
+
+        private ResponseOutputStream() {
+            super(null);
+        }
+
+        private void reset(final OutputStream out) {
+            this.out = out;
+            this.count = 0L;
+            this.status = 0;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            this.status(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            int i = off;
+            while (i < off + len && count < STATUS_END) {
+                this.status(b[i++]);
+            }
+            count += off + len - i;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+         */
+        @Override
+        public int write(final ByteBuffer source) throws IOException {
+            final int start = source.position();
+            final int length = source.remaining();
+            if (out instanceof WritableByteChannel) {
+                while (source.hasRemaining()) {
+                    ((WritableByteChannel) out).write(source);
+                }
+            } else if (source.hasArray()) {
+                out.write(source.array(), source.arrayOffset() + start, length);
+                source.position(source.limit());
+            } else {
+                final byte[] chunk = new byte[Math.min(length, COPY_CHUNK)];
+                while (source.hasRemaining()) {
+                    final int n = Math.min(source.remaining(), chunk.length);
+                    source.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+            }
+            int i = start;
+            while (i < start + length && count < STATUS_END) {
+                this.status(source.get(i++));
+            }
+            count += start + length - i;
+            return length;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.nio.channels.Channel#isOpen()
+         */
+        @Override
+        public boolean isOpen() {
+            return null != out;
+        }
+
+        private void status(final int b) {
+            if (count >= STATUS_OFFSET && count < STATUS_END) {
+                status = status * 10 + (b - '0');
+            }
+            count++;
+        }
+    }
+
+    /**
+     * <p>Exposes at most Content-Length bytes of the connection input</p>
+     */
+    private static final class BodyInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private BodyInputStream() {
+            super(null);
+        }
+
+        private void reset(final InputStream in, final long contentLength) {
+            this.in = in;
+            this.remaining = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0L) {
+                return -1;
+            }
+            final int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Request body truncated, " + remaining + " bytes missing");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (remaining <= 0L) {
+                return -1;
+            }
+            final int count = in.read(b, off, (int) Math.min(len, remaining));
+            if (count == -1) {
+                throw new EOFException("Request body truncated, " + remaining + " bytes missing");
+            }
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // the connection owns the underlying stream
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
     }
 }
\ No newline at end of file
@@ -3,11 +3,18 @@
  */
 package com.esv.net;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
+import com.esv.net.utils.ByteRangeUtils;
 import com.esv.net.utils.MimeTypeUtils;
 import com.esv.utile.logging.Logger;
 import com.esv.utile.utils.IOUtils;
@@ -21,6 +28,16 @@ public class HttpResponse {
 
     private static final Logger LOGGER = Logger.getLogger(HttpResponse.class);
     
+    /**
+     * The cacheMaxAge of the resources whose content never changes under the
+     * same name, such as the fingerprinted ones: cached for a year, without
+     * revalidation
+     */
+    public static final int IMMUTABLE = -1;
+    
+    // the response heads are encoded into a buffer reused by each thread
+    private static final ThreadLocal<byte[]> headBuffers = ThreadLocal.withInitial(() -> new byte[512]);
+    
     /**
      * @param data
      */
@@ -28,6 +45,16 @@ public class HttpResponse {
         HttpResponse.write(data, contentType, 200, "OK");
     }
     
+    /**
+     * 
+     * @param data
+     * @param contentType
+     * @param responseMessage
+     */
+    public static void badRequest(final String data, final String contentType, final String responseMessage) {
+        HttpResponse.write(data, contentType, 400, responseMessage);
+    }
+    
     /**
      * 
      * @param data
@@ -58,21 +85,86 @@ public class HttpResponse {
         HttpResponse.write(data, contentType, 500, responseMessage);
     }
     
+    /**
+     * 
+     * @param data
+     * @param contentType
+     * @param responseMessage
+     */
+    public static void badGateway(final String data, final String contentType, final String responseMessage) {
+        HttpResponse.write(data, contentType, 502, responseMessage);
+    }
+    
+    /**
+     * 
+     * @param data
+     * @param contentType
+     * @param responseMessage
+     */
+    public static void serviceUnavailable(final String data, final String contentType, final String responseMessage) {
+        HttpResponse.write(data, contentType, 503, responseMessage);
+    }
+    
+    /**
+     * 
+     * @param data
+     * @param contentType
+     * @param responseMessage
+     */
+    public static void gatewayTimeout(final String data, final String contentType, final String responseMessage) {
+        HttpResponse.write(data, contentType, 504, responseMessage);
+    }
+    
     /**
      * @param data
      * @param responseCode
      * @param responseMessage
      */
     private static void write(final String data, final String contentType, final int responseCode, final String responseMessage) {
-        final PrintWriter out = new PrintWriter(HttpRequest.getCurrentRrequest().getOutputStream(), true);
-        out.println("HTTP/1.1 " + responseCode + " " + responseMessage);
-        out.println("Allow: GET");
-        out.println("Content-type: " + contentType);
-        out.println("Content-length: " + data.length());
-        out.println("");
-        out.println(data);
+        final OutputStream out = HttpResponse.begin();
+        final byte[] body = data.getBytes(StandardCharsets.UTF_8);
+        try {
+            HttpResponse.writeHead(out, responseCode, responseMessage, "Allow: GET", "Content-type: " + contentType,
+                    "Content-length: " + body.length);
+            out.write(body);
+            out.flush();
+        } catch (IOException e) {
+            // as the former PrintWriter, a client gone away is not reported to the handler
+            LOGGER.debug(() -> "Could not write the response: " + e.getMessage());
+            return;
+        }
         LOGGER.trace(() -> "Write data: " + data + ", Status code: " + responseCode + ", Content-type: " + contentType
-                + ", Content-length: " + data.length());
+                + ", Content-length: " + body.length);
+    }
+    
+    /**
+     * <p>Writes a body already encoded by the caller, such as a negotiated rest response</p>
+     * 
+     * @param data the body, its first length bytes
+     * @param length
+     * @param contentType
+     * @param responseCode
+     * @param responseMessage
+     * @param headers additional header lines
+     */
+    public static void write(final byte[] data, final int length, final String contentType, final int responseCode,
+            final String responseMessage, final String... headers) {
+        final OutputStream out = HttpResponse.begin();
+        final String[] head = new String[headers.length + 3];
+        head[0] = "Allow: GET";
+        head[1] = "Content-type: " + contentType;
+        head[2] = "Content-length: " + length;
+        System.arraycopy(headers, 0, head, 3, headers.length);
+        try {
+            HttpResponse.writeHead(out, responseCode, responseMessage, head);
+            out.write(data, 0, length);
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.debug(() -> "Could not write the response: " + e.getMessage());
+            return;
+        }
+        LOGGER.trace(() -> "Write encoded data, Status code: " + responseCode + ", Content-type: " + contentType
+                + ", Content-length: " + length);
     }
     
     /**
@@ -92,26 +184,214 @@ public class HttpResponse {
      * @throws IOException
      */
     public static void write(final byte[] data, final String resourceName, final int cacheMaxAge) throws IOException {
-        final DataOutputStream out = new DataOutputStream(HttpRequest.getCurrentRrequest().getOutputStream());
-        out.writeBytes("HTTP/1.1 200 OK\n");
-        out.writeBytes("Allow: GET\n");
+        final OutputStream out = HttpResponse.begin();
         final String contentType = MimeTypeUtils.get(resourceName);
-        out.writeBytes("Content-type: " + contentType + "\n");
-        out.writeBytes("Content-length: " + data.length +"\n");
         final String cacheControl = getCacheControl(cacheMaxAge);
-        out.writeBytes("Cache-Control: max-age=" + cacheControl + "\n");
-        out.writeBytes("\n");
+        HttpResponse.writeHead(out, 200, "OK", "Allow: GET", "Content-type: " + contentType,
+                "Content-length: " + data.length, "Cache-Control: " + cacheControl);
         out.write(data);
         out.flush();
         LOGGER.trace(() -> "Write data: " + resourceName + ", Status code: 200, Content-type: " + contentType
-                + ", Content-length: " + data.length + ", Cache-Control: max-age=" + cacheControl);
+                + ", Content-length: " + data.length + ", Cache-Control: " + cacheControl);
     }
-
+    
     /**
+     * <p>Writes the full content of a resource that supports byte ranges</p>
+     * 
+     * @param content the resource content, from its position to its limit
+     * @param resourceName
+     * @param etag the entity tag
+     * @param lastModified the last modified time in milliseconds
      * @param cacheMaxAge
-     * @return
+     * @throws IOException
+     */
+    public static void write(final ByteBuffer content, final String resourceName, final String etag,
+            final long lastModified, final int cacheMaxAge) throws IOException {
+        final OutputStream out = HttpResponse.begin();
+        final String contentType = MimeTypeUtils.get(resourceName);
+        final int length = content.remaining();
+        HttpResponse.writeHead(out, 200, "OK", "Allow: GET", "Content-type: " + contentType,
+                "Content-length: " + length, "Accept-Ranges: bytes", "ETag: " + etag,
+                "Last-Modified: " + ByteRangeUtils.httpDate(lastModified),
+                "Cache-Control: " + getCacheControl(cacheMaxAge));
+        HttpResponse.writeBody(out, content);
+        LOGGER.trace(() -> "Write data: " + resourceName + ", Status code: 200, Content-length: " + length);
+    }
+    
+    /**
+     * <p>Writes a single byte range with 206 Partial Content</p>
+     * 
+     * @param content the range content, from its position to its limit
+     * @param range the {first, last} byte positions
+     * @param length the complete resource length
+     * @param resourceName
+     * @param etag the entity tag
+     * @param lastModified the last modified time in milliseconds
+     * @param cacheMaxAge
+     * @throws IOException
+     */
+    public static void partial(final ByteBuffer content, final long[] range, final long length, final String resourceName,
+            final String etag, final long lastModified, final int cacheMaxAge) throws IOException {
+        final OutputStream out = HttpResponse.begin();
+        final String contentRange = "bytes " + range[0] + "-" + range[1] + "/" + length;
+        HttpResponse.writeHead(out, 206, "Partial Content", "Allow: GET", "Content-type: " + MimeTypeUtils.get(resourceName),
+                "Content-length: " + content.remaining(), "Content-Range: " + contentRange, "Accept-Ranges: bytes",
+                "ETag: " + etag, "Last-Modified: " + ByteRangeUtils.httpDate(lastModified),
+                "Cache-Control: " + getCacheControl(cacheMaxAge));
+        HttpResponse.writeBody(out, content);
+        LOGGER.trace(() -> "Write data: " + resourceName + ", Status code: 206, Content-Range: " + contentRange);
+    }
+    
+    /**
+     * <p>Writes several byte ranges as a multipart/byteranges 206 Partial Content</p>
+     * 
+     * @param contents the content of each range, from its position to its limit
+     * @param ranges the {first, last} byte positions of each content
+     * @param length the complete resource length
+     * @param resourceName
+     * @param etag the entity tag
+     * @param lastModified the last modified time in milliseconds
+     * @param cacheMaxAge
+     * @throws IOException
+     */
+    public static void partial(final List<ByteBuffer> contents, final List<long[]> ranges, final long length,
+            final String resourceName, final String etag, final long lastModified, final int cacheMaxAge) throws IOException {
+        final OutputStream out = HttpResponse.begin();
+        final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+        final String contentType = MimeTypeUtils.get(resourceName);
+        final byte[][] partHeads = new byte[ranges.size()][];
+        long contentLength = 0L;
+        for (int i = 0; i < partHeads.length; i++) {
+            final long[] range = ranges.get(i);
+            partHeads[i] = ("\r\n--" + boundary + "\r\nContent-type: " + contentType + "\r\nContent-Range: bytes "
+                    + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            contentLength += partHeads[i].length + contents.get(i).remaining();
+        }
+        final byte[] closeDelimiter = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        contentLength += closeDelimiter.length;
+        HttpResponse.writeHead(out, 206, "Partial Content", "Allow: GET",
+                "Content-type: multipart/byteranges; boundary=" + boundary, "Content-length: " + contentLength,
+                "Accept-Ranges: bytes", "ETag: " + etag, "Last-Modified: " + ByteRangeUtils.httpDate(lastModified),
+                "Cache-Control: " + getCacheControl(cacheMaxAge));
+        for (int i = 0; i < partHeads.length; i++) {
+            out.write(partHeads[i]);
+            HttpResponse.writeBody(out, contents.get(i));
+        }
+        out.write(closeDelimiter);
+        out.flush();
+        final long total = contentLength;
+        LOGGER.trace(() -> "Write data: " + resourceName + ", Status code: 206, ranges: " + ranges.size() + ", Content-length: " + total);
+    }
+    
+    /**
+     * @param length the complete resource length
+     * @throws IOException
+     */
+    public static void rangeNotSatisfiable(final long length) throws IOException {
+        final OutputStream out = HttpResponse.begin();
+        HttpResponse.writeHead(out, 416, "Range Not Satisfiable", "Allow: GET", "Content-length: 0",
+                "Content-Range: bytes */" + length, "Accept-Ranges: bytes");
+        out.flush();
+        LOGGER.trace(() -> "Status code: 416, Content-Range: bytes */" + length);
+    }
+    
+    /**
+     * @param response a complete response, status line, headers and body, encoded once by the caller
+     * @throws IOException
+     */
+    public static void writeEncoded(final byte[] response) throws IOException {
+        final OutputStream out = HttpResponse.begin();
+        out.write(response);
+        out.flush();
+        LOGGER.trace(() -> "Write encoded response, length: " + response.length);
+    }
+    
+    /**
+     * @return the output stream of the current request, marked as complete
+     */
+    private static OutputStream begin() {
+        final HttpRequest httpRequest = HttpRequest.getCurrentRrequest();
+        httpRequest.complete();
+        return httpRequest.getOutputStream();
+    }
+    
+    /**
+     * @param out
+     * @param responseCode
+     * @param responseMessage
+     * @param headers the header lines
+     * @throws IOException
+     */
+    private static void writeHead(final OutputStream out, final int responseCode, final String responseMessage,
+            final String... headers) throws IOException {
+        byte[] head = headBuffers.get();
+        int length = 0;
+        head = append(head, length, "HTTP/1.1 ");
+        length += 9;
+        head = ensure(head, length + 4);
+        head[length++] = (byte) ('0' + responseCode / 100 % 10);
+        head[length++] = (byte) ('0' + responseCode / 10 % 10);
+        head[length++] = (byte) ('0' + responseCode % 10);
+        head[length++] = ' ';
+        head = append(head, length, responseMessage);
+        length += responseMessage.length();
+        for (final String header : headers) {
+            head = append(head, length, "\r\n");
+            length += 2;
+            head = append(head, length, header);
+            length += header.length();
+        }
+        head = append(head, length, "\r\n\r\n");
+        length += 4;
+        headBuffers.set(head);
+        out.write(head, 0, length);
+    }
+    
+    /**
+     * @param head
+     * @param offset
+     * @param value ISO-8859-1 characters
+     * @return the head, grown if needed
+     */
+    private static byte[] append(final byte[] head, final int offset, final String value) {
+        final byte[] target = ensure(head, offset + value.length());
+        for (int i = 0; i < value.length(); i++) {
+            target[offset + i] = (byte) value.charAt(i);
+        }
+        return target;
+    }
+    
+    /**
+     * @param head
+     * @param capacity
+     * @return the head, or a larger copy
+     */
+    private static byte[] ensure(final byte[] head, final int capacity) {
+        return capacity <= head.length ? head : Arrays.copyOf(head, Math.max(capacity, head.length * 2));
+    }
+    
+    /**
+     * @param out the connection stream, also a channel taking the mapped content without copy
+     * @param content written from its position to its limit, without changing it
+     * @throws IOException
+     */
+    private static void writeBody(final OutputStream out, final ByteBuffer content) throws IOException {
+        final ByteBuffer source = content.duplicate();
+        final WritableByteChannel channel = out instanceof WritableByteChannel ? (WritableByteChannel) out : Channels.newChannel(out);
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+        out.flush();
+    }
+
+    /**
+     * @param cacheMaxAge the max-age in seconds, or {@link #IMMUTABLE}
+     * @return the Cache-Control value
      */
     private static String getCacheControl(final int cacheMaxAge) {
-        return cacheMaxAge > 0 ? String.valueOf(cacheMaxAge) : "0, no-cache, must-revalidate, proxy-revalidate";
+        if (cacheMaxAge == IMMUTABLE) {
+            return "public, max-age=31536000, immutable";
+        }
+        return cacheMaxAge > 0 ? "max-age=" + cacheMaxAge : "max-age=0, no-cache, must-revalidate, proxy-revalidate";
     }
 }
\ No newline at end of file
@@ -0,0 +1,237 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.http2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * <p>
+ * HPACK header block decoder (RFC 7541). One instance per connection, it
+ * owns the dynamic table fed by the peer encoder and must not be shared.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 17/10/2017
+ */
+public final class HpackDecoder {
+    
+    /**
+     * Per entry overhead of the table size accounting
+     */
+    static final int ENTRY_OVERHEAD = 32;
+    
+    /**
+     * The static table, index 1 is the first element
+     */
+    static final String[][] STATIC_TABLE = {
+        { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+        { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+        { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+        { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+        { "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" },
+        { "content-disposition", "" }, { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+        { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+        { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+        { "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+        { "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" },
+        { "link", "" }, { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+        { "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+        { "retry-after", "" }, { "server", "" }, { "set-cookie", "" }, { "strict-transport-security", "" },
+        { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+        { "www-authenticate", "" }
+    };
+    
+    private final Deque<String[]> dynamicTable = new ArrayDeque<>();
+    private final int maxTableSizeLimit;
+    private final int maxHeaderListSize;
+    private int maxTableSize;
+    private int tableSize;
+    private int position;
+    
+    /**
+     * @param maxTableSize the SETTINGS_HEADER_TABLE_SIZE advertised to the peer
+     * @param maxHeaderListSize the decoded header list size limit
+     */
+    public HpackDecoder(final int maxTableSize, final int maxHeaderListSize) {
+        this.maxTableSizeLimit = maxTableSize;
+        this.maxTableSize = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+    
+    /**
+     * @param block a complete header block
+     * @param offset
+     * @param length
+     * @return the decoded {name, value} pairs in order
+     * @throws Http2Exception a COMPRESSION_ERROR, fatal for the connection
+     */
+    public List<String[]> decode(final byte[] block, final int offset, final int length) throws Http2Exception {
+        final List<String[]> headers = new ArrayList<>();
+        final int end = offset + length;
+        int headerListSize = 0;
+        boolean headerSeen = false;
+        position = offset;
+        while (position < end) {
+            final int b = block[position] & 0xff;
+            final String[] header;
+            if ((b & 0x80) != 0) {
+                // indexed header field
+                header = entry(readInteger(block, end, 7));
+            } else if ((b & 0x40) != 0) {
+                // literal header field with incremental indexing
+                header = readLiteral(block, end, 6);
+                add(header);
+            } else if ((b & 0x20) != 0) {
+                // dynamic table size update, only allowed at the beginning of a block
+                if (headerSeen) {
+                    throw new Http2Exception(Http2.COMPRESSION_ERROR, "Late dynamic table size update");
+                }
+                final int size = readInteger(block, end, 5);
+                if (size > maxTableSizeLimit) {
+                    throw new Http2Exception(Http2.COMPRESSION_ERROR, "Dynamic table size too large: " + size);
+                }
+                maxTableSize = size;
+                evict(0);
+                continue;
+            } else {
+                // literal header field without indexing or never indexed
+                header = readLiteral(block, end, 4);
+            }
+            headerSeen = true;
+            headerListSize += header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+            if (headerListSize > maxHeaderListSize) {
+                throw new Http2Exception(Http2.ENHANCE_YOUR_CALM, "Header list too large");
+            }
+            headers.add(header);
+        }
+        return headers;
+    }
+    
+    /**
+     * @param index
+     * @return the static or dynamic table entry
+     * @throws Http2Exception
+     */
+    private String[] entry(final int index) throws Http2Exception {
+        if (index <= 0) {
+            throw new Http2Exception(Http2.COMPRESSION_ERROR, "Invalid header index: " + index);
+        }
+        if (index <= STATIC_TABLE.length) {
+            return STATIC_TABLE[index - 1];
+        }
+        final int dynamicIndex = index - STATIC_TABLE.length - 1;
+        if (dynamicIndex >= dynamicTable.size()) {
+            throw new Http2Exception(Http2.COMPRESSION_ERROR, "Invalid header index: " + index);
+        }
+        // the most recent entry has the lowest index
+        int i = 0;
+        for (final String[] header : dynamicTable) {
+            if (i++ == dynamicIndex) {
+                return header;
+            }
+        }
+        throw new Http2Exception(Http2.COMPRESSION_ERROR, "Invalid header index: " + index);
+    }
+    
+    /**
+     * @param block
+     * @param end
+     * @param prefix the name index prefix length
+     * @return the literal {name, value}
+     * @throws Http2Exception
+     */
+    private String[] readLiteral(final byte[] block, final int end, final int prefix) throws Http2Exception {
+        final int nameIndex = readInteger(block, end, prefix);
+        final String name = nameIndex == 0 ? readString(block, end) : entry(nameIndex)[0];
+        final String value = readString(block, end);
+        return new String[] { name, value };
+    }
+    
+    /**
+     * @param header
+     */
+    private void add(final String[] header) {
+        final int size = header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+        if (size > maxTableSize) {
+            // an entry larger than the table empties it
+            dynamicTable.clear();
+            tableSize = 0;
+            return;
+        }
+        evict(size);
+        dynamicTable.addFirst(header);
+        tableSize += size;
+    }
+    
+    /**
+     * @param room the space required for a new entry
+     */
+    private void evict(final int room) {
+        while (tableSize + room > maxTableSize && !dynamicTable.isEmpty()) {
+            final String[] evicted = dynamicTable.removeLast();
+            tableSize -= evicted[0].length() + evicted[1].length() + ENTRY_OVERHEAD;
+        }
+    }
+    
+    /**
+     * @param block
+     * @param end
+     * @param prefix the number of bits of the first byte
+     * @return the decoded integer
+     * @throws Http2Exception
+     */
+    private int readInteger(final byte[] block, final int end, final int prefix) throws Http2Exception {
+        final int mask = (1 << prefix) - 1;
+        int value = block[position++] & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if (position >= end) {
+                throw new Http2Exception(Http2.COMPRESSION_ERROR, "Truncated integer");
+            }
+            b = block[position++] & 0xff;
+            if (shift > 21) {
+                throw new Http2Exception(Http2.COMPRESSION_ERROR, "Integer overflow");
+            }
+            value += (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+    
+    /**
+     * @param block
+     * @param end
+     * @return the decoded string literal
+     * @throws Http2Exception
+     */
+    private String readString(final byte[] block, final int end) throws Http2Exception {
+        if (position >= end) {
+            throw new Http2Exception(Http2.COMPRESSION_ERROR, "Truncated string");
+        }
+        final boolean huffman = (block[position] & 0x80) != 0;
+        final int length = readInteger(block, end, 7);
+        if (length > end - position) {
+            throw new Http2Exception(Http2.COMPRESSION_ERROR, "Truncated string");
+        }
+        final StringBuilder value = new StringBuilder(huffman ? length * 8 / 5 : length);
+        if (huffman) {
+            HpackHuffman.decode(block, position, length, value);
+        } else {
+            for (int i = position; i < position + length; i++) {
+                value.append((char) (block[i] & 0xff));
+            }
+        }
+        position += length;
+        return value.toString();
+    }
+}
@@ -0,0 +1,115 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * HPACK header block encoder (RFC 7541). Names are taken from the static
+ * table when possible and values are sent as raw literals without indexing,
+ * so the encoder is stateless and the peer dynamic table is never used.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 17/10/2017
+ */
+public final class HpackEncoder {
+    
+    private static final Map<String, Integer> staticNames;
+    private static final Map<String, Integer> staticStatus;
+    
+    static {
+        final Map<String, Integer> names = new HashMap<>();
+        final Map<String, Integer> status = new HashMap<>();
+        for (int i = HpackDecoder.STATIC_TABLE.length; i > 0; i--) {
+            final String[] entry = HpackDecoder.STATIC_TABLE[i - 1];
+            // keep the lowest index of each name
+            names.put(entry[0], i);
+            if (":status".equals(entry[0])) {
+                status.put(entry[1], i);
+            }
+        }
+        staticNames = Collections.unmodifiableMap(names);
+        staticStatus = Collections.unmodifiableMap(status);
+    }
+    
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private HpackEncoder() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+    
+    /**
+     * @param status the response status code
+     * @param headers the {name, value} pairs, names must be lower case
+     * @return the header block
+     */
+    public static byte[] encode(final int status, final List<String[]> headers) {
+        final ByteArrayOutputStream block = new ByteArrayOutputStream(64 + headers.size() * 32);
+        final String statusValue = String.valueOf(status);
+        final Integer statusIndex = staticStatus.get(statusValue);
+        if (null != statusIndex) {
+            writeInteger(block, 0x80, 7, statusIndex);
+        } else {
+            writeLiteral(block, staticNames.get(":status"), ":status", statusValue);
+        }
+        for (final String[] header : headers) {
+            writeLiteral(block, staticNames.get(header[0]), header[0], header[1]);
+        }
+        return block.toByteArray();
+    }
+    
+    /**
+     * <p>Literal header field without indexing</p>
+     */
+    private static void writeLiteral(final ByteArrayOutputStream block, final Integer nameIndex, final String name, final String value) {
+        if (null != nameIndex) {
+            writeInteger(block, 0x00, 4, nameIndex);
+        } else {
+            block.write(0x00);
+            writeString(block, name);
+        }
+        writeString(block, value);
+    }
+    
+    /**
+     * @param block
+     * @param value written as ISO-8859-1, without Huffman coding
+     */
+    private static void writeString(final ByteArrayOutputStream block, final String value) {
+        final int length = value.length();
+        writeInteger(block, 0x00, 7, length);
+        for (int i = 0; i < length; i++) {
+            block.write(value.charAt(i));
+        }
+    }
+    
+    /**
+     * @param block
+     * @param flags the high order bits of the first byte
+     * @param prefix the number of bits available in the first byte
+     * @param value
+     */
+    private static void writeInteger(final ByteArrayOutputStream block, final int flags, final int prefix, final int value) {
+        final int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            block.write(flags | value);
+            return;
+        }
+        block.write(flags | mask);
+        int remaining = value - mask;
+        while (remaining >= 0x80) {
+            block.write((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+        block.write(remaining);
+    }
+}
@@ -0,0 +1,36 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.http2;
+
+import java.io.IOException;
+
+/**
+ * <p>A connection error carrying the HTTP/2 error code sent with GOAWAY</p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 17/10/2017
+ */
+public class Http2Exception extends IOException {
+
+    private static final long serialVersionUID = -3504394357131484310L;
+    
+    private final int errorCode;
+
+    /**
+     * @param errorCode
+     * @param message
+     */
+    public Http2Exception(final int errorCode, final String message) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * @return the errorCode
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+}
@@ -0,0 +1,30 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.rest;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Declares a Server-Sent Events endpoint. The annotated method returns the
+ * {@link com.esv.net.server.EventChannel} the client subscribes to; the
+ * connection stays open and receives every event published on the channel.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 18/10/2017
+ */
+@Documented
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface EventStream {
+    
+    String value();
+}
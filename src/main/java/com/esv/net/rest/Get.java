@@ -21,4 +21,21 @@ import java.lang.annotation.Target;
 public @interface Get {
     
     String value();
+    
+    /**
+     * <p>The deadline of the call in milliseconds, answered with 504 once passed; 0 disables it</p>
+     * @return -1 for the rest.timeout default
+     */
+    int timeout() default -1;
+
+    /**
+     * <p>
+     * The seconds the encoded responses are kept by the response cache, when
+     * enabled by cache.enabled=true, and shared with the cache peers; 0
+     * disables it. Cached endpoints must not bind headers, as the cache key
+     * is the media type, the path and the query only.
+     * </p>
+     * @return 0 for uncached responses
+     */
+    int cache() default 0;
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.rest;
+
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Binds an endpoint parameter to a request header, the name being case
+ * insensitive. Strings, primitives, their wrappers and enums are accepted,
+ * as for {@link QueryParam}.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+@Documented
+@Retention(RUNTIME)
+@Target(PARAMETER)
+public @interface HeaderParam {
+    
+    /**
+     * @return the header name, case insensitive
+     */
+    String value();
+}
\ No newline at end of file
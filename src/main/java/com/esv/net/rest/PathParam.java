@@ -0,0 +1,33 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.rest;
+
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Binds an endpoint parameter to a segment of its path template:
+ * {@code @Get("/rest/users/{id}")} matches /rest/users/42 and binds 42 to
+ * {@code @PathParam("id") long id}.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+@Documented
+@Retention(RUNTIME)
+@Target(PARAMETER)
+public @interface PathParam {
+    
+    /**
+     * @return the template variable name, as in @Get("/rest/users/{name}")
+     */
+    String value();
+}
\ No newline at end of file
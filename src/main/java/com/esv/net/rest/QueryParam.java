@@ -0,0 +1,34 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.rest;
+
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Binds an endpoint parameter to a query string parameter, such as
+ * {@code @QueryParam("page") int page} for /rest/items?page=2. Percent
+ * encoded values are decoded; an absent parameter is bound to null, or to
+ * the zero value of a primitive.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+@Documented
+@Retention(RUNTIME)
+@Target(PARAMETER)
+public @interface QueryParam {
+    
+    /**
+     * @return the parameter name, as in the query string
+     */
+    String value();
+}
\ No newline at end of file
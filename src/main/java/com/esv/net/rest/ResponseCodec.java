@@ -0,0 +1,39 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Encodes the values returned by the rest endpoints into a media type the
+ * clients ask for in the Accept header. JSON and CBOR (application/cbor) are
+ * built in; further codecs are found with {@link java.util.ServiceLoader},
+ * listed in META-INF/services/com.esv.net.rest.ResponseCodec, a codec
+ * replacing the built in one of the same media type.
+ * </p>
+ * <p>
+ * The implementations must be thread safe: a single instance encodes the
+ * responses of every request thread.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+public interface ResponseCodec {
+
+    /**
+     * @return the media type written, such as application/cbor, without parameters
+     */
+    String getMediaType();
+
+    /**
+     * @param value the value returned by the endpoint, may be null
+     * @param out the response body buffer, not to be closed
+     * @throws IOException
+     */
+    void encode(Object value, OutputStream out) throws IOException;
+}
\ No newline at end of file
@@ -25,4 +25,10 @@ public @interface RestService {
      * @return
      */
     boolean singleton() default false;
+    
+    /**
+     * <p>The max concurrent calls to the service endpoints, the calls beyond it answered with 503; 0 disables it</p>
+     * @return -1 for the rest.bulkhead.maxConcurrent default
+     */
+    int maxConcurrent() default -1;
 }
@@ -0,0 +1,318 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.esv.net.HttpRequest;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * The access log: one JSON line per request with the method, path, status,
+ * bytes, latency, request id and client address. The request threads only
+ * fill a slot of a preallocated ring, claimed by compare-and-set; a single
+ * writer thread formats the published slots and writes them to the
+ * accesslog.file in batches, rotating it at accesslog.maxFileSize. When the
+ * ring is full the entry is dropped or the request thread waits for the
+ * writer, following the {@link WhenFull} policy.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 18/10/2017
+ */
+final class AccessLog {
+
+    private static final Logger LOGGER = Logger.getLogger(AccessLog.class);
+
+    /**
+     * <p>What a request thread does when the ring is full</p>
+     */
+    enum WhenFull {
+        /** the entry is discarded and counted in accesslog.dropped */
+        DROP,
+        /** the request thread waits for the writer to free a slot */
+        WAIT
+    }
+
+    private static final boolean enabled;
+    private static final Entry[] ring;
+    private static final int mask;
+    private static final WhenFull whenFull;
+    private static final Path file;
+    private static final long maxFileSize;
+    private static final int maxFiles;
+    private static final long flushIntervalNanos;
+    private static final LongAdder written = ServerMetrics.counter("accesslog.written");
+    private static final LongAdder dropped = ServerMetrics.counter("accesslog.dropped");
+
+    // the next sequence to claim, and the next sequence to write
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+    private static volatile boolean stopped;
+    private static Thread writer;
+
+    static {
+        try {
+            enabled = Boolean.parseBoolean(PropertiesUtils.getStringProperty("accesslog.enabled", "false").trim());
+            int size = 1;
+            while (size < PropertiesUtils.getIntProperty("accesslog.ringSize", 8192)) {
+                size <<= 1;
+            }
+            ring = new Entry[enabled ? size : 0];
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = new Entry(i - ring.length);
+            }
+            mask = size - 1;
+            whenFull = WhenFull.valueOf(PropertiesUtils.getStringProperty("accesslog.whenFull", "DROP").trim().toUpperCase(Locale.ROOT));
+            file = Paths.get(PropertiesUtils.getStringProperty("accesslog.file", "logs/access.log"));
+            maxFileSize = Long.parseLong(PropertiesUtils.getStringProperty("accesslog.maxFileSize", "10485760").trim());
+            maxFiles = PropertiesUtils.getIntProperty("accesslog.maxFiles", 5);
+            flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(PropertiesUtils.getIntProperty("accesslog.flushInterval", 200));
+            if (enabled) {
+                writer = new Thread(AccessLog::run, "access-log-writer");
+                writer.setDaemon(true);
+                writer.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(AccessLog::stop, "access-log-shutdown"));
+            }
+            LOGGER.debug(() -> "Access log enabled: " + enabled + ", file: " + file + ", ring size: " + ring.length + ", when full: " + whenFull);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private AccessLog() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+
+    /**
+     * <p>Records a finished request, without allocating nor locking</p>
+     *
+     * @param httpRequest
+     */
+    static void record(final HttpRequest httpRequest) {
+        if (!enabled) {
+            return;
+        }
+        final long now = System.nanoTime();
+        long sequence;
+        for (;;) {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                LockSupport.unpark(writer);
+                if (whenFull == WhenFull.DROP) {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.parkNanos(100000L);
+                continue;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1L)) {
+                break;
+            }
+        }
+        final Entry entry = ring[(int) (sequence & mask)];
+        entry.time = System.currentTimeMillis();
+        entry.method = httpRequest.getRequestMethod();
+        entry.path = httpRequest.getPathInfo();
+        entry.status = httpRequest.getResponseStatus();
+        entry.bytes = httpRequest.getResponseBytes();
+        entry.latencyNanos = now - httpRequest.getStartNanos();
+        entry.requestSequence = httpRequest.getRequestSequence();
+        entry.client = httpRequest.getInetAddress();
+        // publishes the fields above to the writer
+        entry.sequence = sequence;
+    }
+
+    /**
+     * Drains the ring until stopped, flushing each batch
+     */
+    private static void run() {
+        final StringBuilder line = new StringBuilder(256);
+        Writer out = null;
+        long fileSize = 0L;
+        while (!stopped || consumed != claimed.get()) {
+            try {
+                if (null == out) {
+                    Files.createDirectories(file.toAbsolutePath().getParent());
+                    fileSize = Files.exists(file) ? Files.size(file) : 0L;
+                    out = open();
+                }
+                long next = consumed;
+                Entry entry = ring[(int) (next & mask)];
+                if (entry.sequence != next) {
+                    LockSupport.parkNanos(flushIntervalNanos);
+                    continue;
+                }
+                do {
+                    line.setLength(0);
+                    format(entry, line);
+                    out.append(line);
+                    fileSize += line.length();
+                    entry.clear();
+                    consumed = ++next;
+                    written.increment();
+                    entry = ring[(int) (next & mask)];
+                } while (entry.sequence == next && fileSize < maxFileSize);
+                out.flush();
+                if (fileSize >= maxFileSize) {
+                    out.close();
+                    rotate();
+                    fileSize = 0L;
+                    out = open();
+                }
+            } catch (IOException e) {
+                LOGGER.error("Could not write the access log: " + file, e);
+                out = close(out);
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+        close(out);
+    }
+
+    /**
+     * Stops the writer once the recorded entries are written
+     */
+    private static void stop() {
+        stopped = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the access log file, opened for appending
+     * @throws IOException
+     */
+    private static Writer open() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND), StandardCharsets.UTF_8), 65536);
+    }
+
+    /**
+     * @param out
+     * @return null
+     */
+    private static Writer close(final Writer out) {
+        if (null != out) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.trace("Failure closing the access log", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * <p>Shifts access.log.1 to access.log.2 and so on, access.log becoming access.log.1</p>
+     *
+     * @throws IOException
+     */
+    private static void rotate() throws IOException {
+        final String name = file.getFileName().toString();
+        Files.deleteIfExists(file.resolveSibling(name + "." + maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            final Path source = file.resolveSibling(name + "." + i);
+            if (Files.exists(source)) {
+                Files.move(source, file.resolveSibling(name + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file, file.resolveSibling(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * @param entry
+     * @param line the JSON line
+     */
+    private static void format(final Entry entry, final StringBuilder line) {
+        line.append("{\"time\":\"");
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(entry.time), line);
+        line.append("\",\"id\":\"").append(HttpRequest.requestId(entry.requestSequence));
+        line.append("\",\"client\":\"").append(null == entry.client ? "" : entry.client.getHostAddress());
+        line.append("\",\"method\":\"");
+        escape(entry.method, line);
+        line.append("\",\"path\":\"");
+        escape(entry.path, line);
+        line.append("\",\"status\":").append(entry.status);
+        line.append(",\"bytes\":").append(entry.bytes);
+        line.append(",\"latencyMicros\":").append(TimeUnit.NANOSECONDS.toMicros(entry.latencyNanos));
+        line.append("}\n");
+    }
+
+    /**
+     * @param value a client supplied value
+     * @param line
+     */
+    private static void escape(final String value, final StringBuilder line) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    /**
+     * <p>A ring slot, published to the writer by its volatile sequence</p>
+     */
+    private static final class Entry {
+
+        private volatile long sequence;
+        private long time;
+        private String method;
+        private String path;
+        private int status;
+        private long bytes;
+        private long latencyNanos;
+        private long requestSequence;
+        private InetAddress client;
+
+        /**
+         * @param sequence a sequence the slot never matches until filled
+         */
+        private Entry(final long sequence) {
+            this.sequence = sequence;
+        }
+
+        private void clear() {
+            method = null;
+            path = null;
+            client = null;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,319 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.net.Handles;
+import com.esv.net.HttpRequest;
+import com.esv.net.HttpRequestHandler;
+import com.esv.net.HttpResponse;
+import com.esv.net.utils.MimeTypeUtils;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.JsonUtils;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * Runs several rest service GETs in one round trip: a POST to /rest/batch
+ * with a JSON array of paths, such as ["/rest/rock", "/rest/paper"], is
+ * answered with the response of each path, in the same order, each one with
+ * its own status. The header parameters of the endpoints are not bound. The paths run concurrently on a bounded pool, and those not
+ * finished within batch.timeout milliseconds are cancelled and answered with
+ * 504. The paths beyond the pool and its queue are answered with 503, never
+ * run on the request thread, out of the batch deadline.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+@Handles(methods = "POST", pathPrefix = BatchRequestHandler.BATCH_PATH, accept = MimeTypeUtils.APPLICATION_JSON)
+public class BatchRequestHandler implements HttpRequestHandler {
+
+    static final String BATCH_PATH = "/rest/batch";
+
+    private static final Logger LOGGER = Logger.getLogger(BatchRequestHandler.class);
+
+    private static final int maxItems;
+    private static final int maxBody;
+    private static final long timeoutMillis;
+    private static final ThreadPoolExecutor executor;
+    private static final LongAdder rejected = ServerMetrics.counter("batch.rejected");
+
+    static {
+        try {
+            maxItems = PropertiesUtils.getIntProperty("batch.maxItems", 32);
+            maxBody = PropertiesUtils.getIntProperty("batch.maxBody", 65536);
+            timeoutMillis = PropertiesUtils.getIntProperty("batch.timeout", 5000);
+            final int maxThreads = PropertiesUtils.getIntProperty("batch.max.threads", 16);
+            final AtomicInteger threads = new AtomicInteger();
+            // a full queue rejects the item, answered with 503 like a saturated bulkhead
+            executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxThreads * 4),
+                    runnable -> {
+                        final Thread thread = new Thread(runnable, "batch-" + threads.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.AbortPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            LOGGER.debug(() -> "Batch max items: " + maxItems + ", timeout: " + timeoutMillis + "ms, max threads: " + maxThreads);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.HttpRequestHandler#handle(com.esv.net.HttpRequest)
+     */
+    @Override
+    public void handle(final HttpRequest httpRequest) throws Exception {
+        if (!BATCH_PATH.equals(httpRequest.getPathInfo())) {
+            return;
+        }
+        final List<String> paths;
+        try {
+            paths = BatchRequestHandler.parsePaths(BatchRequestHandler.readBody(httpRequest));
+        } catch (IOException e) {
+            LOGGER.debug(() -> "Invalid batch request: " + e.getMessage());
+            HttpResponse.badRequest(JsonUtils.createBuilder("message", e.getMessage()).build(), MimeTypeUtils.APPLICATION_JSON, "Bad Request");
+            return;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final List<Future<String>> futures = new ArrayList<>(paths.size());
+        for (final String path : paths) {
+            futures.add(RestServiceInvoker.isGetPath(BatchRequestHandler.pathInfo(path)) ? BatchRequestHandler.submit(path) : null);
+        }
+        final StringBuilder json = new StringBuilder(256);
+        json.append("{\"responses\":[");
+        for (int i = 0; i < paths.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"path\":");
+            BatchRequestHandler.quote(paths.get(i), json);
+            BatchRequestHandler.appendResult(paths.get(i), futures.get(i), deadline, json);
+            json.append('}');
+        }
+        json.append("]}");
+        HttpResponse.ok(json.toString(), MimeTypeUtils.APPLICATION_JSON);
+    }
+
+    /**
+     * @param path a mapped path
+     * @return the running endpoint, or failed with a {@link RejectedExecutionException} if the pool is saturated
+     */
+    private static Future<String> submit(final String path) {
+        try {
+            return executor.submit(() -> RestServiceInvoker.get(path));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            final CompletableFuture<String> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * @param path
+     * @param future the running endpoint, null if the path is not mapped
+     * @param deadline the {@link System#nanoTime()} the batch ends at
+     * @param json
+     * @throws InterruptedException
+     */
+    private static void appendResult(final String path, final Future<String> future, final long deadline, final StringBuilder json)
+            throws InterruptedException {
+        if (null == future) {
+            json.append(",\"status\":404,\"body\":").append(JsonUtils.createBuilder("message", "Invalid endpoint: " + path).build());
+            return;
+        }
+        try {
+            final String body = future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            json.append(",\"status\":200,\"body\":").append(null == body ? "null" : body);
+        } catch (TimeoutException | CancellationException e) {
+            future.cancel(true);
+            json.append(",\"status\":504,\"body\":").append(JsonUtils.createBuilder("message", "Timeout").build());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) {
+                json.append(",\"status\":400,\"body\":").append(JsonUtils.createBuilder("message", e.getCause().getMessage()).build());
+                return;
+            }
+            if (e.getCause() instanceof RejectedExecutionException) {
+                json.append(",\"status\":503,\"body\":").append(JsonUtils.createBuilder("message", "Service busy").build());
+                return;
+            }
+            if (e.getCause() instanceof TimeoutException) {
+                json.append(",\"status\":504,\"body\":").append(JsonUtils.createBuilder("message", "Timeout").build());
+                return;
+            }
+            LOGGER.error("Batch item failed: " + path, e.getCause());
+            json.append(",\"status\":500,\"body\":").append(JsonUtils.createBuilder("message", "Internal server error").build());
+        }
+    }
+
+    /**
+     * @param httpRequest
+     * @return the request body, at most batch.maxBody bytes
+     * @throws IOException
+     */
+    private static String readBody(final HttpRequest httpRequest) throws IOException {
+        final long contentLength = httpRequest.getContentLength();
+        if (contentLength > maxBody) {
+            throw new IOException("Batch request exceeds " + maxBody + " bytes");
+        }
+        final ByteArrayOutputStream body = new ByteArrayOutputStream((int) contentLength);
+        final InputStream in = httpRequest.getInputStream();
+        final byte[] buffer = new byte[(int) Math.min(8192L, Math.max(1L, contentLength))];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            body.write(buffer, 0, count);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param body a JSON array of strings
+     * @return the strings
+     * @throws IOException if the body is not an array of strings or exceeds batch.maxItems
+     */
+    private static List<String> parsePaths(final String body) throws IOException {
+        final List<String> paths = new ArrayList<>();
+        int i = BatchRequestHandler.skipSpaces(body, 0);
+        if (i == body.length() || body.charAt(i) != '[') {
+            throw new IOException("Expected a JSON array of paths");
+        }
+        i = BatchRequestHandler.skipSpaces(body, i + 1);
+        if (i < body.length() && body.charAt(i) == ']') {
+            return paths;
+        }
+        for (;;) {
+            if (i == body.length() || body.charAt(i) != '"') {
+                throw new IOException("Expected a path string at " + i);
+            }
+            final StringBuilder path = new StringBuilder();
+            i = BatchRequestHandler.unquote(body, i + 1, path);
+            if (paths.size() == maxItems) {
+                throw new IOException("Batch exceeds " + maxItems + " items");
+            }
+            paths.add(path.toString());
+            i = BatchRequestHandler.skipSpaces(body, i);
+            if (i < body.length() && body.charAt(i) == ',') {
+                i = BatchRequestHandler.skipSpaces(body, i + 1);
+            } else if (i < body.length() && body.charAt(i) == ']') {
+                return paths;
+            } else {
+                throw new IOException("Expected , or ] at " + i);
+            }
+        }
+    }
+
+    /**
+     * @param body
+     * @param start the index after the opening quote
+     * @param value receives the unescaped string
+     * @return the index after the closing quote
+     * @throws IOException
+     */
+    private static int unquote(final String body, final int start, final StringBuilder value) throws IOException {
+        int i = start;
+        while (i < body.length()) {
+            final char c = body.charAt(i++);
+            if (c == '"') {
+                return i;
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (i == body.length()) {
+                break;
+            }
+            final char escaped = body.charAt(i++);
+            switch (escaped) {
+            case 'b':
+                value.append('\b');
+                break;
+            case 'f':
+                value.append('\f');
+                break;
+            case 'n':
+                value.append('\n');
+                break;
+            case 'r':
+                value.append('\r');
+                break;
+            case 't':
+                value.append('\t');
+                break;
+            case 'u':
+                if (i + 4 > body.length()) {
+                    throw new IOException("Invalid unicode escape at " + i);
+                }
+                try {
+                    value.append((char) Integer.parseInt(body.substring(i, i + 4), 16));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid unicode escape at " + i, e);
+                }
+                i += 4;
+                break;
+            default:
+                value.append(escaped);
+                break;
+            }
+        }
+        throw new IOException("Unterminated string");
+    }
+
+    private static int skipSpaces(final String body, final int start) {
+        int i = start;
+        while (i < body.length() && Character.isWhitespace(body.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @param value
+     * @param json receives the quoted and escaped value
+     */
+    private static void quote(final String value, final StringBuilder json) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * @param path a batch item, may carry a query
+     * @return the path without the query
+     */
+    private static String pathInfo(final String path) {
+        final int idx = path.indexOf('?');
+        return idx == -1 ? path : path.substring(0, idx);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,153 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.net.BufferAllocator;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.CharSequenceUtils;
+import com.esv.utile.utils.ObjectUtils;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * The server wide {@link BufferAllocator}, the {@link PooledBufferAllocator}
+ * unless buffers.allocator names another one, and the bookkeeping of the
+ * buffers it hands out: buffers.inuse counts those not released yet.
+ * </p>
+ * <p>
+ * With buffers.leakDetection=true each buffer is recorded with its owner,
+ * such as its connection, and where it was taken, so the buffers still held
+ * when the owner is closed are reported with that stack trace, as well as
+ * the buffers released twice. The leaked buffers are left to the garbage
+ * collector rather than pooled again, as their holder may still use them,
+ * and the allocator is told to stop counting them against its caps.
+ * Recording a stack trace per buffer is meant for tests and troubleshooting,
+ * not for production.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class Buffers {
+
+    private static final Logger LOGGER = Logger.getLogger(Buffers.class);
+
+    private static final BufferAllocator allocator;
+    private static final boolean leakDetection;
+    // the buffers in use by identity, as ByteBuffer equality compares their content
+    private static final Map<ByteBuffer, Lease> leases = new IdentityHashMap<>();
+    private static final LongAdder inUse = ServerMetrics.counter("buffers.inuse");
+    private static final LongAdder leaks = ServerMetrics.counter("buffers.leaks");
+
+    static {
+        try {
+            final String allocatorName = PropertiesUtils.getStringProperty("buffers.allocator", "").trim();
+            allocator = CharSequenceUtils.isBlank(allocatorName) ? new PooledBufferAllocator()
+                    : (BufferAllocator) ObjectUtils.newInstance(Class.forName(allocatorName));
+            leakDetection = Boolean.parseBoolean(PropertiesUtils.getStringProperty("buffers.leakDetection", "false").trim());
+            LOGGER.debug(() -> "Buffer allocator: " + allocator.getClass().getName() + ", leak detection: " + leakDetection);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private Buffers() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+
+    /**
+     * @param capacity the min capacity
+     * @param direct true for a direct buffer, unless beyond the direct memory cap
+     * @param owner closed with {@link #closed(Object)}, reporting the buffers it still holds
+     * @return a cleared buffer
+     */
+    static ByteBuffer acquire(final int capacity, final boolean direct, final Object owner) {
+        final ByteBuffer buffer = allocator.allocate(capacity, direct);
+        inUse.increment();
+        if (leakDetection) {
+            final Lease lease = new Lease(owner);
+            synchronized (leases) {
+                leases.put(buffer, lease);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * @param buffer no longer used, null ignored
+     */
+    static void release(final ByteBuffer buffer) {
+        if (null == buffer) {
+            return;
+        }
+        if (leakDetection) {
+            final Lease lease;
+            synchronized (leases) {
+                lease = leases.remove(buffer);
+            }
+            if (null == lease) {
+                leaks.increment();
+                LOGGER.error("Buffer released twice, or not acquired from the allocator", new IllegalStateException(buffer.toString()));
+                return;
+            }
+        }
+        inUse.decrement();
+        allocator.release(buffer);
+    }
+
+    /**
+     * <p>Reports the buffers the owner still holds, when leak detection is enabled</p>
+     *
+     * @param owner
+     */
+    static void closed(final Object owner) {
+        if (!leakDetection) {
+            return;
+        }
+        final List<Map.Entry<ByteBuffer, Lease>> leaked = new ArrayList<>();
+        synchronized (leases) {
+            for (final Iterator<Map.Entry<ByteBuffer, Lease>> it = leases.entrySet().iterator(); it.hasNext();) {
+                final Map.Entry<ByteBuffer, Lease> entry = it.next();
+                if (entry.getValue().owner == owner) {
+                    // the entries of an identity map are only valid until removed
+                    leaked.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                    it.remove();
+                }
+            }
+        }
+        for (final Map.Entry<ByteBuffer, Lease> entry : leaked) {
+            leaks.increment();
+            inUse.decrement();
+            allocator.forget(entry.getKey());
+            LOGGER.error("Buffer of " + entry.getKey().capacity() + " bytes not released by " + owner, entry.getValue().acquired);
+        }
+    }
+
+    /**
+     * <p>The owner of a buffer and where it was acquired</p>
+     */
+    private static final class Lease {
+
+        private final Object owner;
+        private final Throwable acquired;
+
+        private Lease(final Object owner) {
+            this.owner = owner;
+            this.acquired = new Throwable("Acquired by " + Thread.currentThread().getName());
+        }
+    }
+}
\ No newline at end of file
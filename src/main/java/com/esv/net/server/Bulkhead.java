@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * Bounds the concurrent calls of a group of rest endpoints, rejecting the
+ * calls beyond its limit at once instead of queueing them, so a slow backend
+ * only holds its own permits. A call with a deadline runs on a separate
+ * thread and is interrupted when the deadline passes; its permit is only
+ * returned once the call really ends, so the timed out calls still running
+ * count against the limit.
+ * </p>
+ * <p>
+ * The calls with a deadline run on the threads of the bulkhead, as many as
+ * its limit, or rest.bulkhead.maxThreads without limit, the calls beyond
+ * them waiting for a thread within their deadline. The threads are created
+ * on the first calls with a deadline and end once idle for a minute.
+ * </p>
+ * <p>
+ * Each bulkhead publishes the {@link ServerMetrics} counters
+ * rest.bulkhead.NAME.active (the calls running), .limit, .rejected and
+ * .timeouts; active over limit is its saturation.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class Bulkhead {
+
+    private static final AtomicInteger threads = new AtomicInteger();
+    private static final int maxThreads;
+
+    static {
+        try {
+            maxThreads = PropertiesUtils.getIntProperty("rest.bulkhead.maxThreads", 50);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String name;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+    private final LongAdder active;
+    private final LongAdder rejected;
+    private final LongAdder timeouts;
+
+    /**
+     * @param name
+     * @param maxConcurrent the max calls at once, 0 for no limit
+     */
+    Bulkhead(final String name, final int maxConcurrent) {
+        this.name = name;
+        this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+        final int poolSize = Math.max(1, maxConcurrent > 0 ? maxConcurrent : maxThreads);
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "rest-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // with a limit the queue never holds more calls than the permits left
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+        this.active = ServerMetrics.counter("rest.bulkhead." + name + ".active");
+        this.rejected = ServerMetrics.counter("rest.bulkhead." + name + ".rejected");
+        this.timeouts = ServerMetrics.counter("rest.bulkhead." + name + ".timeouts");
+        final LongAdder limit = ServerMetrics.counter("rest.bulkhead." + name + ".limit");
+        limit.reset();
+        limit.add(maxConcurrent);
+    }
+
+    /**
+     * @param callable
+     * @param timeoutMillis the deadline of the call, 0 to run it on the calling thread without deadline
+     * @return the result of the call
+     * @throws RejectedExecutionException if the bulkhead is saturated
+     * @throws TimeoutException if the deadline passed, the call being interrupted
+     * @throws Exception thrown by the call
+     */
+    <T> T call(final Callable<T> callable, final long timeoutMillis) throws Exception {
+        if (null != permits && !permits.tryAcquire()) {
+            rejected.increment();
+            throw new RejectedExecutionException("Too many concurrent calls to " + name);
+        }
+        active.increment();
+        if (timeoutMillis <= 0L) {
+            try {
+                return callable.call();
+            } finally {
+                this.release();
+            }
+        }
+        // whoever flips it first owns the permit: the task when it starts, or the caller cancelling it before
+        final AtomicBoolean started = new AtomicBoolean();
+        final Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                if (!started.compareAndSet(false, true)) {
+                    return null;
+                }
+                try {
+                    return callable.call();
+                } finally {
+                    this.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.release();
+            throw e;
+        }
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            if (started.compareAndSet(false, true)) {
+                this.release();
+            }
+            timeouts.increment();
+            throw new TimeoutException("Call to " + name + " exceeded " + timeoutMillis + "ms");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            if (started.compareAndSet(false, true)) {
+                this.release();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        }
+    }
+
+    private void release() {
+        active.decrement();
+        if (null != permits) {
+            permits.release();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return name + (null == permits ? "" : ":" + permits.availablePermits());
+    }
+}
\ No newline at end of file
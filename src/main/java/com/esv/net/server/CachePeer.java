@@ -0,0 +1,297 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * A remote node of the {@link PeerCache}: its pool of idle connections and
+ * its passive health, and the client side of the peer protocol. Each frame
+ * starts with its operation byte, followed by the key as modified UTF-8 with
+ * its two bytes length:
+ * </p>
+ * <ul>
+ * <li>GET key, answered by a MISS byte, or a HIT byte, the remaining
+ * milliseconds to live as an int, the body length as an int and the body;</li>
+ * <li>PUT key, the milliseconds to live as an int, the body length as an int
+ * and the body, not answered.</li>
+ * </ul>
+ * <p>
+ * A peer failing cache.peer.maxFailures times in a row is left out for
+ * cache.peer.downTime milliseconds, its keys being computed locally meanwhile.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class CachePeer {
+
+    private static final Logger LOGGER = Logger.getLogger(CachePeer.class);
+
+    static final int GET = 1;
+    static final int PUT = 2;
+    static final int MISS = 0;
+    static final int HIT = 1;
+
+    private static final int maxIdle;
+    private static final long idleTimeoutNanos;
+    private static final int connectTimeout;
+    private static final int readTimeout;
+    private static final int maxFailures;
+    private static final long downTimeNanos;
+    private static final LongAdder opened = ServerMetrics.counter("cache.peer.connections.opened");
+    private static final LongAdder failed = ServerMetrics.counter("cache.peer.failures");
+
+    static {
+        try {
+            maxIdle = PropertiesUtils.getIntProperty("cache.peer.maxIdle", 8);
+            idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(PropertiesUtils.getIntProperty("cache.peer.idleTimeout", 30000));
+            connectTimeout = PropertiesUtils.getIntProperty("cache.peer.connectTimeout", 200);
+            readTimeout = PropertiesUtils.getIntProperty("cache.peer.timeout", 100);
+            maxFailures = PropertiesUtils.getIntProperty("cache.peer.maxFailures", 3);
+            downTimeNanos = TimeUnit.MILLISECONDS.toNanos(PropertiesUtils.getIntProperty("cache.peer.downTime", 5000));
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final Deque<Link> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long downUntil = System.nanoTime();
+
+    /**
+     * @param hostAndPort host:port of the peer protocol
+     */
+    CachePeer(final String hostAndPort) {
+        final int idx = hostAndPort.lastIndexOf(':');
+        if (idx <= 0) {
+            throw new IllegalArgumentException("Invalid cache peer, expected host:port: " + hostAndPort);
+        }
+        this.host = hostAndPort.substring(0, idx).trim();
+        this.port = Integer.parseInt(hostAndPort.substring(idx + 1).trim());
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * @return false while the peer is left out after failing
+     */
+    boolean isAvailable() {
+        return System.nanoTime() - downUntil >= 0L;
+    }
+
+    /**
+     * @param key
+     * @return the entry held by the peer, null if it has none
+     * @throws IOException if the peer could not be reached or did not answer in time
+     */
+    PeerCache.Entry get(final String key) throws IOException {
+        for (;;) {
+            final Link link = this.acquire();
+            boolean reusable = false;
+            try {
+                link.out.writeByte(GET);
+                link.out.writeUTF(key);
+                link.out.flush();
+                final PeerCache.Entry entry;
+                if (link.in.readUnsignedByte() == HIT) {
+                    final long ttlMillis = link.in.readInt();
+                    entry = new PeerCache.Entry(CachePeer.readBody(link.in), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+                } else {
+                    entry = null;
+                }
+                reusable = true;
+                this.succeeded();
+                return entry;
+            } catch (IOException e) {
+                // the peer may have closed an idle connection meanwhile
+                if (link.reused && !(e instanceof SocketTimeoutException)) {
+                    continue;
+                }
+                this.failed();
+                throw e;
+            } finally {
+                this.release(link, reusable);
+            }
+        }
+    }
+
+    /**
+     * @param key
+     * @param body
+     * @param ttlMillis
+     * @throws IOException if the peer could not be reached
+     */
+    void put(final String key, final byte[] body, final long ttlMillis) throws IOException {
+        final Link link = this.acquire();
+        boolean reusable = false;
+        try {
+            link.out.writeByte(PUT);
+            link.out.writeUTF(key);
+            link.out.writeInt((int) Math.min(Integer.MAX_VALUE, ttlMillis));
+            link.out.writeInt(body.length);
+            link.out.write(body);
+            link.out.flush();
+            reusable = true;
+        } catch (IOException e) {
+            this.failed();
+            throw e;
+        } finally {
+            this.release(link, reusable);
+        }
+    }
+
+    /**
+     * @param in
+     * @return the body following its length
+     * @throws IOException if the length is invalid or the stream ends first
+     */
+    static byte[] readBody(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > PeerCache.getMaxEntryBytes()) {
+            throw new IOException("Invalid cache entry length: " + length);
+        }
+        final byte[] body = new byte[length];
+        in.readFully(body);
+        return body;
+    }
+
+    /**
+     * @return the most recently used idle connection, or a new one
+     * @throws IOException if the peer could not be connected
+     */
+    private Link acquire() throws IOException {
+        final long now = System.nanoTime();
+        Link link;
+        while (null != (link = idle.pollFirst())) {
+            idleCount.decrementAndGet();
+            if (now - link.lastUsed < idleTimeoutNanos) {
+                link.reused = true;
+                return link;
+            }
+            link.close();
+        }
+        final Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeout);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            opened.increment();
+            return new Link(socket);
+        } catch (IOException e) {
+            socket.close();
+            this.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * @param link
+     * @param reusable true if the exchange completed, the connection being at the start of the next frame
+     */
+    private void release(final Link link, final boolean reusable) {
+        if (reusable && idleCount.incrementAndGet() <= maxIdle) {
+            link.lastUsed = System.nanoTime();
+            link.reused = false;
+            idle.offerFirst(link);
+            return;
+        }
+        if (reusable) {
+            idleCount.decrementAndGet();
+        }
+        link.close();
+    }
+
+    private void succeeded() {
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+    }
+
+    /**
+     * <p>Counts a failure, leaving the peer out once they reach cache.peer.maxFailures</p>
+     */
+    private void failed() {
+        failed.increment();
+        if (failures.incrementAndGet() < maxFailures) {
+            return;
+        }
+        failures.set(0);
+        downUntil = System.nanoTime() + downTimeNanos;
+        LOGGER.warn(() -> "Cache peer " + this + " failed " + maxFailures + " times, left out for "
+                + TimeUnit.NANOSECONDS.toMillis(downTimeNanos) + "ms");
+        Link link;
+        while (null != (link = idle.pollFirst())) {
+            idleCount.decrementAndGet();
+            link.close();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+
+    /**
+     * <p>A connection to the peer, used by one request thread at a time</p>
+     */
+    private static final class Link implements Closeable {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private long lastUsed;
+        private boolean reused;
+
+        private Link(final Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.io.Closeable#close()
+         */
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.trace("Failure closing the cache peer connection", e);
+            }
+        }
+    }
+}
\ No newline at end of file
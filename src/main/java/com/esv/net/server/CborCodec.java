@@ -0,0 +1,342 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.esv.net.rest.ResponseCodec;
+import com.esv.net.utils.MimeTypeUtils;
+
+/**
+ * <p>
+ * Encodes the rest responses as CBOR (RFC 8949), written byte by byte into
+ * the response buffer without an intermediate text or tree. Maps,
+ * collections, arrays, strings, numbers, booleans, enums and null are
+ * encoded as their CBOR counterparts; dates as epoch based date/times (tag
+ * 1); big numbers as bignums and decimal fractions (tags 2, 3 and 4); other
+ * objects as maps of their bean properties, introspected once per class.
+ * Integers take the shortest encoding, and doubles are written as floats
+ * when no precision is lost.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class CborCodec implements ResponseCodec {
+
+    private static final int MAX_DEPTH = 256;
+
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1;
+    private static final int BYTES = 2;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int TAG = 6;
+
+    private static final ClassValue<Property[]> properties = new ClassValue<Property[]>() {
+        @Override
+        protected Property[] computeValue(final Class<?> type) {
+            return CborCodec.introspect(type);
+        }
+    };
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.rest.ResponseCodec#getMediaType()
+     */
+    @Override
+    public String getMediaType() {
+        return MimeTypeUtils.APPLICATION_CBOR;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.rest.ResponseCodec#encode(java.lang.Object, java.io.OutputStream)
+     */
+    @Override
+    public void encode(final Object value, final OutputStream out) throws IOException {
+        CborCodec.write(value, out, 0);
+    }
+
+    /**
+     * @param value
+     * @param out
+     * @param depth the nesting level, bounding cyclic graphs
+     * @throws IOException
+     */
+    private static void write(final Object value, final OutputStream out, final int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Value nested deeper than " + MAX_DEPTH + " levels, is it cyclic?");
+        }
+        if (null == value) {
+            out.write(0xf6);
+        } else if (value instanceof String) {
+            CborCodec.writeText((String) value, out);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            CborCodec.writeLong(((Number) value).longValue(), out);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? 0xf5 : 0xf4);
+        } else if (value instanceof Double || value instanceof Float) {
+            CborCodec.writeDouble(((Number) value).doubleValue(), out);
+        } else if (value instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            CborCodec.writeHead(MAP, map.size(), out);
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                CborCodec.write(entry.getKey(), out, depth + 1);
+                CborCodec.write(entry.getValue(), out, depth + 1);
+            }
+        } else if (value instanceof Collection) {
+            final Collection<?> collection = (Collection<?>) value;
+            CborCodec.writeHead(ARRAY, collection.size(), out);
+            for (final Object item : collection) {
+                CborCodec.write(item, out, depth + 1);
+            }
+        } else if (value instanceof byte[]) {
+            final byte[] bytes = (byte[]) value;
+            CborCodec.writeHead(BYTES, bytes.length, out);
+            out.write(bytes);
+        } else if (value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            CborCodec.writeHead(ARRAY, length, out);
+            for (int i = 0; i < length; i++) {
+                CborCodec.write(Array.get(value, i), out, depth + 1);
+            }
+        } else if (value instanceof Iterable) {
+            // indefinite length, the size is not known beforehand
+            out.write(ARRAY << 5 | 31);
+            for (final Object item : (Iterable<?>) value) {
+                CborCodec.write(item, out, depth + 1);
+            }
+            out.write(0xff);
+        } else if (value instanceof Enum) {
+            CborCodec.writeText(((Enum<?>) value).name(), out);
+        } else if (value instanceof CharSequence || value instanceof Character) {
+            CborCodec.writeText(value.toString(), out);
+        } else if (value instanceof BigInteger) {
+            CborCodec.writeBigInteger((BigInteger) value, out);
+        } else if (value instanceof BigDecimal) {
+            // decimal fraction, [exponent, mantissa]
+            final BigDecimal decimal = (BigDecimal) value;
+            CborCodec.writeHead(TAG, 4, out);
+            CborCodec.writeHead(ARRAY, 2, out);
+            CborCodec.writeLong(-decimal.scale(), out);
+            CborCodec.writeBigInteger(decimal.unscaledValue(), out);
+        } else if (value instanceof Number) {
+            CborCodec.writeDouble(((Number) value).doubleValue(), out);
+        } else if (value instanceof Optional) {
+            CborCodec.write(((Optional<?>) value).orElse(null), out, depth);
+        } else if (value instanceof Date) {
+            // epoch based date/time, in seconds
+            final long millis = ((Date) value).getTime();
+            CborCodec.writeHead(TAG, 1, out);
+            if (millis % 1000L == 0L) {
+                CborCodec.writeLong(millis / 1000L, out);
+            } else {
+                CborCodec.writeDouble(millis / 1000d, out);
+            }
+        } else if (value.getClass().getName().startsWith("java.")) {
+            // UUID, URI, java.time and alike, as their text
+            CborCodec.writeText(value.toString(), out);
+        } else {
+            CborCodec.writeBean(value, out, depth);
+        }
+    }
+
+    /**
+     * @param bean
+     * @param out
+     * @param depth
+     * @throws IOException
+     */
+    private static void writeBean(final Object bean, final OutputStream out, final int depth) throws IOException {
+        final Property[] beanProperties = properties.get(bean.getClass());
+        CborCodec.writeHead(MAP, beanProperties.length, out);
+        for (final Property property : beanProperties) {
+            CborCodec.writeText(property.name, out);
+            final Object value;
+            try {
+                value = property.getter.invoke(bean);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IOException("Could not read " + property.name + " of " + bean.getClass().getName(), e);
+            }
+            CborCodec.write(value, out, depth + 1);
+        }
+    }
+
+    /**
+     * @param major the major type
+     * @param argument the count, length or value, as an unsigned number
+     * @param out
+     * @throws IOException
+     */
+    private static void writeHead(final int major, final long argument, final OutputStream out) throws IOException {
+        final int type = major << 5;
+        if (argument >= 0L && argument < 24L) {
+            out.write(type | (int) argument);
+        } else if (argument >= 0L && argument < 0x100L) {
+            out.write(type | 24);
+            out.write((int) argument);
+        } else if (argument >= 0L && argument < 0x10000L) {
+            out.write(type | 25);
+            out.write((int) (argument >>> 8));
+            out.write((int) argument);
+        } else if (argument >= 0L && argument < 0x100000000L) {
+            out.write(type | 26);
+            out.write((int) (argument >>> 24));
+            out.write((int) (argument >>> 16));
+            out.write((int) (argument >>> 8));
+            out.write((int) argument);
+        } else {
+            out.write(type | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (argument >>> shift));
+            }
+        }
+    }
+
+    private static void writeLong(final long value, final OutputStream out) throws IOException {
+        if (value >= 0L) {
+            CborCodec.writeHead(UNSIGNED, value, out);
+        } else {
+            CborCodec.writeHead(NEGATIVE, -1L - value, out);
+        }
+    }
+
+    private static void writeDouble(final double value, final OutputStream out) throws IOException {
+        final float single = (float) value;
+        if (single == value || Double.isNaN(value)) {
+            final int bits = Float.floatToIntBits(single);
+            out.write(0xfa);
+            out.write(bits >>> 24);
+            out.write(bits >>> 16);
+            out.write(bits >>> 8);
+            out.write(bits);
+            return;
+        }
+        final long bits = Double.doubleToLongBits(value);
+        out.write(0xfb);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift));
+        }
+    }
+
+    private static void writeBigInteger(final BigInteger value, final OutputStream out) throws IOException {
+        if (value.bitLength() < 64) {
+            CborCodec.writeLong(value.longValue(), out);
+            return;
+        }
+        // bignums, the negative ones as -1 - n
+        final boolean negative = value.signum() < 0;
+        byte[] bytes = (negative ? value.negate().subtract(BigInteger.ONE) : value).toByteArray();
+        if (bytes[0] == 0) {
+            final byte[] magnitude = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, magnitude, 0, magnitude.length);
+            bytes = magnitude;
+        }
+        CborCodec.writeHead(TAG, negative ? 3 : 2, out);
+        CborCodec.writeHead(BYTES, bytes.length, out);
+        out.write(bytes);
+    }
+
+    /**
+     * <p>Writes the text as UTF-8, measured first to write its length ahead</p>
+     *
+     * @param text
+     * @param out
+     * @throws IOException
+     */
+    private static void writeText(final String text, final OutputStream out) throws IOException {
+        final int length = text.length();
+        long bytes = 0L;
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // unpaired, replaced by '?'
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        CborCodec.writeHead(TEXT, bytes, out);
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xc0 | c >> 6);
+                out.write(0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                out.write(0xf0 | codePoint >> 18);
+                out.write(0x80 | codePoint >> 12 & 0x3f);
+                out.write(0x80 | codePoint >> 6 & 0x3f);
+                out.write(0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                out.write('?');
+            } else {
+                out.write(0xe0 | c >> 12);
+                out.write(0x80 | c >> 6 & 0x3f);
+                out.write(0x80 | c & 0x3f);
+            }
+        }
+    }
+
+    /**
+     * @param type
+     * @return the readable bean properties of the type, by name
+     */
+    private static Property[] introspect(final Class<?> type) {
+        final List<Property> list = new ArrayList<>();
+        try {
+            for (final PropertyDescriptor descriptor : Introspector.getBeanInfo(type, Object.class).getPropertyDescriptors()) {
+                final Method getter = descriptor.getReadMethod();
+                if (null != getter) {
+                    getter.setAccessible(true);
+                    list.add(new Property(descriptor.getName(), getter));
+                }
+            }
+        } catch (IntrospectionException | SecurityException e) {
+            throw new IllegalStateException("Could not introspect " + type.getName(), e);
+        }
+        return list.toArray(new Property[list.size()]);
+    }
+
+    /**
+     * <p>A readable bean property</p>
+     */
+    private static final class Property {
+
+        private final String name;
+        private final Method getter;
+
+        private Property(final String name, final Method getter) {
+            this.name = name;
+            this.getter = getter;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,216 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * Bounds the requests handled at once by a limit following the observed
+ * latency, the requests beyond it being answered with 503 at once. The
+ * requests are measured by windows of microserver.limit.window milliseconds,
+ * and at the end of each window the limit moves by the gradient between the
+ * latency without queueing, the baseline, and the latency of the window: it
+ * grows while the latency stays within
+ * microserver.limit.tolerance times the baseline, by the square root of the
+ * limit as a queueing allowance, and shrinks down to half as the latency
+ * rises beyond it, a downstream slowing down making the queued requests
+ * slower still. Windows using less than half the limit leave it as it is,
+ * and requests answered with 503 or 504 by the handlers, overload seen
+ * downstream, shrink it at once by a tenth.
+ * </p>
+ * <p>
+ * The baseline follows a lower window latency at once and a higher one
+ * slowly, by a fraction of the difference per window, about a minute for the
+ * default window: a latency rising for good, such as a slower downstream,
+ * becomes the new baseline and the limit grows again, while the queueing
+ * the limit causes is kept within the tolerance meanwhile. The baseline is
+ * never measured by collapsing the limit, so a steady load is not rejected
+ * for it.
+ * </p>
+ * <p>
+ * The {@link ServerMetrics} counters server.limit, server.inflight and
+ * server.limit.rejected publish the current limit, the requests being handled
+ * and the requests rejected.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class ConcurrencyLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(ConcurrencyLimiter.class);
+
+    // the windows over which the baseline catches up with a higher latency
+    private static final int BASELINE_WINDOWS = 600;
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    private static final double SMOOTHING = 0.2;
+    private static final double DROP_DECREASE = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final long windowNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder limitGauge = ServerMetrics.counter("server.limit");
+    private final LongAdder inFlightGauge = ServerMetrics.counter("server.inflight");
+    private final LongAdder rejected = ServerMetrics.counter("server.limit.rejected");
+    private volatile int limit;
+    // guarded by this
+    private double estimatedLimit;
+    private double baselineNanos;
+    // the requests in flight in the window that gave the baseline
+    private int baselineInFlight;
+    private long windowStart;
+    private long windowNanosSum;
+    private int windowSamples;
+    private int windowMaxInFlight;
+    private boolean windowDropped;
+
+    /**
+     * @param initialLimit
+     * @param minLimit
+     * @param maxLimit
+     * @param tolerance the ratio of the latency to its baseline up to which the limit grows
+     * @param windowMillis the min duration of a measurement window
+     */
+    ConcurrencyLimiter(final int initialLimit, final int minLimit, final int maxLimit, final double tolerance,
+            final long windowMillis) {
+        if (minLimit < 1 || maxLimit < minLimit || tolerance < 1.0) {
+            throw new IllegalArgumentException("Invalid concurrency limit: min " + minLimit + ", max " + maxLimit
+                    + ", tolerance " + tolerance);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.windowStart = System.nanoTime();
+        this.publish((int) estimatedLimit);
+    }
+
+    /**
+     * @return the limiter configured by microserver.limit.*, null unless microserver.limit=true
+     */
+    static ConcurrencyLimiter create() {
+        if (!Boolean.parseBoolean(PropertiesUtils.getStringProperty("microserver.limit", "false").trim())) {
+            return null;
+        }
+        final int maxLimit = PropertiesUtils.getIntProperty("microserver.limit.max", ServerConfig.current().getMaxThreads());
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(PropertiesUtils.getIntProperty("microserver.limit.initial", 20),
+                PropertiesUtils.getIntProperty("microserver.limit.min", 4), maxLimit,
+                Double.parseDouble(PropertiesUtils.getStringProperty("microserver.limit.tolerance", "1.5").trim()),
+                PropertiesUtils.getIntProperty("microserver.limit.window", 100));
+        LOGGER.info(() -> "Adaptive concurrency limit: " + limiter);
+        return limiter;
+    }
+
+    /**
+     * @return true if the request may be handled, to be followed by {@link #release(long, boolean)}
+     */
+    boolean tryAcquire() {
+        for (;;) {
+            final int current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                inFlightGauge.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param startNanos the {@link System#nanoTime()} when the request was acquired
+     * @param dropped true if the request failed or was answered with overload
+     */
+    void release(final long startNanos, final boolean dropped) {
+        final long now = System.nanoTime();
+        final int concurrent = inFlight.getAndDecrement();
+        inFlightGauge.decrement();
+        this.sample(now - startNanos, concurrent, dropped, now);
+    }
+
+    /**
+     * @param rttNanos
+     * @param concurrent the requests in flight, this one included
+     * @param dropped
+     * @param now the {@link System#nanoTime()} of the sample, simulated by the tests
+     */
+    synchronized void sample(final long rttNanos, final int concurrent, final boolean dropped, final long now) {
+        windowNanosSum += rttNanos;
+        windowSamples++;
+        windowMaxInFlight = Math.max(windowMaxInFlight, concurrent);
+        windowDropped |= dropped;
+        if (now - windowStart < windowNanos || windowSamples < MIN_WINDOW_SAMPLES && !windowDropped) {
+            return;
+        }
+        this.update((double) windowNanosSum / windowSamples);
+        windowStart = now;
+        windowNanosSum = 0L;
+        windowSamples = 0;
+        windowMaxInFlight = 0;
+        windowDropped = false;
+    }
+
+    /**
+     * @param windowRtt the mean latency of the window
+     */
+    private void update(final double windowRtt) {
+        if (0.0 == baselineNanos || windowRtt < baselineNanos) {
+            baselineNanos = windowRtt;
+            baselineInFlight = windowMaxInFlight;
+        } else if (windowMaxInFlight <= baselineInFlight) {
+            // slower without more requests in flight: the latency rose on its own, not by queueing
+            baselineNanos += (windowRtt - baselineNanos) / BASELINE_WINDOWS;
+        }
+        if (windowDropped) {
+            estimatedLimit = Math.max(minLimit, estimatedLimit * DROP_DECREASE);
+        } else if (windowMaxInFlight >= estimatedLimit / 2) {
+            final double gradient = Math.max(0.5, Math.min(1.0, tolerance * baselineNanos / windowRtt));
+            final double next = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit * (1.0 - SMOOTHING) + next * SMOOTHING));
+        }
+        final int next = (int) estimatedLimit;
+        if (next != limit) {
+            this.publish(next);
+            LOGGER.debug(() -> "Concurrency limit: " + next + ", latency " + (long) (windowRtt / 1000) + "us, baseline "
+                    + (long) (baselineNanos / 1000) + "us");
+        }
+    }
+
+    /**
+     * @param next
+     */
+    private void publish(final int next) {
+        limit = next;
+        limitGauge.reset();
+        limitGauge.add(next);
+    }
+
+    /**
+     * @return the current limit
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "limit " + limit + " (" + minLimit + ".." + maxLimit + "), tolerance " + tolerance + ", window "
+                + TimeUnit.NANOSECONDS.toMillis(windowNanos) + "ms";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,831 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * A client connection guarded by read and write deadlines. Only one read
+ * deadline is armed at a time, following the phase of the exchange:
+ * </p>
+ * <ul>
+ * <li>{@link Phase#IDLE}: from accept until the first request byte arrives</li>
+ * <li>{@link Phase#HEADER}: from the first byte until the end of the headers, so
+ * a client trickling bytes can not hold the connection forever</li>
+ * <li>{@link Phase#BODY}: until the declared request body is consumed</li>
+ * <li>{@link Phase#KEEP_ALIVE}: from a response until the first byte of the
+ * next request on the same connection, shorter than the idle deadline as the
+ * waiting connection holds its worker thread</li>
+ * </ul>
+ * <p>
+ * The {@link Phase#WRITE} deadline is armed apart while each response write
+ * blocks, so the writes of the HTTP/2 streams leave the read deadline of the
+ * connection as it is.
+ * </p>
+ * <p>
+ * The socket is closed when a deadline expires, failing the blocked worker
+ * thread with a {@link java.net.SocketException}.
+ * </p>
+ * <p>
+ * With tls.enabled=true the channel is read and written through a
+ * {@link TlsChannel}, the TLS handshake running under the idle deadline.
+ * </p>
+ * <p>
+ * Both directions are buffered with buffers of the {@link Buffers} allocator,
+ * taken when the connection is created and given back when it is closed, so
+ * the responses go out in as few writes as possible without allocating
+ * buffers for each connection. Over a channel they are direct buffers, read
+ * and written by the channel without the temporary direct copy the JDK makes
+ * of heap buffers, and the output stream is a {@link WritableByteChannel} as
+ * well, writing large direct buffers, such as the memory-mapped resources,
+ * to the channel as they are.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 14/10/2017
+ */
+final class Connection implements Closeable {
+    
+    private static final Logger LOGGER = Logger.getLogger(Connection.class);
+    
+    private static final HashedWheelTimer timer;
+    private static final int bufferSize;
+    // the chunks copying the large heap writes into direct memory
+    private static final int MAX_WRITE_CHUNK = 1 << 18;
+    
+    static {
+        try {
+            bufferSize = PropertiesUtils.getIntProperty("microserver.bufferSize", 8192);
+            final long tickMillis = PropertiesUtils.getIntProperty("microserver.timeout.tick", 100);
+            final int ticksPerWheel = PropertiesUtils.getIntProperty("microserver.timeout.wheelSize", 512);
+            timer = new HashedWheelTimer("microserver-timeouts", tickMillis, ticksPerWheel);
+            LOGGER.debug(() -> "Timeout wheel: tick " + tickMillis + "ms, " + ticksPerWheel + " buckets, timeouts: "
+                    + Phase.IDLE.timeoutMillis + "ms idle, " + Phase.HEADER.timeoutMillis + "ms header, "
+                    + Phase.BODY.timeoutMillis + "ms body, " + Phase.WRITE.timeoutMillis + "ms write, "
+                    + Phase.KEEP_ALIVE.timeoutMillis + "ms keep-alive");
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    /**
+     * <p>The exchange phases, each one with its own configurable timeout</p>
+     */
+    enum Phase {
+        IDLE("microserver.timeout.idle", 30000),
+        HEADER("microserver.timeout.header", 10000),
+        BODY("microserver.timeout.body", 30000),
+        WRITE("microserver.timeout.write", 30000),
+        KEEP_ALIVE("microserver.timeout.keepAlive", 5000);
+        
+        private final long timeoutMillis;
+        private final LongAdder expirations;
+        
+        private Phase(final String property, final int defaultTimeoutMillis) {
+            this.timeoutMillis = PropertiesUtils.getIntProperty(property, defaultTimeoutMillis);
+            this.expirations = ServerMetrics.counter("timeouts." + name().toLowerCase());
+        }
+        
+        /**
+         * @return the configured timeout, zero or negative if disabled
+         */
+        long timeoutMillis() {
+            return timeoutMillis;
+        }
+    }
+    
+    private final Socket socket;
+    private final TlsChannel tls;
+    private final PooledBufferedInputStream bufferedInput;
+    private final PooledBufferedOutputStream bufferedOutput;
+    private final InputStream inputStream;
+    private HashedWheelTimer.Timeout timeout;
+    private HashedWheelTimer.Timeout writeTimeout;
+    private volatile Phase phase;
+    private volatile boolean expired;
+    private boolean detached;
+    // the response is delimited by the end of the connection
+    private boolean closeAfterResponse;
+    private long bodyRemaining;
+    // the flight events in progress, owned by the request thread
+    private Object parseEvent;
+    private Object responseEvent;
+    private boolean released;
+    
+    /**
+     * @param socket
+     * @throws IOException
+     */
+    Connection(final Socket socket) throws IOException {
+        this.socket = socket;
+        final SocketChannel channel = socket.getChannel();
+        final ReadableByteChannel in;
+        final WritableByteChannel out;
+        if (null == channel) {
+            final StreamChannel streams = new StreamChannel(socket.getInputStream(), socket.getOutputStream());
+            in = streams;
+            out = streams;
+            this.tls = null;
+        } else {
+            this.tls = TlsContext.isEnabled() ? new TlsChannel(channel, TlsContext.newEngine(), this) : null;
+            in = null != tls ? tls : channel;
+            out = null != tls ? tls : channel;
+        }
+        final boolean direct = null != channel;
+        this.bufferedInput = new PooledBufferedInputStream(in, Buffers.acquire(bufferSize, direct, this));
+        this.bufferedOutput = new PooledBufferedOutputStream(new DeadlineChannel(out), Buffers.acquire(bufferSize, direct, this), this);
+        this.inputStream = new DeadlineInputStream(bufferedInput);
+        this.arm(Phase.IDLE);
+    }
+    
+    /**
+     * @return the socket
+     */
+    Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * @return the channel to hand over to the reactor, null if there is none or it carries TLS
+     */
+    SocketChannel getChannel() {
+        return null == tls ? socket.getChannel() : null;
+    }
+
+    /**
+     * @return the buffered input stream, reads advance the read phases
+     */
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * @return the buffered output stream, each socket write is bounded by the write timeout
+     */
+    OutputStream getOutputStream() {
+        return bufferedOutput;
+    }
+    
+    /**
+     * @return true if the connection was closed by an expired deadline
+     */
+    boolean isExpired() {
+        return expired;
+    }
+    
+    /**
+     * <p>
+     * Called once the request headers were parsed: arms the body deadline if
+     * the request declares a body, otherwise no read deadline remains armed
+     * </p>
+     * 
+     * @param contentLength the declared request body length
+     */
+    synchronized void headersRead(final long contentLength) {
+        bodyRemaining = Math.max(0L, contentLength);
+        if (bodyRemaining > 0L) {
+            arm(Phase.BODY);
+        } else {
+            disarm();
+        }
+    }
+
+    /**
+     * <p>
+     * Arms the idle deadline while waiting for the next request, used by
+     * protocols that keep reading the same connection
+     * </p>
+     */
+    synchronized void awaitRequest() {
+        arm(Phase.IDLE);
+    }
+
+    /**
+     * <p>
+     * Arms the keep-alive deadline and waits for the first byte of the next
+     * request of a persistent HTTP/1.1 connection
+     * </p>
+     * 
+     * @return true once the next request begins, false if keep-alive is
+     *         disabled or the connection was closed or expired meanwhile
+     */
+    boolean awaitNextRequest() {
+        if (Phase.KEEP_ALIVE.timeoutMillis <= 0) {
+            return false;
+        }
+        synchronized (this) {
+            arm(Phase.KEEP_ALIVE);
+        }
+        try {
+            return bufferedInput.awaitData();
+        } catch (IOException e) {
+            LOGGER.trace(() -> "Connection closed while kept alive: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * <p>
+     * Marks the response of the current request as delimited by the end of
+     * the connection, which then does not wait for another request
+     * </p>
+     */
+    synchronized void closeAfterResponse() {
+        closeAfterResponse = true;
+    }
+
+    /**
+     * @return true if the connection may carry another request: not detached,
+     *         expired nor closing after the response
+     */
+    synchronized boolean isReusable() {
+        return !detached && !expired && !closeAfterResponse && !socket.isClosed();
+    }
+
+    /**
+     * <p>
+     * Arms the idle deadline unless a read deadline is armed already, used by
+     * the threads other than the reading one once the connection has nothing
+     * left in progress
+     * </p>
+     */
+    synchronized void awaitRequestIfUnarmed() {
+        if (null == phase) {
+            arm(Phase.IDLE);
+        }
+    }
+
+    /**
+     * <p>
+     * Arms a read deadline kept whatever the bytes read until replaced, used
+     * by multiplexed protocols waiting for the rest of a header block or of
+     * the request bodies of their streams
+     * </p>
+     * 
+     * @param phase {@link Phase#HEADER} or {@link Phase#BODY}
+     */
+    synchronized void awaitStreams(final Phase phase) {
+        bodyRemaining = Long.MAX_VALUE;
+        arm(phase);
+    }
+
+    /**
+     * @return the request parse event begun with the first request byte, null if none
+     */
+    synchronized Object takeParseEvent() {
+        final Object event = parseEvent;
+        parseEvent = null;
+        return event;
+    }
+
+    /**
+     * @return the response write event begun with the first response write, null if none
+     */
+    Object takeResponseEvent() {
+        final Object event = responseEvent;
+        responseEvent = null;
+        return event;
+    }
+
+    /**
+     * @param phase the phase to arm the deadline for, replacing the current one
+     */
+    private synchronized void arm(final Phase phase) {
+        if (null != timeout) {
+            timeout.cancel();
+        }
+        this.phase = phase;
+        this.timeout = phase.timeoutMillis > 0 ? timer.newTimeout(() -> expire(phase), phase.timeoutMillis) : null;
+    }
+    
+    /**
+     * Cancels the current read deadline
+     */
+    private synchronized void disarm() {
+        if (null != timeout) {
+            timeout.cancel();
+            timeout = null;
+        }
+        phase = null;
+    }
+    
+    /**
+     * Cancels the read and the write deadlines
+     */
+    private synchronized void disarmAll() {
+        disarm();
+        afterWrite();
+    }
+    
+    /**
+     * @param expiredPhase
+     */
+    private void expire(final Phase expiredPhase) {
+        expired = true;
+        expiredPhase.expirations.increment();
+        if (expiredPhase == Phase.KEEP_ALIVE) {
+            // the usual end of a persistent connection
+            LOGGER.debug(() -> "Closing idle keep-alive connection from " + socket.getInetAddress());
+        } else {
+            LOGGER.warn(() -> "Closing connection from " + socket.getInetAddress() + ": " + expiredPhase.name().toLowerCase()
+                    + " timeout of " + expiredPhase.timeoutMillis + "ms expired");
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.trace("Failure closing the socket", e);
+        }
+    }
+    
+    /**
+     * @param count the number of bytes read from the buffered stream
+     */
+    private synchronized void bytesRead(final int count) {
+        if (count < 0) {
+            return;
+        }
+        if (phase == Phase.IDLE || phase == Phase.KEEP_ALIVE) {
+            if (null == parseEvent) {
+                parseEvent = FlightEvents.beginParse();
+            }
+            arm(Phase.HEADER);
+        } else if (phase == Phase.BODY) {
+            bodyRemaining -= count;
+            if (bodyRemaining <= 0L) {
+                disarm();
+            }
+        }
+    }
+    
+    /**
+     * Arms the write deadline, the writes being made by one thread at a time
+     */
+    private synchronized void beforeWrite() {
+        afterWrite();
+        if (Phase.WRITE.timeoutMillis > 0) {
+            writeTimeout = timer.newTimeout(() -> expire(Phase.WRITE), Phase.WRITE.timeoutMillis);
+        }
+    }
+    
+    /**
+     * Cancels the write deadline
+     */
+    private synchronized void afterWrite() {
+        if (null != writeTimeout) {
+            writeTimeout.cancel();
+            writeTimeout = null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!detached && !expired && !socket.isClosed()) {
+                bufferedOutput.flush();
+                if (null != tls) {
+                    beforeWrite();
+                    try {
+                        tls.close();
+                    } finally {
+                        afterWrite();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.trace("Failure flushing the response", e);
+        } finally {
+            disarmAll();
+            if (!detached) {
+                socket.close();
+            }
+            this.release();
+        }
+    }
+
+    /**
+     * <p>Gives the buffers back, once</p>
+     */
+    private synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (null != tls) {
+            tls.release();
+        }
+        bufferedInput.release();
+        bufferedOutput.release();
+        Buffers.closed(this);
+    }
+    
+    /**
+     * <p>
+     * Hands the socket over to another owner: the deadlines are cancelled and
+     * closing this connection no longer closes the socket
+     * </p>
+     * 
+     * @return the bytes already buffered beyond the current request
+     * @throws IOException
+     */
+    synchronized byte[] detach() throws IOException {
+        bufferedOutput.flush();
+        disarmAll();
+        detached = true;
+        final byte[] buffered = new byte[inputStream.available()];
+        int offset = 0;
+        while (offset < buffered.length) {
+            offset += inputStream.read(buffered, offset, buffered.length - offset);
+        }
+        return buffered;
+    }
+
+    /**
+     * <p>
+     * The streams of a socket without channel, such as the in-memory one,
+     * read into and written from the heap buffers of the connection, the
+     * output being flushed with the connection
+     * </p>
+     */
+    private static final class StreamChannel implements ByteChannel, Flushable {
+        
+        private final InputStream in;
+        private final OutputStream out;
+        
+        private StreamChannel(final InputStream in, final OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+        
+        @Override
+        public int read(final ByteBuffer destination) throws IOException {
+            if (!destination.hasArray()) {
+                return Channels.newChannel(in).read(destination);
+            }
+            final int n = in.read(destination.array(), destination.arrayOffset() + destination.position(), destination.remaining());
+            if (n > 0) {
+                destination.position(destination.position() + n);
+            }
+            return n;
+        }
+        
+        @Override
+        public int write(final ByteBuffer source) throws IOException {
+            if (!source.hasArray()) {
+                return Channels.newChannel(out).write(source);
+            }
+            final int n = source.remaining();
+            out.write(source.array(), source.arrayOffset() + source.position(), n);
+            source.position(source.limit());
+            return n;
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+            // closed with the socket
+        }
+    }
+    
+    /**
+     * <p>
+     * A buffered input over a pooled buffer, read from the channel in place.
+     * Unlike {@link java.io.BufferedInputStream} it is not synchronized, the
+     * connection is read by a single thread at a time.
+     * </p>
+     */
+    private static final class PooledBufferedInputStream extends InputStream {
+        
+        private final ReadableByteChannel in;
+        // in drain mode, null once released
+        private ByteBuffer buffer;
+        
+        private PooledBufferedInputStream(final ReadableByteChannel in, final ByteBuffer buffer) {
+            this.in = in;
+            this.buffer = buffer;
+            this.buffer.flip();
+        }
+        
+        private boolean fill() throws IOException {
+            if (null == buffer) {
+                throw new ClosedChannelException();
+            }
+            buffer.clear();
+            int read = 0;
+            try {
+                while (read == 0) {
+                    read = in.read(buffer);
+                }
+            } finally {
+                buffer.flip();
+            }
+            return read > 0;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (!this.hasBuffered() && !fill()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+        
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.hasBuffered()) {
+                // large reads skip a heap buffer, a direct one spares the JDK a temporary copy
+                if (len >= buffer.capacity() && !buffer.isDirect()) {
+                    return in.read(ByteBuffer.wrap(b, off, len));
+                }
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+        
+        @Override
+        public long skip(final long n) throws IOException {
+            if (n <= 0L || !this.hasBuffered() && !fill()) {
+                return 0L;
+            }
+            final int skipped = (int) Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+        
+        /**
+         * @return true once a byte is buffered, false at the end of the stream
+         * @throws IOException
+         */
+        private boolean awaitData() throws IOException {
+            return this.hasBuffered() || fill();
+        }
+        
+        /**
+         * @return the bytes buffered, the channels telling nothing of the bytes received
+         */
+        @Override
+        public int available() {
+            return null == buffer ? 0 : buffer.remaining();
+        }
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+        private boolean hasBuffered() {
+            return null != buffer && buffer.hasRemaining();
+        }
+        
+        private void release() {
+            Buffers.release(buffer);
+            buffer = null;
+        }
+    }
+    
+    /**
+     * <p>
+     * A buffered output over a pooled buffer, not synchronized either. As a
+     * channel it takes buffers: the direct ones larger than its own buffer go
+     * to the channel as they are, without copy.
+     * </p>
+     */
+    private static final class PooledBufferedOutputStream extends OutputStream implements WritableByteChannel {
+        
+        private final DeadlineChannel out;
+        private final Object owner;
+        // in fill mode, null once released
+        private ByteBuffer buffer;
+        
+        private PooledBufferedOutputStream(final DeadlineChannel out, final ByteBuffer buffer, final Object owner) {
+            this.out = out;
+            this.buffer = buffer;
+            this.owner = owner;
+        }
+        
+        private ByteBuffer buffer() throws IOException {
+            if (null == buffer) {
+                throw new ClosedChannelException();
+            }
+            return buffer;
+        }
+        
+        private void flushBuffer() throws IOException {
+            final ByteBuffer pending = this.buffer();
+            if (pending.position() > 0) {
+                pending.flip();
+                try {
+                    out.writeFully(pending);
+                } finally {
+                    pending.clear();
+                }
+            }
+        }
+        
+        @Override
+        public void write(final int b) throws IOException {
+            if (!this.buffer().hasRemaining()) {
+                flushBuffer();
+            }
+            buffer.put((byte) b);
+        }
+        
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            final ByteBuffer pending = this.buffer();
+            if (len <= pending.remaining()) {
+                pending.put(b, off, len);
+                return;
+            }
+            flushBuffer();
+            if (len < pending.capacity()) {
+                pending.put(b, off, len);
+            } else if (!pending.isDirect()) {
+                // large writes skip a heap buffer
+                out.writeFully(ByteBuffer.wrap(b, off, len));
+            } else {
+                this.writeChunked(b, off, len);
+            }
+        }
+        
+        /**
+         * <p>Copies a large heap write into direct chunks, as the JDK would into its own temporary buffer</p>
+         */
+        private void writeChunked(final byte[] b, final int off, final int len) throws IOException {
+            final ByteBuffer chunk = Buffers.acquire(Math.min(len, MAX_WRITE_CHUNK), true, owner);
+            try {
+                for (int written = 0; written < len;) {
+                    final int n = Math.min(len - written, chunk.capacity());
+                    chunk.clear();
+                    chunk.put(b, off + written, n).flip();
+                    out.writeFully(chunk);
+                    written += n;
+                }
+            } finally {
+                Buffers.release(chunk);
+            }
+        }
+        
+        @Override
+        public int write(final ByteBuffer source) throws IOException {
+            final int n = source.remaining();
+            final ByteBuffer pending = this.buffer();
+            if (n <= pending.remaining()) {
+                pending.put(source);
+            } else if (source.hasArray()) {
+                write(source.array(), source.arrayOffset() + source.position(), n);
+                source.position(source.limit());
+            } else {
+                flushBuffer();
+                if (n < pending.capacity()) {
+                    pending.put(source);
+                } else {
+                    out.writeFully(source);
+                }
+            }
+            return n;
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return null != buffer;
+        }
+        
+        /**
+         * <p>Flushes the buffer, the socket being closed with the connection</p>
+         */
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+        
+        private void release() {
+            Buffers.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * <p>Reports the consumed bytes to the owning connection</p>
+     */
+    private final class DeadlineInputStream extends FilterInputStream {
+
+        private DeadlineInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (isCounting()) {
+                bytesRead(b < 0 ? -1 : 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int count = super.read(b, off, len);
+            if (isCounting()) {
+                bytesRead(count);
+            }
+            return count;
+        }
+
+        /**
+         * @return true if the read bytes change the deadline, false while the
+         *         headers are parsed, saving a lock per header byte
+         */
+        private boolean isCounting() {
+            final Phase current = phase;
+            return current == Phase.IDLE || current == Phase.KEEP_ALIVE || current == Phase.BODY;
+        }
+    }
+    
+    /**
+     * <p>Arms the write deadline around each blocking write</p>
+     */
+    private final class DeadlineChannel {
+
+        private final WritableByteChannel out;
+
+        private DeadlineChannel(final WritableByteChannel out) {
+            this.out = out;
+        }
+
+        /**
+         * @param source written until it has no bytes remaining
+         * @throws IOException
+         */
+        private void writeFully(final ByteBuffer source) throws IOException {
+            if (null == responseEvent) {
+                responseEvent = FlightEvents.beginResponseWrite();
+            }
+            beforeWrite();
+            try {
+                while (source.hasRemaining()) {
+                    out.write(source);
+                }
+            } finally {
+                afterWrite();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (!(out instanceof Flushable)) {
+                return;
+            }
+            beforeWrite();
+            try {
+                ((Flushable) out).flush();
+            } finally {
+                afterWrite();
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,204 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * A Server-Sent Events broadcast channel, returned by the
+ * {@link com.esv.net.rest.EventStream} endpoints. Each published event is
+ * encoded once and the same bytes are queued to every subscriber. The last
+ * events are kept in a bounded ring, replayed to the clients reconnecting with
+ * a Last-Event-ID header. A subscriber that can not keep up with the channel
+ * either misses events or is disconnected, following the
+ * {@link SlowConsumerPolicy}.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 18/10/2017
+ */
+public final class EventChannel {
+
+    private static final Logger LOGGER = Logger.getLogger(EventChannel.class);
+
+    private static final int defaultReplaySize;
+    private static final int defaultMaxQueuedBytes;
+    private static final SlowConsumerPolicy defaultPolicy;
+
+    static {
+        try {
+            defaultReplaySize = PropertiesUtils.getIntProperty("sse.replaySize", 256);
+            defaultMaxQueuedBytes = PropertiesUtils.getIntProperty("sse.maxQueuedBytes", 262144);
+            defaultPolicy = SlowConsumerPolicy.valueOf(PropertiesUtils.getStringProperty("sse.slowConsumer", "DROP").trim().toUpperCase(Locale.ROOT));
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * <p>What happens to a subscriber with more than the max queued bytes waiting to be written</p>
+     */
+    public enum SlowConsumerPolicy {
+        /** the subscriber misses the events until its queue drains */
+        DROP,
+        /** the subscriber is disconnected, it may reconnect with Last-Event-ID */
+        DISCONNECT
+    }
+
+    private final int maxQueuedBytes;
+    private final SlowConsumerPolicy policy;
+    private final Set<EventStreamConnection> subscribers = ConcurrentHashMap.newKeySet();
+    // guarded by this
+    private final ByteBuffer[] ring;
+    private long nextId = 1L;
+    private boolean closed;
+
+    /**
+     * Creates a channel with the sse.* configuration
+     */
+    public EventChannel() {
+        this(defaultReplaySize, defaultMaxQueuedBytes, defaultPolicy);
+    }
+
+    /**
+     * @param replaySize the number of events kept for the reconnecting clients
+     * @param maxQueuedBytes the max bytes queued per subscriber
+     * @param policy applied when a subscriber reaches the max queued bytes
+     */
+    public EventChannel(final int replaySize, final int maxQueuedBytes, final SlowConsumerPolicy policy) {
+        if (replaySize < 0 || maxQueuedBytes <= 0 || null == policy) {
+            throw new IllegalArgumentException("Invalid event channel configuration");
+        }
+        this.ring = new ByteBuffer[replaySize];
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * @param data the event data, may span several lines
+     * @return the event id
+     */
+    public long publish(final String data) {
+        return this.publish(null, data);
+    }
+
+    /**
+     * @param event the event name, or null for the default message event
+     * @param data the event data, may span several lines
+     * @return the event id, or -1 if the channel is closed
+     */
+    public long publish(final String event, final String data) {
+        if (null != event && (event.indexOf('\n') != -1 || event.indexOf('\r') != -1)) {
+            throw new IllegalArgumentException("Invalid event name: " + event);
+        }
+        synchronized (this) {
+            if (closed) {
+                return -1L;
+            }
+            final long id = nextId++;
+            final ByteBuffer encoded = encode(id, event, data);
+            if (ring.length > 0) {
+                ring[(int) (id % ring.length)] = encoded;
+            }
+            for (final EventStreamConnection subscriber : subscribers) {
+                subscriber.offer(encoded.duplicate());
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @return the number of connected subscribers
+     */
+    public int subscribers() {
+        return subscribers.size();
+    }
+
+    /**
+     * Disconnects all the subscribers, the events published afterwards are discarded
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        for (final EventStreamConnection subscriber : subscribers) {
+            subscriber.closeChannel();
+        }
+        subscribers.clear();
+    }
+
+    /**
+     * @param id
+     * @param event
+     * @param data
+     * @return the event in the text/event-stream format, read only
+     */
+    private static ByteBuffer encode(final long id, final String event, final String data) {
+        final StringBuilder text = new StringBuilder(32 + (null == data ? 0 : data.length()));
+        text.append("id: ").append(id).append('\n');
+        if (null != event) {
+            text.append("event: ").append(event).append('\n');
+        }
+        for (final String line : (null == data ? "" : data).split("\r\n|\r|\n", -1)) {
+            text.append("data: ").append(line).append('\n');
+        }
+        text.append('\n');
+        return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /**
+     * <p>Replays the events after the last event id, then subscribes to the new ones</p>
+     *
+     * @param subscriber
+     * @param lastEventId the Last-Event-ID header, may be null
+     * @return false if the channel is closed
+     */
+    synchronized boolean subscribe(final EventStreamConnection subscriber, final String lastEventId) {
+        if (closed) {
+            return false;
+        }
+        if (null != lastEventId && ring.length > 0) {
+            try {
+                final long oldest = Math.max(1L, nextId - ring.length);
+                for (long id = Math.max(oldest, Long.parseLong(lastEventId.trim()) + 1L); id < nextId; id++) {
+                    subscriber.offer(ring[(int) (id % ring.length)].duplicate());
+                }
+            } catch (NumberFormatException e) {
+                LOGGER.debug(() -> "Ignoring invalid Last-Event-ID: " + lastEventId);
+            }
+        }
+        subscribers.add(subscriber);
+        return true;
+    }
+
+    /**
+     * @param subscriber
+     */
+    void unsubscribe(final EventStreamConnection subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * @return the max bytes queued per subscriber
+     */
+    int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * @return the slow consumer policy
+     */
+    SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,178 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.net.HttpRequest;
+import com.esv.net.HttpResponse;
+import com.esv.net.utils.MimeTypeUtils;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * A Server-Sent Events subscriber served by the {@link Reactor}: the
+ * response head is written once and the connection stays open, receiving the
+ * events published on its {@link EventChannel} until either side closes it.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 18/10/2017
+ */
+final class EventStreamConnection extends ReactorSession {
+
+    private static final Logger LOGGER = Logger.getLogger(EventStreamConnection.class);
+
+    private static final byte[] HEAD = ("HTTP/1.1 200 OK\r\nContent-Type: " + MimeTypeUtils.TEXT_EVENT_STREAM
+            + "\r\nCache-Control: no-cache\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final ByteBuffer HEARTBEAT = ByteBuffer.wrap(":\n".getBytes(StandardCharsets.ISO_8859_1)).asReadOnlyBuffer();
+
+    private static final long heartbeatInterval;
+    private static final LongAdder subscribed = ServerMetrics.counter("sse.subscribed");
+    private static final LongAdder dropped = ServerMetrics.counter("sse.dropped");
+    private static final LongAdder disconnected = ServerMetrics.counter("sse.disconnected");
+
+    static {
+        try {
+            heartbeatInterval = PropertiesUtils.getIntProperty("sse.heartbeat", 15000);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final EventChannel eventChannel;
+    private final String remoteAddress;
+    private volatile HashedWheelTimer.Timeout timeout;
+
+    /**
+     * @param channel a non-blocking channel
+     * @param eventChannel
+     */
+    private EventStreamConnection(final SocketChannel channel, final EventChannel eventChannel) {
+        super(channel);
+        this.eventChannel = eventChannel;
+        this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * <p>
+     * Writes the response head and hands the socket over to the
+     * {@link Reactor}, releasing the calling thread
+     * </p>
+     *
+     * @param connection
+     * @param httpRequest
+     * @param eventChannel
+     * @throws IOException
+     */
+    static void accept(final Connection connection, final HttpRequest httpRequest, final EventChannel eventChannel) throws IOException {
+        final SocketChannel channel = connection.getChannel();
+        if (null == channel) {
+            final String message = "Event streams require a socket channel";
+            LOGGER.warn(message);
+            HttpResponse.badRequest(message, MimeTypeUtils.TEXT_PLAIN, message);
+            return;
+        }
+        httpRequest.getOutputStream().write(HEAD);
+        httpRequest.complete();
+        connection.detach();
+        channel.configureBlocking(false);
+        final EventStreamConnection session = new EventStreamConnection(channel, eventChannel);
+        if (!eventChannel.subscribe(session, httpRequest.getHeader("Last-Event-ID"))) {
+            session.closeChannel();
+            return;
+        }
+        subscribed.increment();
+        LOGGER.debug(() -> "Subscribed " + session);
+        Reactor.register(session);
+    }
+
+    /**
+     * @param event an encoded event, shared with the other subscribers
+     */
+    void offer(final ByteBuffer event) {
+        synchronized (this) {
+            if (this.isClosing()) {
+                return;
+            }
+            if (this.getQueuedBytes() + event.remaining() <= eventChannel.getMaxQueuedBytes()) {
+                this.enqueue(event);
+                return;
+            }
+            if (eventChannel.getPolicy() == EventChannel.SlowConsumerPolicy.DROP) {
+                dropped.increment();
+                return;
+            }
+        }
+        disconnected.increment();
+        LOGGER.debug(() -> "Disconnecting slow consumer " + this);
+        this.closeChannel();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.server.ReactorSession#onRegistered()
+     */
+    @Override
+    void onRegistered() {
+        if (heartbeatInterval > 0) {
+            timeout = Reactor.timer().newTimeout(this::heartbeat, heartbeatInterval);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.server.ReactorSession#onReadable(java.nio.ByteBuffer)
+     */
+    @Override
+    void onReadable(final ByteBuffer readBuffer) throws IOException {
+        // the client is not expected to send anything, only the end of stream matters
+        if (this.getChannel().read(readBuffer) < 0) {
+            this.closeChannel();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.server.ReactorSession#onClosed()
+     */
+    @Override
+    void onClosed() {
+        final HashedWheelTimer.Timeout current = timeout;
+        if (null != current) {
+            current.cancel();
+        }
+        eventChannel.unsubscribe(this);
+    }
+
+    /**
+     * Writes a comment line while idle, keeping intermediaries from closing the connection
+     */
+    private void heartbeat() {
+        if (this.isClosing()) {
+            return;
+        }
+        synchronized (this) {
+            if (this.getQueuedBytes() == 0L) {
+                this.enqueue(HEARTBEAT.duplicate());
+            }
+        }
+        timeout = Reactor.timer().newTimeout(this::heartbeat, heartbeatInterval);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "EventStreamConnection [remoteAddress=" + remoteAddress + "]";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.net.Socket;
+
+import com.esv.net.HttpRequest;
+import com.esv.net.HttpRequestHandler;
+
+/**
+ * <p>
+ * The Java Flight Recorder events of the request lifecycle: accept, queue
+ * wait, request parse, handler execution, rest invocation and response
+ * write. Each begin returns the event in progress, or null when it is not
+ * recorded, handed back to the matching commit.
+ * </p>
+ * <p>
+ * This is the Java 8 version, recording nothing, which the JIT reduces to
+ * nothing. Packaged as a multi-release jar on JDK 11 or later, the
+ * META-INF/versions/11 version built from src/main/java11 records them.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class FlightEvents {
+
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private FlightEvents() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+
+    /**
+     * @return the accept event, from the accepted connection until it is queued
+     */
+    static Object beginAccept() {
+        return null;
+    }
+
+    /**
+     * @param event
+     * @param socket the accepted connection
+     */
+    static void commitAccept(final Object event, final Socket socket) {
+        // not recorded before Java 11
+    }
+
+    /**
+     * @return the queue wait event, until a request thread takes the connection
+     */
+    static Object beginQueueWait() {
+        return null;
+    }
+
+    /**
+     * @param event
+     */
+    static void commitQueueWait(final Object event) {
+        // not recorded before Java 11
+    }
+
+    /**
+     * @return the request parse event, from the first request byte until the end of the headers
+     */
+    static Object beginParse() {
+        return null;
+    }
+
+    /**
+     * @param event
+     * @param httpRequest the parsed request
+     */
+    static void commitParse(final Object event, final HttpRequest httpRequest) {
+        // not recorded before Java 11
+    }
+
+    /**
+     * @return the handler execution event
+     */
+    static Object beginHandler() {
+        return null;
+    }
+
+    /**
+     * @param event
+     * @param handler
+     * @param httpRequest
+     */
+    static void commitHandler(final Object event, final HttpRequestHandler handler, final HttpRequest httpRequest) {
+        // not recorded before Java 11
+    }
+
+    /**
+     * @return the rest invocation event
+     */
+    static Object beginRest() {
+        return null;
+    }
+
+    /**
+     * @param event
+     * @param endpoint the path template of the endpoint
+     * @param path
+     * @param failure null if the endpoint returned
+     */
+    static void commitRest(final Object event, final String endpoint, final String path, final Throwable failure) {
+        // not recorded before Java 11
+    }
+
+    /**
+     * @return the response write event, from the first socket write until the response is written
+     */
+    static Object beginResponseWrite() {
+        return null;
+    }
+
+    /**
+     * @param event
+     * @param httpRequest
+     */
+    static void commitResponseWrite(final Object event, final HttpRequest httpRequest) {
+        // not recorded before Java 11
+    }
+}
\ No newline at end of file
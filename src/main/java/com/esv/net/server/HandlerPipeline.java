@@ -0,0 +1,161 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.esv.net.Handles;
+import com.esv.net.HttpRequest;
+import com.esv.net.HttpRequestHandler;
+
+/**
+ * <p>
+ * Immutable dispatch table compiled from the configured request handlers. The
+ * handlers are grouped by HTTP method and sorted by {@link Handles#order()},
+ * each request only visits the routes of its method and the chain stops as
+ * soon as the request is complete.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 15/10/2017
+ */
+final class HandlerPipeline {
+    
+    private static final Route[] NO_ROUTES = new Route[0];
+    
+    private final Map<String, Route[]> routes;
+    
+    /**
+     * @param routes
+     */
+    private HandlerPipeline(final Map<String, Route[]> routes) {
+        this.routes = routes;
+    }
+    
+    /**
+     * @param handlers the handlers in the configured order
+     * @return the compiled pipeline
+     */
+    static HandlerPipeline compile(final List<? extends HttpRequestHandler> handlers) {
+        final List<Route> sorted = new ArrayList<>(handlers.size());
+        for (final HttpRequestHandler handler : handlers) {
+            sorted.add(new Route(handler, handler.getClass().getAnnotation(Handles.class)));
+        }
+        // stable sort, keeping the configured order for the same order value
+        sorted.sort(Comparator.comparingInt(route -> route.order));
+        // only the concrete methods are allowed, the wildcard routes join them
+        final Set<String> allowed = new LinkedHashSet<>();
+        for (final Route route : sorted) {
+            if (!route.isAnyMethod()) {
+                allowed.addAll(Arrays.asList(route.methods));
+            }
+        }
+        final Map<String, List<Route>> byMethod = new HashMap<>();
+        for (final Route route : sorted) {
+            for (final String method : route.isAnyMethod() ? allowed : Arrays.asList(route.methods)) {
+                byMethod.computeIfAbsent(method, k -> new ArrayList<>()).add(route);
+            }
+        }
+        final Map<String, Route[]> routes = new HashMap<>();
+        byMethod.forEach((method, list) -> routes.put(method, list.toArray(NO_ROUTES)));
+        return new HandlerPipeline(Collections.unmodifiableMap(routes));
+    }
+    
+    /**
+     * @param method a HTTP method
+     * @return true if at least one handler is declared for the given method
+     */
+    boolean supports(final String method) {
+        return routes.containsKey(method);
+    }
+    
+    /**
+     * @param httpRequest
+     * @throws Exception
+     */
+    void dispatch(final HttpRequest httpRequest) throws Exception {
+        final Route[] candidates = routes.getOrDefault(httpRequest.getRequestMethod(), NO_ROUTES);
+        for (final Route route : candidates) {
+            if (route.matches(httpRequest)) {
+                final Object event = FlightEvents.beginHandler();
+                try {
+                    route.handler.handle(httpRequest);
+                } finally {
+                    FlightEvents.commitHandler(event, route.handler, httpRequest);
+                }
+                if (httpRequest.isComplete()) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("HandlerPipeline [");
+        routes.forEach((method, list) -> {
+            builder.append(method).append('=');
+            for (final Route route : list) {
+                builder.append(route.handler.getClass().getSimpleName()).append(' ');
+            }
+        });
+        return builder.append(']').toString();
+    }
+    
+    /**
+     * <p>A handler and the requests it matches</p>
+     */
+    private static final class Route {
+        
+        private final HttpRequestHandler handler;
+        private final String[] methods;
+        private final String pathPrefix;
+        private final String[] accept;
+        private final int order;
+        
+        private Route(final HttpRequestHandler handler, final Handles handles) {
+            this.handler = handler;
+            this.methods = null == handles ? new String[] { "GET" } : handles.methods();
+            this.pathPrefix = null == handles || "/".equals(handles.pathPrefix()) ? null : handles.pathPrefix();
+            this.accept = null == handles || handles.accept().length == 0 ? null : handles.accept();
+            this.order = null == handles ? 0 : handles.order();
+        }
+        
+        private boolean isAnyMethod() {
+            return Arrays.asList(methods).contains(Handles.ANY_METHOD);
+        }
+        
+        private boolean matches(final HttpRequest httpRequest) {
+            if (null != pathPrefix && !httpRequest.getPathInfo().startsWith(pathPrefix)) {
+                return false;
+            }
+            if (null != accept) {
+                final String value = httpRequest.getAccept();
+                if (null == value) {
+                    return false;
+                }
+                for (final String mediaType : accept) {
+                    if (value.startsWith(mediaType)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+}
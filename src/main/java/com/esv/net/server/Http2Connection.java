@@ -0,0 +1,1181 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.esv.net.HttpRequest;
+import com.esv.net.http2.HpackDecoder;
+import com.esv.net.http2.HpackEncoder;
+import com.esv.net.http2.Http2;
+import com.esv.net.http2.Http2Exception;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * Cleartext HTTP/2 (h2c) connection, started by prior knowledge or by the
+ * HTTP/1.1 Upgrade: h2c mechanism. The calling thread reads the frames while
+ * each request stream runs the same {@link HandlerPipeline} as HTTP/1.1 on a
+ * dedicated pool: the stream is presented to the handlers as a HTTP/1.1
+ * request and the HTTP/1.1 response they write is translated into HEADERS
+ * and DATA frames, honouring the peer flow control windows.
+ * </p>
+ * <p>
+ * The reading thread keeps a read deadline armed while the connection waits
+ * for something: {@link Connection.Phase#IDLE} without streams,
+ * {@link Connection.Phase#HEADER} until a header block split into
+ * CONTINUATION frames ends, and {@link Connection.Phase#BODY} while streams
+ * wait for the rest of their request, renewed only as one of them is
+ * dispatched, so a client can not hold a stream open by going silent or by
+ * trickling DATA frames.
+ * </p>
+ * <p>
+ * The stream pool is shared by every connection: at most
+ * http2.maxDispatchedStreams streams of a connection run at once, the others
+ * waiting in order for one of them to end, and a stream waiting longer than
+ * the write timeout for the peer to open its flow control window is reset,
+ * so a single client can not park every stream thread.
+ * </p>
+ * <p>
+ * The request bodies are buffered whole, up to http2.maxRequestBody bytes
+ * per stream, and up to http2.maxConnectionBody bytes for all the streams
+ * of a connection: the connection flow control window is only reopened as
+ * the buffered bodies are released, when their stream ends, so the peer can
+ * not send more than that.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 17/10/2017
+ */
+final class Http2Connection {
+    
+    private static final Logger LOGGER = Logger.getLogger(Http2Connection.class);
+    
+    private static final byte[] SWITCHING_PROTOCOLS = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] EMPTY = new byte[0];
+    
+    private static final boolean enabled;
+    private static final int maxConcurrentStreams;
+    private static final int maxHeaderListSize;
+    private static final int maxRequestBody;
+    private static final long maxConnectionBody;
+    private static final int maxDispatchedStreams;
+    private static final ExecutorService streamPool;
+    
+    static {
+        try {
+            enabled = Boolean.parseBoolean(PropertiesUtils.getStringProperty("http2.enabled", "true"));
+            maxConcurrentStreams = PropertiesUtils.getIntProperty("http2.maxConcurrentStreams", 100);
+            maxHeaderListSize = PropertiesUtils.getIntProperty("http2.maxHeaderListSize", 16384);
+            maxRequestBody = PropertiesUtils.getIntProperty("http2.maxRequestBody", 1048576);
+            // a single body must fit, and the initial connection window can not be shrunk
+            maxConnectionBody = Math.max(Math.max(maxRequestBody, Http2.DEFAULT_WINDOW_SIZE),
+                    PropertiesUtils.getIntProperty("http2.maxConnectionBody", 4194304));
+            final int maxThreads = PropertiesUtils.getIntProperty("http2.max.threads", 100);
+            maxDispatchedStreams = Math.max(1, PropertiesUtils.getIntProperty("http2.maxDispatchedStreams", Math.max(1, maxThreads / 4)));
+            final AtomicInteger threads = new AtomicInteger();
+            streamPool = Executors.newFixedThreadPool(maxThreads, runnable -> {
+                final Thread thread = new Thread(runnable, "http2-stream-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            LOGGER.debug(() -> "HTTP/2 enabled: " + enabled + ", max concurrent streams: " + maxConcurrentStreams
+                    + ", max threads: " + maxThreads + ", max dispatched streams per connection: " + maxDispatchedStreams);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    private final Connection connection;
+    private final InputStream in;
+    private final OutputStream out;
+    private final HpackDecoder decoder = new HpackDecoder(Http2.DEFAULT_HEADER_TABLE_SIZE, maxHeaderListSize);
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final byte[] frameHeader = new byte[Http2.FRAME_HEADER_LENGTH];
+    // guarded by this
+    private int peerInitialWindowSize = Http2.DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = Http2.DEFAULT_MAX_FRAME_SIZE;
+    private long sendWindow = Http2.DEFAULT_WINDOW_SIZE;
+    // the bytes the peer may still send, and the bytes of the request bodies held by the streams
+    private long receiveWindow = Http2.DEFAULT_WINDOW_SIZE;
+    private long bufferedBytes;
+    private boolean closed;
+    private int runningStreams;
+    private final Queue<Stream> queuedStreams = new ArrayDeque<>();
+    // accessed by the reading thread only
+    private int lastStreamId;
+    private int continuationStreamId;
+    private int continuationFlags;
+    private ByteArrayOutputStream headerBlock;
+    private int pendingStreams;
+    private Connection.Phase readDeadline;
+    private boolean dispatchedSince;
+    
+    /**
+     * @param connection
+     */
+    private Http2Connection(final Connection connection) {
+        this.connection = connection;
+        this.in = connection.getInputStream();
+        this.out = new BufferedOutputStream(connection.getOutputStream(), Http2.FRAME_HEADER_LENGTH + Http2.DEFAULT_MAX_FRAME_SIZE);
+    }
+    
+    /**
+     * @return true unless http2.enabled=false
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * @param httpRequest
+     * @return true if the request line is the HTTP/2 connection preface
+     */
+    static boolean isPriorKnowledge(final HttpRequest httpRequest) {
+        return enabled && Http2.PREFACE_REQUEST_LINE.equals(httpRequest.getRequestLine());
+    }
+    
+    /**
+     * @param httpRequest
+     * @return true if the request asks to upgrade to h2c, requests with a body are not upgraded
+     */
+    static boolean isUpgrade(final HttpRequest httpRequest) {
+        final String connectionHeader = httpRequest.getHeader("Connection");
+        return enabled && "h2c".equalsIgnoreCase(httpRequest.getHeader("Upgrade"))
+                && null != httpRequest.getHeader("HTTP2-Settings") && null != connectionHeader
+                && connectionHeader.toLowerCase(Locale.ROOT).contains("upgrade") && httpRequest.getContentLength() == 0;
+    }
+    
+    /**
+     * <p>Serves the connection until it is closed by the peer, an error or a timeout</p>
+     * 
+     * @param connection
+     * @param httpRequest the prior knowledge preface or the request to upgrade
+     * @throws IOException
+     */
+    static void serve(final Connection connection, final HttpRequest httpRequest) throws IOException {
+        final Http2Connection http2 = new Http2Connection(connection);
+        final boolean upgrade = !isPriorKnowledge(httpRequest);
+        if (upgrade) {
+            connection.getOutputStream().write(SWITCHING_PROTOCOLS);
+            http2.applySettings(Base64.getUrlDecoder().decode(httpRequest.getHeader("HTTP2-Settings").trim()));
+        }
+        LOGGER.debug(() -> "Starting HTTP/2 connection from " + connection.getSocket().getInetAddress()
+                + (upgrade ? " by upgrade" : " by prior knowledge"));
+        http2.run(upgrade ? httpRequest : null);
+    }
+    
+    /**
+     * @param upgradeRequest the request sent with the upgrade, answered on stream 1
+     * @throws IOException
+     */
+    private void run(final HttpRequest upgradeRequest) throws IOException {
+        try {
+            this.writeSettings();
+            this.creditConnection();
+            this.readPreface(null != upgradeRequest);
+            if (null != upgradeRequest) {
+                lastStreamId = 1;
+                final Stream stream = new Stream(1, toHeaders(upgradeRequest));
+                streams.put(1, stream);
+                stream.dispatch();
+            }
+            while (this.readFrame()) {
+                // until the peer closes the connection or sends GOAWAY
+            }
+        } catch (Http2Exception e) {
+            LOGGER.debug(() -> "HTTP/2 connection error: " + e.getMessage());
+            this.goAway(e.getErrorCode());
+        } finally {
+            this.awaitStreams();
+            this.close();
+        }
+    }
+    
+    /**
+     * @param upgrade true if the HTTP/1.1 parser did not consume any preface byte
+     * @throws IOException
+     */
+    private void readPreface(final boolean upgrade) throws IOException {
+        // the HTTP/1.1 parser already consumed "PRI * HTTP/2.0\r\n\r\n"
+        final int offset = upgrade ? 0 : Http2.PREFACE_REQUEST_LINE.length() + 4;
+        final byte[] preface = new byte[Http2.PREFACE.length - offset];
+        this.readFully(preface, preface.length);
+        for (int i = 0; i < preface.length; i++) {
+            if (preface[i] != Http2.PREFACE[offset + i]) {
+                throw new Http2Exception(Http2.PROTOCOL_ERROR, "Invalid connection preface");
+            }
+        }
+    }
+    
+    /**
+     * @return false when the connection must stop reading
+     * @throws IOException
+     */
+    private boolean readFrame() throws IOException {
+        this.armReadDeadline();
+        try {
+            this.readFully(frameHeader, Http2.FRAME_HEADER_LENGTH);
+        } catch (EOFException e) {
+            return false;
+        }
+        final int length = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+        final int type = frameHeader[3] & 0xff;
+        final int flags = frameHeader[4] & 0xff;
+        final int streamId = ((frameHeader[5] & 0x7f) << 24) | ((frameHeader[6] & 0xff) << 16)
+                | ((frameHeader[7] & 0xff) << 8) | (frameHeader[8] & 0xff);
+        if (length > Http2.DEFAULT_MAX_FRAME_SIZE) {
+            throw new Http2Exception(Http2.FRAME_SIZE_ERROR, "Frame too large: " + length);
+        }
+        final byte[] payload = length == 0 ? EMPTY : new byte[length];
+        this.readFully(payload, length);
+        if (continuationStreamId != 0 && type != Http2.CONTINUATION) {
+            throw new Http2Exception(Http2.PROTOCOL_ERROR, "Expected CONTINUATION for stream " + continuationStreamId);
+        }
+        switch (type) {
+        case Http2.DATA:
+            this.onData(streamId, flags, payload);
+            break;
+        case Http2.HEADERS:
+            this.onHeaders(streamId, flags, payload);
+            break;
+        case Http2.CONTINUATION:
+            this.onContinuation(streamId, flags, payload);
+            break;
+        case Http2.PRIORITY:
+            if (streamId == 0 || length != 5) {
+                throw new Http2Exception(Http2.PROTOCOL_ERROR, "Invalid PRIORITY frame");
+            }
+            break;
+        case Http2.RST_STREAM:
+            this.onReset(streamId, payload);
+            break;
+        case Http2.SETTINGS:
+            this.onSettings(streamId, flags, payload);
+            break;
+        case Http2.PING:
+            if (streamId != 0 || length != 8) {
+                throw new Http2Exception(Http2.PROTOCOL_ERROR, "Invalid PING frame");
+            }
+            if ((flags & Http2.FLAG_ACK) == 0) {
+                this.writeFrame(Http2.PING, Http2.FLAG_ACK, 0, payload, 0, payload.length);
+            }
+            break;
+        case Http2.GOAWAY:
+            LOGGER.debug(() -> "GOAWAY received, error code: " + (length >= 8 ? readInt(payload, 4) : -1));
+            return false;
+        case Http2.WINDOW_UPDATE:
+            this.onWindowUpdate(streamId, payload);
+            break;
+        case Http2.PUSH_PROMISE:
+            throw new Http2Exception(Http2.PROTOCOL_ERROR, "PUSH_PROMISE sent by a client");
+        default:
+            // unknown frame types must be ignored
+            break;
+        }
+        return true;
+    }
+    
+    /**
+     * <p>
+     * Arms the read deadline for what the connection waits for before reading
+     * the next frame, the frames being read under it. The header and body
+     * deadlines are armed when the wait begins, not on every frame.
+     * </p>
+     */
+    private void armReadDeadline() {
+        final Connection.Phase wanted = continuationStreamId != 0 ? Connection.Phase.HEADER
+                : pendingStreams > 0 ? Connection.Phase.BODY : null;
+        if (null != wanted) {
+            if (wanted != readDeadline || dispatchedSince) {
+                connection.awaitStreams(wanted);
+            }
+        } else if (streams.isEmpty()) {
+            connection.awaitRequest();
+        } else {
+            // the dispatched streams are bounded by the write deadline, the last one arming the idle one
+            connection.headersRead(0L);
+        }
+        readDeadline = wanted;
+        dispatchedSince = false;
+    }
+    
+    /**
+     * @param stream no longer waiting for its request, dispatched or dropped
+     * @param dispatched true if dispatched, renewing the body deadline of the other pending streams
+     */
+    private void settled(final Stream stream, final boolean dispatched) {
+        if (stream.pending) {
+            stream.pending = false;
+            pendingStreams--;
+            dispatchedSince |= dispatched;
+        }
+    }
+    
+    /**
+     * @param streamId
+     * @param flags
+     * @param payload
+     * @throws IOException
+     */
+    private void onData(final int streamId, final int flags, final byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        final int padding = padding(flags, payload, 0);
+        // the whole frame counts for flow control, the connection window being credited back but for the buffered data
+        synchronized (this) {
+            receiveWindow -= payload.length;
+            if (receiveWindow < 0L) {
+                throw new Http2Exception(Http2.FLOW_CONTROL_ERROR, "Connection flow control window exceeded");
+            }
+        }
+        final Stream stream = streams.get(streamId);
+        if (null == stream || stream.dispatched) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(Http2.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            this.creditConnection();
+            this.writeReset(streamId, Http2.STREAM_CLOSED);
+            return;
+        }
+        final int offset = (flags & Http2.FLAG_PADDED) != 0 ? 1 : 0;
+        final int dataLength = payload.length - offset - padding;
+        if (stream.body.size() + dataLength > maxRequestBody) {
+            LOGGER.warn(() -> "HTTP/2 request body larger than " + maxRequestBody + " bytes on stream " + streamId);
+            streams.remove(streamId);
+            this.settled(stream, false);
+            this.release(stream);
+            this.writeReset(streamId, Http2.REFUSED_STREAM);
+            return;
+        }
+        stream.body.write(payload, offset, dataLength);
+        synchronized (this) {
+            stream.buffered += dataLength;
+            bufferedBytes += dataLength;
+        }
+        this.creditConnection();
+        if ((flags & Http2.FLAG_END_STREAM) != 0) {
+            stream.dispatch();
+        } else if (payload.length > 0) {
+            this.writeWindowUpdate(streamId, payload.length);
+        }
+    }
+    
+    /**
+     * <p>
+     * Reopens the connection flow control window up to
+     * http2.maxConnectionBody bytes, less the bodies buffered
+     * </p>
+     *
+     * @throws IOException
+     */
+    private void creditConnection() throws IOException {
+        final long increment;
+        synchronized (this) {
+            increment = closed ? 0L : maxConnectionBody - bufferedBytes - receiveWindow;
+            if (increment <= 0L) {
+                return;
+            }
+            receiveWindow += increment;
+        }
+        this.writeWindowUpdate(0, (int) increment);
+    }
+
+    /**
+     * @param stream ended, its buffered body no longer counted
+     * @throws IOException
+     */
+    private void release(final Stream stream) throws IOException {
+        synchronized (this) {
+            if (stream.buffered == 0) {
+                return;
+            }
+            bufferedBytes -= stream.buffered;
+            stream.buffered = 0;
+        }
+        this.creditConnection();
+    }
+
+    /**
+     * @param streamId
+     * @param flags
+     * @param payload
+     * @throws IOException
+     */
+    private void onHeaders(final int streamId, final int flags, final byte[] payload) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new Http2Exception(Http2.PROTOCOL_ERROR, "Invalid HEADERS stream " + streamId);
+        }
+        final int padding = padding(flags, payload, (flags & Http2.FLAG_PRIORITY) != 0 ? 5 : 0);
+        int offset = (flags & Http2.FLAG_PADDED) != 0 ? 1 : 0;
+        if ((flags & Http2.FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        headerBlock = new ByteArrayOutputStream(payload.length);
+        headerBlock.write(payload, offset, payload.length - offset - padding);
+        if ((flags & Http2.FLAG_END_HEADERS) == 0) {
+            continuationStreamId = streamId;
+            continuationFlags = flags;
+            return;
+        }
+        this.onHeaderBlock(streamId, flags);
+    }
+    
+    /**
+     * @param streamId
+     * @param flags
+     * @param payload
+     * @throws IOException
+     */
+    private void onContinuation(final int streamId, final int flags, final byte[] payload) throws IOException {
+        if (continuationStreamId == 0 || streamId != continuationStreamId) {
+            throw new Http2Exception(Http2.PROTOCOL_ERROR, "Unexpected CONTINUATION on stream " + streamId);
+        }
+        if (headerBlock.size() + payload.length > maxHeaderListSize) {
+            throw new Http2Exception(Http2.ENHANCE_YOUR_CALM, "Header block too large");
+        }
+        headerBlock.write(payload, 0, payload.length);
+        if ((flags & Http2.FLAG_END_HEADERS) != 0) {
+            continuationStreamId = 0;
+            this.onHeaderBlock(streamId, continuationFlags);
+        }
+    }
+    
+    /**
+     * @param streamId
+     * @param flags the flags of the HEADERS frame
+     * @throws IOException
+     */
+    private void onHeaderBlock(final int streamId, final int flags) throws IOException {
+        final byte[] block = headerBlock.toByteArray();
+        headerBlock = null;
+        // always decode, the dynamic table must stay in sync even for refused streams
+        final List<String[]> headers = decoder.decode(block, 0, block.length);
+        final Stream existing = streams.get(streamId);
+        if (streamId <= lastStreamId) {
+            // trailers, ignored but they may end the stream
+            if (null == existing || existing.dispatched || (flags & Http2.FLAG_END_STREAM) == 0) {
+                throw new Http2Exception(Http2.PROTOCOL_ERROR, "HEADERS on closed stream " + streamId);
+            }
+            existing.dispatch();
+            return;
+        }
+        lastStreamId = streamId;
+        if (streams.size() >= maxConcurrentStreams) {
+            this.writeReset(streamId, Http2.REFUSED_STREAM);
+            return;
+        }
+        final Stream stream = new Stream(streamId, headers);
+        streams.put(streamId, stream);
+        if ((flags & Http2.FLAG_END_STREAM) != 0) {
+            stream.dispatch();
+        } else {
+            stream.pending = true;
+            pendingStreams++;
+        }
+    }
+    
+    /**
+     * @param streamId
+     * @param payload
+     * @throws IOException
+     */
+    private void onReset(final int streamId, final byte[] payload) throws IOException {
+        if (streamId == 0 || payload.length != 4) {
+            throw new Http2Exception(Http2.PROTOCOL_ERROR, "Invalid RST_STREAM frame");
+        }
+        final Stream stream = streams.remove(streamId);
+        if (null != stream) {
+            this.settled(stream, false);
+            synchronized (this) {
+                stream.reset = true;
+                this.notifyAll();
+            }
+            this.release(stream);
+        }
+    }
+    
+    /**
+     * @param streamId
+     * @param flags
+     * @param payload
+     * @throws IOException
+     */
+    private void onSettings(final int streamId, final int flags, final byte[] payload) throws IOException {
+        if (streamId != 0 || payload.length % 6 != 0) {
+            throw new Http2Exception(Http2.PROTOCOL_ERROR, "Invalid SETTINGS frame");
+        }
+        if ((flags & Http2.FLAG_ACK) != 0) {
+            return;
+        }
+        this.applySettings(payload);
+        this.writeFrame(Http2.SETTINGS, Http2.FLAG_ACK, 0, EMPTY, 0, 0);
+    }
+    
+    /**
+     * @param payload the settings identifier/value pairs
+     * @throws Http2Exception
+     */
+    private synchronized void applySettings(final byte[] payload) throws Http2Exception {
+        for (int i = 0; i + 6 <= payload.length; i += 6) {
+            final int identifier = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            final int value = readInt(payload, i + 2);
+            switch (identifier) {
+            case Http2.SETTINGS_INITIAL_WINDOW_SIZE:
+                if (value < 0) {
+                    throw new Http2Exception(Http2.FLOW_CONTROL_ERROR, "Invalid initial window size");
+                }
+                final int delta = value - peerInitialWindowSize;
+                peerInitialWindowSize = value;
+                for (final Stream stream : streams.values()) {
+                    stream.sendWindow += delta;
+                }
+                break;
+            case Http2.SETTINGS_MAX_FRAME_SIZE:
+                if (value < Http2.DEFAULT_MAX_FRAME_SIZE || value > Http2.MAX_FRAME_SIZE_UPPER_BOUND) {
+                    throw new Http2Exception(Http2.PROTOCOL_ERROR, "Invalid max frame size: " + value);
+                }
+                peerMaxFrameSize = value;
+                break;
+            default:
+                // the encoder never uses the dynamic table nor pushes, other settings do not apply
+                break;
+            }
+        }
+        this.notifyAll();
+    }
+    
+    /**
+     * @param streamId
+     * @param payload
+     * @throws IOException
+     */
+    private void onWindowUpdate(final int streamId, final byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new Http2Exception(Http2.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+        }
+        final int increment = readInt(payload, 0) & 0x7fffffff;
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw new Http2Exception(Http2.PROTOCOL_ERROR, "Zero window increment");
+            }
+            this.writeReset(streamId, Http2.PROTOCOL_ERROR);
+            return;
+        }
+        synchronized (this) {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > Http2.MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2.FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+            } else {
+                final Stream stream = streams.get(streamId);
+                if (null == stream) {
+                    return;
+                }
+                stream.sendWindow += increment;
+                if (stream.sendWindow > Http2.MAX_WINDOW_SIZE) {
+                    stream.reset = true;
+                    streams.remove(streamId);
+                    this.settled(stream, false);
+                    // credited back along with the next DATA frame
+                    bufferedBytes -= stream.buffered;
+                    stream.buffered = 0;
+                    this.writeReset(streamId, Http2.FLOW_CONTROL_ERROR);
+                }
+            }
+            this.notifyAll();
+        }
+    }
+    
+    /**
+     * @param flags
+     * @param payload
+     * @param fixed the length of the fields following the pad length
+     * @return the padding length
+     * @throws Http2Exception
+     */
+    private static int padding(final int flags, final byte[] payload, final int fixed) throws Http2Exception {
+        if ((flags & Http2.FLAG_PADDED) == 0) {
+            if (payload.length < fixed) {
+                throw new Http2Exception(Http2.FRAME_SIZE_ERROR, "Frame too short");
+            }
+            return 0;
+        }
+        if (payload.length < 1 + fixed) {
+            throw new Http2Exception(Http2.FRAME_SIZE_ERROR, "Frame too short");
+        }
+        final int padding = payload[0] & 0xff;
+        if (padding > payload.length - 1 - fixed) {
+            throw new Http2Exception(Http2.PROTOCOL_ERROR, "Padding exceeds the payload");
+        }
+        return padding;
+    }
+    
+    /**
+     * @param stream
+     * @param maxLength
+     * @return the number of bytes the stream is allowed to send, waiting for window updates
+     * @throws IOException if the stream was reset, the connection closed or
+     *         the write timeout expired, the stream being reset then
+     */
+    private int acquireWindow(final Stream stream, final int maxLength) throws IOException {
+        final int length = this.awaitWindow(stream, maxLength);
+        if (length == 0) {
+            LOGGER.debug(() -> "HTTP/2 stream " + stream.id + " reset: no flow control window within "
+                    + Connection.Phase.WRITE.timeoutMillis() + "ms");
+            this.writeReset(stream.id, Http2.CANCEL);
+            throw new IOException("Stream " + stream.id + " flow control window timeout");
+        }
+        return length;
+    }
+    
+    /**
+     * @param stream
+     * @param maxLength
+     * @return the number of bytes the stream is allowed to send, 0 if the write timeout expired first
+     * @throws IOException if the stream was reset or the connection closed
+     */
+    private synchronized int awaitWindow(final Stream stream, final int maxLength) throws IOException {
+        final long timeoutMillis = Connection.Phase.WRITE.timeoutMillis();
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!closed && !stream.reset && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (timeoutMillis > 0 && remaining <= 0) {
+                stream.reset = true;
+                streams.remove(stream.id);
+                return 0;
+            }
+            try {
+                this.wait(timeoutMillis > 0 ? remaining : 0L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the flow control window", e);
+            }
+        }
+        if (closed || stream.reset) {
+            throw new IOException("Stream " + stream.id + " reset");
+        }
+        final int length = (int) Math.min(Math.min(sendWindow, stream.sendWindow), Math.min(maxLength, peerMaxFrameSize));
+        sendWindow -= length;
+        stream.sendWindow -= length;
+        return length;
+    }
+    
+    /**
+     * @throws IOException
+     */
+    private void writeSettings() throws IOException {
+        final byte[] settings = new byte[12];
+        putSetting(settings, 0, Http2.SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+        putSetting(settings, 6, Http2.SETTINGS_MAX_HEADER_LIST_SIZE, maxHeaderListSize);
+        this.writeFrame(Http2.SETTINGS, 0, 0, settings, 0, settings.length);
+    }
+    
+    /**
+     * @param streamId
+     * @param increment
+     * @throws IOException
+     */
+    private void writeWindowUpdate(final int streamId, final int increment) throws IOException {
+        final byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        this.writeFrame(Http2.WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+    
+    /**
+     * @param streamId
+     * @param errorCode
+     * @throws IOException
+     */
+    private void writeReset(final int streamId, final int errorCode) throws IOException {
+        final byte[] payload = new byte[4];
+        putInt(payload, 0, errorCode);
+        this.writeFrame(Http2.RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+    
+    /**
+     * @param errorCode
+     */
+    private void goAway(final int errorCode) {
+        final byte[] payload = new byte[8];
+        putInt(payload, 0, lastStreamId);
+        putInt(payload, 4, errorCode);
+        try {
+            this.writeFrame(Http2.GOAWAY, 0, 0, payload, 0, payload.length);
+        } catch (IOException e) {
+            LOGGER.trace("Could not send GOAWAY", e);
+        }
+    }
+    
+    /**
+     * @param type
+     * @param flags
+     * @param streamId
+     * @param payload
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    private void writeFrame(final int type, final int flags, final int streamId, final byte[] payload, final int offset,
+            final int length) throws IOException {
+        synchronized (writeLock) {
+            out.write(length >>> 16);
+            out.write(length >>> 8);
+            out.write(length);
+            out.write(type);
+            out.write(flags);
+            out.write(streamId >>> 24);
+            out.write(streamId >>> 16);
+            out.write(streamId >>> 8);
+            out.write(streamId);
+            out.write(payload, offset, length);
+            out.flush();
+        }
+    }
+    
+    /**
+     * <p>Writes a header block, split into CONTINUATION frames when larger than the peer max frame size</p>
+     * 
+     * @param streamId
+     * @param block
+     * @param endStream
+     * @throws IOException
+     */
+    private void writeHeaders(final int streamId, final byte[] block, final boolean endStream) throws IOException {
+        final int maxFrameSize;
+        synchronized (this) {
+            maxFrameSize = peerMaxFrameSize;
+        }
+        final int endStreamFlag = endStream ? Http2.FLAG_END_STREAM : 0;
+        // the frames of a header block must not be interleaved with other frames
+        synchronized (writeLock) {
+            if (block.length <= maxFrameSize) {
+                this.writeFrame(Http2.HEADERS, endStreamFlag | Http2.FLAG_END_HEADERS, streamId, block, 0, block.length);
+                return;
+            }
+            this.writeFrame(Http2.HEADERS, endStreamFlag, streamId, block, 0, maxFrameSize);
+            int offset = maxFrameSize;
+            while (offset < block.length) {
+                final int length = Math.min(maxFrameSize, block.length - offset);
+                final int flags = offset + length == block.length ? Http2.FLAG_END_HEADERS : 0;
+                this.writeFrame(Http2.CONTINUATION, flags, streamId, block, offset, length);
+                offset += length;
+            }
+        }
+    }
+    
+    /**
+     * <p>Lets the running streams finish their responses before closing</p>
+     */
+    private synchronized void awaitStreams() {
+        final long deadline = System.currentTimeMillis() + Connection.Phase.WRITE.timeoutMillis();
+        long remaining;
+        while (!streams.isEmpty() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                this.wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Wakes up the streams waiting for the flow control window
+     */
+    private synchronized void close() {
+        closed = true;
+        this.notifyAll();
+    }
+    
+    /**
+     * @param target
+     * @param length
+     * @throws IOException
+     */
+    private void readFully(final byte[] target, final int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int count = in.read(target, offset, length - offset);
+            if (count == -1) {
+                throw new EOFException("Connection closed by the peer");
+            }
+            offset += count;
+        }
+    }
+    
+    /**
+     * @param httpRequest the request sent with the upgrade
+     * @return the request as HTTP/2 header fields
+     */
+    private static List<String[]> toHeaders(final HttpRequest httpRequest) {
+        final List<String[]> headers = new ArrayList<>();
+        headers.add(new String[] { ":method", httpRequest.getRequestMethod() });
+        headers.add(new String[] { ":path", httpRequest.getRequestURI() });
+        httpRequest.getHeaders().forEach((name, value) -> {
+            final String lowerCase = name.toLowerCase(Locale.ROOT);
+            if (!"upgrade".equals(lowerCase) && !"http2-settings".equals(lowerCase) && !"connection".equals(lowerCase)) {
+                headers.add(new String[] { lowerCase, value });
+            }
+        });
+        return headers;
+    }
+    
+    private static int readInt(final byte[] source, final int offset) {
+        return ((source[offset] & 0xff) << 24) | ((source[offset + 1] & 0xff) << 16) | ((source[offset + 2] & 0xff) << 8)
+                | (source[offset + 3] & 0xff);
+    }
+    
+    private static void putInt(final byte[] target, final int offset, final int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+    
+    private static void putSetting(final byte[] target, final int offset, final int identifier, final int value) {
+        target[offset] = (byte) (identifier >>> 8);
+        target[offset + 1] = (byte) identifier;
+        putInt(target, offset + 2, value);
+    }
+    
+    /**
+     * <p>A request stream, its body is buffered until END_STREAM</p>
+     */
+    private final class Stream {
+        
+        private final int id;
+        private final List<String[]> headers;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        // guarded by the connection
+        private long sendWindow;
+        private boolean reset;
+        private int buffered;
+        // accessed by the reading thread only
+        private boolean dispatched;
+        private boolean pending;
+        
+        private Stream(final int id, final List<String[]> headers) {
+            this.id = id;
+            this.headers = headers;
+            synchronized (Http2Connection.this) {
+                this.sendWindow = peerInitialWindowSize;
+            }
+        }
+        
+        /**
+         * Runs the handlers for the complete request on the stream pool, or
+         * queues it while the connection runs as many streams as allowed
+         */
+        private void dispatch() {
+            dispatched = true;
+            settled(this, true);
+            synchronized (Http2Connection.this) {
+                if (runningStreams >= maxDispatchedStreams) {
+                    queuedStreams.add(this);
+                    return;
+                }
+                runningStreams++;
+            }
+            streamPool.execute(this::process);
+        }
+        
+        private void process() {
+            final ResponseStream response = new ResponseStream(this);
+            try {
+                synchronized (Http2Connection.this) {
+                    if (reset || closed) {
+                        // reset by the peer or closed while queued
+                        return;
+                    }
+                }
+                final InputStream request = this.toHttp1();
+                if (null == request) {
+                    writeReset(id, Http2.PROTOCOL_ERROR);
+                    return;
+                }
+                final HttpRequest httpRequest = HttpRequest.newInstance(connection.getSocket(), request, response);
+                try {
+                    SocketHandler.process(httpRequest, connection);
+                } finally {
+                    httpRequest.recycle();
+                }
+                response.finish();
+            } catch (Throwable t) {
+                LOGGER.debug(() -> "HTTP/2 stream " + id + " failed: " + t.getMessage());
+                LOGGER.trace("HTTP/2 stream failure", t);
+                try {
+                    if (!reset) {
+                        writeReset(id, Http2.INTERNAL_ERROR);
+                    }
+                } catch (IOException e) {
+                    LOGGER.trace("Could not reset the stream", e);
+                }
+            } finally {
+                streams.remove(id);
+                try {
+                    release(this);
+                } catch (IOException e) {
+                    LOGGER.trace("Could not reopen the connection window", e);
+                }
+                if (streams.isEmpty()) {
+                    // the reading thread may be blocked with no read deadline armed
+                    connection.awaitRequestIfUnarmed();
+                }
+                final Stream next;
+                synchronized (Http2Connection.this) {
+                    next = queuedStreams.poll();
+                    if (null == next) {
+                        runningStreams--;
+                    }
+                    Http2Connection.this.notifyAll();
+                }
+                if (null != next) {
+                    // the slot of this stream goes to the next one queued
+                    streamPool.execute(next::process);
+                }
+            }
+        }
+        
+        /**
+         * @return the request as HTTP/1.1 bytes, or null if it is malformed
+         */
+        private InputStream toHttp1() {
+            String method = null;
+            String path = null;
+            String authority = null;
+            final StringBuilder fields = new StringBuilder(256);
+            final StringBuilder cookies = new StringBuilder();
+            boolean host = false;
+            for (final String[] header : headers) {
+                final String name = header[0];
+                final String value = header[1];
+                if (!isSafe(name) || !isSafe(value)) {
+                    return null;
+                }
+                switch (name) {
+                case ":method":
+                    method = value;
+                    break;
+                case ":path":
+                    path = value;
+                    break;
+                case ":authority":
+                    authority = value;
+                    break;
+                case ":scheme":
+                    break;
+                case "content-length":
+                case "connection":
+                case "transfer-encoding":
+                    // the framing is recomputed from the buffered body
+                    break;
+                case "cookie":
+                    // cookie crumbs are joined back into a single header
+                    cookies.append(cookies.length() == 0 ? "" : "; ").append(value);
+                    break;
+                default:
+                    if (name.startsWith(":") || name.indexOf(':') != -1) {
+                        return null;
+                    }
+                    host |= "host".equals(name);
+                    fields.append(name).append(": ").append(value).append("\r\n");
+                    break;
+                }
+            }
+            if (null == method || null == path || path.isEmpty() || path.indexOf(' ') != -1 || method.indexOf(' ') != -1) {
+                return null;
+            }
+            final StringBuilder head = new StringBuilder(fields.length() + 64);
+            head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            if (!host && null != authority) {
+                head.append("host: ").append(authority).append("\r\n");
+            }
+            head.append(fields);
+            if (cookies.length() > 0) {
+                head.append("cookie: ").append(cookies).append("\r\n");
+            }
+            if (body.size() > 0) {
+                head.append("content-length: ").append(body.size()).append("\r\n");
+            }
+            head.append("\r\n");
+            final InputStream headStream = new ByteArrayInputStream(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            return body.size() == 0 ? headStream : new SequenceInputStream(headStream, new ByteArrayInputStream(body.toByteArray()));
+        }
+        
+        /**
+         * @param value
+         * @return false if the value would break the HTTP/1.1 framing
+         */
+        private boolean isSafe(final String value) {
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '\r' || c == '\n' || c == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * <p>
+     * Receives the HTTP/1.1 response written by the handlers: the status line
+     * and headers become a HEADERS frame, the body is sent as DATA frames
+     * </p>
+     */
+    private final class ResponseStream extends OutputStream {
+        
+        private final Stream stream;
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+        private boolean headersSent;
+        private boolean ended;
+        private long remaining = -1L;
+        
+        private ResponseStream(final Stream stream) {
+            this.stream = stream;
+        }
+        
+        @Override
+        public void write(final int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (ended) {
+                return;
+            }
+            if (headersSent) {
+                this.writeData(b, off, len, false);
+                return;
+            }
+            for (int i = off; i < off + len; i++) {
+                head.write(b[i]);
+                if (b[i] == '\n' && this.isEndOfHead()) {
+                    this.sendHeaders();
+                    if (i + 1 < off + len) {
+                        this.write(b, i + 1, off + len - i - 1);
+                    }
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * @return true if the head buffer ends with an empty line
+         */
+        private boolean isEndOfHead() {
+            final byte[] bytes = head.toByteArray();
+            final int length = bytes.length;
+            return length >= 2 && bytes[length - 2] == '\n' || length >= 3 && bytes[length - 3] == '\n' && bytes[length - 2] == '\r';
+        }
+        
+        /**
+         * @throws IOException
+         */
+        private void sendHeaders() throws IOException {
+            final String[] lines = new String(head.toByteArray(), StandardCharsets.ISO_8859_1).split("\r?\n");
+            final String[] statusLine = lines[0].split(" ", 3);
+            final int status = Integer.parseInt(statusLine[1]);
+            final List<String[]> fields = new ArrayList<>(lines.length);
+            for (int i = 1; i < lines.length; i++) {
+                final int idx = lines[i].indexOf(':');
+                if (idx <= 0) {
+                    continue;
+                }
+                final String name = lines[i].substring(0, idx).trim().toLowerCase(Locale.ROOT);
+                final String value = lines[i].substring(idx + 1).trim();
+                switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    break;
+                case "content-length":
+                    remaining = Long.parseLong(value);
+                    fields.add(new String[] { name, value });
+                    break;
+                default:
+                    fields.add(new String[] { name, value });
+                    break;
+                }
+            }
+            headersSent = true;
+            ended = remaining == 0L || status == 204 || status == 304;
+            writeHeaders(stream.id, HpackEncoder.encode(status, fields), ended);
+        }
+        
+        /**
+         * @param b
+         * @param off
+         * @param len
+         * @param endStream
+         * @throws IOException
+         */
+        private void writeData(final byte[] b, final int off, final int len, final boolean endStream) throws IOException {
+            int length = len;
+            boolean end = endStream;
+            if (remaining >= 0L) {
+                // bytes beyond the declared Content-Length are dropped
+                length = (int) Math.min(length, remaining);
+                remaining -= length;
+                end |= remaining == 0L;
+            }
+            int offset = off;
+            while (length > 0) {
+                final int count = acquireWindow(stream, length);
+                length -= count;
+                writeFrame(Http2.DATA, end && length == 0 ? Http2.FLAG_END_STREAM : 0, stream.id, b, offset, count);
+                offset += count;
+            }
+            if (end) {
+                if (offset == off) {
+                    writeFrame(Http2.DATA, Http2.FLAG_END_STREAM, stream.id, EMPTY, 0, 0);
+                }
+                ended = true;
+            }
+        }
+        
+        /**
+         * Ends the stream once the handlers returned
+         * 
+         * @throws IOException
+         */
+        private void finish() throws IOException {
+            if (!headersSent) {
+                throw new IOException("Incomplete response on stream " + stream.id);
+            }
+            if (!ended) {
+                this.writeData(EMPTY, 0, 0, true);
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import com.esv.utile.utils.ObjectUtils;
+
+/**
+ * <p>
+ * Exchanges raw HTTP/1.1 bytes with the request handlers without a network:
+ * the request bytes are read from memory by a socket that never connects, and
+ * go through the same {@link Connection}, parsing, handler pipeline and
+ * access log as an accepted connection, on the calling thread, the response
+ * bytes being written to memory. The server does not have to be started, so
+ * the handlers can be benchmarked and fuzzed without the kernel network
+ * stack, and concurrency tests decide which threads exchange what.
+ * </p>
+ * <p>
+ * Like a kept alive socket, an exchange answers its requests in turn, several
+ * pipelined HTTP/1.1 requests being answered one after the other, and is
+ * closed once the request bytes are consumed. There is no socket channel
+ * either, so the WebSocket and event stream upgrades are answered with 400.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+public final class InMemoryTransport {
+
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private InMemoryTransport() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+
+    /**
+     * @param request the raw request, request line, headers and body
+     * @param response receives the raw response, status line, headers and body
+     */
+    public static void exchange(final byte[] request, final OutputStream response) {
+        ObjectUtils.requireNotNull(request, "request parameter is null");
+        ObjectUtils.requireNotNull(response, "response parameter is null");
+        SocketHandler.handle(new InMemorySocket(new ByteArrayInputStream(request), response));
+    }
+
+    /**
+     * @param request the raw request
+     * @return the raw response
+     */
+    public static byte[] exchange(final byte[] request) {
+        final ByteArrayOutputStream response = new ByteArrayOutputStream(256);
+        InMemoryTransport.exchange(request, response);
+        return response.toByteArray();
+    }
+
+    /**
+     * @param request the raw request, such as "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+     * @return the raw response, both as ISO-8859-1 like the HTTP headers
+     */
+    public static String exchange(final String request) {
+        ObjectUtils.requireNotNull(request, "request parameter is null");
+        return new String(InMemoryTransport.exchange(request.getBytes(StandardCharsets.ISO_8859_1)), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * <p>
+     * An unconnected socket over in-memory streams, presented as a loopback
+     * connection. No system socket is created, as no method reaching the
+     * socket implementation is called by the server.
+     * </p>
+     */
+    private static final class InMemorySocket extends Socket {
+
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+        private volatile boolean closed;
+
+        private InMemorySocket(final InputStream inputStream, final OutputStream outputStream) {
+            this.inputStream = inputStream;
+            this.outputStream = outputStream;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.net.Socket#getInputStream()
+         */
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.net.Socket#getOutputStream()
+         */
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.net.Socket#getInetAddress()
+         */
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.net.Socket#getLocalAddress()
+         */
+        @Override
+        public InetAddress getLocalAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.net.Socket#getPort()
+         */
+        @Override
+        public int getPort() {
+            return 0;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.net.Socket#getLocalPort()
+         */
+        @Override
+        public int getLocalPort() {
+            return 0;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.net.Socket#getKeepAlive()
+         */
+        @Override
+        public boolean getKeepAlive() {
+            return false;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.net.Socket#isConnected()
+         */
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.net.Socket#isBound()
+         */
+        @Override
+        public boolean isBound() {
+            return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.net.Socket#isClosed()
+         */
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.net.Socket#close()
+         */
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.net.Socket#toString()
+         */
+        @Override
+        public String toString() {
+            return "InMemorySocket[closed=" + closed + "]";
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,235 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.esv.net.utils.ByteRangeUtils;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * Cache of read-only {@link MappedByteBuffer}s over the web resources found
+ * in the file system. Mapped resources are served, fully or by ranges, from
+ * the page cache without being read into the heap. Resources packaged into
+ * a jar are not cached.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 16/10/2017
+ */
+final class MappedResourceCache {
+    
+    private static final Logger LOGGER = Logger.getLogger(MappedResourceCache.class);
+    
+    private static final Map<String, MappedResource> mappedResources = new ConcurrentHashMap<>();
+    private static final AtomicLong mappedBytes = new AtomicLong();
+    private static final long maxMappedBytes;
+    
+    static {
+        try {
+            maxMappedBytes = Long.parseLong(PropertiesUtils.getStringProperty("resources.mmap.maxBytes", "1073741824"));
+            LOGGER.debug(() -> "Max mapped bytes: " + maxMappedBytes);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private MappedResourceCache() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+    
+    /**
+     * @param resourceName the class path resource name
+     * @return the mapped resource, or null if it is not a file smaller than 2GB
+     * @throws IOException
+     */
+    static MappedResource get(final String resourceName) throws IOException {
+        if (null == resourceName) {
+            return null;
+        }
+        final MappedResource cached = mappedResources.get(resourceName);
+        if (null != cached) {
+            final BasicFileAttributes attributes = attributes(cached.path);
+            if (null != attributes && attributes.lastModifiedTime().toMillis() == cached.lastModified
+                    && attributes.size() == cached.length) {
+                return cached;
+            }
+            LOGGER.debug(() -> "Remapping modified resource: " + resourceName);
+            evict(resourceName, cached);
+        }
+        final Path path = toPath(resourceName);
+        if (null == path) {
+            return null;
+        }
+        final MappedResource mapped = map(path);
+        if (null == mapped) {
+            return null;
+        }
+        final MappedResource previous = mappedResources.putIfAbsent(resourceName, mapped);
+        if (null != previous) {
+            return previous;
+        }
+        if (mappedBytes.addAndGet(mapped.length) > maxMappedBytes) {
+            trim(resourceName);
+        }
+        return mapped;
+    }
+    
+    /**
+     * @param path
+     * @return the file attributes, or null if the file was removed
+     */
+    private static BasicFileAttributes attributes(final Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * @param resourceName
+     * @return the file of the given class path resource, or null if it is not in the file system
+     */
+    private static Path toPath(final String resourceName) {
+        final URL url = MappedResourceCache.class.getClassLoader().getResource(resourceName);
+        if (null == url || !"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            final Path path = Paths.get(url.toURI());
+            return Files.isRegularFile(path) ? path : null;
+        } catch (Exception e) {
+            LOGGER.trace("Could not resolve the resource path: " + url, e);
+            return null;
+        }
+    }
+    
+    /**
+     * @param path
+     * @return the mapped file, or null if it is too large to be mapped at once
+     * @throws IOException
+     */
+    private static MappedResource map(final Path path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                return null;
+            }
+            final long lastModified = Files.getLastModifiedTime(path).toMillis();
+            // the mapping remains valid after the channel is closed
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return new MappedResource(path, buffer, length, lastModified);
+        }
+    }
+    
+    /**
+     * <p>Unmapping is left to the garbage collector once no response references the buffer</p>
+     * 
+     * @param resourceName
+     * @param mapped
+     */
+    private static void evict(final String resourceName, final MappedResource mapped) {
+        if (mappedResources.remove(resourceName, mapped)) {
+            mappedBytes.addAndGet(-mapped.length);
+        }
+    }
+    
+    /**
+     * <p>Drops the mapping of a changed resource, remapped on its next request</p>
+     * 
+     * @param resourceName
+     */
+    static void invalidate(final String resourceName) {
+        final MappedResource cached = mappedResources.get(resourceName);
+        if (null != cached) {
+            LOGGER.debug(() -> "Unmapping changed resource: " + resourceName);
+            evict(resourceName, cached);
+        }
+    }
+    
+    /**
+     * @param keep the resource name just mapped
+     */
+    private static void trim(final String keep) {
+        final Iterator<Map.Entry<String, MappedResource>> iterator = mappedResources.entrySet().iterator();
+        while (mappedBytes.get() > maxMappedBytes && iterator.hasNext()) {
+            final Map.Entry<String, MappedResource> entry = iterator.next();
+            if (!entry.getKey().equals(keep)) {
+                evict(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    
+    /**
+     * <p>An immutable view of a mapped file</p>
+     */
+    static final class MappedResource {
+        
+        private final Path path;
+        private final ByteBuffer buffer;
+        private final long length;
+        private final long lastModified;
+        private final String etag;
+        
+        private MappedResource(final Path path, final ByteBuffer buffer, final long length, final long lastModified) {
+            this.path = path;
+            this.buffer = buffer;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.etag = ByteRangeUtils.etag(length, lastModified);
+        }
+        
+        /**
+         * @param first the first byte position
+         * @param last the last byte position, inclusive
+         * @return an independent view over the given range
+         */
+        ByteBuffer slice(final long first, final long last) {
+            final ByteBuffer slice = buffer.duplicate();
+            slice.limit((int) last + 1).position((int) first);
+            return slice;
+        }
+
+        /**
+         * @return the length
+         */
+        long length() {
+            return length;
+        }
+
+        /**
+         * @return the lastModified
+         */
+        long lastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the etag
+         */
+        String etag() {
+            return etag;
+        }
+    }
+}
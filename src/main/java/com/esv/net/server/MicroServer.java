@@ -3,10 +3,13 @@
  */
 package com.esv.net.server;
 
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.Executor;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.esv.utile.logging.Logger;
@@ -23,7 +26,7 @@ public class MicroServer {
     private static final Logger LOGGER = Logger.getLogger(MicroServer.class);
 
     private static final int serverPort;
-    private static final Executor threadPool;
+    private static final ThreadPoolExecutor threadPool;
     private static final long startTime;
     private static AtomicBoolean started = new AtomicBoolean(false);
 
@@ -31,15 +34,28 @@ public class MicroServer {
         startTime = System.currentTimeMillis();
         try {
             serverPort = PropertiesUtils.getIntProperty("microserver.port", 80);
-            final Integer maxThreads = PropertiesUtils.getIntProperty("microserver.max.threads", 100);
-            threadPool = Executors.newFixedThreadPool(maxThreads);
-            LOGGER.info(() -> "Listening at port: " + serverPort + ", max threads: " + maxThreads);
+            final int maxThreads = ServerConfig.current().getMaxThreads();
+            threadPool = new ThreadPoolExecutor(maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                    Executors.defaultThreadFactory());
+            ServerConfig.onChange((previous, next) -> MicroServer.resize(next.getMaxThreads()));
+            LOGGER.info(() -> "Listening at port: " + serverPort + (TlsContext.isEnabled() ? " (TLS)" : "") + ", max threads: " + maxThreads);
         } catch (Exception e) {
             LOGGER.fatal("Unexpected error on initialization", e);
             throw new ExceptionInInitializerError(e);
         }
     }
 
+    /**
+     * <p>
+     * Entry point of the java -jar, AppCDS and native image launches
+     * </p>
+     *
+     * @param args
+     */
+    public static void main(String... args) {
+        MicroServer.run(args);
+    }
+
     /**
      * <p>
      * Starts the micro server, creating a thread pool to handle
@@ -50,18 +66,60 @@ public class MicroServer {
      * @throws RuntimeException
      */
     public synchronized static void run(String... args) {
-        try (final ServerSocket serverSocket = new ServerSocket(MicroServer.serverPort)) {
-            MicroServer.started.set(serverSocket.isBound());
-        	LOGGER.info(() -> "Started in " + (System.currentTimeMillis() - startTime) + " milliseconds").debug(() -> "Thread pool: " + threadPool);
+        SocketHandler.initialize();
+        try (final ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(MicroServer.serverPort));
+            MicroServer.started.set(serverChannel.socket().isBound());
+            final long startupMillis = System.currentTimeMillis() - startTime;
+            ServerMetrics.counter("server.startup.millis").add(startupMillis);
+            ServerMetrics.register();
+        	LOGGER.info(() -> "Started in " + startupMillis + " milliseconds").debug(() -> "Thread pool: " + threadPool);
+            if (PeerCache.isEnabled()) {
+                PeerCache.start();
+            }
+            if (TrainingRun.isEnabled()) {
+                TrainingRun.start(serverChannel.socket().getLocalPort(), startupMillis);
+            }
             while (MicroServer.isStarted()) {
-                final Socket socket = serverSocket.accept();
-                MicroServer.threadPool.execute(() -> SocketHandler.handle(socket));
+                // accepted as channels, so upgraded connections can leave the blocking threads
+                final SocketChannel channel = serverChannel.accept();
+                final Object accepted = FlightEvents.beginAccept();
+                final Object queued = FlightEvents.beginQueueWait();
+                MicroServer.threadPool.execute(() -> {
+                    FlightEvents.commitQueueWait(queued);
+                    SocketHandler.handle(channel.socket());
+                });
+                FlightEvents.commitAccept(accepted, channel.socket());
             }
         } catch (Exception e) {
             throw new RuntimeException("Failure to start the micro server", e);
         }
     }
 
+    /**
+     * <p>
+     * Resizes the fixed thread pool, the threads beyond a smaller size ending
+     * once idle. Called by the configuration watcher thread only, so not
+     * synchronized: {@link #run(String...)} holds the class lock while serving.
+     * </p>
+     * 
+     * @param maxThreads
+     */
+    private static void resize(final int maxThreads) {
+        if (maxThreads == threadPool.getMaximumPoolSize()) {
+            return;
+        }
+        // the core size never exceeds the maximum size in between
+        if (maxThreads > threadPool.getMaximumPoolSize()) {
+            threadPool.setMaximumPoolSize(maxThreads);
+            threadPool.setCorePoolSize(maxThreads);
+        } else {
+            threadPool.setCorePoolSize(maxThreads);
+            threadPool.setMaximumPoolSize(maxThreads);
+        }
+        LOGGER.info(() -> "Max threads: " + maxThreads);
+    }
+
     /**
      * @return
      */
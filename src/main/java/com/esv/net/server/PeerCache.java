@@ -0,0 +1,474 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.CharSequenceUtils;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * The response cache of the Get endpoints declaring a cache lifetime, shared
+ * by the nodes listed in cache.peers, enabled by cache.enabled=true. Each key
+ * is owned by one node, chosen by consistent hashing over cache.virtualNodes
+ * points per node, so adding or removing a node only moves the keys of its
+ * neighbours on the ring. A node asks the owner for the keys it misses, over
+ * the compact protocol of {@link CachePeer} on cache.port, and invokes the
+ * endpoint itself only if the owner has none either, handing the encoded
+ * response to the owner for the other nodes. The entries fetched from the
+ * owners are kept by a near cache, up to cache.near.maxEntries, until they
+ * expire, so the hot keys are served without a round trip.
+ * </p>
+ * <p>
+ * An unreachable owner or a slow answer never fails the request: the
+ * endpoint is invoked locally. Without cache.peers the node caches on its
+ * own, without the peer port.
+ * </p>
+ * <p>
+ * The peer port is bound to cache.bind, by default the host of this node in
+ * cache.peers, and only the addresses of the other peers may connect: the
+ * other connections are closed unanswered, as the protocol has no
+ * authentication. The peer connections are served by up to
+ * cache.maxConnections threads, the ones beyond being closed.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class PeerCache {
+
+    private static final Logger LOGGER = Logger.getLogger(PeerCache.class);
+
+    private static final boolean enabled;
+    private static final int port;
+    private static final String bindHost;
+    private static final int maxConnections;
+    private static final int maxEntryBytes;
+    private static final int idleTimeout;
+    // the owned entries, this node being their owner on the ring
+    private static final Store owned;
+    private static final Store near;
+    // the ring points, ascending, and the owner of each, null for this node
+    private static final int[] points;
+    private static final CachePeer[] owners;
+    private static final List<CachePeer> peers = new ArrayList<>();
+    private static final AtomicInteger connections = new AtomicInteger();
+    private static final LongAdder nearHits = ServerMetrics.counter("cache.hits.near");
+    private static final LongAdder localHits = ServerMetrics.counter("cache.hits.local");
+    private static final LongAdder peerHits = ServerMetrics.counter("cache.hits.peer");
+    private static final LongAdder misses = ServerMetrics.counter("cache.misses");
+    private static final LongAdder rejected = ServerMetrics.counter("cache.peers.rejected");
+    private static ServerSocket serverSocket;
+    // the addresses of the other peers, resolved when the port is bound
+    private static Set<InetAddress> peerAddresses;
+    private static ThreadPoolExecutor peerThreads;
+
+    static {
+        try {
+            enabled = Boolean.parseBoolean(PropertiesUtils.getStringProperty("cache.enabled", "false").trim());
+            port = PropertiesUtils.getIntProperty("cache.port", 7700);
+            maxEntryBytes = PropertiesUtils.getIntProperty("cache.maxEntryBytes", 1 << 20);
+            idleTimeout = PropertiesUtils.getIntProperty("cache.idleTimeout", 60000);
+            maxConnections = Math.max(1, PropertiesUtils.getIntProperty("cache.maxConnections", 64));
+            owned = new Store(PropertiesUtils.getIntProperty("cache.maxEntries", 10000),
+                    Long.parseLong(PropertiesUtils.getStringProperty("cache.maxBytes", "67108864").trim()));
+            near = new Store(PropertiesUtils.getIntProperty("cache.near.maxEntries", 1000), Long.MAX_VALUE);
+            final String self = PropertiesUtils.getStringProperty("cache.self", "").trim();
+            CachePeer selfNode = null;
+            final List<CachePeer> nodes = new ArrayList<>();
+            for (final String hostAndPort : PropertiesUtils.getStringProperty("cache.peers", "").split(",")) {
+                if (CharSequenceUtils.isBlank(hostAndPort)) {
+                    continue;
+                }
+                final CachePeer node = new CachePeer(hostAndPort);
+                nodes.add(node);
+                if (null == selfNode && (self.isEmpty() ? PeerCache.isSelf(node) : self.equals(hostAndPort.trim()))) {
+                    selfNode = node;
+                } else {
+                    peers.add(node);
+                }
+            }
+            if (enabled && !nodes.isEmpty() && null == selfNode) {
+                throw new IllegalArgumentException("This node is not one of the cache.peers: " + nodes + ", set cache.self");
+            }
+            bindHost = PropertiesUtils.getStringProperty("cache.bind", null == selfNode ? "" : selfNode.getHost()).trim();
+            final int virtualNodes = PropertiesUtils.getIntProperty("cache.virtualNodes", 160);
+            final long[] ring = new long[nodes.size() * virtualNodes];
+            for (int i = 0; i < nodes.size(); i++) {
+                for (int j = 0; j < virtualNodes; j++) {
+                    // the point in the high bits, the node index in the low ones
+                    ring[i * virtualNodes + j] = (long) PeerCache.hash(nodes.get(i) + "#" + j) << 32 | i;
+                }
+            }
+            Arrays.sort(ring);
+            points = new int[ring.length];
+            owners = new CachePeer[ring.length];
+            for (int i = 0; i < ring.length; i++) {
+                points[i] = (int) (ring[i] >> 32);
+                final CachePeer node = nodes.get((int) ring[i]);
+                owners[i] = peers.contains(node) ? node : null;
+            }
+            if (enabled) {
+                LOGGER.info(() -> "Response cache: " + (peers.isEmpty() ? "local" : "peers " + peers + ", port " + port)
+                        + ", max entries: " + owned.maxEntries + ", near entries: " + near.maxEntries);
+            }
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private PeerCache() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+
+    /**
+     * @param node
+     * @return true if the node is listening at the cache port of one of the addresses of this host
+     */
+    private static boolean isSelf(final CachePeer node) {
+        if (node.getPort() != port) {
+            return false;
+        }
+        try {
+            final InetAddress address = InetAddress.getByName(node.getHost());
+            return address.isLoopbackAddress() || address.isAnyLocalAddress() || null != NetworkInterface.getByInetAddress(address);
+        } catch (IOException e) {
+            LOGGER.debug(() -> "Could not resolve the cache peer " + node + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @param value
+     * @return the FNV-1a hash of the characters, mixed by the murmur3 finalizer
+     */
+    private static int hash(final String value) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ h >>> 16;
+    }
+
+    /**
+     * @param key
+     * @return the owner of the key, null if this node
+     */
+    private static CachePeer owner(final String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int idx = Arrays.binarySearch(points, PeerCache.hash(key));
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        return owners[idx == points.length ? 0 : idx];
+    }
+
+    /**
+     * @return true if the responses of the endpoints with a cache lifetime are cached
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the largest body cached or exchanged with the peers
+     */
+    static int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * <p>Listens to the peers at cache.bind and cache.port, when there are peers</p>
+     *
+     * @throws IOException if the port could not be bound
+     */
+    static void start() throws IOException {
+        if (!enabled || peers.isEmpty()) {
+            return;
+        }
+        synchronized (PeerCache.class) {
+            if (null != serverSocket) {
+                return;
+            }
+            final Set<InetAddress> addresses = new HashSet<>();
+            for (final CachePeer peer : peers) {
+                try {
+                    addresses.addAll(Arrays.asList(InetAddress.getAllByName(peer.getHost())));
+                } catch (IOException e) {
+                    LOGGER.warn(() -> "Could not resolve the cache peer " + peer + ", its connections are refused: " + e.getMessage());
+                }
+            }
+            peerAddresses = addresses;
+            peerThreads = new ThreadPoolExecutor(maxConnections, maxConnections, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                final Thread thread = new Thread(runnable, "cache-peer-" + connections.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            peerThreads.allowCoreThreadTimeOut(true);
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(bindHost.isEmpty() ? null : InetAddress.getByName(bindHost), port));
+        }
+        final Thread acceptor = new Thread(PeerCache::accept, "cache-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOGGER.info(() -> "Cache peers listening at: " + serverSocket.getLocalSocketAddress() + ", max connections: " + maxConnections);
+    }
+
+    /**
+     * <p>Accepts the connections of the peers, closing the others and the ones beyond cache.maxConnections</p>
+     */
+    private static void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                if (!peerAddresses.contains(socket.getInetAddress())) {
+                    rejected.increment();
+                    LOGGER.warn(() -> "Cache connection refused, not from a cache peer: " + socket.getRemoteSocketAddress());
+                    socket.close();
+                    continue;
+                }
+                try {
+                    peerThreads.execute(() -> PeerCache.serve(socket));
+                } catch (RejectedExecutionException e) {
+                    rejected.increment();
+                    LOGGER.warn(() -> "Cache connection refused, " + maxConnections + " peer connections already served: "
+                            + socket.getRemoteSocketAddress());
+                    socket.close();
+                }
+            } catch (IOException e) {
+                LOGGER.warn(() -> "Failure accepting a cache peer: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * <p>Answers the frames of a peer until it closes the connection or leaves it idle</p>
+     *
+     * @param socket
+     */
+    private static void serve(final Socket socket) {
+        try (final Socket peer = socket) {
+            peer.setTcpNoDelay(true);
+            peer.setSoTimeout(idleTimeout);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(peer.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(peer.getOutputStream()));
+            for (int op = in.read(); op != -1; op = in.read()) {
+                final String key = in.readUTF();
+                if (op == CachePeer.GET) {
+                    final Entry entry = owned.get(key);
+                    final long ttlMillis = null == entry ? 0L : TimeUnit.NANOSECONDS.toMillis(entry.expires - System.nanoTime());
+                    if (ttlMillis > 0L) {
+                        localHits.increment();
+                        out.writeByte(CachePeer.HIT);
+                        out.writeInt((int) Math.min(Integer.MAX_VALUE, ttlMillis));
+                        out.writeInt(entry.body.length);
+                        out.write(entry.body);
+                    } else {
+                        out.writeByte(CachePeer.MISS);
+                    }
+                    out.flush();
+                } else if (op == CachePeer.PUT) {
+                    final long ttlMillis = in.readInt();
+                    final byte[] body = CachePeer.readBody(in);
+                    owned.put(key, new Entry(body, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis)));
+                } else {
+                    final int unknown = op;
+                    LOGGER.warn(() -> "Unknown cache operation " + unknown + " from: " + peer.getRemoteSocketAddress());
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException | EOFException e) {
+            LOGGER.trace(() -> "Cache peer connection closed: " + e.getMessage());
+        } catch (IOException e) {
+            LOGGER.debug(() -> "Cache peer connection failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param key the media type, the path and the query of the request
+     * @return the cached body, null if this node, or the owner of the key, has none
+     */
+    static byte[] get(final String key) {
+        Entry entry = near.get(key);
+        if (null != entry) {
+            nearHits.increment();
+            return entry.body;
+        }
+        final CachePeer owner = PeerCache.owner(key);
+        if (null == owner) {
+            entry = owned.get(key);
+            if (null != entry) {
+                localHits.increment();
+                return entry.body;
+            }
+        } else if (owner.isAvailable()) {
+            try {
+                entry = owner.get(key);
+                if (null != entry) {
+                    peerHits.increment();
+                    near.put(key, entry);
+                    return entry.body;
+                }
+            } catch (IOException e) {
+                LOGGER.debug(() -> "Cache peer " + owner + " did not answer: " + e.getMessage());
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * <p>Caches the body on this node, and on the owner of the key</p>
+     *
+     * @param key
+     * @param body the encoded response
+     * @param seconds the lifetime of the entry
+     */
+    static void put(final String key, final byte[] body, final int seconds) {
+        if (body.length > maxEntryBytes) {
+            return;
+        }
+        final Entry entry = new Entry(body, System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds));
+        final CachePeer owner = PeerCache.owner(key);
+        if (null == owner) {
+            owned.put(key, entry);
+            return;
+        }
+        near.put(key, entry);
+        if (owner.isAvailable()) {
+            try {
+                owner.put(key, body, TimeUnit.SECONDS.toMillis(seconds));
+            } catch (IOException e) {
+                LOGGER.debug(() -> "Could not hand the entry to the cache peer " + owner + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * <p>A cached response body and its expiry</p>
+     */
+    static final class Entry {
+
+        private final byte[] body;
+        // System.nanoTime()
+        private final long expires;
+
+        Entry(final byte[] body, final long expires) {
+            this.body = body;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * <p>
+     * Entries bounded in number and bytes: once beyond a bound the expired
+     * entries are removed, then others in no particular order.
+     * </p>
+     */
+    private static final class Store {
+
+        private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+        private final AtomicLong bytes = new AtomicLong();
+        private final int maxEntries;
+        private final long maxBytes;
+
+        private Store(final int maxEntries, final long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @param key
+         * @return the entry, null if none or expired
+         */
+        private Entry get(final String key) {
+            final Entry entry = entries.get(key);
+            if (null == entry) {
+                return null;
+            }
+            if (entry.expires - System.nanoTime() <= 0L) {
+                if (entries.remove(key, entry)) {
+                    bytes.addAndGet(-entry.body.length);
+                }
+                return null;
+            }
+            return entry;
+        }
+
+        /**
+         * @param key
+         * @param entry
+         */
+        private void put(final String key, final Entry entry) {
+            final Entry previous = entries.put(key, entry);
+            final long total = bytes.addAndGet(entry.body.length - (null == previous ? 0 : previous.body.length));
+            if (entries.size() > maxEntries || total > maxBytes) {
+                this.trim();
+            }
+        }
+
+        private synchronized void trim() {
+            final long now = System.nanoTime();
+            for (final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+                final Map.Entry<String, Entry> next = it.next();
+                if (next.getValue().expires - now <= 0L) {
+                    this.remove(next);
+                }
+            }
+            for (final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext()
+                    && (entries.size() > maxEntries || bytes.get() > maxBytes);) {
+                this.remove(it.next());
+            }
+        }
+
+        /**
+         * @param next an entry seen by the iterator, left in place if replaced meanwhile
+         */
+        private void remove(final Map.Entry<String, Entry> next) {
+            if (entries.remove(next.getKey(), next.getValue())) {
+                bytes.addAndGet(-next.getValue().body.length);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,263 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.net.BufferAllocator;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * The default {@link BufferAllocator}: buffers rounded up to a power of two
+ * size class, from 4KB to buffers.maxPooledSize, kept once released for the
+ * next allocation of their class and kind, direct or heap. Each thread keeps
+ * up to buffers.threadCache buffers per class, taken and given back without
+ * contention; beyond them the buffers go to a shared free list. The released
+ * buffers kept at once, in every thread, are bounded by
+ * buffers.maxPooledBytes, and the direct buffers allocated, in use or kept,
+ * by buffers.maxDirectBytes, the allocations beyond it being served with
+ * heap buffers. Larger buffers are neither pooled nor counted.
+ * </p>
+ * <p>
+ * The caches of the threads that ended, such as the pool threads past
+ * their keep alive, are moved to the shared free lists by the next
+ * allocation finding no buffer to reuse, at most once a second, so they
+ * are not counted forever in the pooled bytes. The buffers never released,
+ * reported by {@link #forget(ByteBuffer)}, stop counting in the direct
+ * bytes.
+ * </p>
+ * <p>
+ * The {@link ServerMetrics} counters buffers.allocated, buffers.reused,
+ * buffers.dropped and buffers.heapFallback count the allocations, and
+ * buffers.direct.bytes and buffers.pooled.bytes follow the memory.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class PooledBufferAllocator implements BufferAllocator {
+
+    private static final Logger LOGGER = Logger.getLogger(PooledBufferAllocator.class);
+
+    private static final int MIN_SHIFT = 12;
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final int classes;
+    private final int threadCacheSize;
+    private final long maxPooledBytes;
+    private final long maxDirectBytes;
+    // the shared free lists, heap classes first, then the direct ones
+    private final Queue<ByteBuffer>[] shared;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches;
+    // the caches of every thread, swept for those of the ended threads
+    private final Queue<ThreadCache> caches = new ConcurrentLinkedQueue<>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong directBytes = new AtomicLong();
+    private final LongAdder allocated = ServerMetrics.counter("buffers.allocated");
+    private final LongAdder reused = ServerMetrics.counter("buffers.reused");
+    private final LongAdder dropped = ServerMetrics.counter("buffers.dropped");
+    private final LongAdder heapFallback = ServerMetrics.counter("buffers.heapFallback");
+    private final LongAdder directGauge = ServerMetrics.counter("buffers.direct.bytes");
+    private final LongAdder pooledGauge = ServerMetrics.counter("buffers.pooled.bytes");
+
+    PooledBufferAllocator() {
+        final int maxPooledSize = PropertiesUtils.getIntProperty("buffers.maxPooledSize", 1 << 20);
+        this.classes = Math.max(1, PooledBufferAllocator.sizeClass(maxPooledSize) + 1);
+        this.threadCacheSize = PropertiesUtils.getIntProperty("buffers.threadCache", 4);
+        this.maxPooledBytes = Long.parseLong(PropertiesUtils.getStringProperty("buffers.maxPooledBytes", "67108864").trim());
+        this.maxDirectBytes = Long.parseLong(PropertiesUtils.getStringProperty("buffers.maxDirectBytes", "268435456").trim());
+        this.shared = PooledBufferAllocator.queues(classes * 2);
+        this.threadCaches = ThreadLocal.withInitial(() -> {
+            final ThreadCache cache = new ThreadCache(Thread.currentThread(), PooledBufferAllocator.deques(classes * 2));
+            caches.offer(cache);
+            return cache.deques;
+        });
+        LOGGER.debug(() -> "Buffer pool: " + this);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Queue<ByteBuffer>[] queues(final int count) {
+        final Queue<ByteBuffer>[] queues = new Queue[count];
+        for (int i = 0; i < count; i++) {
+            queues[i] = new ConcurrentLinkedQueue<>();
+        }
+        return queues;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static ArrayDeque<ByteBuffer>[] deques(final int count) {
+        final ArrayDeque<ByteBuffer>[] deques = new ArrayDeque[count];
+        for (int i = 0; i < count; i++) {
+            deques[i] = new ArrayDeque<>();
+        }
+        return deques;
+    }
+
+    /**
+     * @param capacity
+     * @return the index of the smallest class holding the capacity
+     */
+    private static int sizeClass(final int capacity) {
+        return capacity <= 1 << MIN_SHIFT ? 0 : 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.BufferAllocator#allocate(int, boolean)
+     */
+    @Override
+    public ByteBuffer allocate(final int capacity, final boolean direct) {
+        final int sizeClass = PooledBufferAllocator.sizeClass(capacity);
+        if (sizeClass >= classes) {
+            allocated.increment();
+            return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        final int index = direct ? classes + sizeClass : sizeClass;
+        ByteBuffer buffer = threadCaches.get()[index].pollFirst();
+        if (null == buffer) {
+            buffer = shared[index].poll();
+        }
+        if (null == buffer && this.sweep()) {
+            buffer = shared[index].poll();
+        }
+        final int size = 1 << (sizeClass + MIN_SHIFT);
+        if (null != buffer) {
+            this.pooled(-size);
+            reused.increment();
+            return buffer;
+        }
+        allocated.increment();
+        if (!direct) {
+            return ByteBuffer.allocate(size);
+        }
+        if (directBytes.addAndGet(size) > maxDirectBytes) {
+            directBytes.addAndGet(-size);
+            heapFallback.increment();
+            return ByteBuffer.allocate(size);
+        }
+        directGauge.add(size);
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.BufferAllocator#release(java.nio.ByteBuffer)
+     */
+    @Override
+    public void release(final ByteBuffer buffer) {
+        final int size = buffer.capacity();
+        final int sizeClass = PooledBufferAllocator.sizeClass(size);
+        if (sizeClass >= classes || size != 1 << (sizeClass + MIN_SHIFT) || buffer.isReadOnly()) {
+            return;
+        }
+        buffer.clear();
+        if (pooledBytes.addAndGet(size) > maxPooledBytes) {
+            pooledBytes.addAndGet(-size);
+            this.drop(buffer);
+            return;
+        }
+        pooledGauge.add(size);
+        final int index = buffer.isDirect() ? classes + sizeClass : sizeClass;
+        final ArrayDeque<ByteBuffer> cache = threadCaches.get()[index];
+        if (cache.size() < threadCacheSize) {
+            cache.offerFirst(buffer);
+        } else {
+            shared[index].offer(buffer);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.BufferAllocator#forget(java.nio.ByteBuffer)
+     */
+    @Override
+    public void forget(final ByteBuffer buffer) {
+        final int size = buffer.capacity();
+        final int sizeClass = PooledBufferAllocator.sizeClass(size);
+        // as counted when allocated: the direct buffers of a pooled size class
+        if (sizeClass < classes && size == 1 << (sizeClass + MIN_SHIFT) && buffer.isDirect()) {
+            directBytes.addAndGet(-size);
+            directGauge.add(-size);
+        }
+    }
+
+    /**
+     * <p>Moves the caches of the ended threads to the shared free lists, once a second at most</p>
+     *
+     * @return true when buffers were moved
+     */
+    private boolean sweep() {
+        final long now = System.nanoTime();
+        final long next = nextSweep.get();
+        if (now - next < 0 || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) {
+            return false;
+        }
+        boolean moved = false;
+        for (final ThreadCache cache : caches) {
+            // once ended, seen by isAlive, the thread no longer touches its cache; removed by one sweep only
+            if (!cache.owner.isAlive() && caches.remove(cache)) {
+                for (int i = 0; i < cache.deques.length; i++) {
+                    for (ByteBuffer buffer = cache.deques[i].pollFirst(); null != buffer; buffer = cache.deques[i].pollFirst()) {
+                        shared[i].offer(buffer);
+                        moved = true;
+                    }
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * @param size the bytes taken out of the pool, negative, or put into it
+     */
+    private void pooled(final int size) {
+        pooledBytes.addAndGet(size);
+        pooledGauge.add(size);
+    }
+
+    /**
+     * @param buffer left to the garbage collector, its direct memory being freed with it
+     */
+    private void drop(final ByteBuffer buffer) {
+        dropped.increment();
+        if (buffer.isDirect()) {
+            directBytes.addAndGet(-buffer.capacity());
+            directGauge.add(-buffer.capacity());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return classes + " size classes up to " + (1 << (classes - 1 + MIN_SHIFT)) + " bytes, " + threadCacheSize
+                + " per thread and class, max pooled " + maxPooledBytes + " bytes, max direct " + maxDirectBytes + " bytes";
+    }
+
+    /**
+     * <p>The cache of a thread, per size class and kind</p>
+     */
+    private static final class ThreadCache {
+
+        private final Thread owner;
+        private final ArrayDeque<ByteBuffer>[] deques;
+
+        private ThreadCache(final Thread owner, final ArrayDeque<ByteBuffer>[] deques) {
+            this.owner = owner;
+            this.deques = deques;
+        }
+    }
+}
\ No newline at end of file
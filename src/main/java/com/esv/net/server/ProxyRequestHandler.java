@@ -0,0 +1,520 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.net.Handles;
+import com.esv.net.HttpRequest;
+import com.esv.net.HttpRequestHandler;
+import com.esv.net.HttpResponse;
+import com.esv.net.utils.MimeTypeUtils;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.CharSequenceUtils;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * Forwards the requests under the proxy.routes path prefixes to upstream
+ * servers, balanced by round robin or least connections. The upstream
+ * connections are kept alive in a pool per upstream, and the bodies are
+ * streamed in both directions through a small buffer, never held whole in
+ * memory. A request is retried once on another upstream when the upstream
+ * could not be connected, nothing having been sent. The GET, HEAD and
+ * OPTIONS requests without body are also retried when the connection fails
+ * before any response byte, but not on a timeout, the upstream possibly
+ * still handling them.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+@Handles(methods = { "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH" }, order = -1)
+public class ProxyRequestHandler implements HttpRequestHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(ProxyRequestHandler.class);
+
+    // the connection-specific headers, never forwarded
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList("connection", "keep-alive",
+            "proxy-connection", "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade"));
+    // the methods without side effects, safe to send again
+    private static final Set<String> RETRIABLE = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS"));
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final ThreadLocal<byte[]> copyBuffers = ThreadLocal.withInitial(() -> new byte[16384]);
+
+    private static final Route[] routes;
+    private static final boolean leastConnections;
+    private static final LongAdder forwarded = ServerMetrics.counter("proxy.forwarded");
+    private static final LongAdder failures = ServerMetrics.counter("proxy.failures");
+
+    static {
+        try {
+            final List<Route> list = new ArrayList<>();
+            for (final String route : PropertiesUtils.getStringProperty("proxy.routes", "").split(",")) {
+                if (CharSequenceUtils.isBlank(route)) {
+                    continue;
+                }
+                // prefix=host:port|host:port
+                final int idx = route.indexOf('=');
+                if (idx <= 0) {
+                    throw new IllegalArgumentException("Invalid proxy.routes entry, expected prefix=host:port|host:port: " + route);
+                }
+                final String[] hosts = route.substring(idx + 1).split("\\|");
+                final ProxyUpstream[] upstreams = new ProxyUpstream[hosts.length];
+                for (int i = 0; i < hosts.length; i++) {
+                    upstreams[i] = new ProxyUpstream(hosts[i].trim());
+                }
+                list.add(new Route(route.substring(0, idx).trim(), upstreams));
+            }
+            // the longest prefix wins
+            list.sort((r1, r2) -> r2.prefix.length() - r1.prefix.length());
+            routes = list.toArray(new Route[list.size()]);
+            final String balancer = PropertiesUtils.getStringProperty("proxy.balancer", "ROUND_ROBIN").trim().toUpperCase(Locale.ROOT);
+            if (!"ROUND_ROBIN".equals(balancer) && !"LEAST_CONNECTIONS".equals(balancer)) {
+                throw new IllegalArgumentException("Invalid proxy.balancer: " + balancer);
+            }
+            leastConnections = "LEAST_CONNECTIONS".equals(balancer);
+            LOGGER.debug(() -> "Proxy routes: " + list + ", balancer: " + balancer);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.HttpRequestHandler#handle(com.esv.net.HttpRequest)
+     */
+    @Override
+    public void handle(final HttpRequest httpRequest) throws Exception {
+        final Route route = ProxyRequestHandler.match(httpRequest.getPathInfo());
+        if (null == route) {
+            return;
+        }
+        forwarded.increment();
+        final int attempts = Math.min(2, route.upstreams.length);
+        ProxyUpstream failed = null;
+        UpstreamException failure = null;
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            final ProxyUpstream upstream = route.choose(failed);
+            if (null == upstream) {
+                break;
+            }
+            try {
+                ProxyRequestHandler.forward(httpRequest, upstream);
+                return;
+            } catch (UpstreamException e) {
+                failures.increment();
+                upstream.failed();
+                LOGGER.debug(() -> "Upstream " + upstream + " failed: " + e.getCause());
+                failed = upstream;
+                failure = e;
+            }
+            if (!failure.connectFailed && (!ProxyRequestHandler.isRetriable(httpRequest) || failure.getCause() instanceof SocketTimeoutException)) {
+                // the upstream may have received the request
+                break;
+            }
+        }
+        if (null == failure) {
+            final String message = "No upstream available for: " + httpRequest.getPathInfo();
+            LOGGER.warn(message);
+            HttpResponse.serviceUnavailable(message, MimeTypeUtils.TEXT_PLAIN, "Service Unavailable");
+        } else if (failure.getCause() instanceof SocketTimeoutException) {
+            final String message = "Upstream timeout: " + failed;
+            LOGGER.warn(message);
+            HttpResponse.gatewayTimeout(message, MimeTypeUtils.TEXT_PLAIN, "Gateway Timeout");
+        } else {
+            final String message = "Upstream failure: " + failed + ", " + failure.getCause().getMessage();
+            LOGGER.warn(message);
+            HttpResponse.badGateway(message, MimeTypeUtils.TEXT_PLAIN, "Bad Gateway");
+        }
+    }
+
+    /**
+     * @param httpRequest
+     * @return true if the request can be sent again: without side effects and without body, as it is streamed once
+     */
+    private static boolean isRetriable(final HttpRequest httpRequest) {
+        return RETRIABLE.contains(httpRequest.getRequestMethod()) && httpRequest.getContentLength() == 0L;
+    }
+
+    /**
+     * @param path
+     * @return the route of the longest matching prefix, or null
+     */
+    private static Route match(final String path) {
+        for (final Route route : routes) {
+            if (path.startsWith(route.prefix)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * <p>
+     * Forwards the request and relays the response. A pooled connection closed
+     * by the upstream while idle is replaced transparently.
+     * </p>
+     *
+     * @param httpRequest
+     * @param upstream
+     * @throws UpstreamException if the upstream failed before any response byte
+     * @throws IOException if the client or the upstream failed while relaying the response
+     */
+    private static void forward(final HttpRequest httpRequest, final ProxyUpstream upstream) throws UpstreamException, IOException {
+        for (;;) {
+            final ProxyUpstream.Link link;
+            try {
+                link = upstream.acquire();
+            } catch (IOException e) {
+                throw new UpstreamException(e, true);
+            }
+            boolean reusable = false;
+            try {
+                final List<String> head;
+                try {
+                    ProxyRequestHandler.sendRequest(httpRequest, link.getOutputStream());
+                    head = ProxyRequestHandler.readHead(link.getInputStream());
+                } catch (EOFException e) {
+                    // a stale keep-alive connection, retried on a new one if the request can be sent again
+                    if (link.isReused() && ProxyRequestHandler.isRetriable(httpRequest)) {
+                        continue;
+                    }
+                    throw new UpstreamException(e, false);
+                } catch (IOException e) {
+                    throw new UpstreamException(e, false);
+                }
+                reusable = ProxyRequestHandler.relayResponse(httpRequest, head, link.getInputStream());
+                final int status = ProxyRequestHandler.status(head.get(0));
+                if (status == 502 || status == 503 || status == 504) {
+                    upstream.failed();
+                } else {
+                    upstream.succeeded();
+                }
+                return;
+            } finally {
+                upstream.release(link, reusable);
+            }
+        }
+    }
+
+    /**
+     * @param httpRequest
+     * @param out the upstream output
+     * @throws IOException
+     */
+    private static void sendRequest(final HttpRequest httpRequest, final OutputStream out) throws IOException {
+        final StringBuilder head = new StringBuilder(512);
+        head.append(httpRequest.getRequestMethod()).append(' ').append(httpRequest.getRequestURI()).append(" HTTP/1.1\r\n");
+        final Set<String> connectionTokens = ProxyRequestHandler.connectionTokens(httpRequest.getHeader("Connection"));
+        String forwardedFor = null;
+        for (final Map.Entry<String, String> header : httpRequest.getHeaders().entrySet()) {
+            final String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (HOP_BY_HOP.contains(name) || connectionTokens.contains(name) || "expect".equals(name)) {
+                continue;
+            }
+            if ("x-forwarded-for".equals(name)) {
+                forwardedFor = header.getValue();
+                continue;
+            }
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        final InetAddress client = httpRequest.getInetAddress();
+        if (null != client) {
+            head.append("X-Forwarded-For: ").append(null == forwardedFor ? "" : forwardedFor + ", ").append(client.getHostAddress()).append("\r\n");
+        }
+        head.append("X-Forwarded-Proto: http\r\nConnection: keep-alive\r\n\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        ProxyRequestHandler.copy(httpRequest.getInputStream(), out, httpRequest.getContentLength());
+        out.flush();
+    }
+
+    /**
+     * <p>Reads the response head, skipping the interim 1xx responses</p>
+     *
+     * @param in the upstream input
+     * @return the status line followed by the header lines
+     * @throws IOException
+     */
+    private static List<String> readHead(final InputStream in) throws IOException {
+        for (;;) {
+            final String statusLine = ProxyRequestHandler.readLine(in);
+            if (null == statusLine) {
+                throw new EOFException("Upstream closed the connection before the response");
+            }
+            final List<String> head = new ArrayList<>(16);
+            head.add(statusLine);
+            String line;
+            while (null != (line = ProxyRequestHandler.readLine(in)) && !line.isEmpty()) {
+                head.add(line);
+            }
+            final int status = ProxyRequestHandler.status(statusLine);
+            if (status < 100 || status >= 200 || status == 101) {
+                return head;
+            }
+        }
+    }
+
+    /**
+     * <p>Writes the response head to the client and streams the body, removing the chunked framing</p>
+     *
+     * @param httpRequest
+     * @param head the upstream response head
+     * @param in the upstream input, positioned at the body
+     * @return true if the upstream connection can be reused
+     * @throws IOException
+     */
+    private static boolean relayResponse(final HttpRequest httpRequest, final List<String> head, final InputStream in) throws IOException {
+        final String statusLine = head.get(0);
+        final int status = ProxyRequestHandler.status(statusLine);
+        String connection = null;
+        boolean chunked = false;
+        long contentLength = -1L;
+        for (int i = 1; i < head.size(); i++) {
+            final String line = head.get(i);
+            final int idx = line.indexOf(':');
+            if (idx <= 0) {
+                continue;
+            }
+            final String name = line.substring(0, idx).trim().toLowerCase(Locale.ROOT);
+            final String value = line.substring(idx + 1).trim();
+            if ("connection".equals(name)) {
+                connection = value;
+            } else if ("transfer-encoding".equals(name)) {
+                chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+            } else if ("content-length".equals(name)) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid upstream Content-Length: " + value, e);
+                }
+            }
+        }
+        final boolean noBody = "HEAD".equals(httpRequest.getRequestMethod()) || status == 204 || status == 304;
+        final Set<String> connectionTokens = ProxyRequestHandler.connectionTokens(connection);
+        final StringBuilder out = new StringBuilder(512);
+        out.append("HTTP/1.1").append(statusLine.substring(Math.max(0, statusLine.indexOf(' ')))).append("\r\n");
+        for (int i = 1; i < head.size(); i++) {
+            final String line = head.get(i);
+            final int idx = line.indexOf(':');
+            final String name = idx <= 0 ? "" : line.substring(0, idx).trim().toLowerCase(Locale.ROOT);
+            if (idx <= 0 || HOP_BY_HOP.contains(name) || connectionTokens.contains(name)) {
+                continue;
+            }
+            out.append(line).append("\r\n");
+        }
+        if (!noBody && contentLength < 0L) {
+            // delimited by the end of the connection
+            out.append("Connection: close\r\n");
+            final Connection clientConnection = SocketHandler.currentConnection();
+            if (null != clientConnection) {
+                clientConnection.closeAfterResponse();
+            }
+        }
+        out.append("\r\n");
+        httpRequest.complete();
+        final OutputStream client = httpRequest.getOutputStream();
+        client.write(out.toString().getBytes(StandardCharsets.ISO_8859_1));
+        final boolean keepAlive = statusLine.startsWith("HTTP/1.1") && !connectionTokens.contains("close");
+        boolean delimited = true;
+        if (noBody) {
+            // no body follows
+        } else if (chunked) {
+            ProxyRequestHandler.copyChunked(in, client);
+        } else if (contentLength >= 0L) {
+            ProxyRequestHandler.copy(in, client, contentLength);
+        } else {
+            ProxyRequestHandler.copy(in, client, Long.MAX_VALUE);
+            delimited = false;
+        }
+        client.flush();
+        return keepAlive && delimited;
+    }
+
+    /**
+     * @param in
+     * @param out
+     * @param length the bytes to copy, Long.MAX_VALUE to copy until the end of the stream
+     * @throws IOException if the stream ends before length bytes
+     */
+    private static void copy(final InputStream in, final OutputStream out, final long length) throws IOException {
+        final byte[] buffer = copyBuffers.get();
+        long remaining = length;
+        while (remaining > 0L) {
+            final int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (count == -1) {
+                if (length == Long.MAX_VALUE) {
+                    return;
+                }
+                throw new EOFException("Body truncated, " + remaining + " bytes missing");
+            }
+            out.write(buffer, 0, count);
+            remaining -= count;
+        }
+    }
+
+    /**
+     * @param in positioned at the first chunk
+     * @param out receives the chunks data
+     * @throws IOException
+     */
+    private static void copyChunked(final InputStream in, final OutputStream out) throws IOException {
+        for (;;) {
+            final String sizeLine = ProxyRequestHandler.readLine(in);
+            if (null == sizeLine) {
+                throw new EOFException("Chunked body truncated");
+            }
+            final int extension = sizeLine.indexOf(';');
+            final long size;
+            try {
+                size = Long.parseLong((extension == -1 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + sizeLine, e);
+            }
+            if (size == 0L) {
+                // the trailers are dropped
+                String trailer;
+                do {
+                    trailer = ProxyRequestHandler.readLine(in);
+                } while (null != trailer && !trailer.isEmpty());
+                return;
+            }
+            ProxyRequestHandler.copy(in, out, size);
+            ProxyRequestHandler.readLine(in);
+        }
+    }
+
+    /**
+     * @param in
+     * @return an ISO-8859-1 line without the CRLF or LF terminator, or null at the end of the stream
+     * @throws IOException
+     */
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                final int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() == MAX_LINE_LENGTH) {
+                throw new IOException("Upstream line exceeds " + MAX_LINE_LENGTH + " bytes");
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * @param statusLine
+     * @return the status code
+     * @throws IOException if the status line is malformed
+     */
+    private static int status(final String statusLine) throws IOException {
+        final int idx = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || idx == -1 || statusLine.length() < idx + 4) {
+            throw new IOException("Invalid upstream status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(idx + 1, idx + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid upstream status line: " + statusLine, e);
+        }
+    }
+
+    /**
+     * @param connection the Connection header, may be null
+     * @return the lower case tokens, naming more hop-by-hop headers
+     */
+    private static Set<String> connectionTokens(final String connection) {
+        final Set<String> tokens = new HashSet<>();
+        if (null != connection) {
+            for (final String token : connection.split(",")) {
+                tokens.add(token.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * <p>A path prefix and its upstreams</p>
+     */
+    private static final class Route {
+
+        private final String prefix;
+        private final ProxyUpstream[] upstreams;
+        private final AtomicInteger next = new AtomicInteger();
+
+        private Route(final String prefix, final ProxyUpstream[] upstreams) {
+            this.prefix = prefix;
+            this.upstreams = upstreams;
+        }
+
+        /**
+         * @param previous the upstream that just failed, avoided if another one is available
+         * @return the upstream to forward to, or null if none is available
+         */
+        private ProxyUpstream choose(final ProxyUpstream previous) {
+            final long now = System.nanoTime();
+            final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % upstreams.length;
+            ProxyUpstream chosen = null;
+            for (int i = 0; i < upstreams.length; i++) {
+                final ProxyUpstream upstream = upstreams[(start + i) % upstreams.length];
+                if (!upstream.isAvailable(now) || upstream == previous && upstreams.length > 1) {
+                    continue;
+                }
+                if (!leastConnections) {
+                    return upstream;
+                }
+                if (null == chosen || upstream.getActive() < chosen.getActive()) {
+                    chosen = upstream;
+                }
+            }
+            return chosen;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return prefix + "=" + Arrays.toString(upstreams);
+        }
+    }
+
+    /**
+     * <p>The upstream failed before any response byte, the request may be retried</p>
+     */
+    @SuppressWarnings("serial")
+    private static final class UpstreamException extends Exception {
+
+        // nothing was sent, the upstream could not be connected
+        private final boolean connectFailed;
+
+        private UpstreamException(final IOException cause, final boolean connectFailed) {
+            super(cause);
+            this.connectFailed = connectFailed;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,232 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * An upstream server of the {@link ProxyRequestHandler}: its pool of idle
+ * keep-alive connections, the number of connections in use and its passive
+ * health. After proxy.maxFailures consecutive failures the upstream is left
+ * out of the balancing for proxy.downTime milliseconds, then tried again.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class ProxyUpstream {
+
+    private static final Logger LOGGER = Logger.getLogger(ProxyUpstream.class);
+
+    private static final int maxIdle;
+    private static final long idleTimeoutNanos;
+    private static final int connectTimeout;
+    private static final int readTimeout;
+    private static final int maxFailures;
+    private static final long downTimeNanos;
+    private static final LongAdder opened = ServerMetrics.counter("proxy.connections.opened");
+    private static final LongAdder reused = ServerMetrics.counter("proxy.connections.reused");
+    private static final LongAdder ejected = ServerMetrics.counter("proxy.upstreams.ejected");
+
+    static {
+        try {
+            maxIdle = PropertiesUtils.getIntProperty("proxy.maxIdlePerUpstream", 16);
+            idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(PropertiesUtils.getIntProperty("proxy.idleTimeout", 30000));
+            connectTimeout = PropertiesUtils.getIntProperty("proxy.connectTimeout", 2000);
+            readTimeout = PropertiesUtils.getIntProperty("proxy.readTimeout", 30000);
+            maxFailures = PropertiesUtils.getIntProperty("proxy.maxFailures", 3);
+            downTimeNanos = TimeUnit.MILLISECONDS.toNanos(PropertiesUtils.getIntProperty("proxy.downTime", 10000));
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final Deque<Link> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long downUntil = System.nanoTime();
+
+    /**
+     * @param hostAndPort host:port
+     */
+    ProxyUpstream(final String hostAndPort) {
+        final int idx = hostAndPort.lastIndexOf(':');
+        if (idx <= 0) {
+            throw new IllegalArgumentException("Invalid upstream, expected host:port: " + hostAndPort);
+        }
+        this.address = InetSocketAddress.createUnresolved(hostAndPort.substring(0, idx).trim(),
+                Integer.parseInt(hostAndPort.substring(idx + 1).trim()));
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}
+     * @return false while the upstream is left out after failing
+     */
+    boolean isAvailable(final long now) {
+        return now - downUntil >= 0L;
+    }
+
+    /**
+     * @return the connections in use
+     */
+    int getActive() {
+        return active.get();
+    }
+
+    /**
+     * <p>Takes the most recently used idle connection, or opens a new one</p>
+     *
+     * @return a connection, released with {@link #release(Link, boolean)}
+     * @throws IOException if the upstream could not be connected
+     */
+    Link acquire() throws IOException {
+        active.incrementAndGet();
+        final long now = System.nanoTime();
+        Link link;
+        while (null != (link = idle.pollFirst())) {
+            idleCount.decrementAndGet();
+            if (now - link.lastUsed < idleTimeoutNanos && !link.socket.isClosed()) {
+                reused.increment();
+                link.reused = true;
+                return link;
+            }
+            link.close();
+        }
+        final Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeout);
+            socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), connectTimeout);
+            opened.increment();
+            return new Link(socket);
+        } catch (IOException e) {
+            active.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param link
+     * @param reusable true if the exchange left the connection at the start of the next response
+     */
+    void release(final Link link, final boolean reusable) {
+        active.decrementAndGet();
+        if (reusable && idleCount.incrementAndGet() <= maxIdle) {
+            link.lastUsed = System.nanoTime();
+            idle.offerFirst(link);
+            return;
+        }
+        if (reusable) {
+            idleCount.decrementAndGet();
+        }
+        link.close();
+    }
+
+    /**
+     * Resets the consecutive failures
+     */
+    void succeeded() {
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+    }
+
+    /**
+     * <p>Counts a failure, leaving the upstream out once they reach proxy.maxFailures</p>
+     */
+    void failed() {
+        if (failures.incrementAndGet() < maxFailures) {
+            return;
+        }
+        failures.set(0);
+        downUntil = System.nanoTime() + downTimeNanos;
+        ejected.increment();
+        LOGGER.warn(() -> "Upstream " + this + " failed " + maxFailures + " times, left out for "
+                + TimeUnit.NANOSECONDS.toMillis(downTimeNanos) + "ms");
+        Link link;
+        while (null != (link = idle.pollFirst())) {
+            idleCount.decrementAndGet();
+            link.close();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    /**
+     * <p>A keep-alive connection to the upstream</p>
+     */
+    static final class Link implements Closeable {
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private long lastUsed;
+        private boolean reused;
+
+        private Link(final Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        InputStream getInputStream() {
+            return in;
+        }
+
+        OutputStream getOutputStream() {
+            return out;
+        }
+
+        /**
+         * @return true if the connection was taken from the idle pool, it may have been closed by the upstream meanwhile
+         */
+        boolean isReused() {
+            return reused;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.io.Closeable#close()
+         */
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.trace("Failure closing the upstream connection", e);
+            }
+        }
+    }
+}
\ No newline at end of file
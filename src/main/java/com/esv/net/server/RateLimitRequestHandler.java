@@ -0,0 +1,273 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.net.Handles;
+import com.esv.net.HttpRequest;
+import com.esv.net.HttpRequestHandler;
+import com.esv.net.HttpResponse;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.CharSequenceUtils;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * Limits the request rate of each client, identified by its address and,
+ * with ratelimit.key.header, by that header too (an API key, for instance),
+ * telling apart the clients sharing an address. The header is never the
+ * key on its own, as it is not validated: a client changing it from request
+ * to request would otherwise get a new bucket each time.
+ * Runs before every other handler and answers a pre-encoded 429 Too Many
+ * Requests with Retry-After once the client exhausted its bucket for the
+ * route.
+ * </p>
+ * <p>
+ * Each bucket is a single {@link AtomicLong} updated by compare-and-set
+ * (the generic cell rate algorithm, equivalent to a token bucket of
+ * ratelimit.burst tokens refilled at ratelimit.rate tokens per second). The
+ * buckets live in striped tables bounded by ratelimit.maxKeys, the least
+ * recently used entries being evicted first, and the idle ones as soon as
+ * their bucket is full again.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 18/10/2017
+ */
+@Handles(methods = Handles.ANY_METHOD, order = Integer.MIN_VALUE)
+public class RateLimitRequestHandler implements HttpRequestHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(RateLimitRequestHandler.class);
+
+    private static final int MAX_ENCODED_RETRY_AFTER = 120;
+    private static final byte[][] tooManyRequests = new byte[MAX_ENCODED_RETRY_AFTER + 1][];
+    private static final LongAdder limited = ServerMetrics.counter("ratelimit.limited");
+    private static final LongAdder evicted = ServerMetrics.counter("ratelimit.evicted");
+
+    private static final String keyHeader;
+    private static final Rule[] rules;
+
+    static {
+        try {
+            keyHeader = PropertiesUtils.getStringProperty("ratelimit.key.header", null);
+            final int maxKeys = PropertiesUtils.getIntProperty("ratelimit.maxKeys", 65536);
+            final int stripes = PropertiesUtils.getIntProperty("ratelimit.stripes", 16);
+            final List<Rule> list = new ArrayList<>();
+            final String routes = PropertiesUtils.getStringProperty("ratelimit.routes", "");
+            for (final String route : routes.split(",")) {
+                if (CharSequenceUtils.isBlank(route)) {
+                    continue;
+                }
+                // prefix:rate:burst
+                final String[] values = route.trim().split(":");
+                if (values.length != 3) {
+                    throw new IllegalArgumentException("Invalid ratelimit.routes entry, expected prefix:rate:burst: " + route);
+                }
+                list.add(new Rule(values[0].trim(), Double.parseDouble(values[1].trim()), Integer.parseInt(values[2].trim()), maxKeys, stripes));
+            }
+            list.add(new Rule("/", Double.parseDouble(PropertiesUtils.getStringProperty("ratelimit.rate", "50")),
+                    PropertiesUtils.getIntProperty("ratelimit.burst", 100), maxKeys, stripes));
+            // the longest prefix wins
+            list.sort((r1, r2) -> r2.prefix.length() - r1.prefix.length());
+            rules = list.toArray(new Rule[list.size()]);
+            for (int i = 1; i <= MAX_ENCODED_RETRY_AFTER; i++) {
+                tooManyRequests[i] = encode(i);
+            }
+            LOGGER.debug(() -> "Rate limit rules: " + list + ", key header: " + keyHeader);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.HttpRequestHandler#handle(com.esv.net.HttpRequest)
+     */
+    @Override
+    public void handle(final HttpRequest httpRequest) throws Exception {
+        final Rule rule = RateLimitRequestHandler.match(httpRequest.getPathInfo());
+        if (null == rule) {
+            return;
+        }
+        final String key = RateLimitRequestHandler.clientKey(httpRequest);
+        final long waitNanos = rule.acquire(key, System.nanoTime());
+        if (waitNanos > 0L) {
+            limited.increment();
+            final long retryAfter = Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999999999L));
+            LOGGER.debug(() -> "Rate limit exceeded by " + key + " on " + httpRequest.getPathInfo() + ", retry after " + retryAfter + "s");
+            HttpResponse.writeEncoded(retryAfter <= MAX_ENCODED_RETRY_AFTER ? tooManyRequests[(int) retryAfter] : encode(retryAfter));
+        }
+    }
+
+    /**
+     * @param path
+     * @return the rule of the longest matching prefix, null if the path is not limited
+     */
+    private static Rule match(final String path) {
+        for (final Rule rule : rules) {
+            if (path.startsWith(rule.prefix)) {
+                return rule.intervalNanos > 0L ? rule : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param httpRequest
+     * @return the client address, followed by the key header value if present
+     */
+    private static String clientKey(final HttpRequest httpRequest) {
+        final InetAddress address = httpRequest.getInetAddress();
+        final String client = null == address ? "unknown" : address.getHostAddress();
+        if (null != keyHeader) {
+            final String value = httpRequest.getHeader(keyHeader);
+            if (!CharSequenceUtils.isBlank(value)) {
+                return client + ' ' + value.trim();
+            }
+        }
+        return client;
+    }
+
+    /**
+     * @param retryAfter in seconds
+     * @return the 429 response
+     */
+    private static byte[] encode(final long retryAfter) {
+        final String body = "Too Many Requests";
+        return ("HTTP/1.1 429 Too Many Requests\r\nContent-type: text/plain\r\nContent-length: " + body.length()
+                + "\r\nRetry-After: " + retryAfter + "\r\n\r\n" + body).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * <p>The limit of a path prefix and the buckets of its clients</p>
+     */
+    private static final class Rule {
+
+        private final String prefix;
+        private final double rate;
+        private final int burst;
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final Stripe[] stripes;
+        private final int mask;
+
+        /**
+         * @param prefix the path prefix
+         * @param rate the permits per second, 0 disables the limit
+         * @param burst the max permits taken at once
+         * @param maxKeys
+         * @param stripes rounded up to a power of two
+         */
+        private Rule(final String prefix, final double rate, final int burst, final int maxKeys, final int stripes) {
+            if (rate < 0 || burst < 1) {
+                throw new IllegalArgumentException("Invalid rate limit for " + prefix + ": " + rate + "/" + burst);
+            }
+            this.prefix = prefix;
+            this.rate = rate;
+            this.burst = burst;
+            this.intervalNanos = rate == 0 ? 0L : (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            this.toleranceNanos = intervalNanos * burst;
+            int size = 1;
+            while (size < stripes) {
+                size <<= 1;
+            }
+            this.stripes = new Stripe[size];
+            for (int i = 0; i < size; i++) {
+                this.stripes[i] = new Stripe(Math.max(1, maxKeys / size));
+            }
+            this.mask = size - 1;
+        }
+
+        /**
+         * @param key the client key
+         * @param now the current {@link System#nanoTime()}
+         * @return 0 if a permit was taken, otherwise the nanoseconds to wait for the next one
+         */
+        private long acquire(final String key, final long now) {
+            int h = key.hashCode();
+            h ^= h >>> 16;
+            final AtomicLong bucket = stripes[h & mask].get(key, now);
+            // the theoretical arrival time of the next request
+            for (;;) {
+                final long tat = bucket.get();
+                final long next = Math.max(tat, now) + intervalNanos;
+                if (next - now > toleranceNanos) {
+                    return next - now - toleranceNanos;
+                }
+                if (bucket.compareAndSet(tat, next)) {
+                    return 0L;
+                }
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return prefix + ":" + rate + ":" + burst;
+        }
+    }
+
+    /**
+     * <p>
+     * A bounded LRU table of buckets, the lock only guards the lookups; the
+     * buckets themselves are updated without locking
+     * </p>
+     */
+    @SuppressWarnings("serial")
+    private static final class Stripe extends LinkedHashMap<String, AtomicLong> {
+
+        private final int maxKeys;
+        private long now;
+
+        private Stripe(final int maxKeys) {
+            super(16, 0.75f, true);
+            this.maxKeys = maxKeys;
+        }
+
+        /**
+         * @param key
+         * @param now
+         * @return the bucket of the key, created full if absent
+         */
+        private synchronized AtomicLong get(final String key, final long now) {
+            this.now = now;
+            AtomicLong bucket = super.get(key);
+            if (null == bucket) {
+                bucket = new AtomicLong(now);
+                super.put(key, bucket);
+            }
+            return bucket;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+         */
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, AtomicLong> eldest) {
+            // a bucket already full again is the same as a new one
+            if (eldest.getValue().get() < now) {
+                return true;
+            }
+            if (size() > maxKeys) {
+                evicted.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * A single selector thread serving the non-blocking I/O of the long lived
+ * sessions (WebSocket and event streams), so open sockets do not hold a
+ * thread each. The application callbacks run on a separate pool, never on the
+ * selector thread. All sessions share the read buffer, as they consume the
+ * bytes as soon as they are read.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 17/10/2017
+ */
+final class Reactor {
+
+    private static final Logger LOGGER = Logger.getLogger(Reactor.class);
+
+    private static final Selector selector;
+    private static final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private static final ByteBuffer readBuffer;
+    private static final Executor callbackPool;
+    private static final HashedWheelTimer timer;
+
+    static {
+        try {
+            final int maxThreads = PropertiesUtils.getIntProperty("reactor.max.threads", 16);
+            readBuffer = ByteBuffer.allocateDirect(PropertiesUtils.getIntProperty("reactor.readBufferSize", 65536));
+            final AtomicInteger threads = new AtomicInteger();
+            callbackPool = Executors.newFixedThreadPool(maxThreads, runnable -> {
+                final Thread thread = new Thread(runnable, "reactor-callback-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer = new HashedWheelTimer("reactor-timer", 100L, 512);
+            selector = Selector.open();
+            final Thread reactor = new Thread(Reactor::run, "reactor");
+            reactor.setDaemon(true);
+            reactor.start();
+            LOGGER.debug(() -> "Reactor started, max callback threads: " + maxThreads);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private Reactor() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+
+    /**
+     * @param session a session whose channel is already non-blocking
+     */
+    static void register(final ReactorSession session) {
+        Reactor.execute(() -> {
+            try {
+                session.registered(session.getChannel().register(selector, SelectionKey.OP_READ, session));
+            } catch (IOException e) {
+                session.abort(e);
+            }
+        });
+    }
+
+    /**
+     * @param task a task to run on the selector thread, the only one changing the selection keys
+     */
+    static void execute(final Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @param callback a callback to run on the callback pool
+     */
+    static void callback(final Runnable callback) {
+        callbackPool.execute(callback);
+    }
+
+    /**
+     * @return the timer of the sessions keep-alive and close deadlines
+     */
+    static HashedWheelTimer timer() {
+        return timer;
+    }
+
+    /**
+     * The selector loop
+     */
+    private static void run() {
+        while (true) {
+            try {
+                selector.select();
+                Runnable task;
+                while (null != (task = tasks.poll())) {
+                    task.run();
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final ReactorSession session = (ReactorSession) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            readBuffer.clear();
+                            session.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.onWritable();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        session.abort(e);
+                    }
+                }
+            } catch (Throwable t) {
+                LOGGER.error("Unexpected error on the reactor", t);
+            }
+        }
+    }
+}
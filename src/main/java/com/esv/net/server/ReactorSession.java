@@ -0,0 +1,233 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.esv.utile.logging.Logger;
+
+/**
+ * <p>
+ * A non-blocking connection served by the {@link Reactor}. The buffers given
+ * to {@link #enqueue(ByteBuffer)} are written as the socket accepts them,
+ * without blocking the caller; the subclasses decide how much they let
+ * queue up.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 18/10/2017
+ */
+abstract class ReactorSession {
+
+    private static final Logger LOGGER = Logger.getLogger(ReactorSession.class);
+
+    private final SocketChannel channel;
+    private final AtomicBoolean closing = new AtomicBoolean();
+    // accessed by the selector thread only
+    private SelectionKey key;
+    private volatile boolean readPaused;
+    // guarded by this
+    private final Deque<ByteBuffer> sendQueue = new ArrayDeque<>();
+    private long queuedBytes;
+    private boolean writeInterest;
+
+    /**
+     * @param channel a non-blocking channel
+     */
+    ReactorSession(final SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @return the channel
+     */
+    final SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * <p>Called by the selector thread once the channel is registered</p>
+     *
+     * @param key
+     */
+    final void registered(final SelectionKey key) {
+        this.key = key;
+        this.onRegistered();
+        this.updateInterest();
+    }
+
+    /**
+     * Called by the selector thread once the channel is registered
+     */
+    void onRegistered() {
+    }
+
+    /**
+     * <p>Called by the selector thread when the channel is readable</p>
+     *
+     * @param readBuffer the empty read buffer shared by all the sessions
+     * @throws IOException
+     */
+    abstract void onReadable(ByteBuffer readBuffer) throws IOException;
+
+    /**
+     * <p>Called by the selector thread when the channel is writable</p>
+     */
+    final void onWritable() {
+        this.flushQueue();
+    }
+
+    /**
+     * Called with the lock held each time the queue is drained
+     */
+    void onFlushed() {
+    }
+
+    /**
+     * Called once, after the channel was closed
+     */
+    void onClosed() {
+    }
+
+    /**
+     * @param cause
+     */
+    final void abort(final Throwable cause) {
+        LOGGER.debug(() -> "Aborting " + this + ": " + cause.getMessage());
+        this.closeChannel();
+    }
+
+    /**
+     * Stops reading the channel, on the selector thread
+     */
+    final void pauseReads() {
+        if (!readPaused) {
+            readPaused = true;
+            this.updateInterest();
+        }
+    }
+
+    /**
+     * Resumes the paused reads, from any thread
+     */
+    final void resumeReads() {
+        Reactor.execute(() -> {
+            if (readPaused) {
+                readPaused = false;
+                this.updateInterest();
+            }
+        });
+    }
+
+    /**
+     * @return true while the reads are paused
+     */
+    final boolean isReadPaused() {
+        return readPaused;
+    }
+
+    /**
+     * @return true once the channel is closed or closing
+     */
+    final boolean isClosing() {
+        return closing.get();
+    }
+
+    /**
+     * @return the number of bytes queued but not yet written
+     */
+    final synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @param buffer the bytes to write, not modified by other threads once queued
+     */
+    final synchronized void enqueue(final ByteBuffer buffer) {
+        final boolean idle = sendQueue.isEmpty();
+        queuedBytes += buffer.remaining();
+        sendQueue.add(buffer);
+        if (idle) {
+            this.flushQueue();
+        }
+    }
+
+    /**
+     * Writes the queued buffers the socket accepts without blocking
+     */
+    private synchronized void flushQueue() {
+        try {
+            while (!sendQueue.isEmpty()) {
+                final ByteBuffer buffer = sendQueue.peek();
+                queuedBytes -= channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    this.requestWrite(true);
+                    return;
+                }
+                sendQueue.poll();
+            }
+        } catch (IOException e) {
+            this.abort(e);
+            return;
+        }
+        this.requestWrite(false);
+        this.onFlushed();
+    }
+
+    /**
+     * @param interested
+     */
+    private void requestWrite(final boolean interested) {
+        if (writeInterest != interested) {
+            writeInterest = interested;
+            Reactor.execute(this::updateInterest);
+        }
+    }
+
+    /**
+     * Applies the read and write interest, on the selector thread
+     */
+    private void updateInterest() {
+        if (null == key || !key.isValid()) {
+            return;
+        }
+        int ops = readPaused ? 0 : SelectionKey.OP_READ;
+        synchronized (this) {
+            if (writeInterest) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Closes the channel, once
+     */
+    final void closeChannel() {
+        if (!closing.compareAndSet(false, true)) {
+            return;
+        }
+        if (null != key) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.trace("Failure closing the channel", e);
+        }
+        synchronized (this) {
+            sendQueue.clear();
+            queuedBytes = 0L;
+        }
+        LOGGER.debug(() -> "Closed " + this);
+        this.onClosed();
+    }
+}
@@ -3,31 +3,50 @@
  */
 package com.esv.net.server;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.esv.net.Handles;
 import com.esv.net.HttpRequest;
 import com.esv.net.HttpRequestHandler;
 import com.esv.net.HttpResponse;
+import com.esv.net.server.MappedResourceCache.MappedResource;
+import com.esv.net.utils.ByteRangeUtils;
 import com.esv.net.utils.MimeTypeUtils;
 import com.esv.net.utils.WebResourceUtils;
 import com.esv.utile.logging.Logger;
-import com.esv.utile.utils.PropertiesUtils;
 import com.esv.utile.utils.ResourceUtils;
 
 /**
+ * <p>Serves whatever the other handlers left, so it runs last</p>
+ * 
  * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
  * @version 1.0
  * @since 20/09/2017
  */
+@Handles(order = Integer.MAX_VALUE)
 public class ResourceRequestHandler implements HttpRequestHandler {
     
     private static final Logger LOGGER = Logger.getLogger(ResourceRequestHandler.class);
     
+    static {
+        ServerConfig.onChange((previous, next) -> {
+            if (!previous.getResourcesDir().equals(next.getResourcesDir()) || !previous.getDefaultPage().equals(next.getDefaultPage())) {
+                WebResourceUtils.reload(next.getResourcesDir(), next.getDefaultPage());
+            }
+        });
+        // the mapped files are dropped as soon as they change, not on the next request
+        WebResourceUtils.onChange(MappedResourceCache::invalidate);
+    }
+    
     /**
      * @return the value of max-age 
      */
     private int cacheMaxAge() {
-        return PropertiesUtils.getIntProperty("cache.maxAge", 0);
+        return ServerConfig.current().getCacheMaxAge();
     }
 
     /*
@@ -36,20 +55,75 @@ public class ResourceRequestHandler implements HttpRequestHandler {
      */
     @Override
     public void handle(final HttpRequest httpRequest) throws Exception {
-        if (httpRequest.isRestRequest()) {
-            LOGGER.trace(() -> "Skipping handling the request URI: " + httpRequest.getRequestURI());
+        LOGGER.trace(() -> "Handling the resource request URI: " + httpRequest.getRequestURI());
+        final String resourceName = WebResourceUtils.lookup(httpRequest);
+        if (null == resourceName) {
+            this.notFound(httpRequest);
+            return;
+        }
+        // pages referring to fingerprinted resources are served as rewritten
+        final byte[] rewritten = WebResourceUtils.rewritten(resourceName);
+        if (null != rewritten) {
+            HttpResponse.write(rewritten, resourceName, cacheMaxAge());
+            return;
+        }
+        final int cacheMaxAge = WebResourceUtils.isImmutable(httpRequest.getPathInfo()) ? HttpResponse.IMMUTABLE : cacheMaxAge();
+        final MappedResource mapped = MappedResourceCache.get(resourceName);
+        if (null != mapped) {
+            this.write(httpRequest, resourceName, mapped, cacheMaxAge);
             return;
         }
-        LOGGER.debug(() -> "Handling the resource request URI: " + httpRequest.getRequestURI());
-        final String resourceName = WebResourceUtils.lookup(httpRequest, 1, WebResourceUtils.defaultPage());
         try (final InputStream inputStream = ResourceUtils.getAsStream(resourceName)) {
             if (null == inputStream) {
-                final String message = "Resource not found: " + httpRequest.getPathInfo();
-                LOGGER.error(() -> message);
-                HttpResponse.notFound(message, MimeTypeUtils.TEXT_PLAIN, message);
+                this.notFound(httpRequest);
                 return;
             }
-            HttpResponse.write(inputStream, resourceName, cacheMaxAge());
+            HttpResponse.write(inputStream, resourceName, cacheMaxAge);
+        }
+    }
+    
+    /**
+     * @param httpRequest
+     */
+    private void notFound(final HttpRequest httpRequest) {
+        final String message = "Resource not found: " + httpRequest.getPathInfo();
+        LOGGER.debug(() -> message);
+        HttpResponse.notFound(message, MimeTypeUtils.TEXT_PLAIN, message);
+    }
+    
+    /**
+     * <p>
+     * Writes a file system resource, honouring the Range and If-Range headers
+     * </p>
+     * 
+     * @param httpRequest
+     * @param resourceName
+     * @param mapped
+     * @param cacheMaxAge
+     * @throws IOException
+     */
+    private void write(final HttpRequest httpRequest, final String resourceName, final MappedResource mapped,
+            final int cacheMaxAge) throws IOException {
+        final long length = mapped.length();
+        final String range = httpRequest.getHeader("Range");
+        final List<long[]> ranges = null == range
+                || !ByteRangeUtils.ifRangeMatches(httpRequest.getHeader("If-Range"), mapped.etag(), mapped.lastModified())
+                        ? null : ByteRangeUtils.parse(range, length);
+        if (null == ranges) {
+            HttpResponse.write(mapped.slice(0, length - 1), resourceName, mapped.etag(), mapped.lastModified(), cacheMaxAge);
+        } else if (ranges.isEmpty()) {
+            LOGGER.debug(() -> "Range not satisfiable: " + range + ", length: " + length);
+            HttpResponse.rangeNotSatisfiable(length);
+        } else if (ranges.size() == 1) {
+            final long[] single = ranges.get(0);
+            HttpResponse.partial(mapped.slice(single[0], single[1]), single, length, resourceName, mapped.etag(),
+                    mapped.lastModified(), cacheMaxAge);
+        } else {
+            final List<ByteBuffer> contents = new ArrayList<>(ranges.size());
+            for (final long[] each : ranges) {
+                contents.add(mapped.slice(each[0], each[1]));
+            }
+            HttpResponse.partial(contents, ranges, length, resourceName, mapped.etag(), mapped.lastModified(), cacheMaxAge);
         }
     }
 }
\ No newline at end of file
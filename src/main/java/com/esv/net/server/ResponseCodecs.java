@@ -0,0 +1,261 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.esv.net.HttpResponse;
+import com.esv.net.rest.ResponseCodec;
+import com.esv.net.utils.MimeTypeUtils;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.JsonUtils;
+
+/**
+ * <p>
+ * The {@link ResponseCodec}s of the rest responses by media type, and the
+ * content negotiation: the codec of the media type with the highest quality
+ * explicitly listed in the Accept header. Wildcards are not matched, so
+ * browsers asking for *&#47;* are still served the resources. The outcome of
+ * each Accept value is cached, as clients send a handful of distinct ones.
+ * </p>
+ * <p>
+ * Each request thread encodes into its own reusable buffer, written as the
+ * response body once its length is known.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class ResponseCodecs {
+
+    private static final Logger LOGGER = Logger.getLogger(ResponseCodecs.class);
+
+    private static final int MAX_NEGOTIATED = 256;
+    private static final int MAX_RETAINED_BUFFER = 1 << 20;
+
+    private static final ResponseCodec JSON = new JsonCodec();
+    private static final Map<String, ResponseCodec> codecs = new LinkedHashMap<>();
+    private static final Map<String, Optional<ResponseCodec>> negotiated = new ConcurrentHashMap<>();
+    private static final ThreadLocal<ResponseBuffer> buffers = ThreadLocal.withInitial(ResponseBuffer::new);
+
+    static {
+        try {
+            ResponseCodecs.register(JSON);
+            ResponseCodecs.register(new CborCodec());
+            for (final ResponseCodec codec : ServiceLoader.load(ResponseCodec.class)) {
+                ResponseCodecs.register(codec);
+            }
+            LOGGER.debug(() -> "Response codecs: " + codecs.keySet());
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private ResponseCodecs() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+
+    private static void register(final ResponseCodec codec) {
+        final String mediaType = codec.getMediaType().trim().toLowerCase(Locale.ROOT);
+        final ResponseCodec previous = codecs.put(mediaType, codec);
+        if (null != previous) {
+            LOGGER.info(() -> "Response codec " + codec.getClass().getName() + " replaces " + previous.getClass().getName()
+                    + " for " + mediaType);
+        }
+    }
+
+    /**
+     * @return the JSON codec
+     */
+    static ResponseCodec json() {
+        return JSON;
+    }
+
+    /**
+     * @param accept the Accept header value, may be null
+     * @return the codec of the preferred media type, null if none is listed
+     */
+    static ResponseCodec negotiate(final String accept) {
+        if (null == accept) {
+            return null;
+        }
+        Optional<ResponseCodec> codec = negotiated.get(accept);
+        if (null == codec) {
+            codec = Optional.ofNullable(ResponseCodecs.select(accept));
+            if (negotiated.size() < MAX_NEGOTIATED) {
+                negotiated.put(accept, codec);
+            }
+        }
+        return codec.orElse(null);
+    }
+
+    /**
+     * @param accept
+     * @return the codec with the highest quality, the first listed winning ties
+     */
+    private static ResponseCodec select(final String accept) {
+        ResponseCodec best = null;
+        double bestQuality = 0d;
+        int start = 0;
+        while (start < accept.length()) {
+            int end = accept.indexOf(',', start);
+            if (end == -1) {
+                end = accept.length();
+            }
+            int typeEnd = accept.indexOf(';', start);
+            if (typeEnd == -1 || typeEnd > end) {
+                typeEnd = end;
+            }
+            final ResponseCodec codec = codecs.get(accept.substring(start, typeEnd).trim().toLowerCase(Locale.ROOT));
+            if (null != codec) {
+                final double quality = ResponseCodecs.quality(accept, typeEnd, end);
+                if (quality > bestQuality) {
+                    best = codec;
+                    bestQuality = quality;
+                }
+            }
+            start = end + 1;
+        }
+        return best;
+    }
+
+    /**
+     * @param accept
+     * @param start the start of the media range parameters
+     * @param end the end of the media range
+     * @return the q parameter, 1 if absent or invalid
+     */
+    private static double quality(final String accept, final int start, final int end) {
+        int i = start;
+        while (i < end) {
+            int next = accept.indexOf(';', i + 1);
+            if (next == -1 || next > end) {
+                next = end;
+            }
+            final String parameter = accept.substring(i + 1, next).trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException e) {
+                    return 1d;
+                }
+            }
+            i = next;
+        }
+        return 1d;
+    }
+
+    /**
+     * <p>Encodes the value into the thread buffer and writes it as the response</p>
+     *
+     * @param codec
+     * @param value
+     * @param responseCode
+     * @param responseMessage
+     * @throws IOException if the value could not be encoded
+     */
+    static void write(final ResponseCodec codec, final Object value, final int responseCode, final String responseMessage)
+            throws IOException {
+        final ResponseBuffer buffer = buffers.get();
+        buffer.count = 0;
+        try {
+            codec.encode(value, buffer);
+            HttpResponse.write(buffer.bytes, buffer.count, codec.getMediaType(), responseCode, responseMessage, "Vary: Accept");
+        } finally {
+            if (buffer.bytes.length > MAX_RETAINED_BUFFER) {
+                buffers.remove();
+            }
+        }
+    }
+
+    /**
+     * @param codec
+     * @param value
+     * @return the encoded value, a copy of the thread buffer to be kept by the response cache
+     * @throws IOException if the value could not be encoded
+     */
+    static byte[] encode(final ResponseCodec codec, final Object value) throws IOException {
+        final ResponseBuffer buffer = buffers.get();
+        buffer.count = 0;
+        try {
+            codec.encode(value, buffer);
+            return Arrays.copyOf(buffer.bytes, buffer.count);
+        } finally {
+            if (buffer.bytes.length > MAX_RETAINED_BUFFER) {
+                buffers.remove();
+            }
+        }
+    }
+
+    /**
+     * <p>The built in JSON codec, over {@link JsonUtils#marshall(Object)}</p>
+     */
+    private static final class JsonCodec implements ResponseCodec {
+
+        /*
+         * (non-Javadoc)
+         * @see com.esv.net.rest.ResponseCodec#getMediaType()
+         */
+        @Override
+        public String getMediaType() {
+            return MimeTypeUtils.APPLICATION_JSON;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see com.esv.net.rest.ResponseCodec#encode(java.lang.Object, java.io.OutputStream)
+         */
+        @Override
+        public void encode(final Object value, final OutputStream out) throws IOException {
+            out.write(JsonUtils.marshall(value).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * <p>A growable, unsynchronized response body buffer</p>
+     */
+    private static final class ResponseBuffer extends OutputStream {
+
+        private byte[] bytes = new byte[1024];
+        private int count;
+
+        /*
+         * (non-Javadoc)
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(final int b) {
+            if (count == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length << 1);
+            }
+            bytes[count++] = (byte) b;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            if (count + len > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(count + len, bytes.length << 1));
+            }
+            System.arraycopy(b, off, bytes, count, len);
+            count += len;
+        }
+    }
+}
\ No newline at end of file
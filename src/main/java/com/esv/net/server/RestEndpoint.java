@@ -0,0 +1,464 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.esv.net.HttpRequest;
+import com.esv.net.rest.HeaderParam;
+import com.esv.net.rest.PathParam;
+import com.esv.net.rest.QueryParam;
+import com.esv.utile.utils.ObjectUtils;
+
+/**
+ * <p>
+ * A rest endpoint and the binders of its parameters, resolved once when the
+ * services are scanned. The path template segments, the parameter sources
+ * and their converters are fixed then, so binding a request only scans the
+ * path, the query string and the headers for the values it needs: no map of
+ * the request parameters is built, and numbers are parsed in place unless
+ * they are percent encoded.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class RestEndpoint {
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final Method method;
+    private final String uri;
+    private final Bulkhead bulkhead;
+    private final long timeoutMillis;
+    private final int cacheSeconds;
+    // the literal segments of the template, null where it has a path parameter
+    private final String[] segments;
+    private final boolean template;
+    private final Binder[] binders;
+
+    /**
+     * @param method the endpoint
+     * @param uri the path, or path template such as /rest/users/{id}
+     * @param bulkhead the bulkhead of the rest service
+     * @param timeoutMillis the deadline of the calls, 0 for none
+     * @param cacheSeconds the lifetime of the cached responses, 0 for none
+     * @throws UnsupportedOperationException if a parameter is not annotated or its type is not supported,
+     *         or a cached endpoint binds a header
+     */
+    RestEndpoint(final Method method, final String uri, final Bulkhead bulkhead, final long timeoutMillis,
+            final int cacheSeconds) {
+        this.method = method;
+        this.uri = uri;
+        this.bulkhead = bulkhead;
+        this.timeoutMillis = timeoutMillis;
+        this.cacheSeconds = Math.max(0, cacheSeconds);
+        this.segments = uri.split("/", -1);
+        final Map<String, Integer> pathParams = new HashMap<>();
+        for (int i = 0; i < segments.length; i++) {
+            final String segment = segments[i];
+            if (segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}') {
+                pathParams.put(segment.substring(1, segment.length() - 1).trim(), i);
+                segments[i] = null;
+            }
+        }
+        this.template = !pathParams.isEmpty();
+        final Parameter[] parameters = method.getParameters();
+        this.binders = new Binder[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            binders[i] = this.binder(parameters[i], pathParams);
+            if (this.cacheSeconds > 0 && binders[i].source == Source.HEADER) {
+                throw new UnsupportedOperationException("Cached endpoint binding the header " + binders[i].name + " at: "
+                        + ObjectUtils.canonicalMethotName(method));
+            }
+        }
+    }
+
+    /**
+     * @param parameter
+     * @param pathParams the template segment of each path parameter
+     * @return the binder of the parameter
+     */
+    private Binder binder(final Parameter parameter, final Map<String, Integer> pathParams) {
+        final String methodName = ObjectUtils.canonicalMethotName(method);
+        final Converter converter = RestEndpoint.converter(parameter.getType());
+        if (null == converter) {
+            throw new UnsupportedOperationException("Unsupported parameter type " + parameter.getType().getName() + " at: " + methodName);
+        }
+        final QueryParam queryParam = parameter.getAnnotation(QueryParam.class);
+        if (null != queryParam) {
+            return new Binder(Source.QUERY, queryParam.value(), -1, parameter.getType(), converter);
+        }
+        final PathParam pathParam = parameter.getAnnotation(PathParam.class);
+        if (null != pathParam) {
+            final Integer segment = pathParams.get(pathParam.value());
+            if (null == segment) {
+                throw new UnsupportedOperationException("Path parameter {" + pathParam.value() + "} not in " + uri + " at: " + methodName);
+            }
+            return new Binder(Source.PATH, pathParam.value(), segment, parameter.getType(), converter);
+        }
+        final HeaderParam headerParam = parameter.getAnnotation(HeaderParam.class);
+        if (null != headerParam) {
+            return new Binder(Source.HEADER, headerParam.value(), -1, parameter.getType(), converter);
+        }
+        throw new UnsupportedOperationException("Parameter without @QueryParam, @PathParam or @HeaderParam at: " + methodName);
+    }
+
+    Method getMethod() {
+        return method;
+    }
+
+    String getUri() {
+        return uri;
+    }
+
+    Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    /**
+     * @return the deadline of the calls in milliseconds, 0 for none
+     */
+    long getTimeout() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return the seconds the responses are cached, 0 if they are not
+     */
+    int getCacheSeconds() {
+        return cacheSeconds;
+    }
+
+    /**
+     * @return true if the path has parameters, the endpoint being looked up by {@link #matches(String)}
+     */
+    boolean isTemplate() {
+        return template;
+    }
+
+    /**
+     * @param path the request path, without the query
+     * @return true if the path matches the template, segment by segment
+     */
+    boolean matches(final String path) {
+        int start = 0;
+        for (int i = 0; i < segments.length; i++) {
+            final boolean last = i == segments.length - 1;
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                if (!last) {
+                    return false;
+                }
+                end = path.length();
+            } else if (last) {
+                return false;
+            }
+            final String segment = segments[i];
+            if (null == segment ? end == start
+                    : segment.length() != end - start || !path.regionMatches(start, segment, 0, segment.length())) {
+                return false;
+            }
+            start = end + 1;
+        }
+        return true;
+    }
+
+    /**
+     * @param path the request path, without the query
+     * @param query the query string, null if absent
+     * @param httpRequest the request headers, null if not available
+     * @return the endpoint arguments
+     * @throws IllegalArgumentException if a value does not convert to its parameter type
+     */
+    Object[] bind(final String path, final String query, final HttpRequest httpRequest) {
+        if (binders.length == 0) {
+            return NO_ARGS;
+        }
+        final Object[] args = new Object[binders.length];
+        for (int i = 0; i < binders.length; i++) {
+            args[i] = binders[i].bind(path, query, httpRequest);
+        }
+        return args;
+    }
+
+    /**
+     * <p>Where a parameter value comes from</p>
+     */
+    private enum Source {
+        QUERY("query parameter"), PATH("path parameter"), HEADER("header");
+
+        private final String description;
+
+        private Source(final String description) {
+            this.description = description;
+        }
+    }
+
+    /**
+     * <p>Converts the characters from start to end of a value</p>
+     */
+    @FunctionalInterface
+    private interface Converter {
+
+        Object convert(String value, int start, int end);
+    }
+
+    /**
+     * <p>Binds a parameter from its source</p>
+     */
+    private static final class Binder {
+
+        private final Source source;
+        private final String name;
+        private final int segment;
+        private final Converter converter;
+        private final boolean string;
+        // null, or the zero value of a primitive
+        private final Object missing;
+
+        private Binder(final Source source, final String name, final int segment, final Class<?> type, final Converter converter) {
+            this.source = source;
+            this.name = name;
+            this.segment = segment;
+            this.converter = converter;
+            this.string = type == String.class;
+            this.missing = type.isPrimitive() ? Array.get(Array.newInstance(type, 1), 0) : null;
+        }
+
+        private Object bind(final String path, final String query, final HttpRequest httpRequest) {
+            switch (source) {
+            case PATH: {
+                int start = 0;
+                for (int i = 0; i < segment; i++) {
+                    start = path.indexOf('/', start) + 1;
+                }
+                final int end = path.indexOf('/', start);
+                return this.convert(path, start, end == -1 ? path.length() : end, false);
+            }
+            case QUERY: {
+                if (null == query) {
+                    return missing;
+                }
+                int start = 0;
+                while (start <= query.length()) {
+                    int end = query.indexOf('&', start);
+                    if (end == -1) {
+                        end = query.length();
+                    }
+                    final int nameEnd = start + name.length();
+                    if (nameEnd <= end && query.regionMatches(start, name, 0, name.length())) {
+                        if (nameEnd == end) {
+                            return this.convert(query, end, end, true);
+                        }
+                        if (query.charAt(nameEnd) == '=') {
+                            return this.convert(query, nameEnd + 1, end, true);
+                        }
+                    }
+                    start = end + 1;
+                }
+                return missing;
+            }
+            default: {
+                final String value = null == httpRequest ? null : httpRequest.getHeader(name);
+                return null == value ? missing : this.convert(value, 0, value.length(), false);
+            }
+            }
+        }
+
+        /**
+         * @param value
+         * @param start
+         * @param end
+         * @param query true if '+' stands for a space
+         * @return the converted value, or the missing one if empty and not a String
+         */
+        private Object convert(final String value, final int start, final int end, final boolean query) {
+            if (start == end && !string) {
+                return missing;
+            }
+            try {
+                if (source != Source.HEADER && RestEndpoint.isEncoded(value, start, end, query)) {
+                    final String decoded = RestEndpoint.decode(value, start, end, query);
+                    return converter.convert(decoded, 0, decoded.length());
+                }
+                return converter.convert(value, start, end);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid " + source.description + " " + name + ": " + value.substring(start, end), e);
+            }
+        }
+    }
+
+    /**
+     * @param type
+     * @return the converter of the type, null if not supported
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Converter converter(final Class<?> type) {
+        if (type == String.class) {
+            return String::substring;
+        }
+        if (type == int.class || type == Integer.class) {
+            return (v, s, e) -> (int) RestEndpoint.parseLong(v, s, e, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+        if (type == long.class || type == Long.class) {
+            return (v, s, e) -> RestEndpoint.parseLong(v, s, e, Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+        if (type == short.class || type == Short.class) {
+            return (v, s, e) -> (short) RestEndpoint.parseLong(v, s, e, Short.MIN_VALUE, Short.MAX_VALUE);
+        }
+        if (type == byte.class || type == Byte.class) {
+            return (v, s, e) -> (byte) RestEndpoint.parseLong(v, s, e, Byte.MIN_VALUE, Byte.MAX_VALUE);
+        }
+        if (type == double.class || type == Double.class) {
+            return (v, s, e) -> Double.parseDouble(v.substring(s, e));
+        }
+        if (type == float.class || type == Float.class) {
+            return (v, s, e) -> Float.parseFloat(v.substring(s, e));
+        }
+        if (type == boolean.class || type == Boolean.class) {
+            return RestEndpoint::parseBoolean;
+        }
+        if (type == char.class || type == Character.class) {
+            return (v, s, e) -> {
+                if (e - s != 1) {
+                    throw new IllegalArgumentException("Expected a single character");
+                }
+                return v.charAt(s);
+            };
+        }
+        if (type.isEnum()) {
+            final Enum[] constants = ((Class<? extends Enum>) type).getEnumConstants();
+            return (v, s, e) -> RestEndpoint.parseEnum(constants, v, s, e);
+        }
+        return null;
+    }
+
+    /**
+     * @param value
+     * @param start
+     * @param end
+     * @param min
+     * @param max
+     * @return the decimal number from start to end
+     * @throws NumberFormatException if not a number within min and max
+     */
+    private static long parseLong(final String value, final int start, final int end, final long min, final long max) {
+        final char sign = value.charAt(start);
+        final boolean negative = sign == '-';
+        int i = negative || sign == '+' ? start + 1 : start;
+        if (i == end) {
+            throw new NumberFormatException("Not a number");
+        }
+        // accumulated negatively, as Long.MIN_VALUE has no positive counterpart
+        long result = 0L;
+        for (; i < end; i++) {
+            final int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not a number");
+            }
+            if (result < Long.MIN_VALUE / 10 || result * 10 < Long.MIN_VALUE + digit) {
+                throw new NumberFormatException("Out of range");
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                throw new NumberFormatException("Out of range");
+            }
+            result = -result;
+        }
+        if (result < min || result > max) {
+            throw new NumberFormatException("Out of range");
+        }
+        return result;
+    }
+
+    private static Boolean parseBoolean(final String value, final int start, final int end) {
+        if (end - start == 4 && value.regionMatches(true, start, "true", 0, 4)) {
+            return Boolean.TRUE;
+        }
+        if (end - start == 5 && value.regionMatches(true, start, "false", 0, 5)) {
+            return Boolean.FALSE;
+        }
+        throw new IllegalArgumentException("Expected true or false");
+    }
+
+    /**
+     * @param constants
+     * @param value
+     * @param start
+     * @param end
+     * @return the constant named from start to end, the exact name winning over a case insensitive one
+     */
+    private static Enum<?> parseEnum(final Enum<?>[] constants, final String value, final int start, final int end) {
+        Enum<?> match = null;
+        for (final Enum<?> constant : constants) {
+            final String name = constant.name();
+            if (name.length() != end - start) {
+                continue;
+            }
+            if (value.regionMatches(start, name, 0, name.length())) {
+                return constant;
+            }
+            if (null == match && value.regionMatches(true, start, name, 0, name.length())) {
+                match = constant;
+            }
+        }
+        if (null == match) {
+            throw new IllegalArgumentException("Unknown constant");
+        }
+        return match;
+    }
+
+    private static boolean isEncoded(final String value, final int start, final int end, final boolean query) {
+        for (int i = start; i < end; i++) {
+            final char c = value.charAt(i);
+            // a raw non ASCII character is a byte of the UTF-8 encoded path, as the request line is read as ISO-8859-1
+            if (c == '%' || c > 0x7f || (query && c == '+')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param value
+     * @param start
+     * @param end
+     * @param query true if '+' stands for a space
+     * @return the percent decoded UTF-8 characters from start to end
+     * @throws IllegalArgumentException if malformed
+     */
+    private static String decode(final String value, final int start, final int end, final boolean query) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+        for (int i = start; i < end; i++) {
+            final char c = value.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= end) {
+                    throw new IllegalArgumentException("Malformed percent encoding");
+                }
+                final int high = Character.digit(value.charAt(i + 1), 16);
+                final int low = Character.digit(value.charAt(i + 2), 16);
+                if (high < 0 || low < 0) {
+                    throw new IllegalArgumentException("Malformed percent encoding");
+                }
+                bytes.write((high << 4) | low);
+                i += 2;
+            } else if (query && c == '+') {
+                bytes.write(' ');
+            } else {
+                bytes.write(c);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
\ No newline at end of file
@@ -3,14 +3,26 @@
  */
 package com.esv.net.server;
 
+import java.util.Collections;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
 import com.esv.net.HttpRequest;
 import com.esv.net.HttpRequestHandler;
 import com.esv.net.HttpResponse;
+import com.esv.net.rest.ResponseCodec;
 import com.esv.net.utils.MimeTypeUtils;
 import com.esv.utile.logging.Logger;
-import com.esv.utile.utils.JsonUtils;
 
 /**
+ * <p>
+ * Handles the rest service requests: the GET requests whose Accept header
+ * explicitly lists the media type of a {@link com.esv.net.rest.ResponseCodec}
+ * (JSON, CBOR or a codec found by the ServiceLoader), or text/event-stream.
+ * The value returned by the endpoint is encoded by the codec of the preferred
+ * media type; the other requests are left to the next handlers.
+ * </p>
+ * 
  * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
  * @version 1.0
  * @since 18/09/2017
@@ -19,6 +31,13 @@ public class RestRequestHandler implements HttpRequestHandler {
 
     private static final Logger LOGGER = Logger.getLogger(RestRequestHandler.class);
     
+    /**
+     * Scans the rest services as the request handlers are compiled
+     */
+    public RestRequestHandler() {
+        RestServiceInvoker.initialize();
+    }
+    
     /*
      * (non-Javadoc)
      * 
@@ -26,34 +45,104 @@ public class RestRequestHandler implements HttpRequestHandler {
      */
     @Override
     public void handle(final HttpRequest httpRequest) throws Exception {
-        if (httpRequest.isRestRequest()) {
-            LOGGER.debug(() -> "Handling rest service request: " + httpRequest.getRequestURI());
-            String json = JsonUtils.empty();
-            if (RestServiceInvoker.isMappedPath(httpRequest.getPathInfo())) {
-                try {
-                    switch (httpRequest.getRequestMethod()) {
-                    case "GET":
-                        json = RestServiceInvoker.get(httpRequest);
-                        break;
-                    case "DELETE":
-                    case "POST":
-                    case "PUT":
-                    default:
-                        break;
+        final String accept = httpRequest.getAccept();
+        final ResponseCodec negotiated = ResponseCodecs.negotiate(accept);
+        if (null == negotiated && (null == accept || !accept.startsWith(MimeTypeUtils.TEXT_EVENT_STREAM))) {
+            return;
+        }
+        LOGGER.trace(() -> "Handling rest service request: " + httpRequest.getRequestURI());
+        if (RestServiceInvoker.isEventStreamPath(httpRequest.getPathInfo())) {
+            this.subscribe(httpRequest);
+            return;
+        }
+        final ResponseCodec codec = null == negotiated ? ResponseCodecs.json() : negotiated;
+        Object value = Collections.emptyMap();
+        if (RestServiceInvoker.isMappedPath(httpRequest.getPathInfo())) {
+            try {
+                switch (httpRequest.getRequestMethod()) {
+                case "GET":
+                    final int cacheSeconds = PeerCache.isEnabled() ? RestServiceInvoker.getCacheSeconds(httpRequest.getPathInfo()) : 0;
+                    if (cacheSeconds > 0) {
+                        this.cached(httpRequest, codec, cacheSeconds);
+                        return;
                     }
-                } catch (Exception e) {
-                    LOGGER.error(e.getMessage(), e);
-                    json = JsonUtils.createBuilder("message", "Internal server error").build();
+                    value = RestServiceInvoker.getValue(httpRequest);
+                    break;
+                case "DELETE":
+                case "POST":
+                case "PUT":
+                default:
+                    break;
                 }
-            } else {
-                final String message = "Invalid endpoint: " + httpRequest.getPathInfo();
-                LOGGER.warn(message);
-                json = JsonUtils.createBuilder("message", message).build();
+            } catch (IllegalArgumentException e) {
+                LOGGER.debug(() -> e.getMessage());
+                ResponseCodecs.write(codec, Collections.singletonMap("message", e.getMessage()), 400, "Bad Request");
+                return;
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug(() -> e.getMessage());
+                ResponseCodecs.write(codec, Collections.singletonMap("message", "Service busy"), 503, "Service Unavailable");
+                return;
+            } catch (TimeoutException e) {
+                LOGGER.warn(e.getMessage());
+                ResponseCodecs.write(codec, Collections.singletonMap("message", "Timeout"), 504, "Gateway Timeout");
+                return;
+            } catch (Exception e) {
+                LOGGER.error(e.getMessage(), e);
+                value = Collections.singletonMap("message", "Internal server error");
             }
-            //
-           final String response = json;
-           LOGGER.debug(() -> "Returning json response: " + response);
-           HttpResponse.ok(json, MimeTypeUtils.APPLICATION_JSON);
+        } else {
+            final String message = "Invalid endpoint: " + httpRequest.getPathInfo();
+            LOGGER.warn(message);
+            value = Collections.singletonMap("message", message);
+        }
+        //
+        final Object response = value;
+        LOGGER.trace(() -> "Returning " + codec.getMediaType() + " response: " + response);
+        ResponseCodecs.write(codec, value, 200, "OK");
+    }
+
+    /**
+     * <p>
+     * Writes the response cached by this node or its cache peers, or else
+     * invokes the endpoint and caches the encoded value
+     * </p>
+     * 
+     * @param httpRequest
+     * @param codec the negotiated codec, part of the cache key
+     * @param cacheSeconds the lifetime of the cached response
+     * @throws Exception thrown by the endpoint, not cached
+     */
+    private void cached(final HttpRequest httpRequest, final ResponseCodec codec, final int cacheSeconds) throws Exception {
+        final String key = codec.getMediaType() + ' ' + httpRequest.getRequestURI();
+        final byte[] cached = PeerCache.get(key);
+        if (null != cached) {
+            LOGGER.trace(() -> "Returning cached " + codec.getMediaType() + " response: " + key);
+            HttpResponse.write(cached, cached.length, codec.getMediaType(), 200, "OK", "Vary: Accept", "X-Cache: hit");
+            return;
+        }
+        final byte[] body = ResponseCodecs.encode(codec, RestServiceInvoker.getValue(httpRequest));
+        PeerCache.put(key, body, cacheSeconds);
+        HttpResponse.write(body, body.length, codec.getMediaType(), 200, "OK", "Vary: Accept", "X-Cache: miss");
+    }
+
+    /**
+     * <p>
+     * Subscribes the client to the event channel returned by the endpoint,
+     * the connection is kept open by the {@link Reactor}
+     * </p>
+     * 
+     * @param httpRequest
+     * @throws Exception
+     */
+    private void subscribe(final HttpRequest httpRequest) throws Exception {
+        final Connection connection = SocketHandler.currentConnection();
+        if (null == connection) {
+            final String message = "Event streams require a HTTP/1.1 connection";
+            LOGGER.warn(message);
+            HttpResponse.badRequest(message, MimeTypeUtils.TEXT_PLAIN, message);
+            return;
         }
+        LOGGER.debug(() -> "Subscribing to event stream: " + httpRequest.getPathInfo());
+        EventStreamConnection.accept(connection, httpRequest, RestServiceInvoker.subscribe(httpRequest));
     }
 }
\ No newline at end of file
@@ -5,14 +5,19 @@ package com.esv.net.server;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import com.esv.net.HttpRequest;
+import com.esv.net.rest.EventStream;
 import com.esv.net.rest.Get;
 import com.esv.net.rest.RestService;
 import com.esv.utile.logging.Logger;
@@ -20,7 +25,6 @@ import com.esv.utile.utils.CharSequenceUtils;
 import com.esv.utile.utils.JsonUtils;
 import com.esv.utile.utils.ObjectUtils;
 import com.esv.utile.utils.PropertiesUtils;
-import com.esv.utile.utils.ResourceUtils;
 
 /**
  * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
@@ -32,11 +36,24 @@ final class RestServiceInvoker {
     private static final Logger LOGGER = Logger.getLogger(RestServiceInvoker.class);
 
     private static final Set<String> uriMappings = new HashSet<>();
-    private static final Map<String, Method> getMappings = new ConcurrentHashMap<>();
+    private static final Map<String, RestEndpoint> getMappings = new ConcurrentHashMap<>();
+    // the Get endpoints with path parameters, matched in declaration order
+    private static final List<RestEndpoint> getTemplates = new CopyOnWriteArrayList<>();
+    private static final Map<String, Method> eventStreamMappings = new ConcurrentHashMap<>();
     private static final Map<Class<?>, Object> singletons = new ConcurrentHashMap<>();
     
+    private static final int defaultTimeout;
+    private static final int defaultMaxConcurrent;
+    // the request threads busy with rest calls, leaving the others to the static resources
+    private static final Bulkhead restBulkhead;
+    
     static {
         try {
+            defaultTimeout = PropertiesUtils.getIntProperty("rest.timeout", 0);
+            defaultMaxConcurrent = PropertiesUtils.getIntProperty("rest.bulkhead.maxConcurrent", 16);
+            restBulkhead = new Bulkhead("rest", PropertiesUtils.getIntProperty("rest.maxConcurrent", 50));
+            LOGGER.debug(() -> "Rest timeout: " + defaultTimeout + "ms, max concurrent: " + restBulkhead
+                    + ", per service: " + defaultMaxConcurrent);
             RestServiceInvoker.scanServices();
         } catch (Exception e) {
             throw new ExceptionInInitializerError(e);
@@ -50,18 +67,24 @@ final class RestServiceInvoker {
         throw new AssertionError("Suppress default constructor for non instantiability");
     }
     
+    /**
+     * <p>Scans the rest services, once, failing with the first endpoint that can not be served</p>
+     */
+    static void initialize() {
+        LOGGER.debug(() -> getMappings.size() + " Get endpoints, " + eventStreamMappings.size() + " event streams");
+    }
+    
     /**
      * @throws Exception
      */
     private static void scanServices() throws Exception {
-        final String testOutputDir = PropertiesUtils.getStringProperty("test.output.dir", "test-classes");
-        final boolean testContext = ResourceUtils.endsWith(".", testOutputDir);
-        final List<String> classes = ResourceUtils.listClasses(true == testContext ? System.getProperty("java.class.path") : ".");
+        final List<String> classes = ServiceIndex.classes();
         for (final String className : classes) {
             try {
                 final Class<?> clazz = Class.forName(className);
                 if (clazz.isAnnotationPresent(RestService.class)) {
                     LOGGER.debug(() -> "Found RestService annotation at class: " + className);
+                    ServiceIndex.found(className);
                     final RestService restService = clazz.getAnnotation(RestService.class);
                     if (true == restService.singleton()) {
                         LOGGER.debug(() -> "Creating a singleton instance of: " + className);
@@ -69,8 +92,12 @@ final class RestServiceInvoker {
                             singletons.put(clazz, ObjectUtils.newInstance(clazz));
                         }
                     }
-                    scanEndpoints(className, clazz);
+                    final int maxConcurrent = restService.maxConcurrent() < 0 ? defaultMaxConcurrent : restService.maxConcurrent();
+                    scanEndpoints(className, clazz, new Bulkhead(clazz.getName(), maxConcurrent));
                 }
+            } catch (UnsupportedOperationException e) {
+                // an endpoint that can not be served fails the startup rather than being left out
+                throw e;
             } catch (Exception e) {
                 LOGGER.debug(() -> e.getMessage()).trace("Stack trace:", e);
             }
@@ -80,34 +107,78 @@ final class RestServiceInvoker {
     /**
      * @param className
      * @param clazz
+     * @param bulkhead shared by the endpoints of the class
      */
-    private static void scanEndpoints(final String className, final Class<?> clazz) {
+    private static void scanEndpoints(final String className, final Class<?> clazz, final Bulkhead bulkhead) {
         for (final Method method : clazz.getDeclaredMethods()) {
             if (method.isAnnotationPresent(Get.class)) {
-                addGetEndpoint(method);
+                addGetEndpoint(method, bulkhead);
+            }
+            if (method.isAnnotationPresent(EventStream.class)) {
+                addEventStreamEndpoint(method);
             }
         }
     }
 
     /**
      * @param method
+     * @param bulkhead
      */
-    private static void addGetEndpoint(final Method method) {
+    private static void addGetEndpoint(final Method method, final Bulkhead bulkhead) {
         final Get get = method.getAnnotation(Get.class);
         final String currMethodName = ObjectUtils.canonicalMethotName(method);
         LOGGER.debug(() -> "Found Get(\"" + get.value() + "\") annotation at: " + currMethodName);
         final String uri = get.value().trim();
-        if (getMappings.containsKey(uri)) {
-            final Method m = getMappings.get(uri);
-            final String prevMethodName = ObjectUtils.canonicalMethotName(m);
-            final String message = "Duplicate Get(\"" + uri + "\") annotation at: " + prevMethodName + " and " + currMethodName;
+        RestServiceInvoker.requireUnmapped("Get", uri, currMethodName);
+        final RestEndpoint endpoint;
+        try {
+            endpoint = new RestEndpoint(method, uri, bulkhead, get.timeout() < 0 ? defaultTimeout : get.timeout(), get.cache());
+        } catch (UnsupportedOperationException e) {
+            LOGGER.fatal(() -> e.getMessage());
+            throw e;
+        }
+        getMappings.put(uri, endpoint);
+        if (endpoint.isTemplate()) {
+            getTemplates.add(endpoint);
+        }
+        uriMappings.add(uri);
+    }
+
+    /**
+     * @param method
+     */
+    private static void addEventStreamEndpoint(final Method method) {
+        final EventStream eventStream = method.getAnnotation(EventStream.class);
+        final String currMethodName = ObjectUtils.canonicalMethotName(method);
+        LOGGER.debug(() -> "Found EventStream(\"" + eventStream.value() + "\") annotation at: " + currMethodName);
+        if (!EventChannel.class.isAssignableFrom(method.getReturnType())) {
+            final String message = "EventStream method must return an EventChannel: " + currMethodName;
             LOGGER.fatal(() -> message);
             throw new UnsupportedOperationException(message);
         }
-        getMappings.put(uri, method);
+        final String uri = eventStream.value().trim();
+        RestServiceInvoker.requireUnmapped("EventStream", uri, currMethodName);
+        eventStreamMappings.put(uri, method);
         uriMappings.add(uri);
     }
 
+    /**
+     * @param annotation the simple name of the annotation mapping the uri
+     * @param uri
+     * @param currMethodName
+     * @throws UnsupportedOperationException if a Get or an EventStream endpoint already maps the uri
+     */
+    private static void requireUnmapped(final String annotation, final String uri, final String currMethodName) {
+        final RestEndpoint endpoint = getMappings.get(uri);
+        final Method previous = null == endpoint ? eventStreamMappings.get(uri) : endpoint.getMethod();
+        if (null != previous) {
+            final String prevMethodName = ObjectUtils.canonicalMethotName(previous);
+            final String message = "Duplicate " + annotation + "(\"" + uri + "\") annotation at: " + prevMethodName + " and " + currMethodName;
+            LOGGER.fatal(() -> message);
+            throw new UnsupportedOperationException(message);
+        }
+    }
+
     /**
      * @param uri
      * @return
@@ -116,29 +187,153 @@ final class RestServiceInvoker {
         if (CharSequenceUtils.isBlank(uri)) {
             return uriMappings.contains("/");
         }
-        return uriMappings.contains(uri.trim());
+        return uriMappings.contains(uri.trim()) || null != RestServiceInvoker.findTemplate(uri.trim());
     }
  
+    /**
+     * @param uri
+     * @return true if the path is mapped to an event stream endpoint
+     */
+    public static boolean isEventStreamPath(final String uri) {
+        return null != uri && eventStreamMappings.containsKey(uri.trim());
+    }
+
+    /**
+     * @param httpRequest
+     * @return the event channel returned by the endpoint
+     * @throws Exception
+     */
+    public static EventChannel subscribe(final HttpRequest httpRequest) throws Exception {
+        final Method method = eventStreamMappings.get(httpRequest.getPathInfo().trim());
+        return ObjectUtils.requireNotNull((EventChannel) invoke(method, new Object[0]), "EventStream method returned null: " + ObjectUtils.canonicalMethotName(method));
+    }
+
     /**
      * @param uri
      * @return
+     * @throws IllegalArgumentException if a parameter value does not convert to its type
      * @throws Exception
      */
     public static String get(final HttpRequest httpRequest) throws Exception {
-        final Method method = getMappings.get(httpRequest.getPathInfo());
-        return JsonUtils.marshall(invoke(method));
+        return JsonUtils.marshall(RestServiceInvoker.getValue(httpRequest));
+    }
+
+    /**
+     * @param httpRequest
+     * @return the value returned by the Get endpoint, to be encoded by the negotiated codec
+     * @throws IllegalArgumentException if a parameter value does not convert to its type
+     * @throws RejectedExecutionException if the rest calls or the service calls are at their limit
+     * @throws TimeoutException if the endpoint deadline passed
+     * @throws Exception
+     */
+    static Object getValue(final HttpRequest httpRequest) throws Exception {
+        final String uri = httpRequest.getRequestURI();
+        final int idx = uri.indexOf('?');
+        final String query = idx == -1 ? null : uri.substring(idx + 1);
+        return restBulkhead.call(() -> RestServiceInvoker.getValue(httpRequest.getPathInfo(), query, httpRequest), 0L);
+    }
+
+    /**
+     * @param uri the request path, with the query if any
+     * @return the json returned by the Get endpoint mapped to the path, without binding header parameters
+     * @throws IllegalArgumentException if a parameter value does not convert to its type
+     * @throws RejectedExecutionException if the service calls are at their limit
+     * @throws TimeoutException if the endpoint deadline passed
+     * @throws Exception
+     */
+    static String get(final String uri) throws Exception {
+        final int idx = uri.indexOf('?');
+        return JsonUtils.marshall(idx == -1 ? RestServiceInvoker.getValue(uri, null, null)
+                : RestServiceInvoker.getValue(uri.substring(0, idx), uri.substring(idx + 1), null));
+    }
+
+    /**
+     * @param path
+     * @param query null if absent
+     * @param httpRequest null if not available
+     * @return the value returned by the endpoint
+     * @throws Exception
+     */
+    private static Object getValue(final String path, final String query, final HttpRequest httpRequest) throws Exception {
+        RestEndpoint endpoint = getMappings.get(path);
+        if (null == endpoint) {
+            endpoint = ObjectUtils.requireNotNull(RestServiceInvoker.findTemplate(path), "No Get endpoint mapped to: " + path);
+        }
+        // bound on the calling thread, the request is not to be read by the bulkhead threads
+        final Object[] args = endpoint.bind(path, query, httpRequest);
+        final Method method = endpoint.getMethod();
+        final Object event = FlightEvents.beginRest();
+        Throwable failure = null;
+        try {
+            return endpoint.getBulkhead().call(() -> invoke(method, args), endpoint.getTimeout());
+        } catch (Exception | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            FlightEvents.commitRest(event, endpoint.getUri(), path, failure);
+        }
+    }
+
+    /**
+     * @param path the request path, without the query
+     * @return true if the path is mapped to a Get endpoint
+     */
+    static boolean isGetPath(final String path) {
+        return null != path && (getMappings.containsKey(path) || null != RestServiceInvoker.findTemplate(path));
+    }
+
+    /**
+     * @param path the request path, without the query
+     * @return the seconds the responses of the Get endpoint mapped to the path are cached, 0 if none
+     */
+    static int getCacheSeconds(final String path) {
+        if (null == path) {
+            return 0;
+        }
+        RestEndpoint endpoint = getMappings.get(path);
+        if (null == endpoint) {
+            endpoint = RestServiceInvoker.findTemplate(path);
+        }
+        return null == endpoint ? 0 : endpoint.getCacheSeconds();
+    }
+
+    /**
+     * @return the paths of the Get endpoints without path parameters
+     */
+    static List<String> getLiteralPaths() {
+        final List<String> paths = new ArrayList<>();
+        for (final Map.Entry<String, RestEndpoint> entry : getMappings.entrySet()) {
+            if (!entry.getValue().isTemplate()) {
+                paths.add(entry.getKey());
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @param path
+     * @return the first Get endpoint whose template matches the path, null if none
+     */
+    private static RestEndpoint findTemplate(final String path) {
+        for (final RestEndpoint endpoint : getTemplates) {
+            if (endpoint.matches(path)) {
+                return endpoint;
+            }
+        }
+        return null;
     }
 
     /**
      * @param method
+     * @param args
      * @return
      * @throws IllegalAccessException
      * @throws InvocationTargetException
      */
-    private static Object invoke(final Method method) throws IllegalAccessException, InvocationTargetException {
+    private static Object invoke(final Method method, final Object[] args) throws IllegalAccessException, InvocationTargetException {
         ObjectUtils.requireNotNull(method, "method parameter is null");
         final Class<?> clazz = method.getDeclaringClass();
-        final Object result = method.invoke(Optional.ofNullable(singletons.get(clazz)).orElse(ObjectUtils.newInstance(clazz)));
+        final Object result = method.invoke(Optional.ofNullable(singletons.get(clazz)).orElse(ObjectUtils.newInstance(clazz)), args);
         LOGGER.trace(() -> "Object returned: " + result);
         return result;
     }
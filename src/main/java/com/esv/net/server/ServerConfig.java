@@ -0,0 +1,278 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.CharSequenceUtils;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * An immutable and typed snapshot of the settings the server may change while
+ * running: the request threads, the request handlers, the web resources
+ * directory and default page, and the resources max-age. The current
+ * snapshot is published through a single volatile reference, so the hot path
+ * reads a field instead of looking a property up.
+ * </p>
+ * <p>
+ * With config.reload=true the directory of the config.file is watched, and
+ * every change of the file publishes a new snapshot (system properties still
+ * overriding the file) and notifies the {@link #onChange(BiConsumer)}
+ * listeners, which resize the thread pool, recompile the handlers pipeline
+ * and rescan the web resources. The snapshot is published once all the
+ * listeners applied it; a file that does not load or validate, or that a
+ * listener fails to apply, leaves the current snapshot in place, the
+ * listeners already called being given it back. The other settings are read
+ * once at startup.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+public final class ServerConfig {
+
+    private static final Logger LOGGER = Logger.getLogger(ServerConfig.class);
+
+    private static final long DEBOUNCE_MILLIS = 100L;
+
+    private static final List<BiConsumer<ServerConfig, ServerConfig>> listeners = new CopyOnWriteArrayList<>();
+    private static volatile ServerConfig current;
+
+    private final int maxThreads;
+    private final List<String> requestHandlers;
+    private final String resourcesDir;
+    private final String defaultPage;
+    private final int cacheMaxAge;
+
+    static {
+        try {
+            current = new ServerConfig(key -> PropertiesUtils.getStringProperty(key, null));
+            LOGGER.debug(() -> "Configuration: " + current);
+            if (Boolean.parseBoolean(PropertiesUtils.getStringProperty("config.reload", "true").trim())) {
+                ServerConfig.watch(PropertiesUtils.getStringProperty("config.file", "application.properties").trim());
+            }
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * @param properties the property lookup, null for absent properties
+     * @throws IllegalArgumentException if a setting is invalid
+     */
+    private ServerConfig(final Function<String, String> properties) {
+        this.maxThreads = ServerConfig.intValue(properties, "microserver.max.threads", 100);
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("Invalid microserver.max.threads: " + maxThreads);
+        }
+        final String handlers = properties.apply("request.handlers");
+        if (CharSequenceUtils.isBlank(handlers)) {
+            throw new IllegalArgumentException("Missing request.handlers");
+        }
+        final List<String> list = new ArrayList<>();
+        for (final String handler : handlers.split(",")) {
+            if (!CharSequenceUtils.isBlank(handler)) {
+                list.add(handler.trim());
+            }
+        }
+        this.requestHandlers = Collections.unmodifiableList(list);
+        this.resourcesDir = ServerConfig.value(properties, "resources.dir", "htdocs");
+        this.defaultPage = ServerConfig.value(properties, "default.page", "main.html");
+        this.cacheMaxAge = ServerConfig.intValue(properties, "cache.maxAge", 0);
+    }
+
+    /**
+     * @return the current snapshot
+     */
+    public static ServerConfig current() {
+        return current;
+    }
+
+    /**
+     * <p>Registers a listener of the reloads, called with the previous and the new snapshot</p>
+     *
+     * @param listener
+     */
+    static void onChange(final BiConsumer<ServerConfig, ServerConfig> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return microserver.max.threads
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * @return request.handlers, the handler class names
+     */
+    public List<String> getRequestHandlers() {
+        return requestHandlers;
+    }
+
+    /**
+     * @return resources.dir
+     */
+    public String getResourcesDir() {
+        return resourcesDir;
+    }
+
+    /**
+     * @return default.page
+     */
+    public String getDefaultPage() {
+        return defaultPage;
+    }
+
+    /**
+     * @return cache.maxAge, in seconds
+     */
+    public int getCacheMaxAge() {
+        return cacheMaxAge;
+    }
+
+    /**
+     * @param name the file path, or the class path resource name
+     */
+    private static void watch(final String name) {
+        final Path file;
+        try {
+            final Path path = Paths.get(name);
+            if (Files.isRegularFile(path)) {
+                file = path.toAbsolutePath();
+            } else {
+                final URL url = Thread.currentThread().getContextClassLoader().getResource(name);
+                if (null == url || !"file".equals(url.getProtocol())) {
+                    LOGGER.debug(() -> "Configuration not reloadable, not a file: " + (null == url ? name : url));
+                    return;
+                }
+                file = Paths.get(url.toURI());
+            }
+            final WatchService watchService = file.getFileSystem().newWatchService();
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            final Thread watcher = new Thread(() -> ServerConfig.run(watchService, file), "config-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+            LOGGER.debug(() -> "Watching the configuration file: " + file);
+        } catch (Exception e) {
+            LOGGER.warn(() -> "Configuration not reloadable: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param watchService
+     * @param file
+     */
+    private static void run(final WatchService watchService, final Path file) {
+        try {
+            for (;;) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                do {
+                    for (final WatchEvent<?> event : key.pollEvents()) {
+                        changed |= file.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                    // editors write a file in several steps, the last one wins
+                    key = changed ? watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS) : null;
+                } while (null != key);
+                if (changed) {
+                    ServerConfig.reload(file);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.debug(() -> "Configuration watcher stopped");
+        }
+    }
+
+    /**
+     * <p>Publishes a snapshot of the file once applied, keeping the current one if invalid or not applied</p>
+     *
+     * @param file
+     */
+    static void reload(final Path file) {
+        final Properties properties = new Properties();
+        final ServerConfig next;
+        try (final InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+            next = new ServerConfig(key -> {
+                final String value = System.getProperty(key);
+                return null == value ? properties.getProperty(key) : value;
+            });
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Configuration not reloaded, keeping the current one: " + file, e);
+            return;
+        }
+        final ServerConfig previous = current;
+        final List<BiConsumer<ServerConfig, ServerConfig>> applied = new ArrayList<>();
+        try {
+            for (final BiConsumer<ServerConfig, ServerConfig> listener : listeners) {
+                listener.accept(previous, next);
+                applied.add(listener);
+            }
+        } catch (RuntimeException | LinkageError e) {
+            LOGGER.error("Configuration not applied, keeping the current one: " + file, e);
+            // the listeners apply the differences, so given back the current snapshot they undo them
+            for (int i = applied.size() - 1; i >= 0; i--) {
+                try {
+                    applied.get(i).accept(next, previous);
+                } catch (RuntimeException | LinkageError ex) {
+                    LOGGER.error("Failure restoring the current configuration", ex);
+                }
+            }
+            return;
+        }
+        current = next;
+        LOGGER.info(() -> "Configuration reloaded: " + next);
+    }
+
+    private static String value(final Function<String, String> properties, final String key, final String defaultValue) {
+        final String value = properties.apply(key);
+        return CharSequenceUtils.isBlank(value) ? defaultValue : value.trim();
+    }
+
+    private static int intValue(final Function<String, String> properties, final String key, final int defaultValue) {
+        final String value = properties.apply(key);
+        if (CharSequenceUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + ": " + value, e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ServerConfig [maxThreads=" + maxThreads + ", requestHandlers=" + requestHandlers + ", resourcesDir="
+                + resourcesDir + ", defaultPage=" + defaultPage + ", cacheMaxAge=" + cacheMaxAge + "]";
+    }
+}
\ No newline at end of file
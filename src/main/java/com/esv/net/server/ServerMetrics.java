@@ -0,0 +1,178 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * Server wide counters. Callers on the hot path should keep the
+ * {@link LongAdder} returned by {@link #counter(String)} instead of looking it
+ * up on every increment.
+ * </p>
+ * <p>
+ * Once the server is started the counters are published, unless
+ * metrics.jmx=false, as the read only attributes of the
+ * com.esv.net:type=ServerMetrics MBean, so JConsole or any JMX client reads
+ * them without a request reaching the server port.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 14/10/2017
+ */
+public final class ServerMetrics {
+    
+    private static final Logger LOGGER = Logger.getLogger(ServerMetrics.class);
+    
+    private static final String OBJECT_NAME = "com.esv.net:type=ServerMetrics";
+    
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private ServerMetrics() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+    
+    /**
+     * @param name the counter name
+     * @return the counter registered with the given name, created if absent
+     */
+    public static LongAdder counter(final String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+    
+    /**
+     * @param name the counter name
+     * @return the current value, or 0 if the counter does not exist
+     */
+    public static long get(final String name) {
+        final LongAdder counter = counters.get(name);
+        return null == counter ? 0L : counter.sum();
+    }
+    
+    /**
+     * @return a sorted and immutable copy of the current values
+     */
+    public static Map<String, Long> snapshot() {
+        final Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        return Collections.unmodifiableMap(snapshot);
+    }
+    
+    /**
+     * <p>Registers the counters MBean in the platform MBean server, once, unless metrics.jmx=false</p>
+     */
+    static void register() {
+        if (!Boolean.parseBoolean(PropertiesUtils.getStringProperty("metrics.jmx", "true").trim())) {
+            return;
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new CountersMBean(), name);
+                LOGGER.debug(() -> "Metrics published as " + OBJECT_NAME);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Metrics not published through JMX", e);
+        }
+    }
+    
+    /**
+     * <p>
+     * An attribute per counter, listed again on every {@link #getMBeanInfo()}
+     * as the counters are created on first use
+     * </p>
+     */
+    private static final class CountersMBean implements DynamicMBean {
+        
+        /*
+         * (non-Javadoc)
+         * @see javax.management.DynamicMBean#getAttribute(java.lang.String)
+         */
+        @Override
+        public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+            final LongAdder counter = counters.get(attribute);
+            if (null == counter) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return counter.sum();
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see javax.management.DynamicMBean#getAttributes(java.lang.String[])
+         */
+        @Override
+        public AttributeList getAttributes(final String[] attributes) {
+            final AttributeList values = new AttributeList(attributes.length);
+            for (final String attribute : attributes) {
+                final LongAdder counter = counters.get(attribute);
+                if (null != counter) {
+                    values.add(new Attribute(attribute, counter.sum()));
+                }
+            }
+            return values;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see javax.management.DynamicMBean#setAttribute(javax.management.Attribute)
+         */
+        @Override
+        public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Read only: " + attribute.getName());
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see javax.management.DynamicMBean#setAttributes(javax.management.AttributeList)
+         */
+        @Override
+        public AttributeList setAttributes(final AttributeList attributes) {
+            return new AttributeList();
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see javax.management.DynamicMBean#invoke(java.lang.String, java.lang.Object[], java.lang.String[])
+         */
+        @Override
+        public Object invoke(final String actionName, final Object[] params, final String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see javax.management.DynamicMBean#getMBeanInfo()
+         */
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            final MBeanAttributeInfo[] attributes = ServerMetrics.snapshot().keySet().stream()
+                    .map(name -> new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(ServerMetrics.class.getName(), "Server wide counters", attributes, null, null, null);
+        }
+    }
+}
\ No newline at end of file
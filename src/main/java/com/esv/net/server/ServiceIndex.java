@@ -0,0 +1,126 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+import com.esv.utile.utils.ResourceUtils;
+
+/**
+ * <p>
+ * The classes scanned for the {@link com.esv.net.rest.RestService} and
+ * {@link com.esv.net.websocket.WebSocket} annotations. When the class path
+ * holds the META-INF/userver/services.idx index, one class name per line,
+ * only its classes are loaded; otherwise every class of the class path is
+ * listed and loaded, as before. The index is written by the training run
+ * from the classes found annotated, so a native image, which has no class
+ * files to list, still finds its services, and a JVM start skips the walk of
+ * the class path.
+ * </p>
+ * <p>
+ * Only the index of a packaged artifact, a jar or a native image, is read:
+ * an index left in a class path directory, such as target/classes after a
+ * training run, would hide the services added since, so it is ignored.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class ServiceIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(ServiceIndex.class);
+
+    static final String RESOURCE = "META-INF/userver/services.idx";
+
+    private static final Set<String> found = new ConcurrentSkipListSet<>();
+
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private ServiceIndex() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+
+    /**
+     * @return the class names to scan
+     * @throws Exception
+     */
+    static List<String> classes() throws Exception {
+        // a training run rebuilds the index, so it lists every class
+        final List<String> indexed = TrainingRun.isEnabled() ? null : ServiceIndex.read();
+        if (null != indexed) {
+            LOGGER.debug(() -> "Scanning the " + indexed.size() + " classes of " + RESOURCE);
+            return indexed;
+        }
+        final String testOutputDir = PropertiesUtils.getStringProperty("test.output.dir", "test-classes");
+        final boolean testContext = ResourceUtils.endsWith(".", testOutputDir);
+        return ResourceUtils.listClasses(true == testContext ? System.getProperty("java.class.path") : ".");
+    }
+
+    /**
+     * @return the indexed class names, null without index
+     * @throws IOException
+     */
+    private static List<String> read() throws IOException {
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        final URL url = (null == classLoader ? ServiceIndex.class.getClassLoader() : classLoader).getResource(RESOURCE);
+        if (null == url) {
+            return null;
+        }
+        if ("file".equals(url.getProtocol())) {
+            LOGGER.debug(() -> "Ignoring the index of a class path directory: " + url);
+            return null;
+        }
+        try (final InputStream in = url.openStream()) {
+            final List<String> classes = new ArrayList<>();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            for (String line = reader.readLine(); null != line; line = reader.readLine()) {
+                final String className = line.trim();
+                if (!className.isEmpty() && !className.startsWith("#")) {
+                    classes.add(className);
+                }
+            }
+            return classes;
+        }
+    }
+
+    /**
+     * <p>Records an annotated class, to be written to the index</p>
+     *
+     * @param className
+     */
+    static void found(final String className) {
+        found.add(className);
+    }
+
+    /**
+     * <p>Writes the annotated classes found so far</p>
+     *
+     * @param file
+     * @throws IOException
+     */
+    static void write(final Path file) throws IOException {
+        final Set<String> classes = new TreeSet<>(found);
+        if (null != file.getParent()) {
+            Files.createDirectories(file.getParent());
+        }
+        Files.write(file, classes, StandardCharsets.UTF_8);
+        LOGGER.info(() -> "Wrote " + classes.size() + " classes to " + file);
+    }
+}
\ No newline at end of file
@@ -3,17 +3,19 @@
  */
 package com.esv.net.server;
 
-import java.io.OutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
 import java.util.List;
 
+import javax.net.ssl.SSLException;
+
 import com.esv.net.HttpRequest;
 import com.esv.net.HttpRequestHandler;
 import com.esv.net.HttpResponse;
 import com.esv.net.utils.MimeTypeUtils;
 import com.esv.utile.logging.Logger;
 import com.esv.utile.utils.ObjectUtils;
-import com.esv.utile.utils.PropertiesUtils;
 
 /**
  * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
@@ -23,40 +25,63 @@ import com.esv.utile.utils.PropertiesUtils;
 final class SocketHandler {
 
     private static final Logger LOGGER = Logger.getLogger(SocketHandler.class);
-    private static final List<HttpRequestHandler> httpRequestHandlers;
+    // replaced as a whole when request.handlers is reloaded
+    private static volatile HandlerPipeline pipeline;
+    private static final ThreadLocal<Connection> currentConnection = new ThreadLocal<>();
+    // null unless microserver.limit=true
+    private static final ConcurrencyLimiter limiter;
+    // an unread request body beyond this size closes the connection instead of being skipped
+    private static final long MAX_SKIPPED_BODY = 65536L;
 
     /**
      * <p>
      * Create a singleton and immutable request handlers list based on
      * request.handlers configuration required to handle the application
-     * requests.
+     * requests, compiled into the dispatch pipeline, and recompiled when
+     * the {@link ServerConfig} reloads other handlers.
      * </p>
      */
     static {
         try {
-            final String[] handlers = PropertiesUtils.getRequiredProperty("request.handlers").split(",");
-            httpRequestHandlers = ObjectUtils.newInstances(handlers);
-            LOGGER.debug(() -> "Successfully load the request handlers: " + httpRequestHandlers);
+            pipeline = SocketHandler.compile(ServerConfig.current().getRequestHandlers());
+            limiter = ConcurrencyLimiter.create();
+            ServerConfig.onChange((previous, next) -> {
+                if (!previous.getRequestHandlers().equals(next.getRequestHandlers())) {
+                    pipeline = SocketHandler.compile(next.getRequestHandlers());
+                }
+            });
         } catch (Exception e) {
             throw new ExceptionInInitializerError(e);
         }
     }
 
+    /**
+     * @param handlers the handler class names
+     * @return the pipeline of new instances of the handlers
+     */
+    private static HandlerPipeline compile(final List<String> handlers) {
+        final List<HttpRequestHandler> httpRequestHandlers = ObjectUtils.newInstances(handlers.toArray(new String[handlers.size()]));
+        final HandlerPipeline compiled = HandlerPipeline.compile(httpRequestHandlers);
+        LOGGER.debug(() -> "Successfully load the request handlers: " + httpRequestHandlers + ", " + compiled);
+        return compiled;
+    }
+
+    /**
+     * <p>
+     * Compiles the request handlers before the first connection, so a handler
+     * or a rest endpoint that can not be served fails the startup
+     * </p>
+     */
+    static void initialize() {
+        LOGGER.debug(() -> "Request handlers ready: " + pipeline);
+    }
+
     /**
      * @param method a HTTP method
-     * @return true if the given HTTP method is allowed
+     * @return true if a request handler is declared for the given HTTP method
      */
     protected static boolean isAllowedMethod(final String method) {
-        switch (method) {
-        case "GET":
-            return true;
-        case "DELETE":
-        case "OPTIONS":
-        case "POST":
-        case "PUT":
-        default:
-            return false;
-        }
+        return SocketHandler.pipeline.supports(method);
     }
     
     /**
@@ -69,39 +94,213 @@ final class SocketHandler {
 
     /**
      * <p>
-     * Handle the given socket connection, checking is an allowed request
-     * method, creating a immutable instance of {@link HttpRequest} and delegating
-     * it to the {@link SocketHandler#httpRequestHandlers} and closing the resources
-     * when handle finish
+     * Handle the given socket connection, parsing each {@link HttpRequest}
+     * into the worker's pooled instance, processing it or switching the connection to
+     * HTTP/2 or WebSocket, and closing the resources when handle finish. A HTTP/1.1
+     * connection is kept alive between its requests, unless the client or the response
+     * asks to close it, until the keep-alive deadline passes without a new request. Reads
+     * and writes are bounded by the {@link Connection} deadlines.
      * </p>
      * 
      * @param request
      */
     public static void handle(final Socket socket) {
-        try (final OutputStream outputStream = socket.getOutputStream()) {
-            // creating a new request object
-            final HttpRequest httpRequest = HttpRequest.newInstance(socket);
-            LOGGER.trace(() -> "HttpRequest content: " + httpRequest);
-            // check if is an allowed request method
-            final String requestMethod = httpRequest.getRequestMethod();
-            if (SocketHandler.isNotAllowedMethod(requestMethod)) {
-                final String message = "Method Not Allowed: " + requestMethod;
-                LOGGER.error(message);
-                HttpResponse.notAllowed(message, MimeTypeUtils.TEXT_PLAIN, message);
+        Connection connection = null;
+        try (final Connection conn = new Connection(socket)) {
+            connection = conn;
+            while (SocketHandler.exchange(socket, conn) && conn.awaitNextRequest()) {
+                // the next request of the persistent connection
+            }
+        } catch (Throwable t) {
+            if (null != connection && connection.isExpired()) {
+                LOGGER.debug(() -> "Connection closed by timeout: " + t.getMessage());
                 return;
             }
+            if (t instanceof SSLException || t.getCause() instanceof SSLException) {
+                LOGGER.debug(() -> "TLS failure: " + (t instanceof SSLException ? t : t.getCause()).getMessage());
+                return;
+            }
+            LOGGER.error("Unexpected error. Could not send a response. Please try again later", t);
+            return;
+        }
+    }
+
+    /**
+     * @param socket
+     * @param conn
+     * @return true if the connection may carry another request
+     * @throws Exception
+     */
+    private static boolean exchange(final Socket socket, final Connection conn) throws Exception {
+        // parsing the request into the worker's pooled request object
+        final HttpRequest httpRequest = HttpRequest.newInstance(socket, conn.getInputStream(), conn.getOutputStream());
+        try {
+            conn.headersRead(httpRequest.getContentLength());
+            FlightEvents.commitParse(conn.takeParseEvent(), httpRequest);
+            LOGGER.trace(() -> "HttpRequest content: " + httpRequest);
+            // switch to HTTP/2 by prior knowledge or by upgrade
+            if (Http2Connection.isPriorKnowledge(httpRequest) || Http2Connection.isUpgrade(httpRequest)) {
+                Http2Connection.serve(conn, httpRequest);
+                return false;
+            }
+            // hand WebSocket sessions over to the reactor
+            if (WebSocketConnection.isUpgrade(httpRequest)) {
+                WebSocketConnection.accept(conn, httpRequest);
+                return false;
+            }
+            currentConnection.set(conn);
             try {
-                for (final HttpRequestHandler httpRequestHandler : SocketHandler.httpRequestHandlers) {
-                    httpRequestHandler.handle(httpRequest);
+                SocketHandler.process(httpRequest, conn);
+            } finally {
+                currentConnection.remove();
+                FlightEvents.commitResponseWrite(conn.takeResponseEvent(), httpRequest);
+            }
+            if (!SocketHandler.isKeepAlive(httpRequest) || !conn.isReusable() || !SocketHandler.skipBody(httpRequest)) {
+                return false;
+            }
+            // the response goes out before waiting for the next request
+            conn.getOutputStream().flush();
+            return true;
+        } finally {
+            httpRequest.recycle();
+        }
+    }
+
+    /**
+     * @param httpRequest
+     * @return true if the client keeps the connection alive: a HTTP/1.1
+     *         request without Connection: close whose body, if any, is
+     *         delimited by its Content-Length
+     */
+    private static boolean isKeepAlive(final HttpRequest httpRequest) {
+        if (!httpRequest.getRequestLine().endsWith(" HTTP/1.1") || null != httpRequest.getHeader("Transfer-Encoding")) {
+            return false;
+        }
+        final String connection = httpRequest.getHeader("Connection");
+        if (null == connection) {
+            return true;
+        }
+        for (final String token : connection.split(",")) {
+            if ("close".equalsIgnoreCase(token.trim())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * <p>Skips the request body the handlers left unread, up to {@link #MAX_SKIPPED_BODY} bytes</p>
+     * 
+     * @param httpRequest
+     * @return true if the next request follows, false if the body is too large to skip or truncated
+     */
+    private static boolean skipBody(final HttpRequest httpRequest) {
+        try {
+            final InputStream body = httpRequest.getInputStream();
+            long skipped = 0L;
+            while (skipped <= MAX_SKIPPED_BODY) {
+                final long count = body.skip(MAX_SKIPPED_BODY + 1 - skipped);
+                if (count > 0L) {
+                    skipped += count;
+                } else if (body.read() == -1) {
+                    return true;
+                } else {
+                    skipped++;
                 }
-            } catch (Exception e) {
-                final String message = "Internal Server Error";
-                LOGGER.error(message, e);
-                HttpResponse.serverError(message, MimeTypeUtils.TEXT_PLAIN, message);
             }
-        } catch (Throwable t) {
-                LOGGER.error("Unexpected error. Could not send a response. Please try again later", t);
+        } catch (IOException e) {
+            LOGGER.debug(() -> "Request body not skipped: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * @return the HTTP/1.1 connection of the request handled by the current
+     *         thread, null for HTTP/2 streams; the handlers keeping the
+     *         connection open detach it
+     */
+    static Connection currentConnection() {
+        return currentConnection.get();
+    }
+
+    /**
+     * <p>
+     * Process the given request: checking is an allowed request method and
+     * dispatching it through the {@link SocketHandler#pipeline}, answering
+     * not found if no handler completed it, and recording it in the
+     * {@link AccessLog}. Shared by the HTTP/1.1 connections and the HTTP/2
+     * streams. With an adaptive {@link ConcurrencyLimiter} the requests
+     * beyond its limit are answered with 503 instead.
+     * </p>
+     * 
+     * @param httpRequest
+     * @param connection the connection the request was read from
+     * @throws Exception if the connection expired while handling the request
+     */
+    static void process(final HttpRequest httpRequest, final Connection connection) throws Exception {
+        try {
+            if (null == limiter) {
+                SocketHandler.dispatch(httpRequest, connection);
+            } else if (limiter.tryAcquire()) {
+                SocketHandler.limited(httpRequest, connection);
+            } else {
+                final String message = "Service Unavailable";
+                LOGGER.debug(() -> "Concurrency limit reached: " + limiter.getLimit());
+                HttpResponse.serviceUnavailable(message, MimeTypeUtils.TEXT_PLAIN, message);
+            }
+        } finally {
+            AccessLog.record(httpRequest);
+        }
+    }
+
+    /**
+     * @param httpRequest
+     * @param connection
+     * @throws Exception if the connection expired while handling the request
+     */
+    private static void limited(final HttpRequest httpRequest, final Connection connection) throws Exception {
+        final long start = System.nanoTime();
+        boolean dropped = true;
+        try {
+            SocketHandler.dispatch(httpRequest, connection);
+            final int status = httpRequest.getResponseStatus();
+            // overload reported by the handlers, such as saturated bulkheads or passed deadlines
+            dropped = status == 503 || status == 504;
+        } finally {
+            limiter.release(start, dropped);
+        }
+    }
+
+    /**
+     * @param httpRequest
+     * @param connection
+     * @throws Exception if the connection expired while handling the request
+     */
+    private static void dispatch(final HttpRequest httpRequest, final Connection connection) throws Exception {
+        // check if is an allowed request method
+        final String requestMethod = httpRequest.getRequestMethod();
+        // the same pipeline for the whole request, even if reloaded meanwhile
+        final HandlerPipeline current = SocketHandler.pipeline;
+        if (!current.supports(requestMethod)) {
+            final String message = "Method Not Allowed: " + requestMethod;
+            LOGGER.debug(() -> message);
+            HttpResponse.notAllowed(message, MimeTypeUtils.TEXT_PLAIN, message);
             return;
         }
+        try {
+            current.dispatch(httpRequest);
+            if (!httpRequest.isComplete()) {
+                final String message = "No handler for: " + requestMethod + " " + httpRequest.getPathInfo();
+                LOGGER.debug(() -> message);
+                HttpResponse.notFound(message, MimeTypeUtils.TEXT_PLAIN, message);
+            }
+        } catch (Exception e) {
+            if (connection.isExpired()) {
+                throw e;
+            }
+            final String message = "Internal Server Error";
+            LOGGER.error(message, e);
+            HttpResponse.serverError(message, MimeTypeUtils.TEXT_PLAIN, message);
+        }
     }
 }
\ No newline at end of file
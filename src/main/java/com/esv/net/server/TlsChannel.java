@@ -0,0 +1,376 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import com.esv.utile.logging.Logger;
+
+/**
+ * <p>
+ * TLS over the accepted channel, driven by an {@link SSLEngine} on the
+ * connection's own thread: the handshake runs with the first read, each read
+ * unwraps the received records and each write wraps the given bytes into
+ * records written to the channel. Reads and writes may run at the same time,
+ * as the HTTP/2 streams write while the connection is read, each side with
+ * its own lock and buffers. The encrypted and the plain text sides use direct
+ * buffers of the {@link Buffers} allocator, taken when the connection is
+ * created and given back when it is closed.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class TlsChannel implements ByteChannel {
+
+    private static final Logger LOGGER = Logger.getLogger(TlsChannel.class);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final LongAdder handshakes = ServerMetrics.counter("tls.handshakes");
+    private static final LongAdder failures = ServerMetrics.counter("tls.handshake.failures");
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    // the owner of the buffers
+    private final Object owner;
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private volatile boolean handshaken;
+    // received records, in fill mode, guarded by readLock
+    private ByteBuffer netIn;
+    // unwrapped plain text, in drain mode, guarded by readLock
+    private ByteBuffer appIn;
+    private boolean inputClosed;
+    // records to send, guarded by writeLock
+    private ByteBuffer netOut;
+
+    /**
+     * @param channel the accepted blocking channel
+     * @param engine a server mode engine
+     * @param owner the connection, owner of the buffers
+     */
+    TlsChannel(final SocketChannel channel, final SSLEngine engine, final Object owner) {
+        this.channel = channel;
+        this.engine = engine;
+        this.owner = owner;
+        final SSLSession session = engine.getSession();
+        this.netIn = Buffers.acquire(session.getPacketBufferSize(), true, owner);
+        this.appIn = Buffers.acquire(session.getApplicationBufferSize(), true, owner);
+        this.netOut = Buffers.acquire(session.getPacketBufferSize(), true, owner);
+        this.appIn.flip();
+    }
+
+    /**
+     * @param buffer a buffer in fill mode, too small for the engine, released
+     * @param size the size required by the session
+     * @return a larger buffer with the same content, in fill mode
+     */
+    private ByteBuffer enlarge(final ByteBuffer buffer, final int size) {
+        final ByteBuffer enlarged = Buffers.acquire(Math.max(size, buffer.capacity() * 2), true, owner);
+        buffer.flip();
+        enlarged.put(buffer);
+        Buffers.release(buffer);
+        return enlarged;
+    }
+
+    /**
+     * @return the protocol negotiated by ALPN, null if none
+     */
+    String getApplicationProtocol() {
+        final String protocol = TlsContext.applicationProtocol(engine);
+        return null == protocol || protocol.isEmpty() ? null : protocol;
+    }
+
+    /**
+     * @throws IOException
+     */
+    private void ensureHandshake() throws IOException {
+        if (!handshaken) {
+            synchronized (readLock) {
+                if (null == appIn) {
+                    throw new ClosedChannelException();
+                }
+                if (!handshaken) {
+                    this.handshake();
+                }
+            }
+        }
+    }
+
+    /**
+     * @throws IOException if the handshake fails or the peer closes the connection meanwhile
+     */
+    private void handshake() throws IOException {
+        // filled by unwrap until the handshake finishes
+        appIn.clear();
+        try {
+            engine.beginHandshake();
+            for (HandshakeStatus status = engine.getHandshakeStatus(); status != HandshakeStatus.FINISHED
+                    && status != HandshakeStatus.NOT_HANDSHAKING; status = engine.getHandshakeStatus()) {
+                if (status == HandshakeStatus.NEED_TASK) {
+                    this.runTasks();
+                } else if (status == HandshakeStatus.NEED_WRAP) {
+                    synchronized (writeLock) {
+                        this.wrap(EMPTY);
+                    }
+                } else if (!this.unwrapHandshake()) {
+                    throw new EOFException("Connection closed during the TLS handshake");
+                }
+            }
+            handshaken = true;
+            handshakes.increment();
+            LOGGER.debug(() -> "TLS handshake: " + engine.getSession().getProtocol() + ", "
+                    + engine.getSession().getCipherSuite() + ", ALPN: " + this.getApplicationProtocol());
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            throw e;
+        } finally {
+            appIn.flip();
+        }
+    }
+
+    /**
+     * @return false if the channel reached its end
+     * @throws IOException
+     */
+    private boolean unwrapHandshake() throws IOException {
+        netIn.flip();
+        final SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+        case BUFFER_UNDERFLOW:
+            return this.receive();
+        case BUFFER_OVERFLOW:
+            appIn = this.enlarge(appIn, engine.getSession().getApplicationBufferSize());
+            return true;
+        case CLOSED:
+            throw new SSLException("TLS closed by the peer during the handshake");
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * @return false if the channel reached its end
+     * @throws IOException
+     */
+    private boolean receive() throws IOException {
+        if (!netIn.hasRemaining()) {
+            netIn = this.enlarge(netIn, engine.getSession().getPacketBufferSize());
+        }
+        return channel.read(netIn) >= 0;
+    }
+
+    private void runTasks() {
+        for (Runnable task = engine.getDelegatedTask(); null != task; task = engine.getDelegatedTask()) {
+            task.run();
+        }
+    }
+
+    /**
+     * <p>Unwraps records until some plain text is received</p>
+     *
+     * @return false if the peer closed the connection
+     * @throws IOException
+     */
+    private boolean unwrap() throws IOException {
+        appIn.compact();
+        try {
+            for (;;) {
+                netIn.flip();
+                final SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, appIn);
+                } finally {
+                    netIn.compact();
+                }
+                // the post handshake messages, such as key updates, may need an answer
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    this.runTasks();
+                }
+                if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                    synchronized (writeLock) {
+                        this.wrap(EMPTY);
+                    }
+                }
+                switch (result.getStatus()) {
+                case OK:
+                    if (appIn.position() > 0) {
+                        return true;
+                    }
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!this.receive()) {
+                        this.closeInbound();
+                        return false;
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    appIn = this.enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                default:
+                    inputClosed = true;
+                    return appIn.position() > 0;
+                }
+            }
+        } finally {
+            appIn.flip();
+        }
+    }
+
+    /**
+     * Ends the input on a channel closed without close_notify
+     */
+    private void closeInbound() {
+        inputClosed = true;
+        try {
+            engine.closeInbound();
+        } catch (SSLException e) {
+            LOGGER.trace(() -> "Connection closed without close_notify: " + e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Wraps the given bytes, or the handshake messages, and writes the records</p>
+     *
+     * @param source
+     * @throws IOException
+     */
+    private void wrap(final ByteBuffer source) throws IOException {
+        for (;;) {
+            netOut.clear();
+            final SSLEngineResult result = engine.wrap(source, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = this.enlarge(netOut, engine.getSession().getPacketBufferSize());
+                continue;
+            }
+            netOut.flip();
+            while (netOut.hasRemaining()) {
+                channel.write(netOut);
+            }
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                this.runTasks();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED && source.hasRemaining()) {
+                throw new SSLException("TLS session closed");
+            }
+            return;
+        }
+    }
+
+    /**
+     * <p>Reads the plain text received, the handshake running with the first read</p>
+     *
+     * @param destination
+     * @return the bytes read, -1 once the peer closed the connection
+     * @throws IOException
+     */
+    @Override
+    public int read(final ByteBuffer destination) throws IOException {
+        if (!destination.hasRemaining()) {
+            return 0;
+        }
+        this.ensureHandshake();
+        synchronized (readLock) {
+            if (null == appIn) {
+                throw new ClosedChannelException();
+            }
+            while (!appIn.hasRemaining()) {
+                if (inputClosed || !this.unwrap()) {
+                    return -1;
+                }
+            }
+            final int n = Math.min(destination.remaining(), appIn.remaining());
+            final int limit = appIn.limit();
+            appIn.limit(appIn.position() + n);
+            destination.put(appIn);
+            appIn.limit(limit);
+            return n;
+        }
+    }
+
+    /**
+     * <p>Sends the plain text, wrapped into records written at once</p>
+     *
+     * @param source
+     * @return the bytes written, all of them
+     * @throws IOException
+     */
+    @Override
+    public int write(final ByteBuffer source) throws IOException {
+        final int n = source.remaining();
+        this.ensureHandshake();
+        synchronized (writeLock) {
+            if (null == netOut) {
+                throw new ClosedChannelException();
+            }
+            while (source.hasRemaining()) {
+                this.wrap(source);
+            }
+        }
+        return n;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.nio.channels.Channel#isOpen()
+     */
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * <p>Sends close_notify, the channel being closed by the connection</p>
+     */
+    @Override
+    public void close() {
+        if (!handshaken) {
+            return;
+        }
+        synchronized (writeLock) {
+            engine.closeOutbound();
+            try {
+                while (!engine.isOutboundDone()) {
+                    this.wrap(EMPTY);
+                }
+            } catch (IOException e) {
+                LOGGER.trace(() -> "Could not send close_notify: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * <p>Gives the buffers back to the allocator, once the connection is closed</p>
+     */
+    void release() {
+        synchronized (readLock) {
+            Buffers.release(netIn);
+            Buffers.release(appIn);
+            netIn = null;
+            appIn = null;
+        }
+        synchronized (writeLock) {
+            Buffers.release(netOut);
+            netOut = null;
+        }
+    }
+}
\ No newline at end of file
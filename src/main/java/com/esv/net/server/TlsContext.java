@@ -0,0 +1,241 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+import com.esv.utile.utils.ResourceUtils;
+
+/**
+ * <p>
+ * The TLS configuration of the server port, enabled by tls.enabled=true: the
+ * key store holding the server certificate, the protocols, the application
+ * protocols offered by ALPN and the session cache, bounded in size and
+ * lifetime, that lets the clients resume their sessions without a full
+ * handshake. Stateless session tickets are issued from JDK 13, where the
+ * tls.session.tickets setting is handed to the JDK before the first TLS
+ * context is created. ALPN is available from JDK 8u252, its methods being
+ * looked up once, so an older JDK serves HTTP/1.1 only.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class TlsContext {
+
+    private static final Logger LOGGER = Logger.getLogger(TlsContext.class);
+
+    private static final boolean enabled;
+    private static final SSLContext serverContext;
+    // trusts the server certificate only, for the requests of the server to itself
+    private static final SSLContext clientContext;
+    private static final String[] protocols;
+    private static final String[] applicationProtocols;
+    private static final Method setApplicationProtocols;
+    private static final Method getApplicationProtocol;
+
+    static {
+        try {
+            enabled = Boolean.parseBoolean(PropertiesUtils.getStringProperty("tls.enabled", "false").trim());
+            setApplicationProtocols = TlsContext.method(SSLParameters.class, "setApplicationProtocols", String[].class);
+            getApplicationProtocol = TlsContext.method(SSLEngine.class, "getApplicationProtocol");
+            if (enabled) {
+                // read by the JDK when the first context is created
+                TlsContext.setDefault("jdk.tls.server.enableSessionTicketExtension",
+                        PropertiesUtils.getStringProperty("tls.session.tickets", "true").trim());
+                TlsContext.setDefault("jdk.tls.rejectClientInitiatedRenegotiation", "true");
+                final char[] password = PropertiesUtils.getStringProperty("tls.keystore.password", "").toCharArray();
+                final KeyStore keyStore = TlsContext.load(PropertiesUtils.getRequiredProperty("tls.keystore"),
+                        PropertiesUtils.getStringProperty("tls.keystore.type", "PKCS12"), password);
+                final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keyManagers.init(keyStore, password);
+                serverContext = SSLContext.getInstance("TLS");
+                serverContext.init(keyManagers.getKeyManagers(), null, null);
+                final SSLSessionContext sessions = serverContext.getServerSessionContext();
+                sessions.setSessionCacheSize(PropertiesUtils.getIntProperty("tls.session.cacheSize", 20480));
+                sessions.setSessionTimeout(PropertiesUtils.getIntProperty("tls.session.timeout", 86400));
+                final TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustManagers.init(keyStore);
+                clientContext = SSLContext.getInstance("TLS");
+                clientContext.init(null, trustManagers.getTrustManagers(), null);
+                protocols = TlsContext.supported(PropertiesUtils.getStringProperty("tls.protocols", "TLSv1.3,TLSv1.2"),
+                        serverContext.getSupportedSSLParameters().getProtocols());
+                applicationProtocols = TlsContext.applicationProtocols(PropertiesUtils.getStringProperty("tls.alpn", "h2,http/1.1"));
+                LOGGER.info(() -> "TLS protocols: " + Arrays.toString(protocols) + ", ALPN: "
+                        + (null == setApplicationProtocols ? "not supported" : Arrays.toString(applicationProtocols))
+                        + ", session cache: " + sessions.getSessionCacheSize() + " sessions, " + sessions.getSessionTimeout() + "s");
+            } else {
+                serverContext = null;
+                clientContext = null;
+                protocols = null;
+                applicationProtocols = null;
+            }
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private TlsContext() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+
+    /**
+     * @param type
+     * @param name
+     * @param parameterTypes
+     * @return the method, or null if this JDK does not have it
+     */
+    private static Method method(final Class<?> type, final String name, final Class<?>... parameterTypes) {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param property
+     * @param value
+     */
+    private static void setDefault(final String property, final String value) {
+        if (null == System.getProperty(property)) {
+            System.setProperty(property, value);
+        }
+    }
+
+    /**
+     * @param location a file path, or else a class path resource
+     * @param type
+     * @param password
+     * @return the loaded key store
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    private static KeyStore load(final String location, final String type, final char[] password)
+            throws IOException, GeneralSecurityException {
+        final Path file = Paths.get(location.trim());
+        try (final InputStream in = Files.isRegularFile(file) ? Files.newInputStream(file)
+                : ResourceUtils.getAsStream(ResourceUtils.normalize(location.trim()))) {
+            if (null == in) {
+                throw new FileNotFoundException("Key store not found: " + location);
+            }
+            final KeyStore keyStore = KeyStore.getInstance(type.trim());
+            keyStore.load(in, password);
+            return keyStore;
+        }
+    }
+
+    /**
+     * @param configured comma separated protocols
+     * @param supported
+     * @return the configured protocols this JDK supports
+     */
+    private static String[] supported(final String configured, final String[] supported) {
+        final List<String> available = Arrays.asList(supported);
+        final List<String> selected = new ArrayList<>();
+        for (final String protocol : configured.split(",")) {
+            if (available.contains(protocol.trim())) {
+                selected.add(protocol.trim());
+            } else {
+                LOGGER.warn(() -> "TLS protocol not supported: " + protocol.trim());
+            }
+        }
+        if (selected.isEmpty()) {
+            throw new IllegalArgumentException("No supported TLS protocol in: " + configured);
+        }
+        return selected.toArray(new String[selected.size()]);
+    }
+
+    /**
+     * @param configured comma separated ALPN identifiers, by preference
+     * @return the identifiers, without h2 when HTTP/2 is disabled
+     */
+    private static String[] applicationProtocols(final String configured) {
+        final List<String> selected = new ArrayList<>();
+        for (final String protocol : configured.split(",")) {
+            final String identifier = protocol.trim();
+            if (!identifier.isEmpty() && (!"h2".equals(identifier) || Http2Connection.isEnabled())) {
+                selected.add(identifier);
+            }
+        }
+        return selected.toArray(new String[selected.size()]);
+    }
+
+    /**
+     * @return true if the server port speaks TLS
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return a server mode engine, configured with the protocols and the ALPN identifiers
+     */
+    static SSLEngine newEngine() {
+        final SSLEngine engine = serverContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        final SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(protocols);
+        if (null != setApplicationProtocols && applicationProtocols.length > 0) {
+            try {
+                setApplicationProtocols.invoke(parameters, (Object) applicationProtocols);
+            } catch (ReflectiveOperationException e) {
+                LOGGER.trace("Could not set the ALPN identifiers", e);
+            }
+        }
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    /**
+     * @param engine
+     * @return the protocol negotiated by ALPN, null or empty if none
+     */
+    static String applicationProtocol(final SSLEngine engine) {
+        if (null == getApplicationProtocol) {
+            return null;
+        }
+        try {
+            return (String) getApplicationProtocol.invoke(engine);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param address
+     * @param port
+     * @return a client socket connected to the server port, trusting the server certificate
+     * @throws IOException
+     */
+    static Socket connect(final InetAddress address, final int port) throws IOException {
+        return clientContext.getSocketFactory().createSocket(address, port);
+    }
+}
\ No newline at end of file
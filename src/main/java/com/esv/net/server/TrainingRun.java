@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+import com.esv.net.utils.MimeTypeUtils;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.CharSequenceUtils;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * With microserver.training=true the server trains itself once started: it
+ * requests the default page and every rest Get endpoint without path
+ * parameters, in each built in media type, then stops the JVM. The classes
+ * loaded and the reflection used along the way are what the AppCDS archive
+ * (-XX:ArchiveClassesAtExit) and the native-image agent record, so the
+ * appcds and native Maven profiles run it at build time.
+ * </p>
+ * <p>
+ * The run writes the services index (microserver.training.index) and fails,
+ * exiting with 1, when a request fails or when the server was not ready,
+ * started and answering its first request, within
+ * microserver.training.maxStartup milliseconds, so a startup regression
+ * breaks the build.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class TrainingRun {
+
+    private static final Logger LOGGER = Logger.getLogger(TrainingRun.class);
+
+    private static final int SO_TIMEOUT = 10000;
+
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private TrainingRun() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+
+    /**
+     * @return true if microserver.training is set
+     */
+    static boolean isEnabled() {
+        return Boolean.parseBoolean(PropertiesUtils.getStringProperty("microserver.training", "false").trim());
+    }
+
+    /**
+     * <p>Trains the server listening at the port on a separate thread</p>
+     *
+     * @param port
+     * @param startupMillis the time the server took to start
+     */
+    static void start(final int port, final long startupMillis) {
+        final Thread thread = new Thread(() -> TrainingRun.run(port, startupMillis), "training-run");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void run(final int port, final long startupMillis) {
+        int status = 0;
+        try {
+            final long maxStartup = PropertiesUtils.getIntProperty("microserver.training.maxStartup", 0);
+            final long firstRequest = System.currentTimeMillis();
+            TrainingRun.request(port, "/", MimeTypeUtils.TEXT_HTML);
+            final long readyMillis = startupMillis + System.currentTimeMillis() - firstRequest;
+            LOGGER.info(() -> "Ready in " + readyMillis + " milliseconds");
+            for (final String path : RestServiceInvoker.getLiteralPaths()) {
+                TrainingRun.request(port, path, MimeTypeUtils.APPLICATION_JSON);
+                TrainingRun.request(port, path, MimeTypeUtils.APPLICATION_CBOR);
+            }
+            // the websocket endpoints are only scanned on the first upgrade
+            WebSocketEndpoints.get(null);
+            final String index = PropertiesUtils.getStringProperty("microserver.training.index", null);
+            if (!CharSequenceUtils.isBlank(index)) {
+                ServiceIndex.write(Paths.get(index.trim()));
+            }
+            if (maxStartup > 0 && readyMillis > maxStartup) {
+                LOGGER.fatal(() -> "Startup regression: ready in " + readyMillis + " milliseconds, over the "
+                        + maxStartup + " of microserver.training.maxStartup");
+                status = 1;
+            }
+        } catch (Exception | ExceptionInInitializerError e) {
+            LOGGER.error("Training run failed", e);
+            status = 1;
+        }
+        MicroServer.stop();
+        System.exit(status);
+    }
+
+    /**
+     * @param port
+     * @param path
+     * @param accept
+     * @throws IOException if the request fails or is answered with a server error
+     */
+    private static void request(final int port, final String path, final String accept) throws IOException {
+        try (final Socket socket = TlsContext.isEnabled() ? TlsContext.connect(InetAddress.getLoopbackAddress(), port)
+                : new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(SO_TIMEOUT);
+            final OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nAccept: " + accept
+                    + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            final InputStream in = socket.getInputStream();
+            final StringBuilder statusLine = new StringBuilder();
+            for (int b = in.read(); b != -1 && b != '\r' && b != '\n'; b = in.read()) {
+                statusLine.append((char) b);
+            }
+            final byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // drained, the connection is closed after the response
+            }
+            LOGGER.info(() -> "Training " + path + " (" + accept + "): " + statusLine);
+            if (statusLine.length() < 12 || statusLine.charAt(9) == '5') {
+                throw new IOException("Training request " + path + " (" + accept + ") failed: " + statusLine);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,692 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esv.net.HttpRequest;
+import com.esv.net.HttpResponse;
+import com.esv.net.utils.MimeTypeUtils;
+import com.esv.net.websocket.WebSocketSession;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.PropertiesUtils;
+
+/**
+ * <p>
+ * A WebSocket session (RFC 6455) served by the {@link Reactor}. The
+ * frames are decoded and unmasked in place as they are read, only a message
+ * still being received keeps a buffer of its own. The messages sent are queued
+ * and written without blocking; the reads are paused while too many received
+ * messages wait for the endpoint, so both directions apply backpressure.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 17/10/2017
+ */
+final class WebSocketConnection extends ReactorSession implements WebSocketSession {
+
+    private static final Logger LOGGER = Logger.getLogger(WebSocketConnection.class);
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int CONTINUATION = 0x0;
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xa;
+    private static final int UNSUPPORTED_DATA = 1003;
+    private static final int NO_STATUS = 1005;
+    private static final int INITIAL_MESSAGE_BUFFER = 4096;
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int maxMessageSize;
+    private static final long maxQueuedBytes;
+    private static final int maxPendingMessages;
+    private static final long pingInterval;
+    private static final long closeTimeout;
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final LongAdder opened = ServerMetrics.counter("websocket.opened");
+    private static final LongAdder closed = ServerMetrics.counter("websocket.closed");
+    private static final LongAdder refused = ServerMetrics.counter("websocket.refused");
+    // used by the selector thread only
+    private static final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+
+    static {
+        try {
+            maxMessageSize = PropertiesUtils.getIntProperty("websocket.maxMessageSize", 65536);
+            maxQueuedBytes = PropertiesUtils.getIntProperty("websocket.maxQueuedBytes", 1048576);
+            maxPendingMessages = PropertiesUtils.getIntProperty("websocket.maxPendingMessages", 64);
+            pingInterval = PropertiesUtils.getIntProperty("websocket.pingInterval", 30000);
+            closeTimeout = PropertiesUtils.getIntProperty("websocket.closeTimeout", 5000);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String id;
+    private final String path;
+    private final InetAddress remoteAddress;
+    private final WebSocketEndpoints.Endpoint endpoint;
+    private volatile long lastRead = System.currentTimeMillis();
+    private volatile HashedWheelTimer.Timeout timeout;
+    // decoding state, accessed by the selector thread only
+    private byte[] buffered;
+    private final byte[] header = new byte[14];
+    private int headerLength;
+    private int maskOffset;
+    private int maskIndex;
+    private long payloadRemaining = -1L;
+    private int opcode;
+    private boolean fin;
+    private final byte[] control = new byte[125];
+    private int controlLength;
+    private byte[] message;
+    private int messageLength;
+    private int messageOpcode = -1;
+    private boolean failed;
+    // close handshake state, guarded by this
+    private boolean closeSent;
+    private boolean closeReceived;
+    private boolean closeTimerArmed;
+    // endpoint callbacks, run one at a time
+    private final Queue<Callback> callbacks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCallbacks = new AtomicInteger();
+    private final AtomicBoolean callbackRunning = new AtomicBoolean();
+
+    /**
+     * @param channel a non-blocking channel
+     * @param endpoint
+     * @param path
+     * @param buffered the bytes read with the handshake request
+     */
+    private WebSocketConnection(final SocketChannel channel, final WebSocketEndpoints.Endpoint endpoint, final String path,
+            final byte[] buffered) {
+        super(channel);
+        this.id = "ws-" + sequence.incrementAndGet();
+        this.endpoint = endpoint;
+        this.path = path;
+        this.remoteAddress = channel.socket().getInetAddress();
+        this.buffered = buffered;
+    }
+
+    /**
+     * @param httpRequest
+     * @return true if the request asks to upgrade to a mapped WebSocket endpoint
+     */
+    static boolean isUpgrade(final HttpRequest httpRequest) {
+        return "GET".equals(httpRequest.getRequestMethod()) && "websocket".equalsIgnoreCase(httpRequest.getHeader("Upgrade"))
+                && null != WebSocketEndpoints.get(httpRequest.getPathInfo());
+    }
+
+    /**
+     * <p>
+     * Completes the opening handshake and hands the socket over to the
+     * {@link Reactor}, releasing the calling thread
+     * </p>
+     *
+     * @param connection
+     * @param httpRequest the upgrade request
+     * @throws IOException
+     */
+    static void accept(final Connection connection, final HttpRequest httpRequest) throws IOException {
+        final String key = httpRequest.getHeader("Sec-WebSocket-Key");
+        final String version = httpRequest.getHeader("Sec-WebSocket-Version");
+        final SocketChannel channel = connection.getChannel();
+        if (null == key || null == version || !"13".equals(version.trim()) || null == channel) {
+            final String message = "Invalid WebSocket handshake";
+            LOGGER.warn(message);
+            HttpResponse.badRequest(message, MimeTypeUtils.TEXT_PLAIN, message);
+            return;
+        }
+        final String handshake = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + acceptKey(key.trim()) + "\r\n\r\n";
+        connection.getOutputStream().write(handshake.getBytes(StandardCharsets.ISO_8859_1));
+        httpRequest.complete();
+        final byte[] buffered = connection.detach();
+        channel.configureBlocking(false);
+        final WebSocketConnection session = new WebSocketConnection(channel, WebSocketEndpoints.get(httpRequest.getPathInfo()),
+                httpRequest.getPathInfo(), buffered);
+        LOGGER.debug(() -> "Opening " + session);
+        Reactor.register(session);
+    }
+
+    /**
+     * @param key the Sec-WebSocket-Key header
+     * @return the Sec-WebSocket-Accept header
+     */
+    private static String acceptKey(final String key) {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.server.ReactorSession#onRegistered()
+     */
+    @Override
+    void onRegistered() {
+        opened.increment();
+        this.dispatch(() -> endpoint.open(this));
+        if (pingInterval > 0) {
+            timeout = Reactor.timer().newTimeout(this::keepAlive, pingInterval);
+        }
+        if (buffered.length > 0) {
+            this.decode(ByteBuffer.wrap(buffered));
+        }
+        buffered = null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.server.ReactorSession#onReadable(java.nio.ByteBuffer)
+     */
+    @Override
+    void onReadable(final ByteBuffer readBuffer) throws IOException {
+        final int count = this.getChannel().read(readBuffer);
+        if (count < 0) {
+            LOGGER.debug(() -> "Connection closed by the peer: " + this);
+            this.closeChannel();
+            return;
+        }
+        lastRead = System.currentTimeMillis();
+        readBuffer.flip();
+        if (!failed) {
+            this.decode(readBuffer);
+        }
+    }
+
+    /**
+     * @param buffer
+     */
+    private void decode(final ByteBuffer buffer) {
+        while (buffer.hasRemaining() && !failed && !closeReceived) {
+            if (payloadRemaining < 0L) {
+                header[headerLength++] = buffer.get();
+                if (headerLength == this.headerRequired() && (!this.startFrame() || payloadRemaining == 0L && !this.endFrame())) {
+                    return;
+                }
+                continue;
+            }
+            final int count = (int) Math.min(payloadRemaining, buffer.remaining());
+            final byte[] target;
+            final int offset;
+            if (opcode >= CLOSE) {
+                target = control;
+                offset = controlLength;
+                controlLength += count;
+            } else {
+                target = this.ensureMessageCapacity(messageLength + count);
+                offset = messageLength;
+                messageLength += count;
+            }
+            buffer.get(target, offset, count);
+            for (int i = offset; i < offset + count; i++) {
+                target[i] ^= header[maskOffset + (maskIndex++ & 3)];
+            }
+            payloadRemaining -= count;
+            if (payloadRemaining == 0L && !this.endFrame()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the length of the frame header, known after its first two bytes
+     */
+    private int headerRequired() {
+        if (headerLength < 2) {
+            return 2;
+        }
+        final int length = header[1] & 0x7f;
+        return (length == 126 ? 4 : length == 127 ? 10 : 2) + 4;
+    }
+
+    /**
+     * @return false if the frame header is invalid and the session failed
+     */
+    private boolean startFrame() {
+        final int b0 = header[0] & 0xff;
+        final int b1 = header[1] & 0xff;
+        fin = (b0 & 0x80) != 0;
+        opcode = b0 & 0x0f;
+        if ((b0 & 0x70) != 0 || (b1 & 0x80) == 0) {
+            return this.fail(PROTOCOL_ERROR, "Reserved bits set or unmasked client frame");
+        }
+        long length = b1 & 0x7f;
+        if (length == 126) {
+            length = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+        } else if (length == 127) {
+            length = 0L;
+            for (int i = 2; i < 10; i++) {
+                length = (length << 8) | (header[i] & 0xff);
+            }
+            if (length < 0L) {
+                return this.fail(PROTOCOL_ERROR, "Invalid frame length");
+            }
+        }
+        maskOffset = headerLength - 4;
+        maskIndex = 0;
+        headerLength = 0;
+        switch (opcode) {
+        case CLOSE:
+        case PING:
+        case PONG:
+            if (!fin || length > 125L) {
+                return this.fail(PROTOCOL_ERROR, "Invalid control frame");
+            }
+            controlLength = 0;
+            break;
+        case TEXT:
+        case BINARY:
+            if (messageOpcode != -1) {
+                return this.fail(PROTOCOL_ERROR, "New message before the end of the previous one");
+            }
+            if (opcode == TEXT ? !endpoint.acceptsText() : !endpoint.acceptsBinary()) {
+                return this.fail(UNSUPPORTED_DATA, "Message type not accepted by the endpoint");
+            }
+            messageOpcode = opcode;
+            messageLength = 0;
+            break;
+        case CONTINUATION:
+            if (messageOpcode == -1) {
+                return this.fail(PROTOCOL_ERROR, "Continuation without a message");
+            }
+            break;
+        default:
+            return this.fail(PROTOCOL_ERROR, "Unknown opcode: " + opcode);
+        }
+        if (opcode < CLOSE && messageLength + length > maxMessageSize) {
+            return this.fail(MESSAGE_TOO_BIG, "Message larger than " + maxMessageSize + " bytes");
+        }
+        payloadRemaining = length;
+        return true;
+    }
+
+    /**
+     * @return false if the session must stop decoding
+     */
+    private boolean endFrame() {
+        payloadRemaining = -1L;
+        switch (opcode) {
+        case CLOSE:
+            return this.onClose();
+        case PING:
+            this.sendControl(PONG, Arrays.copyOf(control, controlLength));
+            return true;
+        case PONG:
+            return true;
+        default:
+            if (fin) {
+                return this.deliver();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return false if the text message is not valid UTF-8
+     */
+    private boolean deliver() {
+        final int type = messageOpcode;
+        final byte[] data = messageLength == 0 ? EMPTY : message;
+        final int length = messageLength;
+        messageOpcode = -1;
+        messageLength = 0;
+        if (type == TEXT) {
+            final String text;
+            try {
+                text = utf8.decode(ByteBuffer.wrap(data, 0, length)).toString();
+            } catch (CharacterCodingException e) {
+                return this.fail(INVALID_PAYLOAD, "Invalid UTF-8 text message");
+            }
+            this.dispatch(() -> endpoint.message(this, text));
+        } else {
+            final byte[] bytes = Arrays.copyOf(data, length);
+            this.dispatch(() -> endpoint.message(this, bytes));
+        }
+        // idle sessions do not keep large buffers
+        if (null != message && message.length > INITIAL_MESSAGE_BUFFER) {
+            message = null;
+        }
+        return true;
+    }
+
+    /**
+     * @param required
+     * @return the message buffer, grown to hold the required bytes
+     */
+    private byte[] ensureMessageCapacity(final int required) {
+        if (null == message || message.length < required) {
+            final int length = null == message ? INITIAL_MESSAGE_BUFFER : message.length * 2;
+            message = Arrays.copyOf(null == message ? EMPTY : message, Math.min(maxMessageSize, Math.max(required, length)));
+        }
+        return message;
+    }
+
+    /**
+     * @return false, the session stops decoding
+     */
+    private boolean onClose() {
+        int code = NO_STATUS;
+        if (controlLength == 1) {
+            return this.fail(PROTOCOL_ERROR, "Invalid close frame");
+        }
+        if (controlLength >= 2) {
+            code = ((control[0] & 0xff) << 8) | (control[1] & 0xff);
+            if (code < 1000 || code == 1004 || code == NO_STATUS || code == 1006 || code > 1014 && code < 3000 || code >= 5000) {
+                return this.fail(PROTOCOL_ERROR, "Invalid close code: " + code);
+            }
+        }
+        final int status = code;
+        LOGGER.debug(() -> "Close received with code " + status + ": " + this);
+        synchronized (this) {
+            closeReceived = true;
+            if (closeSent) {
+                if (this.getQueuedBytes() == 0L) {
+                    this.closeChannel();
+                }
+                return false;
+            }
+        }
+        this.close(code == NO_STATUS ? NORMAL_CLOSURE : code, null);
+        return false;
+    }
+
+    /**
+     * @param code
+     * @param message
+     * @return false, the session stops decoding
+     */
+    private boolean fail(final int code, final String message) {
+        LOGGER.debug(() -> "Failing " + this + ": " + message);
+        failed = true;
+        this.close(code, null);
+        return false;
+    }
+
+    /**
+     * @param callback an endpoint callback, called by the selector thread
+     */
+    private void dispatch(final Callback callback) {
+        if (pendingCallbacks.incrementAndGet() >= maxPendingMessages && !this.isReadPaused()) {
+            // the endpoint is not keeping up, stop reading until it does
+            this.pauseReads();
+            if (pendingCallbacks.get() == 0) {
+                this.resumeReads();
+            }
+        }
+        this.schedule(callback);
+    }
+
+    /**
+     * @param callback
+     */
+    private void schedule(final Callback callback) {
+        callbacks.add(callback);
+        if (callbackRunning.compareAndSet(false, true)) {
+            Reactor.callback(this::runCallbacks);
+        }
+    }
+
+    /**
+     * Runs the queued callbacks in order, on the callback pool
+     */
+    private void runCallbacks() {
+        do {
+            Callback callback;
+            while (null != (callback = callbacks.poll())) {
+                try {
+                    callback.run();
+                } catch (Exception e) {
+                    LOGGER.error("WebSocket endpoint failure on " + this, e);
+                    this.close(INTERNAL_ERROR, null);
+                }
+                if (pendingCallbacks.decrementAndGet() == 0 && this.isReadPaused()) {
+                    this.resumeReads();
+                }
+            }
+            callbackRunning.set(false);
+        } while (!callbacks.isEmpty() && callbackRunning.compareAndSet(false, true));
+    }
+
+    /**
+     * Pings the client when idle, closing the session if it stopped answering
+     */
+    private void keepAlive() {
+        if (this.isClosing()) {
+            return;
+        }
+        final long idle = System.currentTimeMillis() - lastRead;
+        if (idle >= 2 * pingInterval) {
+            LOGGER.debug(() -> "No answer for " + idle + "ms, closing " + this);
+            this.closeChannel();
+            return;
+        }
+        if (idle >= pingInterval) {
+            this.sendControl(PING, EMPTY);
+        }
+        timeout = Reactor.timer().newTimeout(this::keepAlive, pingInterval);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.websocket.WebSocketSession#send(java.lang.String)
+     */
+    @Override
+    public boolean send(final String text) {
+        return this.send(TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.websocket.WebSocketSession#send(byte[])
+     */
+    @Override
+    public boolean send(final byte[] data) {
+        return this.send(BINARY, data);
+    }
+
+    /**
+     * @param opcode
+     * @param payload
+     * @return true if the message was queued
+     */
+    private boolean send(final int opcode, final byte[] payload) {
+        final ByteBuffer frame = frame(opcode, payload);
+        synchronized (this) {
+            if (closeSent || this.isClosing()) {
+                return false;
+            }
+            if (this.getQueuedBytes() + frame.remaining() > maxQueuedBytes) {
+                refused.increment();
+                return false;
+            }
+            this.enqueue(frame);
+        }
+        return true;
+    }
+
+    /**
+     * @param opcode
+     * @param payload
+     */
+    private synchronized void sendControl(final int opcode, final byte[] payload) {
+        if (!closeSent && !this.isClosing()) {
+            this.enqueue(frame(opcode, payload));
+        }
+    }
+
+    /**
+     * @param opcode
+     * @param payload
+     * @return a final and unmasked frame
+     */
+    private static ByteBuffer frame(final int opcode, final byte[] payload) {
+        final int length = payload.length;
+        final ByteBuffer frame = ByteBuffer.allocate((length < 126 ? 2 : length <= 0xffff ? 4 : 10) + length);
+        frame.put((byte) (0x80 | opcode));
+        if (length < 126) {
+            frame.put((byte) length);
+        } else if (length <= 0xffff) {
+            frame.put((byte) 126).putShort((short) length);
+        } else {
+            frame.put((byte) 127).putLong(length);
+        }
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.server.ReactorSession#onFlushed()
+     */
+    @Override
+    void onFlushed() {
+        if (closeSent) {
+            // the close frame was written
+            if (closeReceived) {
+                this.closeChannel();
+            } else if (!closeTimerArmed) {
+                // the client has a while to answer the close frame
+                closeTimerArmed = true;
+                this.cancelTimeout();
+                timeout = Reactor.timer().newTimeout(this::closeChannel, closeTimeout);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.websocket.WebSocketSession#close()
+     */
+    @Override
+    public void close() {
+        this.close(NORMAL_CLOSURE, null);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.websocket.WebSocketSession#close(int, java.lang.String)
+     */
+    @Override
+    public void close(final int code, final String reason) {
+        final byte[] text = null == reason ? EMPTY : reason.getBytes(StandardCharsets.UTF_8);
+        final byte[] payload = new byte[2 + Math.min(text.length, 123)];
+        payload[0] = (byte) (code >>> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(text, 0, payload, 2, payload.length - 2);
+        synchronized (this) {
+            if (closeSent || this.isClosing()) {
+                return;
+            }
+            closeSent = true;
+            this.enqueue(frame(CLOSE, payload));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.server.ReactorSession#onClosed()
+     */
+    @Override
+    void onClosed() {
+        this.cancelTimeout();
+        closed.increment();
+        pendingCallbacks.incrementAndGet();
+        this.schedule(() -> endpoint.close(this));
+    }
+
+    private void cancelTimeout() {
+        final HashedWheelTimer.Timeout current = timeout;
+        if (null != current) {
+            current.cancel();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.websocket.WebSocketSession#getId()
+     */
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.websocket.WebSocketSession#getPath()
+     */
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.websocket.WebSocketSession#getRemoteAddress()
+     */
+    @Override
+    public InetAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.websocket.WebSocketSession#isOpen()
+     */
+    @Override
+    public synchronized boolean isOpen() {
+        return !closeSent && !this.isClosing();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.esv.net.websocket.WebSocketSession#getBufferedAmount()
+     */
+    @Override
+    public long getBufferedAmount() {
+        return this.getQueuedBytes();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "WebSocketSession [id=" + id + ", path=" + path + ", remoteAddress=" + remoteAddress + "]";
+    }
+
+    /**
+     * <p>An endpoint invocation</p>
+     */
+    @FunctionalInterface
+    private interface Callback {
+        void run() throws Exception;
+    }
+}
\ No newline at end of file
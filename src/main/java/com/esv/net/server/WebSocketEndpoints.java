@@ -0,0 +1,173 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.esv.net.websocket.OnClose;
+import com.esv.net.websocket.OnMessage;
+import com.esv.net.websocket.OnOpen;
+import com.esv.net.websocket.WebSocket;
+import com.esv.net.websocket.WebSocketSession;
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.ObjectUtils;
+
+/**
+ * <p>
+ * The {@link WebSocket} endpoints found in the class path, scanned once like
+ * the rest services.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 17/10/2017
+ */
+final class WebSocketEndpoints {
+
+    private static final Logger LOGGER = Logger.getLogger(WebSocketEndpoints.class);
+
+    private static final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            WebSocketEndpoints.scanEndpoints();
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private WebSocketEndpoints() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+
+    /**
+     * @throws Exception
+     */
+    private static void scanEndpoints() throws Exception {
+        final List<String> classes = ServiceIndex.classes();
+        for (final String className : classes) {
+            try {
+                final Class<?> clazz = Class.forName(className);
+                if (clazz.isAnnotationPresent(WebSocket.class)) {
+                    final String path = clazz.getAnnotation(WebSocket.class).value().trim();
+                    LOGGER.debug(() -> "Found WebSocket(\"" + path + "\") annotation at class: " + className);
+                    if (endpoints.containsKey(path)) {
+                        final String message = "Duplicate WebSocket(\"" + path + "\") annotation at: " + className;
+                        LOGGER.fatal(() -> message);
+                        throw new UnsupportedOperationException(message);
+                    }
+                    endpoints.put(path, new Endpoint(clazz));
+                    ServiceIndex.found(className);
+                }
+            } catch (UnsupportedOperationException e) {
+                throw e;
+            } catch (Exception e) {
+                LOGGER.debug(() -> e.getMessage()).trace("Stack trace:", e);
+            }
+        }
+    }
+
+    /**
+     * @param path the request path
+     * @return the endpoint mapped to the path, or null
+     */
+    static Endpoint get(final String path) {
+        return null == path ? null : endpoints.get(path);
+    }
+
+    /**
+     * <p>A single instance of an endpoint class and its callbacks</p>
+     */
+    static final class Endpoint {
+
+        private final Object instance;
+        private Method onOpen;
+        private Method onText;
+        private Method onBinary;
+        private Method onClose;
+
+        /**
+         * @param clazz
+         */
+        private Endpoint(final Class<?> clazz) {
+            for (final Method method : clazz.getDeclaredMethods()) {
+                final Class<?>[] types = method.getParameterTypes();
+                if (method.isAnnotationPresent(OnOpen.class)) {
+                    onOpen = requireParameters(method, WebSocketSession.class);
+                } else if (method.isAnnotationPresent(OnClose.class)) {
+                    onClose = requireParameters(method, WebSocketSession.class);
+                } else if (method.isAnnotationPresent(OnMessage.class)) {
+                    if (types.length == 2 && types[1] == byte[].class) {
+                        onBinary = requireParameters(method, WebSocketSession.class, byte[].class);
+                    } else {
+                        onText = requireParameters(method, WebSocketSession.class, String.class);
+                    }
+                }
+            }
+            this.instance = ObjectUtils.newInstance(clazz);
+        }
+
+        /**
+         * @param method
+         * @param types the expected parameter types
+         * @return the accessible method
+         */
+        private static Method requireParameters(final Method method, final Class<?>... types) {
+            final Class<?>[] parameters = method.getParameterTypes();
+            if (parameters.length != types.length) {
+                throw new UnsupportedOperationException("Invalid WebSocket callback parameters: " + ObjectUtils.canonicalMethotName(method));
+            }
+            for (int i = 0; i < types.length; i++) {
+                if (parameters[i] != types[i]) {
+                    throw new UnsupportedOperationException("Invalid WebSocket callback parameters: " + ObjectUtils.canonicalMethotName(method));
+                }
+            }
+            method.setAccessible(true);
+            return method;
+        }
+
+        void open(final WebSocketSession session) throws IllegalAccessException, InvocationTargetException {
+            invoke(onOpen, session);
+        }
+
+        void message(final WebSocketSession session, final String text) throws IllegalAccessException, InvocationTargetException {
+            invoke(onText, session, text);
+        }
+
+        void message(final WebSocketSession session, final byte[] data) throws IllegalAccessException, InvocationTargetException {
+            invoke(onBinary, session, data);
+        }
+
+        void close(final WebSocketSession session) throws IllegalAccessException, InvocationTargetException {
+            invoke(onClose, session);
+        }
+
+        /**
+         * @return true if the endpoint accepts text messages
+         */
+        boolean acceptsText() {
+            return null != onText;
+        }
+
+        /**
+         * @return true if the endpoint accepts binary messages
+         */
+        boolean acceptsBinary() {
+            return null != onBinary;
+        }
+
+        private void invoke(final Method method, final Object... args) throws IllegalAccessException, InvocationTargetException {
+            if (null != method) {
+                method.invoke(instance, args);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,177 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.utils;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import com.esv.utile.utils.CharSequenceUtils;
+
+/**
+ * <p>
+ * Parsing of the HTTP byte ranges (RFC 7233) and the validators used by the
+ * If-Range precondition
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 16/10/2017
+ */
+public final class ByteRangeUtils {
+    
+    /**
+     * More ranges than this are answered with the full content
+     */
+    public static final int MAX_RANGES = 16;
+    
+    private static final String BYTES_UNIT = "bytes=";
+    // the IMF-fixdate of RFC 7231, with the two digits day RFC_1123_DATE_TIME does not pad
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH)
+            .withZone(ZoneOffset.UTC);
+    
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private ByteRangeUtils() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+    
+    /**
+     * <p>
+     * Parses a Range header value, sorting and coalescing overlapping or
+     * adjacent ranges. Each range is a {first, last} inclusive pair.
+     * </p>
+     * 
+     * @param range the Range header value
+     * @param length the content length
+     * @return the satisfiable ranges, an empty list if none is satisfiable, or
+     *         null if the header is invalid and must be ignored
+     */
+    public static List<long[]> parse(final String range, final long length) {
+        if (CharSequenceUtils.isBlank(range) || !range.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        final List<long[]> ranges = new ArrayList<>();
+        int start = BYTES_UNIT.length();
+        while (start <= range.length()) {
+            int end = range.indexOf(',', start);
+            if (end == -1) {
+                end = range.length();
+            }
+            final String spec = range.substring(start, end).trim();
+            start = end + 1;
+            if (spec.isEmpty()) {
+                continue;
+            }
+            final int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            try {
+                final long first;
+                final long last;
+                if (dash == 0) {
+                    // suffix range: the last N bytes
+                    final long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0L) {
+                        continue;
+                    }
+                    first = Math.max(0L, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        last = length - 1;
+                    } else {
+                        final long requested = Long.parseLong(spec.substring(dash + 1));
+                        if (requested < first) {
+                            return null;
+                        }
+                        last = Math.min(requested, length - 1);
+                    }
+                }
+                if (first < length && first <= last) {
+                    ranges.add(new long[] { first, last });
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (ranges.size() > MAX_RANGES) {
+                return null;
+            }
+        }
+        return coalesce(ranges);
+    }
+    
+    /**
+     * @param ranges
+     * @return the sorted ranges, merging the overlapping or adjacent ones
+     */
+    private static List<long[]> coalesce(final List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, (a, b) -> Long.compare(a[0], b[0]));
+        final List<long[]> merged = new ArrayList<>(ranges.size());
+        long[] current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            final long[] next = ranges.get(i);
+            if (next[0] <= current[1] + 1) {
+                current = new long[] { current[0], Math.max(current[1], next[1]) };
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+    
+    /**
+     * @param ifRange the If-Range header value
+     * @param etag the current entity tag
+     * @param lastModified the current last modified time in milliseconds
+     * @return true if the ranges must be honoured
+     */
+    public static boolean ifRangeMatches(final String ifRange, final String etag, final long lastModified) {
+        if (CharSequenceUtils.isBlank(ifRange)) {
+            return true;
+        }
+        final String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            // strong comparison, weak tags never match
+            return value.equals(etag);
+        }
+        try {
+            final long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().getEpochSecond();
+            return date == lastModified / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * @param length
+     * @param lastModified in milliseconds
+     * @return a strong entity tag for the given file attributes
+     */
+    public static String etag(final long length, final long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+    
+    /**
+     * @param millis
+     * @return the HTTP date of the given time, such as Sun, 06 Nov 1994 08:49:37 GMT
+     */
+    public static String httpDate(final long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+}
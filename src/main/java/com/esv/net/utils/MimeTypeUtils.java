@@ -18,12 +18,14 @@ import com.esv.utile.utils.CharSequenceUtils;
 @SuppressWarnings("serial")
 public final class MimeTypeUtils {
 
+    public static final String APPLICATION_CBOR = "application/cbor";
     public static final String APPLICATION_JSON = "application/json";
     public static final String APPLICATION_OCTET_STREAM = "application/octet-stream";
     public static final String APPLICATION_X_FONT_TTF = "application/x-font-ttf";
     public static final String IMAGE_PNG = "image/png";
     public static final String TEXT_JAVASCRIPT = "text/javascript";
     public static final String TEXT_CSS = "text/css";
+    public static final String TEXT_EVENT_STREAM = "text/event-stream";
     public static final String TEXT_HTML = "text/html";
     public static final String TEXT_PLAIN = "text/plain";
     
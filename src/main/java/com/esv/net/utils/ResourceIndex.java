@@ -0,0 +1,575 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.esv.utile.logging.Logger;
+import com.esv.utile.utils.IOUtils;
+import com.esv.utile.utils.ResourceUtils;
+
+/**
+ * <p>
+ * The web resources of a directory, indexed one directory at a time: a
+ * directory is listed the first time a request path goes through it, walking
+ * down from the root, so the startup does not depend on the size of the tree
+ * and a path that does not exist never loads anything. Each directory listed
+ * from the file system is watched, its files and subdirectories being
+ * updated as the events arrive and the listeners told of every file created,
+ * modified or deleted. Packaged resources, which cannot change, are listed
+ * at once.
+ * </p>
+ * <p>
+ * The content hashes of the fingerprinted names and the rewritten pages are
+ * computed on first use too, and dropped with the file, or with any change
+ * for the pages, as they depend on the hashes of other files.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class ResourceIndex implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ResourceIndex.class);
+
+    // hex digits of the content hash in the fingerprinted names
+    private static final int FINGERPRINT_LENGTH = 8;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final Pattern FINGERPRINTED = Pattern.compile("(.+)\\.([0-9a-f]{" + FINGERPRINT_LENGTH + "})(\\.[^./]+)?");
+    private static final Pattern REFERENCE = Pattern.compile("(\\b(?:src|href)\\s*=\\s*)([\"'])([^\"'<>]*)\\2",
+            Pattern.CASE_INSENSITIVE);
+
+    private final String baseDir;
+    private final String defaultPageName;
+    private final boolean fingerprint;
+    private final Consumer<String> listener;
+    // the file system directory, null for packaged resources
+    private final Path root;
+    private final WatchService watchService;
+    // the loaded directories by path, the root being ""
+    private final Map<String, Directory> directories = new ConcurrentHashMap<>();
+    private final Map<WatchKey, String> watched = new ConcurrentHashMap<>();
+    // changes of any file, outdating the rewritten pages
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param baseDir the normalized class path directory, such as htdocs
+     * @param defaultPageName the page of the directories, such as main.html
+     * @param fingerprint true to serve the resources under content hashed names
+     * @param watch true to follow the changes of a file system directory
+     * @param listener told of the resource path of every file changed
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    ResourceIndex(final String baseDir, final String defaultPageName, final boolean fingerprint, final boolean watch,
+            final Consumer<String> listener) throws IOException, URISyntaxException {
+        this.baseDir = baseDir;
+        this.defaultPageName = defaultPageName;
+        this.fingerprint = fingerprint;
+        this.listener = listener;
+        final URL url = ResourceIndex.class.getClassLoader().getResource(baseDir);
+        if (null != url && "file".equals(url.getProtocol())) {
+            this.root = Paths.get(url.toURI());
+            this.watchService = watch ? root.getFileSystem().newWatchService() : null;
+        } else {
+            this.root = null;
+            this.watchService = null;
+            this.loadPackaged();
+        }
+        if (null != watchService) {
+            final Thread watcher = new Thread(this::run, "resources-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        LOGGER.debug(() -> "Resources index of " + baseDir + (null == root ? " (packaged)" : " at " + root)
+                + (null == watchService ? "" : ", watched"));
+    }
+
+    /**
+     * <p>Lists the packaged resources at once, as they cannot be listed by directory</p>
+     *
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    private void loadPackaged() throws IOException, URISyntaxException {
+        directories.put("", new Directory(null));
+        for (final Path resource : ResourceUtils.list(baseDir)) {
+            final String name = ResourceUtils.normalize(resource.toString());
+            final int idx = name.indexOf(baseDir);
+            if (idx > -1) {
+                // resourceName key must match with request.getPathInfo()
+                final String resourceName = name.substring(idx + baseDir.length());
+                final int slash = resourceName.lastIndexOf('/');
+                final Directory directory = this.packagedDirectory(resourceName.substring(0, Math.max(0, slash)));
+                directory.files.put(resourceName.substring(slash + 1), new Entry(baseDir + resourceName));
+            }
+        }
+    }
+
+    private Directory packagedDirectory(final String path) {
+        Directory directory = directories.get(path);
+        if (null == directory) {
+            final int slash = path.lastIndexOf('/');
+            this.packagedDirectory(path.substring(0, slash)).subdirectories.add(path.substring(slash + 1));
+            directory = new Directory(null);
+            directories.put(path, directory);
+        }
+        return directory;
+    }
+
+    /**
+     * @param path the directory path, "" for the root
+     * @return the directory, loaded if needed, or null if it does not exist
+     */
+    private Directory directory(final String path) {
+        final Directory loaded = directories.get(path);
+        if (null != loaded || null == root) {
+            return loaded;
+        }
+        if (!path.isEmpty()) {
+            final int slash = path.lastIndexOf('/');
+            final Directory parent = this.directory(path.substring(0, slash));
+            if (null == parent || !parent.subdirectories.contains(path.substring(slash + 1))) {
+                return null;
+            }
+        }
+        try {
+            final Directory directory = this.load(path);
+            final Directory previous = directories.putIfAbsent(path, directory);
+            return null == previous ? directory : previous;
+        } catch (IOException e) {
+            LOGGER.debug(() -> "Could not list the resources of " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param path
+     * @return the listed directory, watched before being listed so no change is missed
+     * @throws IOException
+     */
+    private Directory load(final String path) throws IOException {
+        final Path dir = path.isEmpty() ? root : root.resolve(path.substring(1));
+        WatchKey key = null;
+        if (null != watchService) {
+            key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            watched.put(key, path);
+        }
+        final Directory directory = new Directory(key);
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (final Path child : stream) {
+                final String name = child.getFileName().toString();
+                if (Files.isDirectory(child)) {
+                    directory.subdirectories.add(name);
+                } else if (Files.isRegularFile(child)) {
+                    directory.files.put(name, new Entry(baseDir + path + "/" + name));
+                }
+            }
+        }
+        LOGGER.debug(() -> "Indexed " + directory.files.size() + " resources and " + directory.subdirectories.size()
+                + " directories of " + (path.isEmpty() ? "/" : path));
+        return directory;
+    }
+
+    /**
+     * @param resourceName a resource name, such as /js/app.js
+     * @return the entry of the file, null if none
+     */
+    private Entry entry(final String resourceName) {
+        final int slash = resourceName.lastIndexOf('/');
+        if (slash < 0 || slash == resourceName.length() - 1) {
+            return null;
+        }
+        final Directory directory = this.directory(resourceName.substring(0, slash));
+        return null == directory ? null : directory.files.get(resourceName.substring(slash + 1));
+    }
+
+    /**
+     * @param path a directory path, with or without the trailing /
+     * @return the resource path of the default page of the directory, null if none
+     */
+    private String defaultPage(final String path) {
+        final Directory directory = this.directory(path.endsWith("/") ? path.substring(0, path.length() - 1) : path);
+        final Entry page = null == directory ? null : directory.files.get(defaultPageName);
+        return null == page ? null : page.resourcePath;
+    }
+
+    /**
+     * @param pathInfo the request path
+     * @return the resource path of the file, of the default page of the
+     *         directory, or of the resource of a fingerprinted name, null if none
+     */
+    String find(final String pathInfo) {
+        final Entry entry = this.entry(pathInfo);
+        if (null != entry) {
+            return entry.resourcePath;
+        }
+        final String page = this.defaultPage(pathInfo);
+        if (null != page) {
+            return page;
+        }
+        final Entry fingerprinted = this.fingerprintedEntry(pathInfo);
+        return null == fingerprinted ? null : fingerprinted.resourcePath;
+    }
+
+    /**
+     * @param pathInfo a request path without file found
+     * @return the resource path of the default page of the closest directory
+     *         containing one, for paths without extension, such as the routes
+     *         of a single page application; null if none
+     */
+    String fallback(final String pathInfo) {
+        final int slash = pathInfo.lastIndexOf('/');
+        if (slash < 0 || pathInfo.indexOf('.', slash) > -1) {
+            return null;
+        }
+        for (int end = slash; end > 0; end = pathInfo.lastIndexOf('/', end - 1)) {
+            final String page = this.defaultPage(pathInfo.substring(0, end));
+            if (null != page) {
+                return page;
+            }
+        }
+        return this.defaultPage("");
+    }
+
+    /**
+     * @param pathInfo
+     * @return the entry of the fingerprinted name with the current hash of its resource, null if none
+     */
+    private Entry fingerprintedEntry(final String pathInfo) {
+        if (!fingerprint) {
+            return null;
+        }
+        final Matcher matcher = FINGERPRINTED.matcher(pathInfo);
+        if (!matcher.matches()) {
+            return null;
+        }
+        final String resourceName = matcher.group(1) + (null == matcher.group(3) ? "" : matcher.group(3));
+        final Entry entry = this.entry(resourceName);
+        return null == entry || this.isPage(resourceName) || !matcher.group(2).equals(entry.hash()) ? null : entry;
+    }
+
+    /**
+     * @param pathInfo
+     * @return true if the path is not a file but the fingerprinted name of one
+     */
+    boolean isFingerprinted(final String pathInfo) {
+        return fingerprint && null == this.entry(pathInfo) && null != this.fingerprintedEntry(pathInfo);
+    }
+
+    /**
+     * @param resourceName
+     * @return the fingerprinted name, or the name itself for the pages and the names without file
+     */
+    String fingerprinted(final String resourceName) {
+        final Entry entry = fingerprint && !this.isPage(resourceName) ? this.entry(resourceName) : null;
+        final String hash = null == entry ? null : entry.hash();
+        if (null == hash) {
+            return resourceName;
+        }
+        final int slash = resourceName.lastIndexOf('/');
+        final int dot = resourceName.lastIndexOf('.');
+        return dot > slash + 1 ? resourceName.substring(0, dot) + '.' + hash + resourceName.substring(dot)
+                : resourceName + '.' + hash;
+    }
+
+    private boolean isPage(final String resourceName) {
+        return MimeTypeUtils.TEXT_HTML.equals(MimeTypeUtils.get(resourceName));
+    }
+
+    /**
+     * @param resourcePath
+     * @return the page content referring to the fingerprinted names, null if not a page or unchanged
+     */
+    byte[] rewritten(final String resourcePath) {
+        if (!fingerprint || !resourcePath.startsWith(baseDir) || !this.isPage(resourcePath)) {
+            return null;
+        }
+        final String page = resourcePath.substring(baseDir.length());
+        final Entry entry = this.entry(page);
+        if (null == entry) {
+            return null;
+        }
+        final long current = generation.get();
+        Rewritten rewritten = entry.rewritten;
+        if (null == rewritten || rewritten.generation != current) {
+            rewritten = new Rewritten(current, this.rewrite(page, resourcePath));
+            entry.rewritten = rewritten;
+        }
+        return rewritten.content;
+    }
+
+    /**
+     * @param page the page resource name, relative references being resolved against it
+     * @param resourcePath
+     * @return the content with the src and href attributes referring to the fingerprinted names, null if unchanged
+     */
+    private byte[] rewrite(final String page, final String resourcePath) {
+        final String html;
+        try (final InputStream inputStream = ResourceUtils.getAsStream(resourcePath)) {
+            if (null == inputStream) {
+                return null;
+            }
+            html = new String(IOUtils.toByteArray(inputStream), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOGGER.debug(() -> "Could not read the page " + resourcePath + ": " + e.getMessage());
+            return null;
+        }
+        final Matcher matcher = REFERENCE.matcher(html);
+        final StringBuffer rewritten = new StringBuffer(html.length() + 64);
+        boolean changed = false;
+        while (matcher.find()) {
+            final String replacement = this.rewriteReference(page, matcher.group(3));
+            changed |= null != replacement;
+            matcher.appendReplacement(rewritten, Matcher.quoteReplacement(null == replacement ? matcher.group()
+                    : matcher.group(1) + matcher.group(2) + replacement + matcher.group(2)));
+        }
+        return changed ? matcher.appendTail(rewritten).toString().getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * @param page
+     * @param reference an attribute value, such as js/app.js?v=2
+     * @return the reference with its last path segment fingerprinted, null if not a fingerprinted resource
+     */
+    private String rewriteReference(final String page, final String reference) {
+        int end = reference.length();
+        for (int i = 0; i < reference.length(); i++) {
+            final char c = reference.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+        final String path = reference.substring(0, end);
+        // absolute URLs, protocol relative URLs and other schemes are left as they are
+        if (path.isEmpty() || path.startsWith("//") || path.indexOf(':') > -1) {
+            return null;
+        }
+        final String resourceName;
+        try {
+            resourceName = new URI(null, null, page, null).resolve(new URI(null, null, path, null)).getPath();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+        final String fingerprinted = this.fingerprinted(resourceName);
+        if (fingerprinted.equals(resourceName)) {
+            return null;
+        }
+        return path.substring(0, path.lastIndexOf('/') + 1) + fingerprinted.substring(fingerprinted.lastIndexOf('/') + 1)
+                + reference.substring(end);
+    }
+
+    /**
+     * @return the resource paths by resource name of the directories indexed so far
+     */
+    Map<String, String> snapshot() {
+        final Map<String, String> snapshot = new ConcurrentHashMap<>();
+        directories.forEach((path, directory) -> directory.files
+                .forEach((name, entry) -> snapshot.put(path + "/" + name, entry.resourcePath)));
+        return snapshot;
+    }
+
+    /**
+     * Applies the watched events until closed
+     */
+    private void run() {
+        try {
+            for (;;) {
+                final WatchKey key = watchService.take();
+                final String path = watched.get(key);
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (null != path) {
+                        this.apply(path, event);
+                    }
+                }
+                if (!key.reset()) {
+                    watched.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.debug(() -> "Resources watcher stopped: " + baseDir);
+        }
+    }
+
+    /**
+     * @param path the directory of the event
+     * @param event
+     */
+    private void apply(final String path, final WatchEvent<?> event) {
+        final Directory directory = directories.get(path);
+        if (null == directory) {
+            return;
+        }
+        generation.incrementAndGet();
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            LOGGER.debug(() -> "Resources events lost, indexing again: " + path);
+            this.drop(path);
+            return;
+        }
+        final String name = event.context().toString();
+        final String child = path + "/" + name;
+        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            if (directory.subdirectories.remove(name)) {
+                this.drop(child);
+            }
+            final Entry removed = directory.files.remove(name);
+            if (null != removed) {
+                listener.accept(removed.resourcePath);
+            }
+        } else if (Files.isDirectory(root.resolve(child.substring(1)))) {
+            directory.subdirectories.add(name);
+        } else {
+            // a new entry, so the hash and the rewritten page are computed again
+            final Entry entry = new Entry(baseDir + child);
+            directory.files.put(name, entry);
+            listener.accept(entry.resourcePath);
+        }
+        LOGGER.debug(() -> "Resources " + event.kind().name() + ": " + child);
+    }
+
+    /**
+     * <p>Forgets a directory and the directories under it, to be listed again on next use</p>
+     *
+     * @param path
+     */
+    private void drop(final String path) {
+        for (final Map.Entry<String, Directory> entry : directories.entrySet()) {
+            final String key = entry.getKey();
+            if (key.equals(path) || key.startsWith(path + "/")) {
+                final Directory removed = directories.remove(key);
+                if (null != removed) {
+                    if (null != removed.key) {
+                        removed.key.cancel();
+                        watched.remove(removed.key);
+                    }
+                    removed.files.values().forEach(file -> listener.accept(file.resourcePath));
+                }
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        if (null != watchService) {
+            watchService.close();
+        }
+    }
+
+    /**
+     * <p>The files and subdirectories of a directory</p>
+     */
+    private static final class Directory {
+
+        private final WatchKey key;
+        private final Map<String, Entry> files = new ConcurrentHashMap<>();
+        private final Set<String> subdirectories = ConcurrentHashMap.newKeySet();
+
+        private Directory(final WatchKey key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * <p>A file, replaced by a new entry when modified</p>
+     */
+    private static final class Entry {
+
+        private final String resourcePath;
+        private volatile String hash;
+        private volatile Rewritten rewritten;
+
+        private Entry(final String resourcePath) {
+            this.resourcePath = resourcePath;
+        }
+
+        /**
+         * @return the first hex digits of the SHA-256 of the content, null if it could not be read
+         */
+        private String hash() {
+            String computed = hash;
+            if (null == computed) {
+                computed = ResourceIndex.hash(resourcePath);
+                hash = computed;
+            }
+            return computed;
+        }
+    }
+
+    /**
+     * <p>A page rewritten as of a generation of the index</p>
+     */
+    private static final class Rewritten {
+
+        private final long generation;
+        private final byte[] content;
+
+        private Rewritten(final long generation, final byte[] content) {
+            this.generation = generation;
+            this.content = content;
+        }
+    }
+
+    /**
+     * @param resourcePath
+     * @return the first hex digits of the SHA-256 of the resource content, null if it could not be read
+     */
+    private static String hash(final String resourcePath) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (final InputStream inputStream = ResourceUtils.getAsStream(resourcePath)) {
+            if (null == inputStream) {
+                return null;
+            }
+            final byte[] buffer = new byte[8192];
+            for (int count = inputStream.read(buffer); count != -1; count = inputStream.read(buffer)) {
+                digest.update(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            LOGGER.debug(() -> "Could not hash " + resourcePath + ": " + e.getMessage());
+            return null;
+        }
+        final byte[] bytes = digest.digest();
+        final char[] hex = new char[FINGERPRINT_LENGTH];
+        for (int i = 0; i < hex.length; i++) {
+            final int b = bytes[i >> 1];
+            hex[i] = HEX[(i & 1) == 0 ? b >> 4 & 0xf : b & 0xf];
+        }
+        return new String(hex);
+    }
+}
\ No newline at end of file
@@ -4,12 +4,12 @@
 package com.esv.net.utils;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
-import java.nio.file.Path;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 import com.esv.net.HttpRequest;
 import com.esv.utile.logging.Logger;
@@ -19,6 +19,24 @@ import com.esv.utile.utils.PropertiesUtils;
 import com.esv.utile.utils.ResourceUtils;
 
 /**
+ * <p>
+ * The web resources by request path, indexed lazily: a directory is listed
+ * the first time a request reaches it, and, when resources.dir is in the file
+ * system and resources.watch=true (the default), kept up to date from the
+ * file system events, so files deployed or removed are served or not without
+ * a restart. The {@link #onChange(Consumer)} listeners are told of each file
+ * changed, to drop what they derived from it.
+ * </p>
+ * <p>
+ * With resources.fingerprint=true (the default) each resource but the HTML
+ * pages is also served under a name holding a hash of its content, such as
+ * /app.3f9a1c2b.js for /app.js, which is immutable: a new content gets a new
+ * name, so browsers and CDNs may keep it forever. The src and href
+ * attributes of the HTML pages referring to a resource are rewritten to its
+ * fingerprinted name, and {@link #fingerprinted(String)} gives it for the
+ * other cases.
+ * </p>
+ * 
  * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
  * @version 1.0
  * @since 29/09/2017
@@ -27,20 +45,18 @@ public final class WebResourceUtils {
     
     private static final Logger LOGGER = Logger.getLogger(WebResourceUtils.class);
     
-    private static final Map<String, String> webResourcesMap = new ConcurrentHashMap<>();
-    private static final String defaultPage;
+    private static final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    
+    // the index and the default page, replaced together on reload
+    private static volatile WebResources webResources;
     
     /**
-     * <p>Create a web resource map</p>
+     * <p>Create the web resource index, listing nothing yet</p>
      */
     static {
         try {
-            final String directoryName = PropertiesUtils.getStringProperty("resources.dir", "htdocs");
-            final String webResourcesDir = "/".equals(directoryName) ? "htdocs" : directoryName;
-            final String defaultPageName = PropertiesUtils.getStringProperty("default.page", "main.html");
-            defaultPage = ResourceUtils.normalize(webResourcesDir + "/" + defaultPageName);
-            LOGGER.debug(() -> "Default web page: " + defaultPage);
-            WebResourceUtils.scanWebResources(ResourceUtils.normalize(webResourcesDir));
+            webResources = WebResourceUtils.scan(PropertiesUtils.getStringProperty("resources.dir", "htdocs"),
+                    PropertiesUtils.getStringProperty("default.page", "main.html"));
         } catch (Exception e) {
             throw new ExceptionInInitializerError(e);
         }
@@ -54,45 +70,111 @@ public final class WebResourceUtils {
     }
     
     /**
+     * <p>Indexes another directory, the requests being served from the previous index meanwhile</p>
+     * 
+     * @param directoryName
+     * @param defaultPageName
+     * @throws UncheckedIOException if the directory could not be watched
+     */
+    public static void reload(final String directoryName, final String defaultPageName) {
+        final WebResources previous = webResources;
+        try {
+            webResources = WebResourceUtils.scan(directoryName, defaultPageName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+        try {
+            previous.index.close();
+        } catch (IOException e) {
+            LOGGER.error("Could not stop watching the previous resources", e);
+        }
+        // whatever was derived from the previous files is outdated
+        previous.index.snapshot().values().forEach(WebResourceUtils::changed);
+    }
+    
+    /**
+     * @param directoryName
+     * @param defaultPageName
+     * @return the web resources
      * @throws IOException
      * @throws URISyntaxException
      */
-    private static void scanWebResources(final String webResourcesDir) throws IOException, URISyntaxException {
-        // list all files of web resource directory
-        final List<Path> resources = ResourceUtils.list(webResourcesDir);
-        LOGGER.trace(() -> "Resources found: " + resources);
-        for (final Path resource : resources) {
-            final String name = ResourceUtils.normalize(resource.toString());
-            final int idx = name.indexOf(webResourcesDir);
-            if (idx > -1) {
-                // resourceName key must match with request.getPathInfo()
-                final String resourceName = name.substring(idx + webResourcesDir.length());
-                final String resourcePath = (webResourcesDir + resourceName);
-                webResourcesMap.put(resourceName, resourcePath);
-                LOGGER.debug(() -> "Added resource name: " + resourceName + ", resource path: " + resourcePath);
+    private static WebResources scan(final String directoryName, final String defaultPageName) throws IOException, URISyntaxException {
+        final String webResourcesDir = "/".equals(directoryName) ? "htdocs" : directoryName;
+        final String defaultPage = ResourceUtils.normalize(webResourcesDir + "/" + defaultPageName);
+        LOGGER.debug(() -> "Default web page: " + defaultPage);
+        final ResourceIndex index = new ResourceIndex(ResourceUtils.normalize(webResourcesDir), defaultPageName,
+                WebResourceUtils.isEnabled("resources.fingerprint"), WebResourceUtils.isEnabled("resources.watch"),
+                WebResourceUtils::changed);
+        return new WebResources(index, defaultPage);
+    }
+    
+    private static boolean isEnabled(final String property) {
+        return Boolean.parseBoolean(PropertiesUtils.getStringProperty(property, "true").trim());
+    }
+    
+    /**
+     * @param resourcePath
+     */
+    private static void changed(final String resourcePath) {
+        for (final Consumer<String> listener : listeners) {
+            try {
+                listener.accept(resourcePath);
+            } catch (RuntimeException e) {
+                LOGGER.error("Resource change listener failure: " + resourcePath, e);
             }
         }
-        LOGGER.debug(() -> "Resources dir: "+ webResourcesDir + ", default page: " + defaultPage + ", resource set: " + webResourcesMap.keySet());
+    }
+    
+    /**
+     * <p>Registers a listener told of the resource path of each file created, modified or deleted</p>
+     * 
+     * @param listener
+     */
+    public static void onChange(final Consumer<String> listener) {
+        listeners.add(ObjectUtils.requireNotNull(listener, "listener parameter is null"));
+    }
+    
+    /**
+     * <p>
+     * Resolves the request path to a file, to the default page of a
+     * directory or to the resource of a fingerprinted name. A path without
+     * extension found nowhere, such as a route of a single page application,
+     * resolves to the default page of its closest directory holding one.
+     * </p>
+     * 
+     * @param httpRequest
+     * @return the resource path, or null if none
+     */
+    public static String lookup(final HttpRequest httpRequest) {
+        ObjectUtils.requireNotNull(httpRequest, "request parameter is null");
+        final ResourceIndex index = webResources.index;
+        final String pathInfo = httpRequest.getPathInfo();
+        final String found = index.find(pathInfo);
+        return null == found ? index.fallback(pathInfo) : found;
     }
     
     /**
      * @param httpRequest 
-     * @param maxPathLevel
+     * @param maxPathLevel the deepest level answered with the default resource when nothing is found
      * @param defaultResourceName
-     * @return
+     * @return the resource path, or null if none
      */
     public static String lookup(final HttpRequest httpRequest, final int maxPathLevel, final String defaultResourceName) {
         ObjectUtils.requireNotNull(httpRequest, "request parameter is null");
         CharSequenceUtils.requireNotBlank(defaultResourceName, "defaultResourceName parameter is null");
-        return httpRequest.getPathLevel() > maxPathLevel ? webResourcesMap.get(httpRequest.getPathInfo()) : webResourcesMap.getOrDefault(httpRequest.getPathInfo(), defaultResourceName);
+        final String found = webResources.index.find(httpRequest.getPathInfo());
+        return null != found || httpRequest.getPathLevel() > maxPathLevel ? found : defaultResourceName;
     }
 
 
     /**
-     * @return the resourcemap
+     * @return the resource paths by resource name of the directories indexed so far
      */
     public static Map<String, String> resourceMap() {
-        return Collections.unmodifiableMap(webResourcesMap);
+        return webResources.index.snapshot();
     }
 
 
@@ -100,6 +182,44 @@ public final class WebResourceUtils {
      * @return the defaultPage
      */
     public static String defaultPage() {
-        return defaultPage;
+        return webResources.defaultPage;
+    }
+    
+    /**
+     * @param resourceName a resource name, such as /app.js
+     * @return its fingerprinted name, such as /app.3f9a1c2b.js, or the name itself if not fingerprinted
+     */
+    public static String fingerprinted(final String resourceName) {
+        return null == resourceName ? null : webResources.index.fingerprinted(resourceName);
+    }
+    
+    /**
+     * @param pathInfo the request path
+     * @return true if the path is the fingerprinted name of the current content of a resource
+     */
+    public static boolean isImmutable(final String pathInfo) {
+        return null != pathInfo && webResources.index.isFingerprinted(pathInfo);
+    }
+    
+    /**
+     * @param resourcePath the resource path returned by the lookup
+     * @return the page content referring to the fingerprinted names, null if the resource is not rewritten
+     */
+    public static byte[] rewritten(final String resourcePath) {
+        return null == resourcePath ? null : webResources.index.rewritten(resourcePath);
+    }
+    
+    /**
+     * <p>An index of the web resources</p>
+     */
+    private static final class WebResources {
+        
+        private final ResourceIndex index;
+        private final String defaultPage;
+        
+        private WebResources(final ResourceIndex index, final String defaultPage) {
+            this.index = index;
+            this.defaultPage = defaultPage;
+        }
     }
 }
\ No newline at end of file
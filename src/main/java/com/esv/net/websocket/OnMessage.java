@@ -0,0 +1,29 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.websocket;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Invoked for each complete message. The method receives the
+ * {@link WebSocketSession} and the message: a {@link String} for text
+ * messages or a byte[] for binary messages. The messages of a session are
+ * delivered one at a time, in order.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 17/10/2017
+ */
+@Documented
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface OnMessage {
+}
\ No newline at end of file
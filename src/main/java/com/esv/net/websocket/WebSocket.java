@@ -0,0 +1,34 @@
+/* 
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.websocket;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Declares a WebSocket endpoint: a GET request to the given path carrying
+ * Upgrade: websocket is switched to the WebSocket protocol. A single instance
+ * of the annotated class serves all its sessions, through the methods
+ * annotated with {@link OnOpen}, {@link OnMessage} and {@link OnClose}.
+ * </p>
+ * 
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 17/10/2017
+ */
+@Documented
+@Retention(RUNTIME)
+@Target(TYPE)
+public @interface WebSocket {
+    
+    /**
+     * @return the request path of the endpoint
+     */
+    String value();
+}
\ No newline at end of file
@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.websocket;
+
+import java.net.InetAddress;
+
+/**
+ * <p>
+ * An open WebSocket connection. The send methods never block: messages are
+ * queued and written as the socket accepts them. When the queued bytes reach
+ * the configured limit (websocket.maxQueuedBytes) new messages are refused, so
+ * a slow client can not exhaust the server memory.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 17/10/2017
+ */
+public interface WebSocketSession {
+
+    int NORMAL_CLOSURE = 1000;
+    int GOING_AWAY = 1001;
+    int PROTOCOL_ERROR = 1002;
+    int INVALID_PAYLOAD = 1007;
+    int MESSAGE_TOO_BIG = 1009;
+    int INTERNAL_ERROR = 1011;
+
+    /**
+     * @return the session id, unique in the server
+     */
+    String getId();
+
+    /**
+     * @return the request path the session was opened for
+     */
+    String getPath();
+
+    /**
+     * @return the client address
+     */
+    InetAddress getRemoteAddress();
+
+    /**
+     * @return true until the session is closed
+     */
+    boolean isOpen();
+
+    /**
+     * @param text
+     * @return true if the message was queued, false if the session is closed or its send queue is full
+     */
+    boolean send(String text);
+
+    /**
+     * @param data
+     * @return true if the message was queued, false if the session is closed or its send queue is full
+     */
+    boolean send(byte[] data);
+
+    /**
+     * @return the number of bytes queued but not yet written to the socket
+     */
+    long getBufferedAmount();
+
+    /**
+     * Closes the session with the {@link #NORMAL_CLOSURE} code
+     */
+    void close();
+
+    /**
+     * @param code the close status code
+     * @param reason a short reason, up to 123 bytes once encoded
+     */
+    void close(int code, String reason);
+}
\ No newline at end of file
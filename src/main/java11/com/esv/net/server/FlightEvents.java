@@ -0,0 +1,250 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import com.esv.net.HttpRequest;
+import com.esv.net.HttpRequestHandler;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * <p>
+ * The Java 11 version of the request lifecycle events, recorded by Java
+ * Flight Recorder under the userver category. Nothing is allocated unless an
+ * event type is enabled by the running recording, and only the events lasting
+ * longer than their threshold are committed, their fields being read then.
+ * The default thresholds keep a continuous recording cheap; a recording
+ * settings file lowers them, to 0 ms for every event, while investigating.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+final class FlightEvents {
+
+    private static final EventType ACCEPT = EventType.getEventType(AcceptEvent.class);
+    private static final EventType QUEUE_WAIT = EventType.getEventType(QueueWaitEvent.class);
+    private static final EventType PARSE = EventType.getEventType(ParseEvent.class);
+    private static final EventType HANDLER = EventType.getEventType(HandlerEvent.class);
+    private static final EventType REST = EventType.getEventType(RestEvent.class);
+    private static final EventType RESPONSE_WRITE = EventType.getEventType(ResponseWriteEvent.class);
+
+    /**
+     * Suppressing default constructor for non instantiability
+     */
+    private FlightEvents() {
+        throw new AssertionError("Suppress default constructor for non instantiability");
+    }
+
+    private static <T extends Event> T begin(final T event) {
+        event.begin();
+        return event;
+    }
+
+    static Object beginAccept() {
+        return ACCEPT.isEnabled() ? FlightEvents.begin(new AcceptEvent()) : null;
+    }
+
+    static void commitAccept(final Object event, final Socket socket) {
+        if (event instanceof AcceptEvent) {
+            final AcceptEvent accept = (AcceptEvent) event;
+            accept.end();
+            if (accept.shouldCommit()) {
+                final InetAddress address = socket.getInetAddress();
+                accept.remoteAddress = null == address ? null : address.getHostAddress();
+                accept.commit();
+            }
+        }
+    }
+
+    static Object beginQueueWait() {
+        return QUEUE_WAIT.isEnabled() ? FlightEvents.begin(new QueueWaitEvent()) : null;
+    }
+
+    static void commitQueueWait(final Object event) {
+        if (event instanceof QueueWaitEvent) {
+            ((QueueWaitEvent) event).commit();
+        }
+    }
+
+    static Object beginParse() {
+        return PARSE.isEnabled() ? FlightEvents.begin(new ParseEvent()) : null;
+    }
+
+    static void commitParse(final Object event, final HttpRequest httpRequest) {
+        if (event instanceof ParseEvent) {
+            final ParseEvent parse = (ParseEvent) event;
+            parse.end();
+            if (parse.shouldCommit()) {
+                parse.method = httpRequest.getRequestMethod();
+                parse.path = httpRequest.getPathInfo();
+                parse.commit();
+            }
+        }
+    }
+
+    static Object beginHandler() {
+        return HANDLER.isEnabled() ? FlightEvents.begin(new HandlerEvent()) : null;
+    }
+
+    static void commitHandler(final Object event, final HttpRequestHandler handler, final HttpRequest httpRequest) {
+        if (event instanceof HandlerEvent) {
+            final HandlerEvent execution = (HandlerEvent) event;
+            execution.end();
+            if (execution.shouldCommit()) {
+                execution.handler = handler.getClass().getName();
+                execution.path = httpRequest.getPathInfo();
+                execution.completed = httpRequest.isComplete();
+                execution.status = httpRequest.getResponseStatus();
+                execution.bytes = httpRequest.getResponseBytes();
+                execution.commit();
+            }
+        }
+    }
+
+    static Object beginRest() {
+        return REST.isEnabled() ? FlightEvents.begin(new RestEvent()) : null;
+    }
+
+    static void commitRest(final Object event, final String endpoint, final String path, final Throwable failure) {
+        if (event instanceof RestEvent) {
+            final RestEvent invocation = (RestEvent) event;
+            invocation.end();
+            if (invocation.shouldCommit()) {
+                invocation.endpoint = endpoint;
+                invocation.path = path;
+                invocation.failure = null == failure ? null : failure.getClass().getName();
+                invocation.commit();
+            }
+        }
+    }
+
+    static Object beginResponseWrite() {
+        return RESPONSE_WRITE.isEnabled() ? FlightEvents.begin(new ResponseWriteEvent()) : null;
+    }
+
+    static void commitResponseWrite(final Object event, final HttpRequest httpRequest) {
+        if (event instanceof ResponseWriteEvent) {
+            final ResponseWriteEvent write = (ResponseWriteEvent) event;
+            write.end();
+            if (write.shouldCommit()) {
+                write.path = httpRequest.getPathInfo();
+                write.status = httpRequest.getResponseStatus();
+                write.bytes = httpRequest.getResponseBytes();
+                write.commit();
+            }
+        }
+    }
+
+    @Name("userver.Accept")
+    @Label("Accept")
+    @Description("A connection accepted and handed over to the request threads")
+    @Category({ "userver", "HTTP" })
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class AcceptEvent extends Event {
+
+        @Label("Remote Address")
+        String remoteAddress;
+    }
+
+    @Name("userver.QueueWait")
+    @Label("Queue Wait")
+    @Description("A connection waiting for a free request thread")
+    @Category({ "userver", "HTTP" })
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class QueueWaitEvent extends Event {
+    }
+
+    @Name("userver.RequestParse")
+    @Label("Request Parse")
+    @Description("The request line and headers, from their first byte")
+    @Category({ "userver", "HTTP" })
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class ParseEvent extends Event {
+
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+    }
+
+    @Name("userver.HandlerExecution")
+    @Label("Handler Execution")
+    @Description("A request handler handling a request")
+    @Category({ "userver", "HTTP" })
+    @StackTrace(false)
+    @Threshold("20 ms")
+    static final class HandlerEvent extends Event {
+
+        @Label("Handler")
+        String handler;
+
+        @Label("Path")
+        String path;
+
+        @Label("Completed")
+        @Description("Whether the handler answered the request")
+        boolean completed;
+
+        @Label("Status")
+        int status;
+
+        @Label("Response Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("userver.RestInvocation")
+    @Label("Rest Invocation")
+    @Description("A rest endpoint call, bulkhead and deadline included")
+    @Category({ "userver", "REST" })
+    @StackTrace(false)
+    @Threshold("20 ms")
+    static final class RestEvent extends Event {
+
+        @Label("Endpoint")
+        String endpoint;
+
+        @Label("Path")
+        String path;
+
+        @Label("Failure")
+        String failure;
+    }
+
+    @Name("userver.ResponseWrite")
+    @Label("Response Write")
+    @Description("The response, from its first socket write until written")
+    @Category({ "userver", "HTTP" })
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class ResponseWriteEvent extends Event {
+
+        @Label("Path")
+        String path;
+
+        @Label("Status")
+        int status;
+
+        @Label("Response Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Keeps the garbage of the steady state request handling low: the bytes
+ * allocated by the calling thread per request exchanged through the
+ * {@link InMemoryTransport}, past a warm up, must stay within a budget. The
+ * budgets leave room for the JIT and the JDK versions, a regression such as
+ * a reader, a map or a writer per request going well beyond them.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+public class AllocationRateTest {
+
+    private static final int WARM_UP = 20_000;
+    private static final int REQUESTS = 20_000;
+
+    private static final OutputStream SINK = new OutputStream() {
+
+        @Override
+        public void write(final int b) {
+            // discarded
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            // discarded
+        }
+    };
+
+    private static com.sun.management.ThreadMXBean threads;
+
+    @BeforeClass
+    public static void setUpClass() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * @param request the raw request
+     * @param statusLine the status line expected, so an error path is not measured instead
+     * @param body a part of the body expected, as an unmapped rest endpoint is also answered with 200
+     * @return the bytes allocated per exchange by the calling thread, once warmed up
+     */
+    private static long allocatedPerRequest(final String request, final String statusLine, final String body) {
+        final String response = InMemoryTransport.exchange(request);
+        assertEquals(statusLine, response.split("\r\n", 2)[0]);
+        assertTrue(response, response.substring(response.indexOf("\r\n\r\n") + 4).contains(body));
+        final byte[] bytes = request.getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < WARM_UP; i++) {
+            InMemoryTransport.exchange(bytes, SINK);
+        }
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < REQUESTS; i++) {
+            InMemoryTransport.exchange(bytes, SINK);
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / REQUESTS;
+    }
+
+    @Test
+    public void restRequest() {
+        final long allocated = AllocationRateTest.allocatedPerRequest("GET /rest/sample/ping HTTP/1.1\r\nHost: localhost\r\nAccept: application/json\r\n\r\n",
+                "HTTP/1.1 200 OK", "\"status\":\"UP\"");
+        assertTrue(allocated + " bytes allocated per rest request", allocated < 8192);
+    }
+
+    @Test
+    public void notFoundRequest() {
+        final long allocated = AllocationRateTest.allocatedPerRequest("GET /missing.html HTTP/1.1\r\nHost: localhost\r\n\r\n",
+                "HTTP/1.1 404 Resource not found: /missing.html", "Resource not found: /missing.html");
+        assertTrue(allocated + " bytes allocated per request not found", allocated < 4096);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Simulates a saturated server in front of a synthetic endpoint serving
+ * {@link #CAPACITY} requests at once, the requests beyond it queueing, with
+ * a simulated clock: each window of 100 milliseconds gets
+ * {@link #SAMPLES_PER_WINDOW} requests, as many in flight as the limit
+ * admits, each one as slow as the queueing at that concurrency makes it.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+public class ConcurrencyLimiterTest {
+
+    private static final int CAPACITY = 40;
+    private static final int DEMAND = 300;
+    private static final int SAMPLES_PER_WINDOW = 20;
+    private static final long WINDOW_NANOS = 100_000_000L;
+
+    private ConcurrencyLimiter limiter;
+    private long now;
+
+    @Before
+    public void setUp() {
+        limiter = new ConcurrencyLimiter(20, 4, 200, 1.5, 100);
+        now = System.nanoTime();
+    }
+
+    /**
+     * @param latencyMillis the latency of the endpoint without queueing
+     * @param windows
+     * @return the limit at the end of each window
+     */
+    private int[] run(final double latencyMillis, final int windows) {
+        final int[] limits = new int[windows];
+        for (int w = 0; w < windows; w++) {
+            final int inFlight = Math.min(DEMAND, limiter.getLimit());
+            final long rttNanos = (long) (latencyMillis * 1_000_000L * Math.max(1.0, (double) inFlight / CAPACITY));
+            for (int i = 0; i < SAMPLES_PER_WINDOW; i++) {
+                now += WINDOW_NANOS / SAMPLES_PER_WINDOW;
+                limiter.sample(rttNanos, inFlight, false, now);
+            }
+            limits[w] = limiter.getLimit();
+        }
+        return limits;
+    }
+
+    private static int min(final int[] limits, final int from, final int to) {
+        int min = Integer.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            min = Math.min(min, limits[i]);
+        }
+        return min;
+    }
+
+    private static int max(final int[] limits, final int from, final int to) {
+        int max = Integer.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            max = Math.max(max, limits[i]);
+        }
+        return max;
+    }
+
+    @Test
+    public void convergesAboveTheCapacityAndStaysUnderSteadyLoad() {
+        final int[] limits = run(10.0, 3000);
+        final int steady = limits[limits.length - 1];
+        assertTrue("limit " + steady + " below the capacity", steady >= CAPACITY);
+        assertTrue("limit " + steady + " queueing beyond the tolerance", steady <= CAPACITY * 2);
+        // five simulated minutes without collapsing to measure the baseline, nor creeping up
+        assertTrue("limit dropped to " + min(limits, 300, 3000), min(limits, 300, 3000) >= steady - 3);
+        assertTrue("limit grew to " + max(limits, 300, 3000), max(limits, 300, 3000) <= steady + 3);
+    }
+
+    @Test
+    public void shrinksOnALatencyStepAndRecoversAfterwards() {
+        final int[] before = run(10.0, 600);
+        final int steady = before[before.length - 1];
+        final int[] slow = run(50.0, 1500);
+        assertTrue("limit still " + slow[99] + " after 10s of a 5x slower endpoint", slow[99] <= steady / 4);
+        // the slower latency becomes the baseline, the limit growing again up to about the capacity
+        final int adapted = slow[slow.length - 1];
+        assertTrue("limit " + adapted + " not grown back", adapted >= CAPACITY / 2);
+        assertTrue("limit " + adapted + " queueing", adapted <= CAPACITY * 2);
+        assertTrue("limit not settled", max(slow, 1200, 1500) - min(slow, 1200, 1500) <= 3);
+        final int[] after = run(10.0, 600);
+        assertTrue("limit " + after[299] + " not recovered within 30s", after[299] >= steady - 3);
+        assertTrue("limit " + after[599] + " beyond its steady value", after[599] <= steady + 3);
+    }
+
+    @Test
+    public void shrinksByATenthOnDroppedRequests() {
+        run(10.0, 600);
+        final int steady = limiter.getLimit();
+        for (int i = 0; i < 5; i++) {
+            now += WINDOW_NANOS;
+            limiter.sample(10_000_000L, steady, true, now);
+        }
+        assertEquals((int) (steady * Math.pow(0.9, 5)), limiter.getLimit(), 1);
+    }
+}
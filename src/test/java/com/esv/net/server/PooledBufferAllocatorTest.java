@@ -0,0 +1,72 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Checks the memory accounting of the {@link PooledBufferAllocator} when the
+ * buffers are not given back by their thread: the caches of the ended
+ * threads and the buffers never released.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+public class PooledBufferAllocatorTest {
+
+    private static final int SIZE = 4096;
+
+    private PooledBufferAllocator allocator;
+
+    @Before
+    public void setUp() {
+        allocator = new PooledBufferAllocator();
+    }
+
+    @Test
+    public void reusesTheCacheOfAnEndedThread() throws Exception {
+        final Thread thread = new Thread(() -> {
+            final ByteBuffer first = allocator.allocate(SIZE, true);
+            final ByteBuffer second = allocator.allocate(SIZE, true);
+            allocator.release(first);
+            allocator.release(second);
+        });
+        thread.start();
+        thread.join();
+        // past the sweep of the allocations of the ended thread
+        Thread.sleep(1100L);
+
+        final long allocated = ServerMetrics.get("buffers.allocated");
+        final long reused = ServerMetrics.get("buffers.reused");
+        final long pooled = ServerMetrics.get("buffers.pooled.bytes");
+        assertTrue(allocator.allocate(SIZE, true).isDirect());
+        assertTrue(allocator.allocate(SIZE, true).isDirect());
+        assertEquals(allocated, ServerMetrics.get("buffers.allocated"));
+        assertEquals(reused + 2, ServerMetrics.get("buffers.reused"));
+        assertEquals(pooled - 2 * SIZE, ServerMetrics.get("buffers.pooled.bytes"));
+    }
+
+    @Test
+    public void stopsCountingTheForgottenBuffers() {
+        final long direct = ServerMetrics.get("buffers.direct.bytes");
+        final ByteBuffer buffer = allocator.allocate(SIZE, true);
+        assertEquals(direct + SIZE, ServerMetrics.get("buffers.direct.bytes"));
+        allocator.forget(buffer);
+        assertEquals(direct, ServerMetrics.get("buffers.direct.bytes"));
+
+        // the heap buffers and the unpooled ones were never counted
+        allocator.forget(allocator.allocate(SIZE, false));
+        allocator.forget(ByteBuffer.allocateDirect(SIZE + 1));
+        assertEquals(direct, ServerMetrics.get("buffers.direct.bytes"));
+    }
+}
\ No newline at end of file
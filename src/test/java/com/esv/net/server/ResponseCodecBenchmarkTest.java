@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.esv.net.rest.ResponseCodec;
+import com.esv.net.utils.MimeTypeUtils;
+import com.esv.utile.logging.Logger;
+
+/**
+ * <p>
+ * Compares the built in CBOR codec with JSON on the orders of the
+ * {@link SampleService}, like a service to service response: the response
+ * size, exchanged through the {@link InMemoryTransport}, and the encode
+ * cost, time and bytes allocated per encoding, past a warm up. The figures
+ * are logged; the sizes and the allocations, unlike the times, are stable
+ * enough to be asserted.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+public class ResponseCodecBenchmarkTest {
+
+    private static final Logger LOGGER = Logger.getLogger(ResponseCodecBenchmarkTest.class);
+
+    private static final int ORDERS = 100;
+    private static final int WARM_UP = 5_000;
+    private static final int ENCODINGS = 5_000;
+
+    private static ResponseCodec json;
+    private static ResponseCodec cbor;
+    private static List<Map<String, Object>> orders;
+
+    @BeforeClass
+    public static void setUpClass() {
+        json = ResponseCodecs.negotiate(MimeTypeUtils.APPLICATION_JSON);
+        cbor = ResponseCodecs.negotiate(MimeTypeUtils.APPLICATION_CBOR);
+        assertNotNull(json);
+        assertNotNull(cbor);
+        orders = new SampleService().orders(ORDERS);
+    }
+
+    /**
+     * @param accept
+     * @return the response body size of the orders in the accepted media type
+     */
+    private static int responseSize(final String accept) {
+        final String response = InMemoryTransport.exchange("GET /rest/sample/orders?size=" + ORDERS + " HTTP/1.1\r\nHost: localhost\r\nAccept: "
+                + accept + "\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 200 "));
+        assertTrue(response, response.contains("Content-type: " + accept));
+        return response.length() - response.indexOf("\r\n\r\n") - 4;
+    }
+
+    @Test
+    public void responseSize() {
+        final int jsonSize = ResponseCodecBenchmarkTest.responseSize(MimeTypeUtils.APPLICATION_JSON);
+        final int cborSize = ResponseCodecBenchmarkTest.responseSize(MimeTypeUtils.APPLICATION_CBOR);
+        LOGGER.info(() -> ORDERS + " orders: JSON " + jsonSize + " bytes, CBOR " + cborSize + " bytes");
+        assertTrue("CBOR " + cborSize + " bytes, JSON " + jsonSize + " bytes", cborSize < jsonSize);
+    }
+
+    /**
+     * @param codec
+     * @return the nanoseconds and the bytes allocated by the calling thread per encoding, once warmed up
+     * @throws Exception
+     */
+    private static long[] encodeCost(final ResponseCodec codec) throws Exception {
+        for (int i = 0; i < WARM_UP; i++) {
+            ResponseCodecs.encode(codec, orders);
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long allocated = threads.getThreadAllocatedBytes(threadId);
+        final long start = System.nanoTime();
+        for (int i = 0; i < ENCODINGS; i++) {
+            ResponseCodecs.encode(codec, orders);
+        }
+        final long elapsed = System.nanoTime() - start;
+        return new long[] { elapsed / ENCODINGS, (threads.getThreadAllocatedBytes(threadId) - allocated) / ENCODINGS };
+    }
+
+    @Test
+    public void encodeCost() throws Exception {
+        assertEquals(ResponseCodecs.encode(json, orders).length, ResponseCodecBenchmarkTest.responseSize(MimeTypeUtils.APPLICATION_JSON));
+        final long[] jsonCost = ResponseCodecBenchmarkTest.encodeCost(json);
+        final long[] cborCost = ResponseCodecBenchmarkTest.encodeCost(cbor);
+        LOGGER.info(() -> ORDERS + " orders encoded: JSON " + jsonCost[0] + " ns and " + jsonCost[1] + " bytes allocated, CBOR "
+                + cborCost[0] + " ns and " + cborCost[1] + " bytes allocated");
+        assertTrue("CBOR " + cborCost[1] + " bytes allocated, JSON " + jsonCost[1] + " bytes allocated", cborCost[1] < jsonCost[1]);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.esv.net.rest.Get;
+import com.esv.net.rest.QueryParam;
+import com.esv.net.rest.RestService;
+
+/**
+ * <p>
+ * The rest endpoints the tests exchange requests with: a small answer, and
+ * a list of orders of the given size, like a service to service call.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+@RestService(singleton = true)
+public class SampleService {
+
+    private static final Map<String, Object> PONG = new LinkedHashMap<>();
+
+    static {
+        PONG.put("status", "UP");
+        PONG.put("code", 200);
+    }
+
+    @Get("/rest/sample/ping")
+    public Map<String, Object> ping() {
+        return PONG;
+    }
+
+    @Get("/rest/sample/orders")
+    public List<Map<String, Object>> orders(@QueryParam("size") final int size) {
+        final List<Map<String, Object>> orders = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final Map<String, Object> order = new LinkedHashMap<>();
+            order.put("id", 100_000L + i);
+            order.put("customer", "customer-" + (i % 97));
+            order.put("quantity", i % 10 + 1);
+            order.put("price", 9.99 + i % 50);
+            order.put("paid", i % 3 != 0);
+            orders.add(order);
+        }
+        return orders;
+    }
+}
\ No newline at end of file
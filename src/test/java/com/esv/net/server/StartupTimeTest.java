@@ -0,0 +1,62 @@
+/*
+ * Copyright © 2017-2017 Elton Santos Vianna. Distributed under GNU General Public License v3.0.
+ */
+package com.esv.net.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Keeps the cold start visible: the server is started in a new JVM, with
+ * the test class path, for a training run on a free port, which fails when
+ * the server is not started and answering its first request within the
+ * budget, test.startup.maxMillis, 5 seconds by default. The time it took,
+ * the "Ready in N milliseconds" log, is reported with the failure.
+ * </p>
+ *
+ * @author Elton S. Vianna <elton.vianna@yahoo.co.uk>
+ * @version 1.0
+ * @since 19/10/2017
+ */
+public class StartupTimeTest {
+
+    private static final int MAX_STARTUP_MILLIS = Integer.getInteger("test.startup.maxMillis", 5000);
+    private static final long RUN_TIMEOUT_SECONDS = 60L;
+    private static final Pattern READY = Pattern.compile("Ready in (\\d+) milliseconds");
+
+    @Test
+    public void startsWithinTheBudget() throws Exception {
+        final Path index = Files.createTempFile("services", ".idx");
+        final Path output = Files.createTempFile("startup", ".log");
+        try {
+            final Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-Dmicroserver.port=0", "-Dconfig.reload=false", "-Dmicroserver.training=true",
+                    "-Dmicroserver.training.maxStartup=" + MAX_STARTUP_MILLIS, "-Dmicroserver.training.index=" + index,
+                    "-classpath", System.getProperty("java.class.path"), MicroServer.class.getName())
+                    .redirectErrorStream(true).redirectOutput(output.toFile()).start();
+            if (!process.waitFor(RUN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+            final String log = new String(Files.readAllBytes(output), StandardCharsets.UTF_8);
+            final Matcher ready = READY.matcher(log);
+            assertTrue("Not ready within " + RUN_TIMEOUT_SECONDS + " seconds:\n" + log, ready.find());
+            final long readyMillis = Long.parseLong(ready.group(1));
+            assertTrue("Ready in " + readyMillis + " milliseconds, over the budget of " + MAX_STARTUP_MILLIS, readyMillis <= MAX_STARTUP_MILLIS);
+            assertEquals("Training run failed:\n" + log, 0, process.exitValue());
+        } finally {
+            Files.deleteIfExists(index);
+            Files.deleteIfExists(output);
+        }
+    }
+}
\ No newline at end of file